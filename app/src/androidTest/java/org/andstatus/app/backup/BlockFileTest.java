@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.backup;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.util.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockFileTest extends InstrumentationTestCase {
+    private static final String KEY = "database_test.sqlite";
+    private File rootFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+        rootFolder = new File(getInstrumentation().getTargetContext().getCacheDir(), "BlockFileTest");
+        FileUtils.deleteFilesRecursively(rootFolder);
+        assertTrue(rootFolder.exists() || rootFolder.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFilesRecursively(rootFolder);
+        super.tearDown();
+    }
+
+    public void testIncrementalBackupAndRestore() throws IOException {
+        byte[] bytes = new byte[BlockFile.BLOCK_SIZE * 2 + BlockFile.BLOCK_SIZE / 2];
+        new Random(1).nextBytes(bytes);
+        Arrays.fill(bytes, 0, BlockFile.BLOCK_SIZE / 2, (byte) 0);
+        File file = new File(rootFolder, "original.sqlite");
+        writeFile(file, bytes);
+
+        MyBackupDescriptor firstDescriptor = MyBackupDescriptor.getEmpty();
+        BlockFile first = new BlockFile(KEY, file);
+        File firstFolder = newFolder("first");
+        first.backup(new MyBackupDataOutput(firstFolder), MyBackupDescriptor.getEmpty(), firstDescriptor);
+        assertEquals(first.toString(), 3, first.getBlocksWritten());
+        assertEquals(3, firstDescriptor.getBlockKeys().size());
+
+        bytes[BlockFile.BLOCK_SIZE + 10]++;
+        writeFile(file, bytes);
+        MyBackupDescriptor secondDescriptor = MyBackupDescriptor.getEmpty();
+        BlockFile second = new BlockFile(KEY, file);
+        File secondFolder = newFolder("second");
+        second.backup(new MyBackupDataOutput(secondFolder), firstDescriptor, secondDescriptor);
+        assertEquals("Only the changed block is written " + second, 1, second.getBlocksWritten());
+        assertEquals(second.toString(), 2, second.getBlocksKept());
+
+        FileUtils.deleteFilesRecursively(firstFolder);
+        assertFalse("The second backup doesn't depend on the first one",
+                new File(firstFolder, BlockFile.blockKey(KEY, 0) + MyBackupDataOutput.DATA_FILE_SUFFIX
+                        + BlockFile.BLOCK_FILE_EXTENSION).exists());
+
+        MyBackupDataInput data = new MyBackupDataInput(secondFolder);
+        assertTrue(data.readNextHeader());
+        assertEquals(BlockFile.blockKey(KEY, 0), data.getKey());
+        File restoredFile = new File(rootFolder, "restored.sqlite");
+        BlockFile restored = new BlockFile(KEY, restoredFile);
+        assertFalse("No entities after the blocks", restored.restore(data));
+        assertEquals(restored.toString(), 3, restored.getBlocksWritten());
+        assertTrue("Restored file is the same", Arrays.equals(bytes, FileUtils.getBytes(restoredFile)));
+    }
+
+    private File newFolder(String name) {
+        File folder = new File(rootFolder, name);
+        assertTrue(folder.exists() || folder.mkdirs());
+        return folder;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, false);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
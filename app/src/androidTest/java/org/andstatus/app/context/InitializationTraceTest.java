@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.context;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.InitializationTrace.Stage;
+import org.andstatus.app.data.MyDatabase;
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class InitializationTraceTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+    }
+
+    public void testStagedInitialization() {
+        Context context = MyContextHolder.get().context();
+        List<String> accountsExpected = accountNames(MyContextHolder.get());
+        MyContext myContext = MyContextHolder.get().newInitialized(context, this.getClass().getSimpleName());
+        try {
+            assertTrue(myContext.toString(), myContext.isReady());
+            assertEquals(accountsExpected, accountNames(myContext));
+            int originsStaged = myContext.persistentOrigins().collection().size();
+
+            InitializationTrace trace = InitializationTrace.getLast();
+            MyLog.i(this, "Staged initialization: " + trace);
+            List<Stage> ended = trace.getEndedStages();
+            for (Stage stage : Stage.values()) {
+                assertTrue(stage + " " + trace, trace.getStageMillis(stage) >= 0);
+            }
+            assertEquals(trace.toString(), Stage.values().length, ended.size());
+            List<Stage> sequential = new ArrayList<Stage>(ended);
+            sequential.remove(Stage.ACCOUNT_DATA);
+            assertEquals(trace.toString(), Arrays.asList(Stage.STORAGE, Stage.DATABASE, Stage.ORIGINS,
+                    Stage.ACCOUNTS), sequential);
+            assertTrue("Account data is read after the storage is ready " + trace,
+                    ended.indexOf(Stage.ACCOUNT_DATA) > ended.indexOf(Stage.STORAGE));
+            assertTrue("Accounts wait for their data " + trace,
+                    ended.indexOf(Stage.ACCOUNT_DATA) < ended.indexOf(Stage.ACCOUNTS));
+
+            initializeSequentially(myContext);
+            assertEquals("Sequential initialization gives the same accounts", accountsExpected,
+                    accountNames(myContext));
+            assertEquals("Sequential initialization gives the same origins", originsStaged,
+                    myContext.persistentOrigins().collection().size());
+        } finally {
+            release(myContext);
+        }
+    }
+
+    private static List<String> accountNames(MyContext myContext) {
+        List<String> names = new ArrayList<String>();
+        for (MyAccount ma : myContext.persistentAccounts().collection()) {
+            names.add(ma.getAccountName());
+        }
+        return names;
+    }
+
+    /**
+     * The stages of the initialization in one thread, as it was done before the account data
+     * was read in parallel: opening the database, loading origins and then accounts
+     * together with their data from the AccountManager
+     */
+    private static void initializeSequentially(MyContext myContext) {
+        MyDatabase db = new MyDatabase(myContext.context());
+        try {
+            assertEquals(MyContextState.READY, db.checkState());
+            myContext.persistentOrigins().initialize(db.getWritableDatabase());
+            myContext.persistentAccounts().initialize(myContext);
+        } finally {
+            db.close();
+        }
+    }
+
+    /** The context is not the current one, so only its database is closed */
+    private static void release(MyContext myContext) {
+        if (myContext.getDatabase() != null) {
+            myContext.getDatabase().close();
+        }
+    }
+}
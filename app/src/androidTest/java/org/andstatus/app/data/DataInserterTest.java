@@ -32,6 +32,7 @@ import org.andstatus.app.net.http.ConnectionException;
 import org.andstatus.app.net.social.ConnectionGnuSocialTest;
 import org.andstatus.app.net.social.MbAttachment;
 import org.andstatus.app.net.social.MbMessage;
+import org.andstatus.app.net.social.MbTimelineItem;
 import org.andstatus.app.net.social.MbUser;
 import org.andstatus.app.service.AttachmentDownloaderTest;
 import org.andstatus.app.service.CommandData;
@@ -39,6 +40,8 @@ import org.andstatus.app.service.CommandExecutionContext;
 import org.andstatus.app.util.SelectionAndArgs;
 import org.andstatus.app.util.TriState;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 public class DataInserterTest extends InstrumentationTestCase {
@@ -402,4 +405,43 @@ public class DataInserterTest extends InstrumentationTestCase {
         assertEquals("Username stored for userId=" + userId3, user3SameNewUserName.getUserName(),
                 MyQuery.userIdToStringColumnValue(MyDatabase.User.USERNAME, userId3));
     }
+
+    public void testInsertTimelinePage() {
+        MyAccount ma = TestSuite.getConversationMyAccount();
+        MessageInserter mi = new MessageInserter(ma);
+        MbUser author = mi.buildUserFromOid("page-author" + TestSuite.TESTRUN_UID);
+        MbMessage message1 = mi.buildMessage(author, "First message of the page", null, null,
+                DownloadStatus.LOADED);
+        MbMessage message2 = mi.buildMessage(author, "Reply in the same page", message1, null,
+                DownloadStatus.LOADED);
+        List<MbTimelineItem> items = new ArrayList<>();
+        for (MbMessage message : new MbMessage[] {message2, message1}) {
+            MbTimelineItem item = new MbTimelineItem();
+            item.mbMessage = message;
+            items.add(item);
+        }
+
+        DataInserter di = new DataInserter(new CommandExecutionContext(CommandData.getEmpty(), ma)
+                .setTimelineType(TimelineType.HOME));
+        LatestUserMessages lum = new LatestUserMessages();
+        di.insertOrUpdateTimelineItems(items, lum);
+        lum.save();
+
+        long msgId1 = MyQuery.oidToId(OidEnum.MSG_OID, ma.getOriginId(), message1.oid);
+        long msgId2 = MyQuery.oidToId(OidEnum.MSG_OID, ma.getOriginId(), message2.oid);
+        assertTrue("Message1 added " + message1, msgId1 != 0);
+        assertTrue("Message2 added " + message2, msgId2 != 0);
+        assertEquals("In reply to", msgId1,
+                MyQuery.msgIdToLongColumnValue(Msg.IN_REPLY_TO_MSG_ID, msgId2));
+        long authorId = MyQuery.oidToId(OidEnum.USER_OID, ma.getOriginId(), author.oid);
+        assertTrue("Author added " + author, authorId != 0);
+        assertEquals("Sender of message1", authorId,
+                MyQuery.msgIdToLongColumnValue(Msg.SENDER_ID, msgId1));
+        assertEquals("Sender of message2", authorId,
+                MyQuery.msgIdToLongColumnValue(Msg.SENDER_ID, msgId2));
+
+        di.insertOrUpdateTimelineItems(items, new LatestUserMessages());
+        assertEquals("Same message1 after the second insert", msgId1,
+                MyQuery.oidToId(OidEnum.MSG_OID, ma.getOriginId(), message1.oid));
+    }
 }
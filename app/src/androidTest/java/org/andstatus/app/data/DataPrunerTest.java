@@ -87,6 +87,19 @@ public class DataPrunerTest extends InstrumentationTestCase  {
         assertEquals(0, dp.pruneAttachments());
     }
 
+    public void testPruneAttachmentsInChunks() {
+        DataPruner dp = new DataPruner(MyContextHolder.get());
+        dp.pruneAttachments();
+        int count = DataPruner.CHUNK_SIZE + 1;
+        for (int ind = 0; ind < count; ind++) {
+            DownloadData dd = DownloadData.getSingleForMessage(-1000L - ind, MyContentType.IMAGE,
+                    Uri.parse("http://example.com/image" + ind + ".png"));
+            dd.saveToDatabase();
+        }
+        assertEquals(count, dp.pruneAttachments());
+        assertEquals(0, dp.pruneAttachments());
+    }
+
     private void clearPrunedDate() {
         MyPreferences.putLong(MyPreferences.KEY_DATA_PRUNED_DATE, 0);
     }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.graphics.Point;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ImageCacheTest extends InstrumentationTestCase {
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+    }
+
+    public void testInSampleSize() {
+        Point bounds = new Point(96, 96);
+        assertEquals(1, ImageCache.calculateInSampleSize(new Point(96, 96), bounds));
+        assertEquals(1, ImageCache.calculateInSampleSize(new Point(191, 400), bounds));
+        assertEquals(2, ImageCache.calculateInSampleSize(new Point(192, 400), bounds));
+        assertEquals(8, ImageCache.calculateInSampleSize(new Point(800, 1000), bounds));
+        assertEquals(1, ImageCache.calculateInSampleSize(new Point(50, 50), bounds));
+
+        assertEquals(1, ImageCache.fitInSampleSize(new Point(96, 50), bounds));
+        assertEquals(2, ImageCache.fitInSampleSize(new Point(97, 50), bounds));
+        assertEquals(16, ImageCache.fitInSampleSize(new Point(800, 1000), bounds));
+    }
+
+    public void testKey() {
+        DownloadFile file = new DownloadFile("image1.png");
+        assertEquals("image1.png:96x48", ImageCache.toKey(file, new Point(96, 48)));
+        assertFalse(ImageCache.toKey(file, new Point(96, 48)).equals(ImageCache.toKey(file, new Point(48, 48))));
+    }
+
+    public void testThumbnailsOfDeletedFile() throws IOException {
+        File thumbnail1 = newThumbnail("image1.png_96x48", 10, 0);
+        File thumbnail2 = newThumbnail("image1.png_48x48", 10, 0);
+        File other = newThumbnail("image10.png_96x48", 10, 0);
+        ImageCache.onFileDeleted("image1.png");
+        assertFalse(thumbnail1.exists());
+        assertFalse(thumbnail2.exists());
+        assertTrue("Thumbnail of other file is kept", other.exists());
+        assertTrue(other.delete());
+    }
+
+    public void testTrimThumbnails() throws IOException {
+        ImageCache.trimThumbnails(0);
+        long now = System.currentTimeMillis();
+        File oldest = newThumbnail("trim1.png_96x96", 1000, now - 30000);
+        File older = newThumbnail("trim2.png_96x96", 1000, now - 20000);
+        File newest = newThumbnail("trim3.png_96x96", 1000, now - 10000);
+        assertEquals(0, ImageCache.trimThumbnails(3000));
+        assertTrue(oldest.exists());
+
+        assertEquals(1000, ImageCache.trimThumbnails(2900));
+        assertFalse("The least recently used is deleted", oldest.exists());
+        assertTrue(older.exists());
+        assertTrue(newest.exists());
+
+        assertEquals(1000, ImageCache.trimThumbnails(1500));
+        assertFalse(older.exists());
+        assertTrue(newest.exists());
+        assertEquals(1000, ImageCache.trimThumbnails(0));
+    }
+
+    private File newThumbnail(String name, int size, long lastModified) throws IOException {
+        File dir = new File(MyContextHolder.get().context().getCacheDir(), ImageCache.THUMBNAILS_DIRECTORY);
+        assertTrue(dir.exists() || dir.mkdirs());
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        if (lastModified > 0) {
+            assertTrue(file.setLastModified(lastModified));
+        }
+        return file;
+    }
+}
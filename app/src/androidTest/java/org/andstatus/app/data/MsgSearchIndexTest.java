@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.net.social.MbMessage;
+import org.andstatus.app.net.social.MbUser;
+
+public class MsgSearchIndexTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+    }
+
+    public void testToMatchQuery() {
+        assertEquals("", MsgSearchIndex.toMatchQuery(null));
+        assertEquals("", MsgSearchIndex.toMatchQuery(" \"*- "));
+        assertEquals("hello*", MsgSearchIndex.toMatchQuery("Hello"));
+        assertEquals("john* example* com*", MsgSearchIndex.toMatchQuery("@john@example.com"));
+        assertEquals("or* not*", MsgSearchIndex.toMatchQuery("OR NOT"));
+        assertEquals("Only ASCII words are matched by the index", "hello*",
+                MsgSearchIndex.toMatchQuery("Hello Привет"));
+    }
+
+    public void testSelectionOfQueryWithoutWords() {
+        assertEquals("", MsgSearchIndex.toSelection("!!!"));
+        assertEquals(0, MsgSearchIndex.toSelectionArgs("!!!").length);
+        assertEquals("", MsgSearchIndex.toSelection(" \"*- "));
+    }
+
+    public void testSelectionOfNonAsciiWords() {
+        String[] args = MsgSearchIndex.toSelectionArgs("Hello, Привет!");
+        assertEquals(3, args.length);
+        assertEquals("hello*", args[0]);
+        assertEquals("Non-ASCII letters are not folded, as by the tokenizer", "%Привет%", args[1]);
+        assertEquals("%Привет%", args[2]);
+    }
+
+    public void testSearch() {
+        MyAccount ma = MyContextHolder.get().persistentAccounts()
+                .fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma.isValid());
+        MessageInserter mi = new MessageInserter(ma);
+        MbUser author = mi.buildUser();
+        String word = "fulltext" + System.currentTimeMillis();
+        MbMessage message = mi.buildMessage(author, "<p>Searching for <b>" + word + "</b> words</p>",
+                null, null, DownloadStatus.LOADED);
+        long msgId = mi.addMessage(message);
+
+        assertFound(ma, word.substring(0, 10), msgId);
+        assertFound(ma, word, msgId);
+        assertFound(ma, author.getUserName(), msgId);
+        assertNotFound(ma, word + "x", msgId);
+        assertNotFound(ma, "!!!", msgId);
+
+        MyContextHolder.get().getDatabase().getWritableDatabase()
+                .delete(MyDatabase.Msg.TABLE_NAME, BaseColumns._ID + "=" + msgId, null);
+        assertNotFound(ma, word, msgId);
+    }
+
+    public void testSearchNonAscii() {
+        MyAccount ma = MyContextHolder.get().persistentAccounts()
+                .fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma.isValid());
+        MessageInserter mi = new MessageInserter(ma);
+        String unique = Long.toString(System.currentTimeMillis());
+        MbMessage message = mi.buildMessage(mi.buildUser(), "Привет" + unique + ", Ärger"
+                + unique + " und 東京タワー" + unique + "に行った", null, null, DownloadStatus.LOADED);
+        long msgId = mi.addMessage(message);
+
+        assertFound(ma, "Привет" + unique, msgId);
+        assertFound(ma, "Ärger" + unique, msgId);
+        assertFound(ma, "Ärger" + unique + " UND", msgId);
+        assertFound(ma, "Text without word breaks is searched as a substring", "タワー" + unique, msgId);
+        assertNotFound(ma, "Ärger" + unique + " oder", msgId);
+    }
+
+    public void testSearchRenamedUser() {
+        MyAccount ma = MyContextHolder.get().persistentAccounts()
+                .fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma.isValid());
+        MessageInserter mi = new MessageInserter(ma);
+        MbUser author = mi.buildUserFromOid("acct:renamed" + System.currentTimeMillis() + "@example.com");
+        long msgId = mi.addMessage(mi.buildMessage(author, "Before the rename", null, null, DownloadStatus.LOADED));
+        long authorId = MyQuery.msgIdToLongColumnValue(MyDatabase.Msg.AUTHOR_ID, msgId);
+        assertTrue(authorId != 0);
+        assertFound(ma, author.getUserName(), msgId);
+
+        String newName = "newname" + System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(MyDatabase.User.USERNAME, newName);
+        values.put(MyDatabase.User.WEBFINGER_ID, newName + "@example.com");
+        MyContextHolder.get().context().getContentResolver().update(
+                MatchedUri.getUserUri(ma.getUserId(), authorId), values, null, null);
+        assertFound(ma, newName, msgId);
+        assertNotFound(ma, author.getUserName(), msgId);
+    }
+
+    private void assertFound(MyAccount ma, String message, String query, long msgId) {
+        assertTrue(message + "; '" + query + "' should find " + msgId, search(ma, query, msgId));
+    }
+
+    private void assertFound(MyAccount ma, String query, long msgId) {
+        assertTrue("'" + query + "' should find " + msgId, search(ma, query, msgId));
+    }
+
+    private void assertNotFound(MyAccount ma, String query, long msgId) {
+        assertFalse("'" + query + "' shouldn't find " + msgId, search(ma, query, msgId));
+    }
+
+    private boolean search(MyAccount ma, String query, long msgId) {
+        Uri uri = MatchedUri.getTimelineSearchUri(ma.getUserId(), TimelineType.EVERYTHING, true, 0, query);
+        Cursor cursor = MyContextHolder.get().context().getContentResolver().query(uri,
+                new String[] {BaseColumns._ID}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) == msgId) {
+                    return true;
+                }
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return false;
+    }
+}
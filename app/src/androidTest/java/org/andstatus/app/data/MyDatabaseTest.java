@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+public class MyDatabaseTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+    }
+
+    public void testWriteAheadLog() throws Exception {
+        MyDatabase myDatabase = MyContextHolder.get().getDatabase();
+        final SQLiteDatabase db = myDatabase.getWritableDatabase();
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null).toLowerCase());
+
+        final String sql = "SELECT COUNT(*) FROM " + MyDatabase.Origin.TABLE_NAME;
+        long originsCount = DatabaseUtils.longForQuery(db, sql, null);
+        db.beginTransaction();
+        try {
+            MyDatabase.execSQL(db, "UPDATE " + MyDatabase.Origin.TABLE_NAME + " SET "
+                    + MyDatabase.Origin.ORIGIN_NAME + "=" + MyDatabase.Origin.ORIGIN_NAME);
+            FutureTask<Long> reader = new FutureTask<Long>(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return DatabaseUtils.longForQuery(db, sql, null);
+                }
+            });
+            new Thread(reader).start();
+            assertEquals("Read while the transaction is open", originsCount,
+                    reader.get(5, TimeUnit.SECONDS).longValue());
+        } finally {
+            db.endTransaction();
+        }
+        assertTrue(myDatabase.checkpoint());
+    }
+}
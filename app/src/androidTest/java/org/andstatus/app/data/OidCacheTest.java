@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.OidEnum;
+
+public class OidCacheTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+    }
+
+    public void testPartitionsAndEviction() {
+        OidCache cache = new OidCache(OidEnum.USER_OID, 3);
+        cache.put(1, "oid1", 11);
+        cache.put(1, "oid2", 12);
+        cache.put(2, "oid1", 21);
+        assertEquals(11, cache.getId(1, "oid1"));
+        assertEquals(21, cache.getId(2, "oid1"));
+        assertEquals("oid2", cache.getOid(12));
+        assertEquals(0, cache.getId(1, "oid3"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put(1, "oid3", 13);
+        cache.put(1, "oid4", 14);
+        assertEquals("Least recently used evicted", 0, cache.getId(1, "oid1"));
+        assertNull(cache.getOid(11));
+        assertEquals("Other origin is intact", 21, cache.getId(2, "oid1"));
+
+        cache.put(1, "oid3changed", 13);
+        assertEquals(0, cache.getId(1, "oid3"));
+        assertEquals("oid3changed", cache.getOid(13));
+
+        cache.removeId(14);
+        assertEquals(0, cache.getId(1, "oid4"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testInvalidatedByProvider() {
+        long originId = TestSuite.getConversationOriginId();
+        String messageOid = "oidCacheTest" + TestSuite.TESTRUN_UID;
+        long msgId = MessageInserter.addMessageForAccount(TestSuite.CONVERSATION_ACCOUNT_NAME,
+                "Message to be deleted", messageOid, DownloadStatus.LOADED);
+        assertEquals(msgId, MyQuery.oidToId(OidEnum.MSG_OID, originId, messageOid));
+        assertEquals(messageOid, MyQuery.idToOid(OidEnum.MSG_OID, msgId, 0));
+
+        MessageInserter.deleteOldMessage(originId, messageOid);
+        assertEquals("Deleted message is not in the cache", 0,
+                MyQuery.oidToId(OidEnum.MSG_OID, originId, messageOid));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.util.MyLog;
+
+/**
+ * Checks query plans of the timelines, so a missing index or a nested subquery doesn't go unnoticed
+ */
+public class TimelineSqlTest extends InstrumentationTestCase {
+    private MyAccount ma;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+        ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma.isValid());
+    }
+
+    public void testQueryPlans() {
+        for (TimelineType timelineType : TimelineType.values()) {
+            if (timelineType == TimelineType.UNKNOWN) {
+                continue;
+            }
+            assertQueryPlan(MatchedUri.getTimelineUri(ma.getUserId(), timelineType, false, ma.getUserId()));
+            assertQueryPlan(MatchedUri.getTimelineUri(ma.getUserId(), timelineType, true, ma.getUserId()));
+        }
+        assertQueryPlan(MatchedUri.getTimelineSearchUri(ma.getUserId(), TimelineType.HOME, true, 0, "text"));
+    }
+
+    private void assertQueryPlan(Uri uri) {
+        String[] projection = TimelineSql.getTimelineProjection();
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        MyProvider.setTimelineTables(qb, uri, projection, null, "");
+        String sql = qb.buildQuery(projection, null, null, null, Msg.DEFAULT_SORT_ORDER, "100");
+        assertFalse("Nested subquery in " + sql, sql.toUpperCase().contains("(SELECT"));
+
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
+        StringBuilder plan = new StringBuilder();
+        int scans = 0;
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                plan.append(detail).append("\n");
+                if (detail.startsWith("SCAN")) {
+                    scans++;
+                }
+                assertFalse("No index for a join: " + detail + "\n" + uri + "\n" + sql,
+                        detail.contains("AUTOMATIC"));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        MyLog.v(this, uri + "\n" + plan);
+        assertTrue("Only the driving table may be scanned, " + uri + "\n" + plan, scans <= 1);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+public class UploadFileTest extends InstrumentationTestCase {
+    private static final int WIDTH = 2600;
+    private static final int HEIGHT = 1600;
+
+    private DownloadFile original;
+    private DownloadFile scaled;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+        original = new DownloadFile("uploadFileTest_original.jpg");
+        scaled = new DownloadFile("uploadFileTest_scaled.jpg");
+        scaled.delete();
+        newPhoto(original);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        original.delete();
+        scaled.delete();
+        super.tearDown();
+    }
+
+    public void testDownscale() throws IOException {
+        final long uploadLimit = 200 * 1024;
+        assertTrue("Original " + original.getSize(), original.getSize() > uploadLimit);
+        UploadFile uploadFile = new UploadFile(original, scaled);
+        Uri uri = uploadFile.prepare(uploadLimit);
+        assertEquals(FileProvider.downloadFilenameToUri(scaled.getFilename()), uri);
+        assertTrue(scaled.exists());
+        assertTrue("Scaled " + scaled.getSize() + " fits the limit", scaled.getSize() <= uploadLimit);
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(scaled.getFile().getAbsolutePath(), bounds);
+        assertTrue("Width " + bounds.outWidth, bounds.outWidth <= UploadFile.MAX_IMAGE_SIZE);
+        assertTrue("Height " + bounds.outHeight, bounds.outHeight <= UploadFile.MAX_IMAGE_SIZE);
+        assertEquals("Orientation is kept", String.valueOf(ExifInterface.ORIENTATION_ROTATE_90),
+                new ExifInterface(scaled.getFile().getAbsolutePath()).getAttribute(ExifInterface.TAG_ORIENTATION));
+
+        long lastModified = original.getFile().lastModified() + 2000;
+        assertTrue(scaled.getFile().setLastModified(lastModified));
+        assertEquals("Scaled file is reused", uri, uploadFile.prepare(uploadLimit));
+        assertEquals(lastModified, scaled.getFile().lastModified());
+
+        uploadFile.deleteScaled();
+        assertFalse(scaled.exists());
+    }
+
+    public void testScaledIsDeletedWithCommand() throws IOException {
+        final long msgId = -777L;
+        DownloadData dd = DownloadData.getSingleForMessage(msgId, MyContentType.IMAGE,
+                Uri.parse("http://example.com/uploadFileTest.jpg"));
+        dd.saveToDatabase();
+        assertTrue(dd.getDownloadId() != 0);
+        DownloadFile scaledOfMessage = new DownloadFile(UploadFile.filenameOf(dd.getDownloadId()));
+        newPhoto(scaledOfMessage);
+        assertTrue(scaledOfMessage.exists());
+
+        UploadFile.deleteScaledOfMessage(msgId);
+        assertFalse("Scaled file is deleted", scaledOfMessage.exists());
+
+        newPhoto(scaledOfMessage);
+        DownloadData.deleteAllOfThisMsg(msgId);
+        assertFalse("Scaled file is deleted with the message", scaledOfMessage.exists());
+    }
+
+    /** Noise doesn't compress well, so the file is large */
+    private static void newPhoto(DownloadFile file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(WIDTH);
+        int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                row[x] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        OutputStream out = new FileOutputStream(file.getFile());
+        try {
+            assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out));
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        ExifInterface exif = new ExifInterface(file.getFile().getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.saveAttributes();
+    }
+}
@@ -1,19 +1,27 @@
 package org.andstatus.app.msg;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.provider.BaseColumns;
 import android.test.InstrumentationTestCase;
 
 import org.andstatus.app.LoadableListActivity.ProgressPublisher;
 import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.DownloadStatus;
+import org.andstatus.app.data.MessageInserter;
+import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyQuery;
 import org.andstatus.app.msg.ConversationLoader;
 import org.andstatus.app.msg.ConversationViewItem;
 import org.andstatus.app.util.MyLog;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationViewLoaderTest extends InstrumentationTestCase implements ProgressPublisher {
     private MyAccount ma;
@@ -56,6 +64,48 @@ public class ConversationViewLoaderTest extends InstrumentationTestCase implemen
         assertTrue(progressCounter > 0);
     }
 
+    public void testMembersAreTheSameAsViewItems() {
+        Context context = MyContextHolder.get().context();
+        ConversationLoader<ConversationViewItem> viewLoader = new ConversationLoader<ConversationViewItem>(
+                ConversationViewItem.class, context, ma, selectedMessageId);
+        viewLoader.load(null);
+        ConversationLoader<ConversationMemberItem> memberLoader = new ConversationLoader<ConversationMemberItem>(
+                ConversationMemberItem.class, context, ma, selectedMessageId);
+        memberLoader.load(null);
+        assertEquals("Number of messages", viewLoader.size(), memberLoader.size());
+        Set<Integer> listOrders = new HashSet<Integer>();
+        boolean selectedFound = false;
+        for (int ind = 0; ind < viewLoader.size(); ind++) {
+            ConversationViewItem viewItem = viewLoader.getMsgs().get(ind);
+            ConversationMemberItem memberItem = memberLoader.getMsgs().get(ind);
+            assertEquals("Message at " + ind, viewItem.getMsgId(), memberItem.getMsgId());
+            assertEquals("Indent at " + ind, viewItem.mIndentLevel, memberItem.mIndentLevel);
+            assertTrue("List order is unique " + viewItem, listOrders.add(viewItem.mListOrder));
+            if (viewItem.getMsgId() == selectedMessageId) {
+                selectedFound = true;
+            }
+        }
+        assertTrue("Selected message is in the list", selectedFound);
+    }
+
+    public void testDanglingInReplyTo() {
+        long msgId = MessageInserter.addMessageForAccount(TestSuite.CONVERSATION_ACCOUNT_NAME,
+                "Reply to a message, which we don't have", "dangling" + System.currentTimeMillis(),
+                DownloadStatus.LOADED);
+        assertTrue(msgId != 0);
+        long absentMsgId = Integer.MAX_VALUE;
+        assertEquals(0, MyQuery.msgIdToLongColumnValue(BaseColumns._ID, absentMsgId));
+        ContentValues values = new ContentValues();
+        values.put(Msg.IN_REPLY_TO_MSG_ID, absentMsgId);
+        assertEquals(1, DbUtils.updateRowWithRetry(Msg.TABLE_NAME, msgId, values, 3));
+
+        ConversationLoader<ConversationViewItem> loader = new ConversationLoader<ConversationViewItem>(
+                ConversationViewItem.class, MyContextHolder.get().context(), ma, msgId);
+        loader.load(null);
+        assertEquals("The message is the root of its conversation", 1, loader.size());
+        assertEquals(msgId, loader.getMsgs().get(0).getMsgId());
+    }
+
     @Override
     public void publish(String progress) {
         progressCounter++;
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.msg;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.IntentExtra;
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.TimelineSql;
+import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.util.SelectionAndArgs;
+
+/**
+ * Runs the queries of the timelines with their real selections,
+ * so a column, which is ambiguous in the joined tables, doesn't go unnoticed
+ */
+public class TimelineListParametersTest extends InstrumentationTestCase {
+    private MyAccount ma;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+        ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma.isValid());
+    }
+
+    public void testSelections() {
+        for (TimelineType timelineType : TimelineType.values()) {
+            if (timelineType == TimelineType.UNKNOWN) {
+                continue;
+            }
+            assertQuery(timelineType, false, false);
+            assertQuery(timelineType, true, false);
+            assertQuery(timelineType, false, true);
+        }
+    }
+
+    private void assertQuery(TimelineType timelineType, boolean isCombined, boolean byOrigin) {
+        TimelineListParameters prev = new TimelineListParameters(MyContextHolder.get().context());
+        prev.mTimelineType = timelineType;
+        prev.mTimelineCombined = isCombined;
+        prev.myAccountUserId = ma.getUserId();
+        prev.mSelectedUserId = ma.getUserId();
+        Bundle args = new Bundle();
+        args.putBoolean(IntentExtra.POSITION_RESTORED.key, true);
+        TimelineListParameters params = TimelineListParameters.clone(prev, args);
+
+        SelectionAndArgs sa = new SelectionAndArgs();
+        sa.addSelection(params.mSa.selection, params.mSa.selectionArgs);
+        if (byOrigin) {
+            sa.addSelection(TimelineSql.msgColumn(Msg.ORIGIN_ID) + " = ?",
+                    new String[] {Long.toString(ma.getOriginId())});
+        }
+        TimelinePages.Key key = new TimelinePages.Key(System.currentTimeMillis(), Long.MAX_VALUE);
+        key.addOlderThanThis(sa);
+
+        String description = params.mContentUri + ", selection: " + sa.selection;
+        Cursor cursor = null;
+        try {
+            cursor = MyContextHolder.get().context().getContentResolver().query(params.mContentUri,
+                    params.mProjection, sa.selection, sa.selectionArgs, params.mSortOrder);
+            assertNotNull(description, cursor);
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            throw new AssertionError(description + "; " + e.getMessage());
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+    }
+}
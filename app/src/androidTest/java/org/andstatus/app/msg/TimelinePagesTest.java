@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.msg;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.util.SelectionAndArgs;
+
+import java.util.List;
+
+public class TimelinePagesTest extends InstrumentationTestCase {
+
+    public void testPages() {
+        TimelinePages pages = new TimelinePages();
+        assertTrue(pages.isEmpty());
+        assertNull(pages.toCursor());
+
+        MatrixCursor first = newPage(new long[][] {{500, 5}, {400, 4}});
+        pages.replaceAll(first);
+        assertEquals(5, pages.getNewest().msgId);
+        assertEquals(4, pages.getOldest().msgId);
+
+        pages.addOlder(newPage(new long[][] {{300, 3}, {300, 2}}));
+        pages.addNewer(newPage(new long[][] {{600, 6}}));
+        pages.addOlder(newPage(new long[][] {}));
+        assertEquals(6, pages.getNewest().msgId);
+        assertEquals(2, pages.getOldest().msgId);
+        assertEquals(5, pages.getCount());
+
+        Cursor cursor = pages.toCursor();
+        assertEquals(5, cursor.getCount());
+        long expectedId = 6;
+        int idIndex = cursor.getColumnIndex(BaseColumns._ID);
+        while (cursor.moveToNext()) {
+            assertEquals(expectedId--, cursor.getLong(idIndex));
+        }
+        cursor.close();
+        assertFalse("Pages are not closed with the view", first.isClosed());
+
+        List<Cursor> replaced = pages.replaceAll(newPage(new long[][] {{700, 7}}));
+        assertEquals(3, replaced.size());
+        assertEquals(1, pages.getCount());
+        pages.closeAll();
+        assertTrue(pages.isEmpty());
+    }
+
+    public void testKeySelection() {
+        TimelinePages.Key key = new TimelinePages.Key(300, 3);
+        SelectionAndArgs sa = new SelectionAndArgs();
+        key.addOlderThanThis(sa);
+        assertEquals(3, sa.nArgs);
+        assertTrue(sa.selection, sa.selection.contains(" < ?"));
+    }
+
+    public void testOlderRowAddedAfterLoad() {
+        TimelinePages pages = new TimelinePages();
+        pages.replaceAll(newPage(new long[][] {{500, 5}, {400, 4}}));
+        pages.addOlder(newPage(new long[][] {{300, 3}}));
+        assertEquals(5, pages.getMaxMsgId());
+
+        SelectionAndArgs sa = new SelectionAndArgs();
+        pages.getNewest().addNewerThanThisOrAddedAfter(sa, pages.getMaxMsgId());
+        assertEquals(4, sa.nArgs);
+        assertEquals("5", sa.selectionArgs[3]);
+
+        MatrixCursor newer = newPage(new long[][] {{600, 6}});
+        assertTrue(TimelinePages.areAllNewerThan(newer, pages.getNewest()));
+        // e.g. a message of a conversation, which was sent before the newest loaded one
+        MatrixCursor withOlderRow = newPage(new long[][] {{600, 7}, {450, 6}});
+        assertFalse("The row with sent date 450 belongs between loaded rows",
+                TimelinePages.areAllNewerThan(withOlderRow, pages.getNewest()));
+        newer.close();
+        withOlderRow.close();
+        pages.closeAll();
+    }
+
+    private MatrixCursor newPage(long[][] rows) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {BaseColumns._ID, Msg.SENT_DATE});
+        for (long[] row : rows) {
+            cursor.addRow(new Object[] {row[1], row[0]});
+        }
+        return cursor;
+    }
+}
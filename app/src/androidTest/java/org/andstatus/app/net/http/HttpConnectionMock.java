@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class HttpConnectionMock extends HttpConnection {
@@ -60,7 +62,10 @@ public class HttpConnectionMock extends HttpConnection {
 
     private final List<HttpReadResult> results = new CopyOnWriteArrayList<HttpReadResult>();
     private volatile String responseString = "";
+    /** Responses to requests, which URLs contain the key */
+    private final Map<String, String> responsesForUrls = new ConcurrentHashMap<String, String>();
     private volatile InputStream responseFileStream = null;
+    private volatile InputStream responseStream = null;
     private volatile ConnectionException exception = null;
 
     private volatile String password = "password";
@@ -78,9 +83,23 @@ public class HttpConnectionMock extends HttpConnection {
         this.responseString = responseString;
     }
 
+    /** The response to requests, which URLs contain the substring, instead of {@link #setResponse(String)} */
+    public void setResponseFor(String urlSubstring, String responseString) {
+        responsesForUrls.put(urlSubstring, responseString);
+    }
+
+    public void setNetworkDelayMs(long networkDelayMs) {
+        this.networkDelayMs = networkDelayMs;
+    }
+
     public void setResponseFileStream(InputStream inputStream) {
         this.responseFileStream = inputStream;
     }
+
+    /** The response of a streaming request, see {@link HttpConnection#streamRequest(String, JsonStreamListener)} */
+    public void setResponseStream(InputStream inputStream) {
+        this.responseStream = inputStream;
+    }
     
     public void setException(ConnectionException exception) {
         this.exception = exception;
@@ -124,6 +143,12 @@ public class HttpConnectionMock extends HttpConnection {
 
     private void onRequest(String method, HttpReadResult result) {
         result.strResponse = responseString;
+        for (Map.Entry<String, String> entry : responsesForUrls.entrySet()) {
+            if (result.getUrl().contains(entry.getKey())) {
+                result.strResponse = entry.getValue();
+                break;
+            }
+        }
         if (result.fileResult != null && responseFileStream != null) {
             try {
                 FileUtils.readStreamToFile(responseFileStream, result.fileResult);
@@ -131,6 +156,13 @@ public class HttpConnectionMock extends HttpConnection {
                 result.setException(e);
             }
         }
+        if (result.streamListener != null && responseStream != null) {
+            try {
+                result.readResponse(responseStream);
+            } catch (IOException e) {
+                result.setException(e);
+            }
+        }
         results.add(result);
         MyLog.v(this, method + " num:" + results.size() + "; path:'" + result.getUrl()
                 + "', originUrl:'" + data.originUrl + "', instanceId:" + mInstanceId );
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+
+public class HttpValidatorsTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+    }
+
+    public void testSaveAndLoad() {
+        final long originId = 1;
+        final String account = "validatorstest@example.com";
+        final String url1 = "https://example.com/api/statuses/home_timeline.json?since_id=12";
+        final String url2 = "https://example.com/api/statuses/home_timeline.json?since_id=15";
+        assertEquals("https://example.com/api/statuses/home_timeline.json", HttpValidators.endpointOf(url1));
+
+        HttpValidators validators = HttpValidators.load(originId, account, url1);
+        validators.save("\"etag1\"", "Sun, 18 Oct 2015 10:00:00 GMT");
+        validators = HttpValidators.load(originId, account, url1);
+        assertEquals(validators.toString(), "\"etag1\"", validators.getETag());
+        assertEquals("Sun, 18 Oct 2015 10:00:00 GMT", validators.getLastModified());
+        assertTrue(HttpValidators.load(originId, "other" + account, url1).isEmpty());
+
+        validators = HttpValidators.load(originId, account, url2);
+        assertTrue("Other URL of the same endpoint " + validators, validators.isEmpty());
+        validators.save("\"etag2\"", "");
+        assertTrue("Replaced by the new URL", HttpValidators.load(originId, account, url1).isEmpty());
+        assertEquals("\"etag2\"", HttpValidators.load(originId, account, url2).getETag());
+
+        HttpValidators.load(originId, account, url2).save(null, null);
+        assertTrue(HttpValidators.load(originId, account, url2).isEmpty());
+    }
+}
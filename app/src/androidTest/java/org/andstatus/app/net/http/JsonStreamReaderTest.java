@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.test.InstrumentationTestCase;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JsonStreamReaderTest extends InstrumentationTestCase {
+
+    public void testArray() throws IOException {
+        List<JSONObject> items = read("[{\"id\":656787865432144896,\"text\":\"Text1\",\"user\":{\"id\":1,\"name\":null}},"
+                + "{\"id\":2,\"text\":\"Text2\",\"rate\":1.5,\"tags\":[\"a\",{\"b\":true}]}]");
+        assertEquals(2, items.size());
+        assertEquals(656787865432144896L, items.get(0).optLong("id"));
+        assertEquals("656787865432144896", items.get(0).optString("id"));
+        assertEquals(1, items.get(0).optJSONObject("user").optInt("id"));
+        assertTrue(items.get(0).optJSONObject("user").isNull("name"));
+        assertEquals(1.5, items.get(1).optDouble("rate"));
+        assertTrue(items.get(1).optJSONArray("tags").optJSONObject(1).optBoolean("b"));
+    }
+
+    public void testArrayInObject() throws IOException {
+        List<JSONObject> items = read("{\"displayName\":\"Stream\",\"objectTypes\":[\"activity\"],"
+                + "\"items\":[{\"verb\":\"post\"},{\"verb\":\"share\"}],\"links\":{}}");
+        assertEquals(2, items.size());
+        assertEquals("share", items.get(1).optString("verb"));
+
+        items = read("{\"count\":1,\"results\":[{\"text\":\"Text1\"}]}");
+        assertEquals(1, items.size());
+        assertEquals("Text1", items.get(0).optString("text"));
+    }
+
+    public void testEmpty() throws IOException {
+        assertEquals(0, read("").size());
+        assertEquals(0, read("[]").size());
+        assertEquals(0, read("{}").size());
+        try {
+            read("[{\"text\":");
+            fail("Malformed JSON should throw");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private List<JSONObject> read(String json) throws IOException {
+        final List<JSONObject> items = new ArrayList<>();
+        JsonStreamReader.readItems(new ByteArrayInputStream(json.getBytes(HttpConnectionUtils.UTF_8)),
+                new JsonItemConsumer() {
+                    @Override
+                    public void onItem(JSONObject item) throws ConnectionException {
+                        items.add(item);
+                    }
+                });
+        return items;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.service.MyService;
+import org.apache.http.client.HttpClient;
+
+public class MyHttpClientFactoryTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+    }
+
+    public void testRegistry() {
+        MyHttpClientFactory.forget();
+        HttpClient client1 = MyHttpClientFactory.getHttpClient("example.com", SslModeEnum.SECURE);
+        assertSame(client1, MyHttpClientFactory.getHttpClient("example.com", SslModeEnum.SECURE));
+        assertNotSame(client1, MyHttpClientFactory.getHttpClient("example.org", SslModeEnum.SECURE));
+        assertNotSame(client1, MyHttpClientFactory.getHttpClient("example.com", SslModeEnum.INSECURE));
+        String stats = MyHttpClientFactory.statsToString();
+        assertTrue(stats, stats.contains("example.com/" + SslModeEnum.SECURE));
+        assertTrue(stats, stats.contains("requested:0"));
+        assertTrue(stats, stats.contains("max: " + MyHttpClientFactory.MAX_CONNECTIONS_PER_HOST));
+        assertTrue("The pool is sized for concurrent commands",
+                MyHttpClientFactory.MAX_CONNECTIONS_PER_HOST >= MyService.MAX_CONCURRENT_REQUESTS);
+
+        MyHttpClientFactory.forget();
+        assertNotSame(client1, MyHttpClientFactory.getHttpClient("example.com", SslModeEnum.SECURE));
+        MyHttpClientFactory.forget();
+    }
+
+    public void testStreamsDontTakeConnectionsOfRequests() {
+        MyHttpClientFactory.forget();
+        HttpClient client1 = MyHttpClientFactory.getHttpClient("example.com", SslModeEnum.SECURE);
+        HttpClient streamClient = MyHttpClientFactory.getStreamingHttpClient("example.com", SslModeEnum.SECURE);
+        assertNotSame(client1, streamClient);
+        assertSame(streamClient, MyHttpClientFactory.getStreamingHttpClient("example.com", SslModeEnum.SECURE));
+        String stats = MyHttpClientFactory.statsToString();
+        assertTrue(stats, stats.contains("stream:example.com/" + SslModeEnum.SECURE));
+        assertTrue("Streams have their own pool " + stats,
+                stats.contains("max: " + MyHttpClientFactory.MAX_STREAMS_PER_HOST));
+
+        MyHttpClientFactory.forget();
+        assertNotSame(streamClient, MyHttpClientFactory.getStreamingHttpClient("example.com", SslModeEnum.SECURE));
+        MyHttpClientFactory.forget();
+    }
+}
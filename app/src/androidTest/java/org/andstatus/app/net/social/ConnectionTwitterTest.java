@@ -28,14 +28,23 @@ import org.andstatus.app.net.http.OAuthClientKeys;
 import org.andstatus.app.net.social.Connection.ApiRoutineEnum;
 import org.andstatus.app.origin.Origin;
 import org.andstatus.app.origin.OriginConnectionData;
+import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.RawResourceUtils;
 import org.andstatus.app.util.TriState;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ConnectionTwitterTest extends InstrumentationTestCase {
     private Connection connection;
@@ -143,5 +152,68 @@ public class ConnectionTwitterTest extends InstrumentationTestCase {
         attachment.setUrl(new URL("https://pbs.twimg.com/media/Bv4a7EsCAAIgigY.jpg"));
         assertNotSame("attachment", attachment, msg.attachments.get(0));
     }
-    
+
+    public void testStreamTimeline() throws IOException {
+        assertTrue("Streaming is supported", connection.isStreamingSupported());
+        final PipedOutputStream server = new PipedOutputStream();
+        httpConnection.setResponseStream(new PipedInputStream(server));
+        final CountDownLatch firstItemReceived = new CountDownLatch(1);
+        final AtomicBoolean receivedWhileConnected = new AtomicBoolean(false);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(server, "{\"friends\":[27704,144771645]}\r\n");
+                    // Keep-alive
+                    write(server, "\r\n");
+                    write(server, "{\"created_at\":\"Wed Aug 27 13:08:45 +0000 2014\",\"id_str\":\"504622223344550001\","
+                            + "\"text\":\"Streamed tweet\",\"user\":{\"id_str\":\"27704\",\"screen_name\":\"streamer\"}}\r\n");
+                    receivedWhileConnected.set(firstItemReceived.await(10, TimeUnit.SECONDS));
+                    write(server, "{\"delete\":{\"status\":{\"id_str\":\"504622223344550000\",\"user_id_str\":\"27704\"}}}\r\n");
+                    write(server, "{\"direct_message\":{\"created_at\":\"Wed Aug 27 13:09:45 +0000 2014\","
+                            + "\"id_str\":\"504622223344550002\",\"text\":\"Streamed direct message\","
+                            + "\"sender\":{\"id_str\":\"27704\",\"screen_name\":\"streamer\"},"
+                            + "\"recipient\":{\"id_str\":\"" + TestSuite.TWITTER_TEST_ACCOUNT_USER_OID + "\","
+                            + "\"screen_name\":\"" + TestSuite.TWITTER_TEST_ACCOUNT_USERNAME + "\"}}}\r\n");
+                } catch (IOException | InterruptedException e) {
+                    MyLog.e(this, e);
+                } finally {
+                    try {
+                        server.close();
+                    } catch (IOException e) {
+                        MyLog.v(this, e);
+                    }
+                }
+            }
+        });
+        serverThread.start();
+
+        final List<MbTimelineItem> items = new ArrayList<MbTimelineItem>();
+        final List<Closeable> streams = new ArrayList<Closeable>();
+        connection.streamTimeline(new TimelineStreamListener() {
+            @Override
+            public void onConnected(Closeable stream) {
+                streams.add(stream);
+            }
+
+            @Override
+            public void onItem(MbTimelineItem item) {
+                items.add(item);
+                firstItemReceived.countDown();
+            }
+        });
+        assertEquals("Connected once", 1, streams.size());
+        assertTrue("The item was received, while the stream was open", receivedWhileConnected.get());
+        assertEquals("Friends and deletions are skipped " + items, 2, items.size());
+        assertEquals("Streamed tweet", items.get(0).mbMessage.getBody());
+        assertEquals("504622223344550001", items.get(0).timelineItemPosition.getPosition());
+        assertNull("Tweet has no recipient", items.get(0).mbMessage.recipient);
+        assertEquals("Streamed direct message", items.get(1).mbMessage.getBody());
+        assertEquals(TestSuite.TWITTER_TEST_ACCOUNT_USER_OID, items.get(1).mbMessage.recipient.oid);
+    }
+
+    private static void write(OutputStream out, String string) throws IOException {
+        out.write(string.getBytes("UTF-8"));
+        out.flush();
+    }
 }
@@ -64,6 +64,12 @@ public class OriginTest extends InstrumentationTestCase {
         assertEquals("Textlimit", textLimit, origin.getTextLimit());
         assertTrue(origin.isMentionAsWebFingerId());
 
+        uploadLimit = 2 * 1024 * 1024;
+        config = MbConfig.fromTextLimit(textLimit, uploadLimit);
+        origin = new Origin.Builder(origin).save(config).build();
+        assertEquals("Upload limit", uploadLimit, origin.getUploadLimit());
+        uploadLimit = 0;
+
         textLimit = OriginType.TWITTER.textLimitDefault;
         config = MbConfig.fromTextLimit(textLimit, uploadLimit);
         origin = new Origin.Builder(origin).save(config).build();
@@ -24,7 +24,6 @@ import org.andstatus.app.context.TestSuite;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyQuery;
 import org.andstatus.app.util.MyLog;
-import org.andstatus.app.util.SharedPreferencesUtil;
 
 import java.util.Queue;
 import java.util.concurrent.PriorityBlockingQueue;
@@ -88,6 +87,86 @@ public class CommandDataTest extends InstrumentationTestCase {
         assertEquals(commandData.getResult().getMessage(), commandData2.getResult().getMessage());
     }
 
+    public void testCommandQueue() {
+        CommandQueue queue = new CommandQueue(QueueType.TEST, true, 100);
+        queue.clear();
+        CommandData data1 = CommandData.searchCommand("", "journal1");
+        CommandData data2 = CommandData.searchCommand("", "journal2");
+        queue.offer(data1);
+        queue.offer(data2);
+
+        CommandQueue queue2 = new CommandQueue(QueueType.TEST, true, 100);
+        assertEquals(2, queue2.load(MyContextHolder.get().context()));
+        assertTrue(queue2.contains(data1));
+        assertTrue(queue2.contains(data2));
+
+        assertTrue(queue.remove(data1));
+        assertEquals(1, queue2.load(MyContextHolder.get().context()));
+        assertFalse(queue2.contains(data1));
+        assertTrue(queue2.contains(data2));
+
+        assertEquals(data2, queue.poll());
+        assertEquals(0, queue2.load(MyContextHolder.get().context()));
+    }
+
+    public void testTakenCommandIsPersistedTillExecuted() {
+        CommandQueue queue = new CommandQueue(QueueType.TEST, true, 100);
+        queue.clear();
+        CommandData data1 = CommandData.searchCommand("", "taken1");
+        queue.offer(data1);
+        assertSame(data1, queue.poll(CommandLane.COMMON, false));
+        assertTrue(queue.isEmpty());
+
+        CommandQueue queue2 = new CommandQueue(QueueType.TEST, true, 100);
+        assertEquals("Restored after a crash", 1, queue2.load(MyContextHolder.get().context()));
+        assertTrue(queue2.contains(data1));
+
+        queue.onExecuted(data1);
+        assertEquals(0, queue2.load(MyContextHolder.get().context()));
+
+        CommandData data2 = CommandData.searchCommand("", "taken2");
+        queue.offer(data2);
+        assertSame(data2, queue.poll(CommandLane.COMMON, false));
+        CommandData replacement = CommandData.searchCommand("", "taken2");
+        queue.onReplaced(data2, replacement);
+        assertEquals(1, queue2.load(MyContextHolder.get().context()));
+        assertEquals(replacement.getId(), queue2.get(data2).getId());
+        queue.onExecuted(replacement);
+        assertEquals(0, queue2.load(MyContextHolder.get().context()));
+    }
+
+    public void testIndexedCommandQueue() {
+        CommandQueue queue = new CommandQueue(QueueType.TEST, true, 100);
+        queue.clear();
+        CommandData search1 = CommandData.searchCommand("", "indexed1");
+        assertTrue(queue.offer(search1));
+        assertTrue("Duplicate is accepted", queue.offer(CommandData.searchCommand("", "indexed1")));
+        assertEquals("Duplicate is not added", 1, queue.size());
+        assertSame(search1, queue.get(CommandData.searchCommand("", "indexed1")));
+
+        CommandData search1Foreground = CommandData.searchCommand("", "indexed1").setInForeground(true);
+        assertTrue(queue.offer(search1Foreground));
+        assertEquals(1, queue.size());
+        assertSame("Foreground command replaced the queued one", search1Foreground,
+                queue.get(search1));
+        assertTrue(queue.hasForeground());
+
+        CommandData update1 = CommandData.updateStatus("", 4);
+        CommandData avatar1 = new CommandData(CommandEnum.FETCH_AVATAR, "", 5);
+        queue.offer(update1);
+        queue.offer(avatar1);
+        assertEquals(3, queue.size());
+        assertTrue(queue.getLanes(false).contains(CommandLane.DOWNLOADS));
+        assertFalse(queue.getLanes(true).contains(CommandLane.DOWNLOADS));
+
+        assertNull("No foreground downloads", queue.poll(CommandLane.DOWNLOADS, true));
+        assertSame(avatar1, queue.poll(CommandLane.DOWNLOADS, false));
+        assertSame(update1, queue.poll(CommandLane.COMMON, false));
+        assertSame(search1Foreground, queue.removeById(search1Foreground.getId()));
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.hasForeground());
+    }
+
     public void testEquals() {
         CommandData data1 = CommandData.searchCommand("", "andstatus");
         CommandData data2 = CommandData.searchCommand("", "mustard");
@@ -141,7 +220,7 @@ public class CommandDataTest extends InstrumentationTestCase {
     
     @Override
     protected void tearDown() throws Exception {
-        SharedPreferencesUtil.delete(MyContextHolder.get().context(), QueueType.TEST.getFilename());
+        CommandData.deleteQueue(CommandData.getDatabase(), QueueType.TEST);
         super.tearDown();
     }
 
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.TimelineType;
+
+public class CommandLaneTest extends InstrumentationTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        TestSuite.initialize(this);
+    }
+
+    public void testLanes() {
+        CommandData home1 = new CommandData(CommandEnum.FETCH_TIMELINE,
+                TestSuite.CONVERSATION_ACCOUNT_NAME, TimelineType.HOME);
+        CommandData mentions1 = new CommandData(CommandEnum.FETCH_TIMELINE,
+                TestSuite.CONVERSATION_ACCOUNT_NAME, TimelineType.MENTIONS);
+        CommandData home2 = new CommandData(CommandEnum.FETCH_TIMELINE,
+                TestSuite.GNUSOCIAL_TEST_ACCOUNT_NAME, TimelineType.HOME);
+        assertEquals(CommandLane.forCommand(home1), CommandLane.forCommand(mentions1));
+        assertFalse(CommandLane.forCommand(home1).equals(CommandLane.forCommand(home2)));
+        assertTrue(CommandLane.forCommand(home2).isFor(home2));
+
+        CommandData avatar = new CommandData(CommandEnum.FETCH_AVATAR,
+                TestSuite.CONVERSATION_ACCOUNT_NAME, 1);
+        assertEquals(CommandLane.DOWNLOADS, CommandLane.forCommand(avatar));
+        assertEquals(CommandLane.DOWNLOADS, CommandLane.forCommand(CommandData.fetchAttachment(0, 2)));
+
+        CommandData allAccounts = new CommandData(CommandEnum.AUTOMATIC_UPDATE, "", TimelineType.ALL);
+        assertEquals(CommandLane.COMMON, CommandLane.forCommand(allAccounts));
+    }
+
+    public void testLaneStats() {
+        CommandLaneStats stats = new CommandLaneStats(CommandLane.COMMON);
+        stats.onCommandExecuted(1000, 1500, 3500);
+        stats.onCommandExecuted(0, 4000, 5000);
+        assertEquals(2, stats.getExecutedCount());
+        assertEquals("The command without the queue time is not a sample of the wait",
+                500, stats.getAverageQueueWaitMillis());
+        assertEquals(1500, stats.getAverageExecutionMillis());
+    }
+}
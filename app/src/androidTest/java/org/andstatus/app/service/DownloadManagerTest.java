@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DownloadManagerTest extends InstrumentationTestCase {
+    private static final Runnable EMPTY_RUNNABLE = new Runnable() {
+        @Override
+        public void run() {
+            // Empty
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DownloadManager.setVisible(Collections.<Long>emptyList(), Collections.<Long>emptyList());
+        super.tearDown();
+    }
+
+    public void testVisibleFirst() {
+        List<DownloadManager.Task> tasks = new ArrayList<DownloadManager.Task>();
+        tasks.add(newTask(CommandEnum.FETCH_ATTACHMENT, 11, 1));
+        tasks.add(newTask(CommandEnum.FETCH_AVATAR, 12, 2));
+        tasks.add(newTask(CommandEnum.FETCH_AVATAR, 13, 3));
+        tasks.add(newTask(CommandEnum.FETCH_ATTACHMENT, 14, 4));
+        assertEquals("Nothing is visible, the oldest first", 0, DownloadManager.indexOfNext(tasks));
+
+        DownloadManager.setVisible(Arrays.asList(13L), Arrays.asList(12L, 14L));
+        assertEquals("Avatars are matched by User Id, attachments by download Id",
+                2, DownloadManager.indexOfNext(tasks));
+
+        DownloadManager.setVisible(Arrays.asList(12L, 13L), Arrays.asList(14L));
+        assertEquals("The oldest visible first", 1, DownloadManager.indexOfNext(tasks));
+    }
+
+    private DownloadManager.Task newTask(CommandEnum command, long itemId, long sequence) {
+        return new DownloadManager.Task(new CommandData(command, "", itemId), EMPTY_RUNNABLE, sequence);
+    }
+
+    public void testSharedTransfer() {
+        String uri = "http://example.com/shared" + System.currentTimeMillis() + ".png";
+        DownloadManager.Transfer owner = DownloadManager.startTransfer(uri);
+        assertTrue(owner.isOwner());
+        DownloadManager.Transfer waiting = DownloadManager.startTransfer(uri);
+        assertFalse(waiting.isOwner());
+
+        File file = new File("downloaded.png");
+        DownloadManager.endTransfer(uri, owner, file);
+        assertEquals("The file of the owner", file, waiting.await());
+
+        DownloadManager.Transfer next = DownloadManager.startTransfer(uri);
+        assertTrue("The URI is downloaded again after the transfer ended", next.isOwner());
+        DownloadManager.endTransfer(uri, next, null);
+    }
+
+    public void testBoundedConcurrency() throws InterruptedException {
+        final int count = DownloadManager.MAX_THREADS * 3;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int ind = 1; ind <= count; ind++) {
+            DownloadManager.submit(new CommandData(CommandEnum.FETCH_AVATAR, "", ind), new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    if (now > maxRunning.get()) {
+                        maxRunning.set(now);
+                    }
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("All executed", done.await(10, TimeUnit.SECONDS));
+        assertTrue("Concurrently: " + maxRunning.get(), maxRunning.get() > 1);
+        assertTrue("Not more than the pool: " + maxRunning.get(), maxRunning.get() <= DownloadManager.MAX_THREADS);
+        while (DownloadManager.awaitCompletion(1000) > 0) {
+            // Wait for the last ones to end
+        }
+    }
+}
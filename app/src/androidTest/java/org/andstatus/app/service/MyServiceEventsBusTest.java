@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MyServiceEventsBusTest extends InstrumentationTestCase {
+    private static final long COALESCING_PERIOD_MILLIS = 500;
+
+    private static class CountingListener implements MyServiceEventsListener {
+        final AtomicInteger count = new AtomicInteger();
+        volatile long lastItemId = 0;
+
+        @Override
+        public void onReceive(CommandData commandData, MyServiceEvent myServiceEvent) {
+            count.incrementAndGet();
+            lastItemId = commandData.itemId;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+    }
+
+    public void testCoalescing() throws InterruptedException {
+        CountingListener all = new CountingListener();
+        MyServiceEventsReceiver allReceiver = new MyServiceEventsReceiver(all);
+        CountingListener coalesced = new CountingListener();
+        MyServiceEventsReceiver coalescedReceiver = new MyServiceEventsReceiver(coalesced, COALESCING_PERIOD_MILLIS);
+        allReceiver.register();
+        coalescedReceiver.register();
+        try {
+            final int count = 20;
+            for (int ind = 1; ind <= count; ind++) {
+                CommandData commandData = new CommandData(CommandEnum.FETCH_AVATAR, "", ind);
+                MyServiceEventsBus.post(commandData, MyServiceEvent.AFTER_EXECUTING_COMMAND);
+            }
+            Thread.sleep(COALESCING_PERIOD_MILLIS * 3);
+            assertEquals("Not coalesced", count, all.count.get());
+            assertEquals("Coalesced: the first and the latest", 2, coalesced.count.get());
+            assertEquals("The latest event delivered", count, coalesced.lastItemId);
+
+            CommandData failed = new CommandData(CommandEnum.FETCH_AVATAR, "", count + 1);
+            failed.getResult().incrementNumIoExceptions();
+            MyServiceEventsBus.post(failed, MyServiceEvent.AFTER_EXECUTING_COMMAND);
+            Thread.sleep(COALESCING_PERIOD_MILLIS);
+            assertEquals("Event with another result is not coalesced", 3, coalesced.count.get());
+        } finally {
+            allReceiver.unregister();
+            coalescedReceiver.unregister();
+        }
+    }
+}
@@ -48,7 +48,7 @@ public class MyServiceTestHelper implements MyServiceEventsListener {
         connectionInstanceId = httpConnectionMock.getInstanceId();
 
         serviceConnector = new MyServiceEventsReceiver(this);
-        serviceConnector.registerReceiver(MyContextHolder.get().context());
+        serviceConnector.register();
         
         dropQueues();
         httpConnectionMock.clearPostedData();
@@ -161,7 +161,7 @@ public class MyServiceTestHelper implements MyServiceEventsListener {
         MyPreferences.getDefaultSharedPreferences().edit()
                 .putBoolean(MyPreferences.KEY_SYNC_WHILE_USING_APPLICATION, true).commit();
         
-        serviceConnector.unregisterReceiver(MyContextHolder.get().context());
+        serviceConnector.unregister();
         TestSuite.setHttpConnectionMockClass(null);
         TestSuite.setHttpConnectionMockInstance(null);
         TestSuite.getMyContextForTest().setOnline(ConnectionRequired.ANY);
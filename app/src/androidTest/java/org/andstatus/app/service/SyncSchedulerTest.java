@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.net.social.MbRateLimitStatus;
+
+import java.util.concurrent.TimeUnit;
+
+public class SyncSchedulerTest extends InstrumentationTestCase {
+    private static final long USER_ID = 987654321L;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initialize(this);
+        SyncScheduler.forget();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncScheduler.forget();
+        super.tearDown();
+    }
+
+    public void testRetryDelay() {
+        long previousMaxMs = 0;
+        for (int attempt = 1; attempt < 40; attempt++) {
+            long maxMs = TimeUnit.SECONDS.toMillis(Math.min(SyncScheduler.MAX_RETRY_DELAY_SECONDS,
+                    attempt > 30 ? Long.MAX_VALUE : SyncScheduler.MIN_RETRY_DELAY_SECONDS << (attempt - 1)));
+            assertTrue("Backoff grows", maxMs >= previousMaxMs);
+            previousMaxMs = maxMs;
+            long delayMs = SyncScheduler.retryDelayMs(attempt, 123);
+            assertTrue("Attempt " + attempt + ": " + delayMs, delayMs >= maxMs / 2 && delayMs <= maxMs);
+            assertEquals("Same seed, same delay", delayMs, SyncScheduler.retryDelayMs(attempt, 123));
+        }
+    }
+
+    public void testUpdatePeriod() {
+        long baseMs = MyPreferences.getSyncFrequencyMs();
+        long now = System.currentTimeMillis();
+        SyncScheduler.onTimelineDownloaded(TimelineType.HOME, USER_ID, 100, now - baseMs);
+        assertEquals("Busy timeline", baseMs, SyncScheduler.getUpdatePeriodMs(TimelineType.HOME, USER_ID, now));
+        assertTrue(SyncScheduler.isTimeToAutoUpdate(TimelineType.HOME, USER_ID, now, now - baseMs));
+
+        SyncScheduler.onTimelineDownloaded(TimelineType.USER, USER_ID, 0, now - baseMs);
+        assertEquals("Dormant timeline", baseMs * SyncScheduler.maxPeriodFactor(TimelineType.USER),
+                SyncScheduler.getUpdatePeriodMs(TimelineType.USER, USER_ID, 0));
+        assertFalse(SyncScheduler.isTimeToAutoUpdate(TimelineType.USER, USER_ID, 0, now - baseMs));
+        assertTrue("Never downloaded", SyncScheduler.isTimeToAutoUpdate(TimelineType.USER, USER_ID, 0, 0));
+
+        long period = SyncScheduler.getUpdatePeriodMs(TimelineType.MENTIONS, USER_ID, now - 100 * baseMs);
+        assertEquals("Old latest item", baseMs * SyncScheduler.maxPeriodFactor(TimelineType.MENTIONS), period);
+    }
+
+    public void testHostBackoff() {
+        String host = "sync.scheduler.example.com";
+        assertTrue(SyncScheduler.isHostAvailable(host));
+        SyncScheduler.onHostFailed(host);
+        assertFalse(SyncScheduler.isHostAvailable(host));
+        SyncScheduler.forget();
+        assertTrue(SyncScheduler.isHostAvailable(host));
+    }
+
+    public void testStepFailureIsLearnedOnce() throws Exception {
+        TestSuite.initializeWithData(this);
+        MyAccount ma = TestSuite.getConversationMyAccount();
+        String host = SyncScheduler.hostOf(ma);
+        CommandResult result = new CommandResult();
+        CommandResult stepResult = result.forOneExecStep();
+        stepResult.incrementNumIoExceptions();
+        result.accumulateOneStep(stepResult);
+        SyncScheduler.onExecuted(ma, result);
+        assertTrue("Failure of a step is not the command's own failure", SyncScheduler.isHostAvailable(host));
+        SyncScheduler.onExecuted(ma, stepResult);
+        assertFalse(SyncScheduler.isHostAvailable(host));
+
+        SyncScheduler.forget();
+        CommandResult nextStepResult = result.forOneExecStep();
+        SyncScheduler.onExecuted(ma, nextStepResult);
+        assertTrue("Step starts without failures of the previous ones", SyncScheduler.isHostAvailable(host));
+    }
+
+    public void testBudget() {
+        String accountName = "budget/sync.scheduler.example.com";
+        assertTrue(SyncScheduler.isBudgetAvailable(accountName));
+        MbRateLimitStatus status = new MbRateLimitStatus();
+        status.limit = 180;
+        status.remaining = SyncScheduler.RATE_LIMIT_RESERVE;
+        status.resetTime = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(15);
+        SyncScheduler.onRateLimitStatus(accountName, status);
+        assertFalse(SyncScheduler.isBudgetAvailable(accountName));
+
+        MbRateLimitStatus status2 = new MbRateLimitStatus();
+        status2.limit = 180;
+        status2.remaining = 0;
+        status2.resetTime = System.currentTimeMillis() - 1;
+        SyncScheduler.onRateLimitStatus(accountName, status2);
+        assertTrue("The limit was reset", SyncScheduler.isBudgetAvailable(accountName));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.LatestUserMessages;
+import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.net.http.HttpConnectionMock;
+import org.andstatus.app.util.TriState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimelineDownloaderFollowingTest extends InstrumentationTestCase {
+    private static final String FAILING_OID = "failing";
+    private HttpConnectionMock httpConnectionMock;
+    private MyAccount ma;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+        TestSuite.setHttpConnectionMockClass(HttpConnectionMock.class);
+        // In order the mocked connection to have effect:
+        MyContextHolder.get().persistentAccounts().initialize();
+        ma = MyAccount.Builder.newOrExistingFromAccountName(
+                MyContextHolder.get(),
+                TestSuite.GNUSOCIAL_TEST_ACCOUNT_NAME, TriState.UNKNOWN).getAccount();
+        assertTrue(ma.getUserId() != 0);
+        assertTrue("HttpConnection mocked", ma.getConnection().getHttp() instanceof HttpConnectionMock);
+        httpConnectionMock = (HttpConnectionMock) ma.getConnection().getHttp();
+        httpConnectionMock.setNetworkDelayMs(50);
+    }
+
+    public void testFetchesStopAtRateLimit() {
+        final int requestsLimit = 3;
+        setRemainingHits(TimelineDownloaderFollowing.RATE_LIMIT_RESERVE + requestsLimit);
+        TimelineDownloaderFollowing downloader = newDownloader(new TimelineDownloaderFollowing());
+
+        List<TimelineDownloaderFollowing.Fetch> fetches = newFetches("limited", 2 * requestsLimit + 2);
+        List<Long> followedIds = new ArrayList<Long>();
+        LatestUserMessages lum = new LatestUserMessages();
+        downloader.fetchAndInsert(fetches, followedIds, lum);
+        lum.save();
+
+        assertEquals("Users fetched within the limit " + followedIds, requestsLimit, followedIds.size());
+        assertEquals("Rate limit status and users " + httpConnectionMock.getResults(), 1 + requestsLimit,
+                httpConnectionMock.getRequestsCounter());
+        int skipped = 0;
+        for (TimelineDownloaderFollowing.Fetch fetch : fetches) {
+            if (fetch.skipped) {
+                skipped++;
+            }
+        }
+        assertEquals(fetches.size() - requestsLimit, skipped);
+        assertEquals(TimelineDownloaderFollowing.RATE_LIMIT_RESERVE + requestsLimit,
+                downloader.execContext.getResult().getRemainingHits());
+    }
+
+    public void testFailedFetchDoesntDropOthers() {
+        setRemainingHits(1000);
+        TimelineDownloaderFollowing downloader = newDownloader(new FailingDownloader());
+
+        List<TimelineDownloaderFollowing.Fetch> fetches = newFetches("followed", 3 * TimelineDownloaderFollowing.MAX_FETCH_THREADS);
+        fetches.set(1, new TimelineDownloaderFollowing.Fetch(FAILING_OID, true));
+        List<Long> followedIds = new ArrayList<Long>();
+        LatestUserMessages lum = new LatestUserMessages();
+        downloader.fetchAndInsert(fetches, followedIds, lum);
+        lum.save();
+        assertEquals("All users except the failed one inserted " + followedIds, fetches.size() - 1,
+                followedIds.size());
+        assertFalse(followedIds.contains(0L));
+    }
+
+    public void testTimelineTypeIsKept() {
+        setRemainingHits(1000);
+        TimelineDownloaderFollowing downloader = newDownloader(new TimelineDownloaderFollowing());
+        String userOid = "nostatus" + TestSuite.TESTRUN_UID;
+        httpConnectionMock.setResponseFor("show.json?user_id=" + userOid,
+                "{\"id\":\"" + userOid + "\",\"screen_name\":\"" + userOid + "\"}");
+        httpConnectionMock.setResponseFor("user_timeline", "[]");
+        List<TimelineDownloaderFollowing.Fetch> fetches = new ArrayList<TimelineDownloaderFollowing.Fetch>();
+        fetches.add(new TimelineDownloaderFollowing.Fetch(userOid, true));
+        List<Long> followedIds = new ArrayList<Long>();
+        LatestUserMessages lum = new LatestUserMessages();
+        downloader.fetchAndInsert(fetches, followedIds, lum);
+        lum.save();
+
+        assertEquals(1, followedIds.size());
+        assertEquals("The user timeline was requested " + httpConnectionMock.getResults(), 3,
+                httpConnectionMock.getRequestsCounter());
+        assertEquals(TimelineType.FOLLOWING_USER, downloader.execContext.getTimelineType());
+    }
+
+    private void setRemainingHits(int remainingHits) {
+        httpConnectionMock.setResponseFor("rate_limit_status", "{\"remaining_hits\":" + remainingHits
+                + ",\"hourly_limit\":1000,\"reset_time_in_seconds\":0}");
+    }
+
+    private TimelineDownloaderFollowing newDownloader(TimelineDownloaderFollowing downloader) {
+        downloader.execContext = new CommandExecutionContext(
+                new CommandData(CommandEnum.FETCH_TIMELINE, ma.getAccountName(), TimelineType.FOLLOWING_USER), ma);
+        return downloader;
+    }
+
+    /** Users with their latest messages, so each of them is fetched with one request */
+    private List<TimelineDownloaderFollowing.Fetch> newFetches(String prefix, int numberOfFetches) {
+        List<TimelineDownloaderFollowing.Fetch> fetches = new ArrayList<TimelineDownloaderFollowing.Fetch>();
+        for (int ind = 0; ind < numberOfFetches; ind++) {
+            String userOid = prefix + ind + "x" + TestSuite.TESTRUN_UID;
+            httpConnectionMock.setResponseFor("show.json?user_id=" + userOid, "{\"id\":\"" + userOid
+                    + "\",\"screen_name\":\"" + userOid + "\""
+                    + ",\"status\":{\"id\":\"msgof" + userOid + "\",\"text\":\"Hello from " + userOid + "\"}}");
+            fetches.add(new TimelineDownloaderFollowing.Fetch(userOid, true));
+        }
+        return fetches;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestSuite.setHttpConnectionMockClass(null);
+        MyContextHolder.get().persistentAccounts().initialize();
+        super.tearDown();
+    }
+
+    private static class FailingDownloader extends TimelineDownloaderFollowing {
+        @Override
+        Fetch doFetch(Fetch fetch, AtomicInteger requestsLeft) {
+            if (FAILING_OID.equals(fetch.userOid)) {
+                throw new IllegalStateException("Failed fetch of " + fetch.userOid);
+            }
+            return super.doFetch(fetch, requestsLeft);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import android.test.InstrumentationTestCase;
+
+public class LatencyHistogramTest extends InstrumentationTestCase {
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(50));
+        for (int ind = 0; ind < 9; ind++) {
+            histogram.record(1);
+        }
+        histogram.record(100);
+        histogram.record(-1);
+        assertEquals(histogram.toString(), 10, histogram.getCount());
+        assertEquals(10, histogram.getAverageMillis());
+        assertEquals(100, histogram.getMaxMillis());
+        assertEquals(1, histogram.getPercentileMillis(50));
+        assertEquals(1, histogram.getPercentileMillis(90));
+        assertEquals(100, histogram.getPercentileMillis(100));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    public void testNestedPhases() throws InterruptedException {
+        PhaseTimer command = PhaseTimer.begin();
+        PhaseTimer step = PhaseTimer.begin();
+        PhaseTimer.start(PhaseTimer.Phase.NETWORK);
+        Thread.sleep(20);
+        PhaseTimer.start(PhaseTimer.Phase.DB_WRITE);
+        Thread.sleep(20);
+        PhaseTimer.stop(PhaseTimer.Phase.DB_WRITE);
+        PhaseTimer.onBytesTransferred(1000, 10);
+        PhaseTimer.stop(PhaseTimer.Phase.NETWORK);
+        step.end();
+        command.end();
+        PhaseTimer.onBytesTransferred(1, 1);
+
+        assertEquals(1, command.getChildrenCount());
+        assertEquals(1000, command.getBytesReceived());
+        assertEquals(10, command.getBytesSent());
+        long network = command.getMillis(PhaseTimer.Phase.NETWORK);
+        long dbWrite = command.getMillis(PhaseTimer.Phase.DB_WRITE);
+        assertTrue("network:" + network, network >= 15);
+        assertTrue("dbWrite:" + dbWrite, dbWrite >= 15);
+        assertTrue(command.getMillis() >= network + dbWrite);
+        assertEquals(step.getMillis(PhaseTimer.Phase.NETWORK), network);
+    }
+
+    public void testTaskInOtherThread() throws InterruptedException {
+        final PhaseTimer command = PhaseTimer.begin();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PhaseTimer task = PhaseTimer.beginTask(command);
+                PhaseTimer.start(PhaseTimer.Phase.NETWORK);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                PhaseTimer.onBytesTransferred(500, 5);
+                PhaseTimer.stop(PhaseTimer.Phase.NETWORK);
+                task.end();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertSame(command, PhaseTimer.current());
+        command.end();
+
+        assertEquals("Not a step", 0, command.getChildrenCount());
+        assertEquals(0, command.getMillis(PhaseTimer.Phase.NETWORK));
+        long network = command.getTasksMillis(PhaseTimer.Phase.NETWORK);
+        assertTrue("tasks network:" + network, network >= 15);
+        assertEquals(500, command.getBytesReceived());
+        assertEquals(5, command.getBytesSent());
+    }
+}
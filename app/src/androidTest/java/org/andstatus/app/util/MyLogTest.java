@@ -57,4 +57,33 @@ public class MyLogTest  extends InstrumentationTestCase {
         assertEquals(MyLog.getLogFilename(), null);
         assertFalse(file.exists());
     }
+
+    public void testQueuedRecordsAreWrittenWhenTurnedOff() {
+        final String method = "testQueuedRecordsAreWrittenWhenTurnedOff";
+        MyLog.setLogToFile(true);
+        File file = MyLog.getFileInLogDir(MyLog.getLogFilename(), true);
+        long length1 = file.length();
+        for (int ind = 0; ind < 100; ind++) {
+            MyLog.i(this, method + " " + ind);
+        }
+        MyLog.setLogToFile(false);
+        assertTrue("Records were written to " + file.getAbsolutePath(), file.length() > length1);
+        file.delete();
+    }
+
+    public void testErrorIsWrittenByWriter() throws InterruptedException {
+        final String method = "testErrorIsWrittenByWriter";
+        MyLog.setLogToFile(true);
+        File file = MyLog.getFileInLogDir(MyLog.getLogFilename(), true);
+        long length1 = file.length();
+        MyLog.i(this, method + " info before the error");
+        MyLog.e(this, method, new IllegalStateException(method));
+        for (int ind = 0; ind < 50 && file.length() == length1; ind++) {
+            Thread.sleep(100);
+        }
+        long length2 = file.length();
+        MyLog.setLogToFile(false);
+        assertTrue("Error was written to " + file.getAbsolutePath() + " while the file was open", length2 > length1);
+        file.delete();
+    }
 }
@@ -226,7 +226,7 @@ public abstract class LoadableListActivity extends MyBaseListActivity implements
     protected void onResume() {
         mIsPaused = false;
         super.onResume();
-        myServiceReceiver.registerReceiver(this);
+        myServiceReceiver.register();
         MyContextHolder.get().setInForeground(true);
         if (size() == 0) {
             showList();
@@ -237,7 +237,7 @@ public abstract class LoadableListActivity extends MyBaseListActivity implements
     protected void onPause() {
         mIsPaused = true;
         super.onPause();
-        myServiceReceiver.unregisterReceiver(this);
+        myServiceReceiver.unregister();
         MyContextHolder.get().setInForeground(false);
     }
     
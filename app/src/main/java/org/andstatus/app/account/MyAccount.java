@@ -183,23 +183,7 @@ public final class MyAccount {
         }
 
         private void setConnection() {
-            Origin origin = myAccount.oAccountName.getOrigin();
-            OriginConnectionData connectionData = origin.getConnectionData(TriState.fromBoolean(myAccount.isOAuth));
-            connectionData.setAccountUserOid(myAccount.userOid);
-            connectionData.setAccountUsername(myAccount.getUsername());
-            connectionData.setDataReader(myAccount.accountData);
-            try {
-                myAccount.connection = connectionData.getConnectionClass().newInstance();
-                myAccount.connection.enrichConnectionData(connectionData);
-                myAccount.connection.setAccountData(connectionData);
-            // TODO: Since API19 we will use ReflectiveOperationException as a common superclass of these two exceptions: InstantiationException and IllegalAccessException
-            } catch (InstantiationException e) {
-                myAccount.connection = null;
-                MyLog.i(TAG, e);
-            } catch (IllegalAccessException e) {
-                myAccount.connection = null;
-                MyLog.i(TAG, e);
-            }
+            myAccount.connection = myAccount.newConnection();
         }
         
         private void fixInconsistenciesWithChangedEnvironmentSilently() {
@@ -797,6 +781,32 @@ public final class MyAccount {
     public Connection getConnection() {
         return connection;
     }
+
+    /**
+     * @return A connection of this account, which is not shared with {@link #getConnection()},
+     * e.g. for a stream, which is read in parallel with other requests. null if it cannot be created
+     */
+    public Connection newConnection() {
+        Origin origin = oAccountName.getOrigin();
+        OriginConnectionData connectionData = origin.getConnectionData(TriState.fromBoolean(isOAuth));
+        connectionData.setAccountUserOid(userOid);
+        connectionData.setAccountUsername(getUsername());
+        connectionData.setDataReader(accountData);
+        Connection newConnection = null;
+        try {
+            newConnection = connectionData.getConnectionClass().newInstance();
+            newConnection.enrichConnectionData(connectionData);
+            newConnection.setAccountData(connectionData);
+        // TODO: Since API19 we will use ReflectiveOperationException as a common superclass of these two exceptions: InstantiationException and IllegalAccessException
+        } catch (InstantiationException e) {
+            newConnection = null;
+            MyLog.i(TAG, e);
+        } catch (IllegalAccessException e) {
+            newConnection = null;
+            MyLog.i(TAG, e);
+        }
+        return newConnection;
+    }
     
     public boolean areClientKeysPresent() {
         return connection.areOAuthClientKeysPresent();
@@ -19,8 +19,10 @@ import org.json.JSONObject;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -69,12 +71,31 @@ public class PersistentAccounts {
     }
     
     public PersistentAccounts initialize(MyContext myContext) {
-        defaultAccountName = getDefaultAccountName();
-        mAccounts.clear();
+        return initialize(myContext, loadAccountData(myContext));
+    }
+
+    /**
+     * Reads data of all our accounts from the AccountManager. This doesn't need a database
+     * nor origins, so it may be done in parallel with opening the database
+     */
+    public static List<AccountData> loadAccountData(MyContext myContext) {
+        List<AccountData> accountDataList = new ArrayList<AccountData>();
         android.accounts.AccountManager am = AccountManager.get(myContext.context());
         android.accounts.Account[] aa = am.getAccountsByType( AuthenticatorService.ANDROID_ACCOUNT_TYPE );
         for (android.accounts.Account account : aa) {
-            MyAccount ma = Builder.fromAndroidAccount(myContext, account).getAccount();
+            accountDataList.add(AccountData.fromAndroidAccount(myContext, account));
+        }
+        return accountDataList;
+    }
+
+    /**
+     * @param accountDataList Loaded by {@link #loadAccountData(MyContext)}
+     */
+    public PersistentAccounts initialize(MyContext myContext, List<AccountData> accountDataList) {
+        defaultAccountName = getDefaultAccountName();
+        mAccounts.clear();
+        for (AccountData accountData : accountDataList) {
+            MyAccount ma = Builder.fromAccountData(myContext, accountData, "fromAndroidAccount").getAccount();
             if (ma.isValid()) {
                 mAccounts.put(ma.getAccountName(), ma);
             } else {
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.backup;
+
+import android.util.Base64;
+
+import org.andstatus.app.data.DbUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A data file, which is backed up as a sequence of compressed blocks of {@link #BLOCK_SIZE} bytes.
+ * Each block is a separate entity with a key like "database_andstatus.sqlite_block_12".
+ * The file is read once through one channel, so its size is not limited by the size of an entity.
+ * <p>
+ * A digest of each block is stored in the {@link MyBackupDescriptor}. A block, which didn't change
+ * since the previous backup, is not compressed again: the Android backup transport keeps the entity
+ * of the previous backup, and a backup to a folder copies the data file of the previous backup folder
+ * (see {@link MyBackupDataOutput#keepEntity(String, String, MyBackupDescriptor.Block)}).
+ * So a nightly backup of the database writes only pages, which were changed during the day.
+ * @author yvolk@yurivolkov.com
+ */
+class BlockFile {
+    /** A multiple of the SQLite page size, so a changed page changes one block only */
+    static final int BLOCK_SIZE = 1024 * 1024;
+    static final String BLOCK_KEY_SEPARATOR = "_block_";
+    static final String BLOCK_FILE_EXTENSION = ".deflate";
+    /** Less than the maximum chunk, which may be read by {@link MyBackupDataInput} */
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private final String key;
+    private final File file;
+
+    private long length = 0;
+    private long compressedLength = 0;
+    private long blocksWritten = 0;
+    private long blocksKept = 0;
+
+    BlockFile(String key, File file) {
+        this.key = key;
+        this.file = file;
+    }
+
+    static String blockKey(String key, long index) {
+        return key + BLOCK_KEY_SEPARATOR + Long.toString(index);
+    }
+
+    static boolean isBlockOf(String key, String entityKey) {
+        return entityKey.startsWith(key + BLOCK_KEY_SEPARATOR);
+    }
+
+    static long blockIndex(String blockKey) throws IOException {
+        int indSeparator = blockKey.lastIndexOf(BLOCK_KEY_SEPARATOR);
+        try {
+            return Long.parseLong(blockKey.substring(indSeparator + BLOCK_KEY_SEPARATOR.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new FileNotFoundException("Not a block key='" + blockKey + "'");
+        }
+    }
+
+    /**
+     * @param oldDescriptor Blocks of the previous backup, which may be kept
+     * @param newDescriptor Receives digests of all blocks of the file
+     */
+    void backup(MyBackupDataOutput data, MyBackupDescriptor oldDescriptor, MyBackupDescriptor newDescriptor)
+            throws IOException {
+        if (oldDescriptor.saved()
+                && oldDescriptor.getBackupSchemaVersion() < MyBackupDescriptor.BACKUP_SCHEMA_VERSION) {
+            data.deleteEntity(key);
+        }
+        MessageDigest digest = newDigest();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(BLOCK_SIZE / 2);
+        FileInputStream in = new FileInputStream(file);
+        long index = 0;
+        try {
+            FileChannel channel = in.getChannel();
+            while (readBlock(channel, buffer) > 0) {
+                length += buffer.limit();
+                digest.update(buffer.array(), 0, buffer.limit());
+                String blockKey = blockKey(key, index);
+                MyBackupDescriptor.Block block = new MyBackupDescriptor.Block(
+                        Base64.encodeToString(digest.digest(), Base64.NO_WRAP), data.getDataFolder());
+                MyBackupDescriptor.Block oldBlock = oldDescriptor.getBlock(blockKey);
+                if (oldBlock != null && oldBlock.digest.equals(block.digest)
+                        && data.keepEntity(blockKey, BLOCK_FILE_EXTENSION, oldBlock)) {
+                    blocksKept++;
+                } else {
+                    compress(deflater, buffer, compressed);
+                    data.writeEntityHeader(blockKey, compressed.size(), BLOCK_FILE_EXTENSION);
+                    data.writeEntityData(compressed.toByteArray(), compressed.size());
+                    compressedLength += compressed.size();
+                    blocksWritten++;
+                }
+                newDescriptor.putBlock(blockKey, block);
+                index++;
+            }
+        } finally {
+            deflater.end();
+            DbUtils.closeSilently(in, file.getAbsolutePath());
+        }
+        for (String oldKey : oldDescriptor.getBlockKeys()) {
+            if (isBlockOf(key, oldKey) && blockIndex(oldKey) >= index) {
+                data.deleteEntity(oldKey);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Fills the buffer, unless the end of the file is reached
+     * @return Number of bytes in the buffer */
+    private static int readBlock(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Continue reading
+        }
+        buffer.flip();
+        return buffer.limit();
+    }
+
+    private static void compress(Deflater deflater, ByteBuffer buffer, ByteArrayOutputStream compressed)
+            throws IOException {
+        deflater.reset();
+        compressed.reset();
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+        out.write(buffer.array(), 0, buffer.limit());
+        out.finish();
+    }
+
+    /**
+     * Restores blocks of the file, starting from the entity, which header was read already.
+     * Blocks are written to their positions, so they may come in any order
+     * @return true if the header of the next entity, which is not a block of this file, was read,
+     * false at the end of the data
+     */
+    boolean restore(MyBackupDataInput data) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new FileNotFoundException("Couldn't delete old file before restore '"
+                    + file.getName() + "'");
+        }
+        BitSet restored = new BitSet();
+        boolean hasNext;
+        FileOutputStream out = new FileOutputStream(file, false);
+        try {
+            FileChannel channel = out.getChannel();
+            do {
+                long index = blockIndex(data.getKey());
+                if (index >= Integer.MAX_VALUE) {
+                    throw new FileNotFoundException("Block index is too large, key='" + data.getKey() + "'");
+                }
+                compressedLength += data.getDataSize();
+                length += restoreBlock(data, channel, index * BLOCK_SIZE);
+                restored.set((int) index);
+                hasNext = data.readNextHeader();
+            } while (hasNext && isBlockOf(key, data.getKey()));
+        } finally {
+            DbUtils.closeSilently(out, file.getAbsolutePath());
+        }
+        blocksWritten = restored.cardinality();
+        if (restored.nextClearBit(0) != restored.length()) {
+            throw new FileNotFoundException("Couldn't restore file:'" + file.getName() + "', key:'" + key
+                    + "', block " + restored.nextClearBit(0) + " is missing");
+        }
+        return hasNext;
+    }
+
+    private static long restoreBlock(MyBackupDataInput data, FileChannel channel, long position) throws IOException {
+        InputStream in = new InflaterInputStream(new EntityInputStream(data), new Inflater(), BUFFER_SIZE);
+        byte[] bytes = new byte[BUFFER_SIZE];
+        long written = 0;
+        try {
+            int count;
+            while ((count = in.read(bytes)) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, position + written);
+                }
+            }
+        } finally {
+            DbUtils.closeSilently(in);
+        }
+        if (written > BLOCK_SIZE) {
+            throw new FileNotFoundException("Block is too large, key='" + data.getKey() + "', " + written + " bytes");
+        }
+        return written;
+    }
+
+    /** Data of the current entity as a stream */
+    private static class EntityInputStream extends InputStream {
+        private final MyBackupDataInput data;
+
+        EntityInputStream(MyBackupDataInput data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            return read(bytes, 0, 1) > 0 ? bytes[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count = data.readEntityData(bytes, offset, Math.min(length, BUFFER_SIZE));
+            return count > 0 ? count : -1;
+        }
+    }
+
+    long getBlocksWritten() {
+        return blocksWritten;
+    }
+
+    long getBlocksKept() {
+        return blocksKept;
+    }
+
+    @Override
+    public String toString() {
+        return "file:'" + file.getName() + "', key:'" + key + "', length:" + length
+                + " bytes, " + (blocksWritten + blocksKept) + " blocks"
+                + (blocksKept > 0 ? " (" + blocksKept + " unchanged)" : "")
+                + ", compressed:" + compressedLength + " bytes";
+    }
+}
@@ -20,6 +20,7 @@ import android.app.backup.BackupAgent;
 import android.app.backup.BackupDataInput;
 import android.app.backup.BackupDataOutput;
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.ParcelFileDescriptor;
 
 import org.andstatus.app.R;
@@ -31,7 +32,6 @@ import org.andstatus.app.data.MyDatabase;
 import org.andstatus.app.data.TimelineSearchSuggestionsProvider;
 import org.andstatus.app.service.MyServiceManager;
 import org.andstatus.app.service.MyServiceState;
-import org.andstatus.app.util.FileUtils;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.SharedPreferencesUtil;
 
@@ -44,10 +44,14 @@ public class MyBackupAgent extends BackupAgent {
     public static final String DATABASE_KEY = "database";
     public static final String SHARED_PREFERENCES_KEY = "shared_preferences";
     public static final String SHARED_PREFERENCES_FILENAME = "shared_preferences";
+    private static final String WAL_SUFFIX = "-wal";
 
     private MyBackupDescriptor backupDescriptor = null;
+    /** Blocks of files of the previous backup, which are not written again, if they didn't change */
+    private MyBackupDescriptor oldBackupDescriptor = MyBackupDescriptor.getEmpty();
 
-    private String previousKey = "";
+    /** Key of the entity, which header was read, but which data wasn't restored yet. Empty at the end of data */
+    private String nextKey = null;
     
     private long accountsBackedUp = 0;
     long accountsRestored = 0;
@@ -88,7 +92,6 @@ public class MyBackupAgent extends BackupAgent {
     public void onBackup(MyBackupDescriptor oldDescriptor, MyBackupDataOutput data,
             MyBackupDescriptor newDescriptor) throws IOException {
         final String method = "onBackup";
-        // Ignore oldDescriptor for now...
         MyLog.i(this, method + " started"
                 + (data != null && data.getDataFolder() != null ? ", folder='"
                         + data.getDataFolder().getAbsolutePath() + "'" : "")
@@ -96,6 +99,7 @@ public class MyBackupAgent extends BackupAgent {
                         : "no old state"));
         MyContextHolder.initialize(this, this);
         backupDescriptor = newDescriptor;
+        oldBackupDescriptor = oldDescriptor;
         try {
             if (data == null) {
                 throw new FileNotFoundException("No BackupDataOutput");
@@ -141,42 +145,67 @@ public class MyBackupAgent extends BackupAgent {
         sharedPreferencesBackedUp = backupFile(data,
                 SHARED_PREFERENCES_KEY,
                 SharedPreferencesUtil.sharedPreferencesPath(MyContextHolder.get().context()));
-        databasesBackedUp = backupFile(data,
-                DATABASE_KEY + "_" + MyDatabase.DATABASE_NAME,
-                MyPreferences.getDatabasePath(MyDatabase.DATABASE_NAME, null));
+        databasesBackedUp = backupDatabase(data);
         suggestionsBackedUp = backupFile(data,
                 DATABASE_KEY + "_" + TimelineSearchSuggestionsProvider.DATABASE_NAME,
                 MyPreferences.getDatabasePath(TimelineSearchSuggestionsProvider.DATABASE_NAME, null));
         accountsBackedUp = MyContextHolder.get().persistentAccounts().onBackup(data, backupDescriptor);
     }
     
+    /**
+     * Other connections can't change the database, while it is being backed up,
+     * so the backup is a consistent snapshot of the database. Readers wait as well,
+     * unless the database is in the write-ahead log mode, where they read through separate connections.
+     * Changes in the write-ahead log are checkpointed to the database file, before it is copied.
+     * The checkpoint is not complete, while readers use older snapshots of the database,
+     * so then the log is backed up together with the database, and it is applied after a restore
+     */
+    private long backupDatabase(MyBackupDataOutput data) throws IOException {
+        MyDatabase myDatabase = MyContextHolder.get().getDatabase();
+        SQLiteDatabase db = myDatabase == null ? null : myDatabase.getWritableDatabase();
+        File databaseFile = MyPreferences.getDatabasePath(MyDatabase.DATABASE_NAME, null);
+        String walKey = DATABASE_KEY + "_" + MyDatabase.DATABASE_NAME + WAL_SUFFIX;
+        boolean checkpointed = true;
+        if (db != null) {
+            db.beginTransactionNonExclusive();
+            checkpointed = myDatabase.checkpointBySeparateConnection();
+        }
+        try {
+            long backedUpCount = backupFile(data, DATABASE_KEY + "_" + MyDatabase.DATABASE_NAME, databaseFile);
+            if (checkpointed) {
+                deleteFileEntities(data, walKey);
+            } else {
+                MyLog.v(this, "Not all changes were checkpointed, backing up the write-ahead log");
+                backupFile(data, walKey, walFileOf(databaseFile));
+            }
+            return backedUpCount;
+        } finally {
+            if (db != null) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static File walFileOf(File databaseFile) {
+        return new File(databaseFile.getPath() + WAL_SUFFIX);
+    }
+
+    /** Entities of a file, which is not backed up this time, are deleted from the Android backup */
+    private void deleteFileEntities(MyBackupDataOutput data, String key) throws IOException {
+        for (String oldKey : oldBackupDescriptor.getBlockKeys()) {
+            if (BlockFile.isBlockOf(key, oldKey)) {
+                data.deleteEntity(oldKey);
+            }
+        }
+    }
+
     private long backupFile(MyBackupDataOutput data, String key, File dataFile) throws IOException {
-        final int chunkSize = 10000;
         long backedUpCount = 0;
         if (dataFile.exists()) {
-            long fileLength = dataFile.length();
-            if ( fileLength > Integer.MAX_VALUE) {
-                throw new FileNotFoundException("File '" 
-                        + dataFile.getName() + "' is too large for backup: " + fileLength + " bytes" );
-            } 
-            int bytesToWrite = (int) fileLength;
-            data.writeEntityHeader(key, bytesToWrite, MyBackupDataOutput.getDataFileExtension(dataFile));
-            int bytesWritten = 0;
-            while (bytesWritten < bytesToWrite) {
-                byte[] bytes = FileUtils.getBytes(dataFile, bytesWritten, chunkSize);
-                if (bytes.length <= 0) {
-                    break;
-                }
-                bytesWritten += bytes.length;
-                data.writeEntityData(bytes, bytes.length);
-            }
-            if (bytesWritten != bytesToWrite) {
-                throw new FileNotFoundException("Couldn't backup "
-                        + filePartiallyWritten(key, dataFile, bytesToWrite, bytesWritten));
-            }
+            BlockFile blockFile = new BlockFile(key, dataFile);
+            blockFile.backup(data, oldBackupDescriptor, backupDescriptor);
             backedUpCount++;
-            backupDescriptor.getLogger().logProgress(
-                    "Backed up " + fileWritten(key, dataFile, bytesWritten));
+            backupDescriptor.getLogger().logProgress("Backed up " + blockFile);
         } else {
             MyLog.v(this, "File doesn't exist key='" + key + "', path='" + dataFile.getAbsolutePath());
         }
@@ -219,6 +248,7 @@ public class MyBackupAgent extends BackupAgent {
             switch (backupDescriptor.getBackupSchemaVersion()) {
                 case MyBackupDescriptor.BACKUP_SCHEMA_VERSION_UNKNOWN:
                     throw new FileNotFoundException("No backup information in the backup descriptor");
+                case MyBackupDescriptor.BACKUP_SCHEMA_VERSION_WHOLE_FILES:
                 case MyBackupDescriptor.BACKUP_SCHEMA_VERSION:
                     if (data == null) {
                         throw new FileNotFoundException("No BackupDataInput");
@@ -259,13 +289,29 @@ public class MyBackupAgent extends BackupAgent {
         }
     }
     
+    /** A log, which was left by the database, which is being replaced, would corrupt the restored database */
+    private static void deleteWriteAheadLog(File databaseFile) throws IOException {
+        for (String suffix : new String[] {WAL_SUFFIX, "-shm"}) {
+            File file = new File(databaseFile.getPath() + suffix);
+            if (file.exists() && !file.delete()) {
+                throw new FileNotFoundException("Couldn't delete '" + file.getName() + "' before restore");
+            }
+        }
+    }
+
     private void doRestore(MyBackupDataInput data) throws IOException {
         restoreSharedPreferences(data);
         assertNextHeader(data, DATABASE_KEY + "_" + MyDatabase.DATABASE_NAME);
-        databasesRestored += restoreFile(data,
+        deleteWriteAheadLog(MyPreferences.getDatabasePath(MyDatabase.DATABASE_NAME, null));
+        databasesRestored += restoreFile(data, DATABASE_KEY + "_" + MyDatabase.DATABASE_NAME,
                     MyPreferences.getDatabasePath(MyDatabase.DATABASE_NAME, null));
+        String walKey = DATABASE_KEY + "_" + MyDatabase.DATABASE_NAME + WAL_SUFFIX;
+        if (optionalNextHeader(data, walKey)) {
+            restoreFile(data, walKey, walFileOf(MyPreferences.getDatabasePath(MyDatabase.DATABASE_NAME, null)));
+        }
         if (optionalNextHeader(data, DATABASE_KEY + "_" + TimelineSearchSuggestionsProvider.DATABASE_NAME)) {
             suggestionsRestored += restoreFile(data,
+                    DATABASE_KEY + "_" + TimelineSearchSuggestionsProvider.DATABASE_NAME,
                     MyPreferences.getDatabasePath(TimelineSearchSuggestionsProvider.DATABASE_NAME, null));            
         }
         MyContextHolder.release();
@@ -288,7 +334,7 @@ public class MyBackupAgent extends BackupAgent {
         final String filename = "preferences";
         File tempFile = new File(SharedPreferencesUtil.prefsDirectory(MyContextHolder.get()
                 .context()), filename + ".xml");
-        sharedPreferencesRestored += restoreFile(data, tempFile);
+        sharedPreferencesRestored += restoreFile(data, SHARED_PREFERENCES_KEY, tempFile);
         SharedPreferencesUtil.copyAll(MyPreferences.getSharedPreferences(filename),
                 MyPreferences.getDefaultSharedPreferences());
         if (!tempFile.delete()) {
@@ -309,25 +355,45 @@ public class MyBackupAgent extends BackupAgent {
     }
 
     private void assertNextHeader(MyBackupDataInput data, String key) throws IOException {
-        if (!key.equals(previousKey) && !data.readNextHeader()) {
+        String foundKey = peekNextKey(data);
+        if (foundKey.length() == 0) {
             throw new FileNotFoundException("Unexpected end of backup on key='" + key + "'");
         }
-        previousKey = data.getKey();
-        if (!key.equals(data.getKey())) {
-            throw new FileNotFoundException("Expected key='" + key + "' but was found key='" + data.getKey() + "'");
+        if (!isEntityOf(key, foundKey)) {
+            throw new FileNotFoundException("Expected key='" + key + "' but was found key='" + foundKey + "'");
         }
     }
 
     private boolean optionalNextHeader(MyBackupDataInput data, String key) throws IOException {
-        if (data.readNextHeader()) {
-            previousKey = data.getKey();
-            return key.equals(data.getKey());
+        return isEntityOf(key, peekNextKey(data));
+    }
+
+    /** Reads the next header, unless it was read already */
+    private String peekNextKey(MyBackupDataInput data) throws IOException {
+        if (nextKey == null) {
+            nextKey = data.readNextHeader() ? data.getKey() : "";
         }
-        return false;
+        return nextKey;
     }
-    
+
+    /** A file is backed up as one entity (older backups) or as a sequence of blocks */
+    private static boolean isEntityOf(String key, String entityKey) {
+        return key.equals(entityKey) || BlockFile.isBlockOf(key, entityKey);
+    }
+
     /** Returns count of restores files */
-    public long restoreFile(MyBackupDataInput data, File dataFile) throws IOException {
+    public long restoreFile(MyBackupDataInput data, String key, File dataFile) throws IOException {
+        if (key.equals(data.getKey())) {
+            return restoreWholeFile(data, dataFile);
+        }
+        BlockFile blockFile = new BlockFile(key, dataFile);
+        nextKey = blockFile.restore(data) ? data.getKey() : "";
+        backupDescriptor.getLogger().logProgress("Restored " + blockFile);
+        return 1;
+    }
+
+    private long restoreWholeFile(MyBackupDataInput data, File dataFile) throws IOException {
+        nextKey = null;
         if (dataFile.exists() && !dataFile.delete()) {
             throw new FileNotFoundException("Couldn't delete old file before restore '"
                     + dataFile.getName() + "'");
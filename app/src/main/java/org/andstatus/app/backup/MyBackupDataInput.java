@@ -23,14 +23,18 @@ import org.andstatus.app.util.FileUtils;
 import org.andstatus.app.util.MyLog;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
 
 public class MyBackupDataInput {
+    private static final int BUFFER_SIZE = 64 * 1024;
     private MyContext myContext;
     private BackupDataInput backupDataInput;
 
@@ -40,12 +44,16 @@ public class MyBackupDataInput {
     private boolean mHeaderReady = false;
     private int dataOffset = 0;
     private BackupHeader header = BackupHeader.getEmpty();
+    /** Stays open, till the next header is read */
+    private InputStream dataStream = null;
     
     static class BackupHeader implements Comparable<BackupHeader> {
         String key;
         long ordinalNumber;
         int dataSize;
         String fileExtension;
+        /** Name of another backup folder with the data file, empty if the data is in this folder */
+        String dataFolderName = "";
 
         BackupHeader(String key, long ordinalNumber, int dataSize, String fileExtension) {
             this.key = key;
@@ -59,11 +67,13 @@ public class MyBackupDataInput {
         }
         
         static BackupHeader fromJson(JSONObject jso) {
-            return new BackupHeader(
+            BackupHeader header = new BackupHeader(
             jso.optString(MyBackupDataOutput.KEY_KEYNAME, ""),
             jso.optLong(MyBackupDataOutput.KEY_ORDINAL_NUMBER, 0),
             jso.optInt(MyBackupDataOutput.KEY_DATA_SIZE, 0),
             jso.optString(MyBackupDataOutput.KEY_FILE_EXTENSION, MyBackupDataOutput.DATA_FILE_EXTENSION_DEFAULT));
+            header.dataFolderName = jso.optString(MyBackupDataOutput.KEY_DATA_FOLDER, "");
+            return header;
         }
 
         @Override
@@ -154,6 +164,7 @@ public class MyBackupDataInput {
     }
 
     private boolean readNextHeader2() throws IOException {
+        closeDataStream();
         mHeaderReady = false;
         dataOffset = 0;
         if (keysIterator.hasNext()) {
@@ -218,18 +229,44 @@ public class MyBackupDataInput {
         } else if (size < 1 || dataOffset >= header.dataSize) {
             // skip
         } else if (mHeaderReady) {
-            File dataFile = new File(dataFolder, header.key + MyBackupDataOutput.DATA_FILE_SUFFIX + header.fileExtension);
-            byte[] readData = FileUtils.getBytes(dataFile, dataOffset, size);
-            bytesRead = readData.length;
-            System.arraycopy(readData, 0, data, offset, bytesRead);
+            if (dataStream == null) {
+                dataStream = new BufferedInputStream(new FileInputStream(getDataFile()), BUFFER_SIZE);
+            }
+            int count = dataStream.read(data, offset, Math.min(size, header.dataSize - dataOffset));
+            if (count > 0) {
+                bytesRead = count;
+            }
         } else {
             throw new IllegalStateException("Entity header not read");
         }
         MyLog.v(this, "key=" + header.key + ", offset=" + dataOffset + ", bytes read=" + bytesRead);
         dataOffset += bytesRead;
+        if (dataOffset >= header.dataSize) {
+            closeDataStream();
+        }
         return bytesRead;
     }
 
+    private File getDataFile() throws FileNotFoundException {
+        File folder = dataFolder;
+        if (header.dataFolderName.length() > 0) {
+            folder = new File(dataFolder.getParentFile(), header.dataFolderName);
+            if (!folder.exists()) {
+                throw new FileNotFoundException("Previous backup folder with data of key='" + header.key
+                        + "' doesn't exist: '" + folder.getAbsolutePath() + "'");
+            }
+        }
+        return new File(folder, header.key + MyBackupDataOutput.DATA_FILE_SUFFIX + header.fileExtension);
+    }
+
+    private void closeDataStream() throws IOException {
+        if (dataStream != null) {
+            InputStream in = dataStream;
+            dataStream = null;
+            in.close();
+        }
+    }
+
     /** {@link BackupDataInput#skipEntityData()}  */
     public void skipEntityData() throws IOException {
         if (backupDataInput != null) {
@@ -239,7 +276,8 @@ public class MyBackupDataInput {
         }
     }
 
-    private void skipEntityData2() {
+    private void skipEntityData2() throws IOException {
+        closeDataStream();
         if (mHeaderReady) {
             mHeaderReady = false;
         } else {
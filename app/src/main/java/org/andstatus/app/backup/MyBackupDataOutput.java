@@ -25,10 +25,12 @@ import org.json.JSONObject;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 /** Allowing to instantiate and to mock BackupDataOutput class */
 public class MyBackupDataOutput {
@@ -39,11 +41,16 @@ public class MyBackupDataOutput {
     static final String KEY_DATA_SIZE = "data_size";
     static final String KEY_ORDINAL_NUMBER = "ordinal_number";
     static final String KEY_FILE_EXTENSION = "file_extension";
+    /** The data file is in another backup folder. Such headers were written by older versions only */
+    static final String KEY_DATA_FOLDER = "data_folder";
+    private static final int BUFFER_SIZE = 64 * 1024;
     private File dataFolder;
     private BackupDataOutput backupDataOutput;
     private int sizeToWrite = 0;
     private int sizeWritten = 0;
     private File dataFile = null;
+    /** Stays open, till all data of the entity is written */
+    private OutputStream dataStream = null;
     private int headerOrdinalNumber = 0;
 
     public MyBackupDataOutput(BackupDataOutput backupDataOutput) {
@@ -66,14 +73,72 @@ public class MyBackupDataOutput {
 
     private int writeEntityHeader2(String key, int dataSize, String fileExtension) throws IOException {
         MyLog.v(this, "Writing header for '" + key + "', size=" + dataSize);
+        closeDataStream();
         sizeToWrite = dataSize;
         sizeWritten = 0;
-        writeHeaderFile(key, dataSize, fileExtension);
+        writeHeaderFile(key, dataSize, fileExtension, null);
         createDataFile(key, dataSize, fileExtension);
         return key.length();
     }
 
-    private void writeHeaderFile(String key, int dataSize, String fileExtension) throws IOException {
+    /**
+     * The entity didn't change since the previous backup, so its data is not compressed again.
+     * The Android backup transport keeps the data of the previous backup.
+     * The data file of the previous folder backup is copied to the new folder, so each backup folder
+     * may be restored, moved or deleted on its own
+     * @return false if the entity should be written, because the previous data is not available
+     */
+    boolean keepEntity(String key, String fileExtension, MyBackupDescriptor.Block previous) throws IOException {
+        if (backupDataOutput != null) {
+            return true;
+        }
+        if (previous.dataFolderName.length() == 0) {
+            return false;
+        }
+        File previousDataFile = new File(new File(dataFolder.getParentFile(), previous.dataFolderName),
+                key + DATA_FILE_SUFFIX + fileExtension);
+        if (!previousDataFile.exists() || previousDataFile.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        headerOrdinalNumber++;
+        closeDataStream();
+        writeHeaderFile(key, (int) previousDataFile.length(), fileExtension, null);
+        File newDataFile = new File(dataFolder, key + DATA_FILE_SUFFIX + fileExtension);
+        createFileIfNeeded((int) previousDataFile.length(), newDataFile);
+        copyFile(previousDataFile, newDataFile);
+        return true;
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(to);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+            long size = inChannel.size();
+            while (position < size) {
+                position += inChannel.transferTo(position, size - position, outChannel);
+            }
+        } finally {
+            DbUtils.closeSilently(in, from.getAbsolutePath());
+            DbUtils.closeSilently(out, to.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Deletes the entity of the previous Android backup. Each folder backup is written to a new folder,
+     * so there is nothing to delete
+     */
+    void deleteEntity(String key) throws IOException {
+        if (backupDataOutput != null) {
+            backupDataOutput.writeEntityHeader(key, -1);
+        }
+    }
+
+    private void writeHeaderFile(String key, int dataSize, String fileExtension, String dataFolderName)
+            throws IOException {
         File headerFile = new File(dataFolder, key + HEADER_FILE_SUFFIX);
         createFileIfNeeded(dataSize, headerFile);
         JSONObject jso = new JSONObject();
@@ -82,6 +147,9 @@ public class MyBackupDataOutput {
             jso.put(KEY_ORDINAL_NUMBER, headerOrdinalNumber);
             jso.put(KEY_DATA_SIZE, dataSize);
             jso.put(KEY_FILE_EXTENSION, fileExtension);
+            if (dataFolderName != null) {
+                jso.put(KEY_DATA_FOLDER, dataFolderName);
+            }
             byte[] bytes = jso.toString(2).getBytes("UTF-8");
             appendBytesToFile(headerFile, bytes, bytes.length);
         } catch (JSONException e) {
@@ -101,6 +169,17 @@ public class MyBackupDataOutput {
     private void createDataFile(String key, int dataSize, String fileExtension) throws IOException {
         dataFile = new File(dataFolder, key + DATA_FILE_SUFFIX + fileExtension);
         createFileIfNeeded(dataSize, dataFile);
+        if (dataSize > 0) {
+            dataStream = new BufferedOutputStream(new FileOutputStream(dataFile, true), BUFFER_SIZE);
+        }
+    }
+
+    private void closeDataStream() throws IOException {
+        if (dataStream != null) {
+            OutputStream out = dataStream;
+            dataStream = null;
+            out.close();
+        }
     }
 
     /** {@link BackupDataOutput#writeEntityData(byte[], int)} */
@@ -113,16 +192,18 @@ public class MyBackupDataOutput {
     }
 
     private int writeEntityData2(byte[] data, int size) throws IOException {
-        if (!dataFile.exists()) {
-            throw new FileNotFoundException("Output file doesn't exist " + dataFile.getAbsolutePath());
+        if (dataStream == null) {
+            throw new FileNotFoundException("Output file is not open "
+                    + (dataFile == null ? "" : dataFile.getAbsolutePath()));
         }
         if (size < 0) {
             throw new FileNotFoundException("Wrong number of bytes to write: " + size);
         }
-        appendBytesToFile(dataFile, data, size);
+        dataStream.write(data, 0, size);
         sizeWritten += size;
         if (sizeWritten >= sizeToWrite) {
             try {
+                closeDataStream();
                 if (sizeWritten > sizeToWrite) {
                     throw new FileNotFoundException("Data is longer than expected: written=" + sizeWritten 
                             + ", expected=" + sizeToWrite );
@@ -29,23 +29,35 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class MyBackupDescriptor {
     private static final Object TAG = MyBackupDescriptor.class;
     
     static final int BACKUP_SCHEMA_VERSION_UNKNOWN = -1;
-    static final int BACKUP_SCHEMA_VERSION = 3;
+    /** Each file was backed up as one uncompressed entity */
+    static final int BACKUP_SCHEMA_VERSION_WHOLE_FILES = 3;
+    /** Files are backed up as compressed blocks, see {@link BlockFile} */
+    static final int BACKUP_SCHEMA_VERSION = 4;
     static final String KEY_ACCOUNTS_COUNT = "accounts_count";
     static final String KEY_CREATED_DATE = "created_date";
     static final String KEY_BACKUP_SCHEMA_VERSION = "backup_schema_version";
     static final String KEY_APPLICATION_VERSION_CODE = "app_version_code";
+    static final String KEY_BLOCKS = "blocks";
+    static final String KEY_DIGEST = "digest";
+    static final String KEY_DATA_FOLDER = "data_folder";
     
     private int backupSchemaVersion = BACKUP_SCHEMA_VERSION_UNKNOWN;
     private int applicationVersionCode = 0;
@@ -54,8 +66,25 @@ public class MyBackupDescriptor {
     private FileDescriptor fileDescriptor = null;
 
     private long accountsCount = 0;
+    private final Map<String, Block> blocks = new TreeMap<String, Block>();
 
     private final ProgressLogger progressLogger;
+
+    /** A block of a backed up file */
+    static class Block {
+        final String digest;
+        /** Name of the backup folder with the data of the block, empty for the Android backup */
+        final String dataFolderName;
+
+        Block(String digest, File dataFolder) {
+            this(digest, dataFolder == null ? "" : dataFolder.getName());
+        }
+
+        private Block(String digest, String dataFolderName) {
+            this.digest = digest;
+            this.dataFolderName = dataFolderName;
+        }
+    }
     
     private MyBackupDescriptor(ProgressLogger progressLogger) {
         this.progressLogger = progressLogger;
@@ -74,7 +103,9 @@ public class MyBackupDescriptor {
             myBackupDescriptor.createdDate = jso.optLong(KEY_CREATED_DATE, myBackupDescriptor.createdDate);
             myBackupDescriptor.applicationVersionCode = jso.optInt(KEY_APPLICATION_VERSION_CODE, myBackupDescriptor.applicationVersionCode);
             myBackupDescriptor.accountsCount = jso.optLong(KEY_ACCOUNTS_COUNT, myBackupDescriptor.accountsCount);
-            if (myBackupDescriptor.backupSchemaVersion != BACKUP_SCHEMA_VERSION) {
+            myBackupDescriptor.blocksFromJson(jso.optJSONObject(KEY_BLOCKS));
+            if (myBackupDescriptor.backupSchemaVersion != BACKUP_SCHEMA_VERSION
+                    && myBackupDescriptor.backupSchemaVersion != BACKUP_SCHEMA_VERSION_WHOLE_FILES) {
                 try {
                     MyLog.w(TAG, "Bad backup descriptor: " + jso.toString(2) );
                 } catch (JSONException e) {
@@ -85,6 +116,21 @@ public class MyBackupDescriptor {
         return myBackupDescriptor;
     }
 
+    private void blocksFromJson(JSONObject jso) {
+        if (jso == null) {
+            return;
+        }
+        Iterator<String> iterator = jso.keys();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            JSONObject jsoBlock = jso.optJSONObject(key);
+            if (jsoBlock != null) {
+                blocks.put(key, new Block(jsoBlock.optString(KEY_DIGEST),
+                        jsoBlock.optString(KEY_DATA_FOLDER)));
+            }
+        }
+    }
+
     static MyBackupDescriptor fromEmptyParcelFileDescriptor(ParcelFileDescriptor parcelFileDescriptor, ProgressLogger progressLoggerIn) throws IOException {
         MyBackupDescriptor myBackupDescriptor = new MyBackupDescriptor(progressLoggerIn);
         myBackupDescriptor.fileDescriptor = parcelFileDescriptor.getFileDescriptor();
@@ -131,6 +177,7 @@ public class MyBackupDescriptor {
             jso.put(KEY_CREATED_DATE, createdDateNew);
             jso.put(KEY_APPLICATION_VERSION_CODE, applicationVersionCode);
             jso.put(KEY_ACCOUNTS_COUNT, accountsCount);
+            jso.put(KEY_BLOCKS, blocksToJson());
             
             writeStringToFileDescriptor(jso.toString(), fileDescriptor, true);
             createdDate = createdDateNew;
@@ -139,6 +186,19 @@ public class MyBackupDescriptor {
         }
     }
     
+    private JSONObject blocksToJson() throws JSONException {
+        JSONObject jso = new JSONObject();
+        for (Map.Entry<String, Block> entry : blocks.entrySet()) {
+            JSONObject jsoBlock = new JSONObject();
+            jsoBlock.put(KEY_DIGEST, entry.getValue().digest);
+            if (entry.getValue().dataFolderName.length() > 0) {
+                jsoBlock.put(KEY_DATA_FOLDER, entry.getValue().dataFolderName);
+            }
+            jso.put(entry.getKey(), jsoBlock);
+        }
+        return jso;
+    }
+
     private void writeStringToFileDescriptor(String string, FileDescriptor fd, boolean logged) throws IOException {
         final String method = "writeStringToFileDescriptor";
         Writer out = null;
@@ -163,6 +223,7 @@ public class MyBackupDescriptor {
                 + (fileDescriptor == null ? ", fileDescriptor:null" : "")
                 + ", versionCode:" + applicationVersionCode
                 + ", accountsCount:" + accountsCount
+                + (blocks.isEmpty() ? "" : ", blocks:" + blocks.size())
                 + "}";
      }
 
@@ -179,6 +240,19 @@ public class MyBackupDescriptor {
         progressLogger.logProgress("Accounts backed up:" + accountsCount);
     }
 
+    /** @return null if the block is unknown */
+    Block getBlock(String key) {
+        return blocks.get(key);
+    }
+
+    void putBlock(String key, Block block) {
+        blocks.put(key, block);
+    }
+
+    Set<String> getBlockKeys() {
+        return Collections.unmodifiableSet(blocks.keySet());
+    }
+
     public ProgressLogger getLogger() {
         return progressLogger;
     }
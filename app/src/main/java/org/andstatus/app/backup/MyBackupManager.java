@@ -38,6 +38,9 @@ import java.util.Arrays;
  * 1. Backup descriptor file
  * 2. Folder with: 
  *      For each backup "key": header file and data file  
+ *      The data file of a block of a file, which didn't change since the previous backup,
+ *      is copied from the folder of that backup without compressing it again (see {@link BlockFile}).
+ *      So each backup folder is complete and doesn't depend on other folders
  * @author yvolk (Yuri Volkov), http://yurivolkov.com
  */
 class MyBackupManager {
@@ -110,13 +113,46 @@ class MyBackupManager {
                 ParcelFileDescriptor.MODE_READ_WRITE);
         try {
             newDescriptor = MyBackupDescriptor.fromEmptyParcelFileDescriptor(newState, progressLogger);
-            backupAgent.onBackup(MyBackupDescriptor.getEmpty(), dataOutput, newDescriptor);
+            backupAgent.onBackup(getPreviousDescriptor(), dataOutput, newDescriptor);
             progressLogger.logSuccess();
         } finally {
             newState.close();
         }
     }
 
+    /**
+     * The latest backup in the same parent folder. Its unchanged blocks are not compressed again,
+     * their data files are copied to the new backup
+     */
+    private MyBackupDescriptor getPreviousDescriptor() throws IOException {
+        File previousFolder = null;
+        File[] folders = dataFolder.getParentFile().listFiles();
+        if (folders != null) {
+            for (File folder : folders) {
+                if (folder.isDirectory() && !folder.equals(dataFolder)
+                        && dataFolderToDescriptorFile(folder).length() > 0
+                        && (previousFolder == null || dataFolderToDescriptorFile(folder).lastModified()
+                            > dataFolderToDescriptorFile(previousFolder).lastModified())) {
+                    previousFolder = folder;
+                }
+            }
+        }
+        if (previousFolder == null) {
+            return MyBackupDescriptor.getEmpty();
+        }
+        ParcelFileDescriptor oldState = ParcelFileDescriptor.open(dataFolderToDescriptorFile(previousFolder),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            MyBackupDescriptor oldDescriptor = MyBackupDescriptor.fromOldParcelFileDescriptor(oldState,
+                    ProgressLogger.getEmpty());
+            progressLogger.logProgress("Unchanged data will be copied from the previous backup:'"
+                    + previousFolder.getName() + "'");
+            return oldDescriptor;
+        } finally {
+            oldState.close();
+        }
+    }
+
     static void restoreInteractively(File backupFile, ProgressLogger.ProgressCallback progressCallback) {
         MyBackupManager backupManager = new MyBackupManager(progressCallback);
         try {
@@ -149,7 +185,8 @@ class MyBackupManager {
                 ParcelFileDescriptor.MODE_READ_ONLY);
         try {
             newDescriptor = MyBackupDescriptor.fromOldParcelFileDescriptor(newState, progressLogger);
-            if (newDescriptor.getBackupSchemaVersion() != MyBackupDescriptor.BACKUP_SCHEMA_VERSION) {
+            if (newDescriptor.getBackupSchemaVersion() != MyBackupDescriptor.BACKUP_SCHEMA_VERSION
+                    && newDescriptor.getBackupSchemaVersion() != MyBackupDescriptor.BACKUP_SCHEMA_VERSION_WHOLE_FILES) {
                 throw new FileNotFoundException("Unsupported backup schema version: " + newDescriptor.getBackupSchemaVersion()
                         + "; created with app version code:" + newDescriptor.getApplicationVersionCode()
                         + "; data folder:'" + dataFolder.getAbsolutePath() + "'");
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.context;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durations of stages of the {@link MyContext} initialization, so we can see, what makes the cold start slow.
+ * Stages, which are done in parallel, overlap, so their sum may be larger than the total time
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class InitializationTrace {
+    public enum Stage {
+        STORAGE,
+        DATABASE,
+        ORIGINS,
+        /** Reading data of accounts from the AccountManager, in parallel with the {@link #DATABASE} and {@link #ORIGINS} */
+        ACCOUNT_DATA,
+        /** Waiting for the {@link #ACCOUNT_DATA} and creating accounts */
+        ACCOUNTS
+    }
+
+    private static volatile InitializationTrace last = new InitializationTrace("");
+
+    private final String initializedBy;
+    private final long startedAt = System.currentTimeMillis();
+    private long stageStartedAt = startedAt;
+    private long totalMillis = 0;
+    private final Map<Stage, Long> stages = new EnumMap<Stage, Long>(Stage.class);
+    private final List<Stage> endedStages = new ArrayList<Stage>();
+
+    InitializationTrace(String initializedBy) {
+        this.initializedBy = initializedBy;
+    }
+
+    /** The stage, which started, when the previous sequential stage ended, has ended */
+    synchronized void onStageEnded(Stage stage) {
+        long now = System.currentTimeMillis();
+        stages.put(stage, now - stageStartedAt);
+        endedStages.add(stage);
+        stageStartedAt = now;
+    }
+
+    /** The stage, which was done in parallel, has ended */
+    synchronized void onParallelStageEnded(Stage stage, long millis) {
+        stages.put(stage, millis);
+        endedStages.add(stage);
+    }
+
+    synchronized void end() {
+        totalMillis = System.currentTimeMillis() - startedAt;
+        last = this;
+        MyLog.v(this, toString());
+    }
+
+    /** @return Trace of the latest initialization */
+    public static InitializationTrace getLast() {
+        return last;
+    }
+
+    /** @return -1 if the stage was not reached */
+    public synchronized long getStageMillis(Stage stage) {
+        Long millis = stages.get(stage);
+        return millis == null ? -1 : millis;
+    }
+
+    /** @return Stages in the order they ended */
+    public synchronized List<Stage> getEndedStages() {
+        return new ArrayList<Stage>(endedStages);
+    }
+
+    public synchronized long getTotalMillis() {
+        return totalMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("by:" + initializedBy + ",");
+        for (Map.Entry<Stage, Long> entry : stages.entrySet()) {
+            builder.append(entry.getKey().name().toLowerCase() + "Ms:" + entry.getValue() + ",");
+        }
+        builder.append("totalMs:" + totalMillis);
+        return MyLog.formatKeyValue(this, builder.toString());
+    }
+}
@@ -48,6 +48,7 @@ public class MyApplication extends Application {
         MyContextHolder.storeContextIfNotPresent(this, this);
         MyPreferences.setLocale(this);
         ACRA.init(this);
+        MyContextHolder.initializeInBackground(this, this);
     }
 
     @Override
@@ -65,7 +66,11 @@ public class MyApplication extends Application {
         SQLiteDatabase db = null;
         File dbAbsolutePath = getDatabasePath(name);
         if (dbAbsolutePath != null) {
-            db = SQLiteDatabase.openDatabase(dbAbsolutePath.getPath(), factory, SQLiteDatabase.CREATE_IF_NECESSARY + SQLiteDatabase.OPEN_READWRITE );
+            int flags = SQLiteDatabase.CREATE_IF_NECESSARY + SQLiteDatabase.OPEN_READWRITE;
+            if ((mode & MODE_ENABLE_WRITE_AHEAD_LOGGING) != 0) {
+                flags |= SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING;
+            }
+            db = SQLiteDatabase.openDatabase(dbAbsolutePath.getPath(), factory, flags);
         }
         if (MyLog.isVerboseEnabled()) {
             MyLog.v(this, "openOrCreateDatabase, name=" + name + ( db!=null ? " opened '" + db.getPath() + "'" : " NOT opened" ));
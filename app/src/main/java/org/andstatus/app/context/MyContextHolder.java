@@ -92,6 +92,30 @@ public final class MyContextHolder {
         return initializeDuringUpgrade(context, initializedBy);
     }
 
+    /**
+     * Starts the initialization in a background thread and returns immediately,
+     * so an Activity, a widget or the service will find the context ready or partially initialized.
+     * The initialization holds the lock, so {@link #replaceCreator(MyContext)} waits for it.
+     * If the creator was replaced before the thread started, e.g. by a test, the initialization is skipped
+     */
+    public static void initializeInBackground(Context context, final Object initializedBy) {
+        storeContextIfNotPresent(context, initializedBy);
+        final MyContext creator = myContextCreator;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CONTEXT_LOCK) {
+                    if (creator != myContextCreator) {
+                        MyLog.v(TAG, "Skipping initialization: the creator was replaced (called by: "
+                                + initializedBy + ")");
+                        return;
+                    }
+                    initialize(null, initializedBy);
+                }
+            }
+        }, TAG + "-initialize").start();
+    }
+
     public static long initializeDuringUpgrade(Context context, Object initializedBy) {
         if (get().initialized() && didPreferencesChange()) {
             synchronized(CONTEXT_LOCK) {
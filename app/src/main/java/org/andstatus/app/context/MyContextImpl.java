@@ -26,20 +26,31 @@ import android.net.NetworkInfo;
 import net.jcip.annotations.ThreadSafe;
 
 import org.andstatus.app.ClassInApplicationPackage;
+import org.andstatus.app.account.AccountData;
 import org.andstatus.app.account.PersistentAccounts;
 import org.andstatus.app.data.AssertionData;
+import org.andstatus.app.data.ImageCache;
 import org.andstatus.app.data.MyDatabase;
 import org.andstatus.app.data.MyDatabaseConverterController;
+import org.andstatus.app.data.OidCache;
 import org.andstatus.app.data.TimelineType;
 import org.andstatus.app.net.http.HttpConnection;
+import org.andstatus.app.net.http.MyHttpClientFactory;
 import org.andstatus.app.net.http.TlsSniSocketFactory;
 import org.andstatus.app.origin.PersistentOrigins;
+import org.andstatus.app.service.CommandMetrics;
 import org.andstatus.app.service.ConnectionRequired;
+import org.andstatus.app.service.SyncScheduler;
+import org.andstatus.app.service.TimelineStreamer;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.RelativeTime;
 
 import java.io.File;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Contains global state of the application
@@ -84,16 +95,24 @@ public final class MyContextImpl implements MyContext {
         MyContextImpl newMyContext = getCreator(context, initializerName);
         if ( newMyContext.mContext != null) {
             MyLog.v(TAG, method + " Starting initialization by " + initializerName);
+            InitializationTrace trace = new InitializationTrace(initializerName);
             tryToSetExternalStorageOnFirstLaunch();
             newMyContext.mPreferencesChangeTime = MyPreferences.getPreferencesChangeTime();
+            trace.onStageEnded(InitializationTrace.Stage.STORAGE);
+            FutureTask<List<AccountData>> accountDataTask = newAccountDataTask(newMyContext, trace);
+            new Thread(accountDataTask, TAG + "-accountData").start();
             MyDatabase newDb = new MyDatabase(newMyContext.mContext);
             try {
                 newMyContext.mState = newDb.checkState();
+                trace.onStageEnded(InitializationTrace.Stage.DATABASE);
                 switch (newMyContext.mState) {
                     case READY:
                             newMyContext.mDb = newDb;
                             newMyContext.mPersistentOrigins.initialize(newMyContext);
-                            newMyContext.mPersistentAccounts.initialize(newMyContext);
+                            trace.onStageEnded(InitializationTrace.Stage.ORIGINS);
+                            newMyContext.mPersistentAccounts.initialize(newMyContext,
+                                    getAccountData(newMyContext, accountDataTask));
+                            trace.onStageEnded(InitializationTrace.Stage.ACCOUNTS);
                         break;
                     default: 
                         break;
@@ -104,12 +123,43 @@ public final class MyContextImpl implements MyContext {
                 newDb.close();
                 newMyContext.mDb = null;
             }
+            trace.end();
         }
 
         MyLog.v(this, toString());
         return newMyContext;
     }
     
+    /**
+     * Data of accounts is read from the AccountManager by another thread,
+     * while this thread opens the database and loads origins
+     */
+    private static FutureTask<List<AccountData>> newAccountDataTask(final MyContext myContext,
+            final InitializationTrace trace) {
+        return new FutureTask<List<AccountData>>(new Callable<List<AccountData>>() {
+            @Override
+            public List<AccountData> call() {
+                long startedAt = System.currentTimeMillis();
+                List<AccountData> accountDataList = PersistentAccounts.loadAccountData(myContext);
+                trace.onParallelStageEnded(InitializationTrace.Stage.ACCOUNT_DATA,
+                        System.currentTimeMillis() - startedAt);
+                return accountDataList;
+            }
+        });
+    }
+
+    private static List<AccountData> getAccountData(MyContext myContext, FutureTask<List<AccountData>> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            MyLog.d(TAG, "Waiting for account data was interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            MyLog.e(TAG, "Failed to load account data in parallel", e);
+        }
+        return PersistentAccounts.loadAccountData(myContext);
+    }
+
     private void tryToSetExternalStorageOnFirstLaunch() {
         File databaseFile = MyPreferences.getDatabasePath(MyDatabase.DATABASE_NAME, null);
         if (databaseFile.exists()) {
@@ -205,6 +255,12 @@ public final class MyContextImpl implements MyContext {
     public void release() {
         MyLog.forget();
         TlsSniSocketFactory.forget();
+        MyHttpClientFactory.forget();
+        OidCache.forget();
+        ImageCache.forget();
+        SyncScheduler.forget();
+        CommandMetrics.forget();
+        TimelineStreamer.forget();
     }
 
     @Override
@@ -57,6 +57,7 @@ public class MyPreferences {
     public static final String KEY_SYNC_FREQUENCY_SECONDS = "fetch_frequency";
     public static final String KEY_SYNC_INDICATOR_ON_TIMELINE = "sync_indicator_on_timeline";
     public static final String KEY_SYNC_WHILE_USING_APPLICATION = "sync_while_using_application";
+    public static final String KEY_STREAMING_WHILE_USING_APPLICATION = "streaming_while_using_application";
     public static final String KEY_DOWNLOAD_ATTACHMENTS_OVER_WIFI_ONLY = "download_attachments_over_wifi_only";
     public static final String KEY_CONNECTION_TIMEOUT_SECONDS = "connection_timeout";
     public static final String KEY_RINGTONE_PREFERENCE = "notification_ringtone";
@@ -433,6 +434,10 @@ public class MyPreferences {
     public static boolean isSyncWhileUsingApplicationEnabled() {
         return getBoolean(KEY_SYNC_WHILE_USING_APPLICATION, true);
     }
+
+    public static boolean isStreamingWhileUsingApplicationEnabled() {
+        return getBoolean(KEY_STREAMING_WHILE_USING_APPLICATION, false);
+    }
     
     public static boolean getBoolean(String key, boolean defaultValue) {
         boolean value = defaultValue;
@@ -18,6 +18,7 @@ package org.andstatus.app.context;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
 import android.widget.Toast;
 
@@ -152,6 +153,11 @@ public class StorageSwitch {
                 result.success = true;
                 return;
             }
+            MyDatabase myDatabase = MyContextHolder.get().getDatabase();
+            if (myDatabase != null && !myDatabase.checkpoint()) {
+                result.messageBuilder.append(" Couldn't checkpoint the database.");
+                return;
+            }
             try {
                 result.success = moveDatabase(mUseExternalStorageNew, result.messageBuilder, MyDatabase.DATABASE_NAME);
                 if (result.success) {
@@ -200,7 +206,7 @@ public class StorageSwitch {
                             succeeded = true;
                         } else if (dbFileNew.exists()) {
                             messageToAppend.insert(0, " Database already exists " + databaseName);
-                            if (!dbFileNew.delete()) {
+                            if (!SQLiteDatabase.deleteDatabase(dbFileNew)) {
                                 messageToAppend
                                         .insert(0, " Couldn't delete already existed files. ");
                                 done = true;
@@ -235,13 +241,13 @@ public class StorageSwitch {
                     if (succeeded) {
                         if ( copied && dbFileOld != null
                                 && dbFileOld.exists()
-                                && !dbFileOld.delete()) {
+                                && !SQLiteDatabase.deleteDatabase(dbFileOld)) {
                             messageToAppend.append(method + " couldn't delete old files. ");
                         }
                     } else {
                         if (dbFileNew != null
                                 && dbFileNew.exists()
-                                && !dbFileNew.delete()) {
+                                && !SQLiteDatabase.deleteDatabase(dbFileNew)) {
                             messageToAppend.append(method + " couldn't delete new files. ");
                         }
                     }
@@ -24,7 +24,9 @@ import android.graphics.Point;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.view.Display;
+import android.view.View;
 import android.view.WindowManager;
+import android.widget.ImageView;
 
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.util.MyLog;
@@ -35,6 +37,14 @@ public class AttachedImageDrawable {
     private Point size = null;
     
     public static Drawable drawableFromCursor(Cursor cursor) {
+        AttachedImageDrawable drawable = fromCursor(cursor);
+        return drawable == null ? null : drawable.getDrawable();
+    }
+
+    /**
+     * @return null if the row has no attached image
+     */
+    public static AttachedImageDrawable fromCursor(Cursor cursor) {
         int columnIndex = cursor.getColumnIndex(MyDatabase.Download.IMAGE_ID);
         Long imageRowId = null;
         if (columnIndex >= 0) {
@@ -44,7 +54,7 @@ public class AttachedImageDrawable {
             return null;
         } else {
             return new AttachedImageDrawable(imageRowId, cursor.getString(cursor
-                    .getColumnIndex(MyDatabase.Download.IMAGE_FILE_NAME))).getDrawable();
+                    .getColumnIndex(MyDatabase.Download.IMAGE_FILE_NAME)));
         }
     }
     
@@ -56,7 +66,7 @@ public class AttachedImageDrawable {
     public Point getSize() {
         if (size == null) {
             if (downloadFile.exists()) {
-                size = getImageSize(downloadFile.getFile().getAbsolutePath());
+                size = ImageCache.getImageSize(downloadFile.getFile().getAbsolutePath());
             }
         }
         return size == null ? new Point() : size;
@@ -64,47 +74,44 @@ public class AttachedImageDrawable {
 
     public Drawable getDrawable() {
         if (downloadFile.exists()) {
-            String path = downloadFile.getFile().getAbsolutePath();
-            return drawableFromPath(this, path, getSize());
+            return toDrawable(ImageCache.load(this, downloadFile, getBounds(), false));
         } 
         DownloadData.asyncRequestDownload(downloadRowId);
         return null;
     }
 
-    public static final double MAX_ATTACHED_IMAGE_PART = 0.75;
-
-    public static Drawable drawableFromPath(Object objTag, String path) {
-        return drawableFromPath(objTag, path, getImageSize(path));
+    /**
+     * Show the image in the view asynchronously. The view is hidden if there is no image yet
+     */
+    public void showIn(ImageView view) {
+        if (downloadFile.exists()) {
+            view.setVisibility(View.VISIBLE);
+            ImageLoadTask.load(view, downloadFile, getBounds(), false, null);
+        } else {
+            ImageLoadTask.cancel(view);
+            view.setVisibility(View.GONE);
+            DownloadData.asyncRequestDownload(downloadRowId);
+        }
     }
 
-    private static Drawable drawableFromPath(Object objTag, String path, Point imageSize) {
-        Bitmap bitmap = BitmapFactory
-                .decodeFile(path, calculateScaling(objTag, imageSize));
-        if (MyLog.isVerboseEnabled()) {
-            MyLog.v(objTag, (bitmap == null ? "Failed to load bitmap" : "Loaded bitmap " + bitmap.getWidth() + "x" + bitmap.getHeight())
-                    + " '" + path + "'");
-        }
+    public static final double MAX_ATTACHED_IMAGE_PART = 0.75;
+
+    static Drawable toDrawable(Bitmap bitmap) {
         if (bitmap == null) {
             return null;
         }
         return new BitmapDrawable(MyContextHolder.get().context().getResources(), bitmap);
     }
 
-    private static Point getImageSize(String path) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(path, options);
-        return new Point(options.outWidth, options.outHeight);
+    private static Point getBounds() {
+        Point displaySize = getDisplaySize(MyContextHolder.get().context());
+        return new Point(displaySize.x, (int) (MAX_ATTACHED_IMAGE_PART * displaySize.y));
     }
 
     static BitmapFactory.Options calculateScaling(Object objTag,
             Point imageSize) {
         BitmapFactory.Options options2 = new BitmapFactory.Options();
-        Point displaySize = getDisplaySize(MyContextHolder.get().context());
-        while (imageSize.y > (int) (MAX_ATTACHED_IMAGE_PART * displaySize.y) || imageSize.x > displaySize.x) {
-            options2.inSampleSize = (options2.inSampleSize < 2) ? 2 : options2.inSampleSize * 2;
-            displaySize.set(displaySize.x * 2, displaySize.y * 2);
-        }
+        options2.inSampleSize = ImageCache.fitInSampleSize(imageSize, getBounds());
         if (options2.inSampleSize > 1 && MyLog.isVerboseEnabled()) {
             MyLog.v(objTag, "Large bitmap " + imageSize.x + "x" + imageSize.y
                     + " scaling by " + options2.inSampleSize + " times");
@@ -17,7 +17,9 @@
 package org.andstatus.app.data;
 
 import android.content.Context;
+import android.graphics.Point;
 import android.graphics.drawable.Drawable;
+import android.widget.ImageView;
 
 import org.andstatus.app.R;
 import org.andstatus.app.context.MyContextHolder;
@@ -53,12 +55,36 @@ public class AvatarDrawable {
     
     public Drawable getDrawable() {
         if (downloadFile.exists()) {
-            return AttachedImageDrawable.drawableFromPath(this, downloadFile.getFile().getAbsolutePath());
-        } 
-        AvatarData.asyncRequestDownload(userId);
+            Drawable drawable = AttachedImageDrawable.toDrawable(ImageCache.load(this, downloadFile, getBounds(), true));
+            if (drawable != null) {
+                return drawable;
+            }
+        } else {
+            AvatarData.asyncRequestDownload(userId);
+        }
         return getDefaultDrawable();
     }
 
+    /**
+     * Show the avatar in the view asynchronously, the default avatar is shown while it is loading
+     */
+    public void showIn(ImageView view) {
+        if (downloadFile.exists()) {
+            ImageLoadTask.load(view, downloadFile, getBounds(), true, getDefaultDrawable());
+        } else {
+            ImageLoadTask.cancel(view);
+            view.setImageDrawable(getDefaultDrawable());
+            AvatarData.asyncRequestDownload(userId);
+        }
+    }
+
+    /** Avatars are decoded to the size, in which they are shown */
+    private static Point getBounds() {
+        int size = Math.round(AVATAR_SIZE_DIP
+                * MyContextHolder.get().context().getResources().getDisplayMetrics().density);
+        return new Point(size, size);
+    }
+
     @Override
     public String toString() {
         return "AvatarDrawable [userId=" + userId + ", " + downloadFile + "]";
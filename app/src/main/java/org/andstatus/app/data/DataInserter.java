@@ -17,6 +17,8 @@
 package org.andstatus.app.data;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.text.TextUtils;
 
@@ -27,18 +29,25 @@ import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.net.social.MbAttachment;
 import org.andstatus.app.net.social.MbMessage;
+import org.andstatus.app.net.social.MbTimelineItem;
+import org.andstatus.app.net.social.TimelineItemConsumer;
 import org.andstatus.app.net.social.MbUser;
 import org.andstatus.app.service.AttachmentDownloader;
 import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.CommandExecutionContext;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.PhaseTimer;
 import org.andstatus.app.util.SharedPreferencesUtil;
 import org.andstatus.app.util.TriState;
 import org.andstatus.app.util.UriUtils;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Stores ("inserts" - adds or updates) messages and users
@@ -51,6 +60,34 @@ public class DataInserter {
     public static final String MSG_ASSERTION_KEY = "insertOrUpdateMsg";
     private final CommandExecutionContext execContext;
 
+    /**
+     * The state of the page of timeline items being inserted by {@link #insertOrUpdateTimelineItems(List, LatestUserMessages)},
+     * null if we are inserting single items
+     */
+    private PageData page = null;
+
+    private static class StoredMsg {
+        final long msgId;
+        final DownloadStatus status;
+        final long sentDate;
+
+        StoredMsg(long msgId, DownloadStatus status, long sentDate) {
+            this.msgId = msgId;
+            this.status = status;
+            this.sentDate = sentDate;
+        }
+    }
+
+    /** Ids of messages and users of the page, which were found in the database or added to it */
+    private static class PageData {
+        final Map<String, StoredMsg> messages = new HashMap<>();
+        final Map<String, Long> userIds = new HashMap<>();
+        /** Users that were already stored while inserting this page */
+        final Set<Long> storedUserIds = new HashSet<>();
+        /** The first failure of an item of the page, e.g. a nested transaction, which rolled back */
+        Exception failure = null;
+    }
+
     public DataInserter(MyAccount ma) {
         this(new CommandExecutionContext(CommandData.getEmpty(), ma));
     }
@@ -60,7 +97,12 @@ public class DataInserter {
     }
     
     public long insertOrUpdateMsg(MbMessage message, LatestUserMessages lum) {
-        return insertOrUpdateMsgBySender(message, lum, 0);
+        PhaseTimer.start(PhaseTimer.Phase.DB_WRITE);
+        try {
+            return insertOrUpdateMsgBySender(message, lum, 0);
+        } finally {
+            PhaseTimer.stop(PhaseTimer.Phase.DB_WRITE);
+        }
     }
     
     private long insertOrUpdateMsgBySender(MbMessage messageIn, LatestUserMessages lum, long senderIdIn) {
@@ -142,7 +184,11 @@ public class DataInserter {
             }
 
 
-            if (msgId == 0) {
+            StoredMsg storedMsg = null;
+            if (msgId == 0 && page != null && page.messages.containsKey(rowOid)) {
+                storedMsg = page.messages.get(rowOid);
+                msgId = storedMsg.msgId;
+            } else if (msgId == 0) {
                 // Lookup the System's (AndStatus) id from the Originated system's id
                 msgId = MyQuery.oidToId(OidEnum.MSG_OID, execContext.getMyAccount().getOriginId(), rowOid);
             }
@@ -160,7 +206,13 @@ public class DataInserter {
 
             long sentDateStored = 0;
             DownloadStatus statusStored = DownloadStatus.UNKNOWN;
-            if (msgId != 0) {
+            if (storedMsg != null && storedMsg.msgId != 0) {
+                statusStored = storedMsg.status;
+                sentDateStored = storedMsg.sentDate;
+                if (isFirstTimeLoaded) {
+                    isFirstTimeLoaded = statusStored != DownloadStatus.LOADED;
+                }
+            } else if (msgId != 0) {
                 statusStored = DownloadStatus.load(MyQuery.msgIdToLongColumnValue(Msg.MSG_STATUS, msgId));
                 sentDateStored = MyQuery.msgIdToLongColumnValue(Msg.SENT_DATE, msgId);
                 if (isFirstTimeLoaded) {
@@ -255,6 +307,11 @@ public class DataInserter {
                 Uri msgUri = MatchedUri.getMsgUri(execContext.getMyAccount().getUserId(), msgId);
                 execContext.getContext().getContentResolver().update(msgUri, values, null, null);
             }
+            if (page != null && !TextUtils.isEmpty(rowOid) && msgId != 0) {
+                page.messages.put(rowOid, new StoredMsg(msgId,
+                        values.containsKey(Msg.MSG_STATUS) ? message.getStatus() : statusStored,
+                        Math.max(sentDate, sentDateStored)));
+            }
 
             if (isFirstTimeLoaded || isDraftUpdated) {
                 List<Long> downloadIds = new ArrayList<>();
@@ -291,6 +348,7 @@ public class DataInserter {
             }
         } catch (Exception e) {
             MyLog.e(this, funcName, e);
+            onItemFailed(e);
         }
 
         return msgId;
@@ -302,11 +360,9 @@ public class DataInserter {
             // If the Msg is a Reply to another message
             Long inReplyToMessageId = 0L;
             Long inReplyToUserId = 0L;
-            // Type of the timeline is ALL meaning that message does not belong to this timeline
-            DataInserter di = new DataInserter(execContext);
-            inReplyToMessageId = di.insertOrUpdateMsg(message.inReplyToMessage, lum);
+            inReplyToMessageId = insertOrUpdateMsg(message.inReplyToMessage, lum);
             if (message.inReplyToMessage.sender != null) {
-                inReplyToUserId = MyQuery.oidToId(OidEnum.USER_OID, message.originId, message.inReplyToMessage.sender.oid);
+                inReplyToUserId = userOidToId(message.originId, message.inReplyToMessage.sender.oid);
             } else if (inReplyToMessageId != 0) {
                 inReplyToUserId = MyQuery.msgIdToLongColumnValue(Msg.SENDER_ID, inReplyToMessageId);
             }
@@ -346,6 +402,15 @@ public class DataInserter {
      * @return userId
      */
     public long insertOrUpdateUser(MbUser mbUser, LatestUserMessages lum) {
+        PhaseTimer.start(PhaseTimer.Phase.DB_WRITE);
+        try {
+            return insertOrUpdateUserTimed(mbUser, lum);
+        } finally {
+            PhaseTimer.stop(PhaseTimer.Phase.DB_WRITE);
+        }
+    }
+
+    private long insertOrUpdateUserTimed(MbUser mbUser, LatestUserMessages lum) {
         if (mbUser.isEmpty()) {
             MyLog.v(this, "insertUser - mbUser is empty");
             return 0;
@@ -355,8 +420,10 @@ public class DataInserter {
         long originId = mbUser.originId;
         long userId = 0L;
         if (!SharedPreferencesUtil.isEmpty(userOid)) {
-            // Lookup the System's (AndStatus) id from the Originated system's id
-            userId = MyQuery.oidToId(OidEnum.USER_OID, originId, userOid);
+            userId = userOidToId(originId, userOid);
+        }
+        if (isAlreadyStoredInThisPage(mbUser, userId)) {
+            return userId;
         }
         try {
             ContentValues values = new ContentValues();
@@ -431,6 +498,12 @@ public class DataInserter {
             } else if (values.size() > 0) {
                 execContext.getContext().getContentResolver().update(userUri, values, null, null);
             }
+            if (page != null && userId != 0) {
+                page.storedUserIds.add(userId);
+                if (!SharedPreferencesUtil.isEmpty(userOid)) {
+                    page.userIds.put(userOid, userId);
+                }
+            }
             if (mbUser.latestMessage != null) {
                 // This message doesn't have a sender!
                 insertOrUpdateMsgBySender(mbUser.latestMessage, lum, userId);
@@ -438,6 +511,7 @@ public class DataInserter {
             
         } catch (Exception e) {
             MyLog.e(this, "insertUser exception", e);
+            onItemFailed(e);
         }
         MyLog.v(this, "insertUser, userId=" + userId + "; oid=" + userOid);
         return userId;
@@ -449,4 +523,232 @@ public class DataInserter {
         lum.save();
         return rowId;
     }
+
+    /**
+     * Lookup the System's (AndStatus) id from the Originated system's id,
+     * using ids prefetched for the page if possible
+     */
+    private long userOidToId(long originId, String userOid) {
+        if (page != null && originId == execContext.getMyAccount().getOriginId()
+                && page.userIds.containsKey(userOid)) {
+            return page.userIds.get(userOid);
+        }
+        return MyQuery.oidToId(OidEnum.USER_OID, originId, userOid);
+    }
+
+    /**
+     * The same user usually comes many times in one page, and we don't need to store
+     * him again unless there is something, which is specific to this occurrence
+     */
+    private boolean isAlreadyStoredInThisPage(MbUser mbUser, long userId) {
+        return page != null && userId != 0 && page.storedUserIds.contains(userId)
+                && mbUser.actor == null
+                && mbUser.followedByActor == TriState.UNKNOWN
+                && mbUser.latestMessage == null;
+    }
+
+    /**
+     * Store the whole page of the timeline at once: ids of all messages and users of the page
+     * are looked up by several queries for the page instead of several queries per message, 
+     * each user is stored only once, and everything is written in one database transaction.
+     * <p>
+     * If an item of the page fails, the transaction is rolled back, because SQLite would roll back
+     * the whole transaction anyway, if the failure was in a nested one. Then the items of the page
+     * are stored one by one, so other items are not lost.
+     * Observers of messages are notified, when the changes are committed
+     */
+    public void insertOrUpdateTimelineItems(List<MbTimelineItem> items, LatestUserMessages lum) {
+        PhaseTimer.start(PhaseTimer.Phase.DB_WRITE);
+        try {
+            insertOrUpdateTimelineItemsTimed(items, lum);
+        } finally {
+            PhaseTimer.stop(PhaseTimer.Phase.DB_WRITE);
+        }
+    }
+
+    private void insertOrUpdateTimelineItemsTimed(List<MbTimelineItem> items, LatestUserMessages lum) {
+        MyDatabase myDatabase = MyContextHolder.get().getDatabase();
+        if (myDatabase == null || items.isEmpty()) {
+            insertOrUpdateTimelineItemsOneByOne(items, lum);
+            return;
+        }
+        SQLiteDatabase db = myDatabase.getWritableDatabase();
+        // Ids of rows, which may be rolled back, are not passed to the caller's lum until the commit
+        LatestUserMessages pageLum = new LatestUserMessages();
+        Exception failure = null;
+        db.beginTransaction();
+        boolean success = false;
+        try {
+            page = prefetchPage(db, items);
+            insertOrUpdateTimelineItemsOneByOne(items, pageLum);
+            failure = page.failure;
+            if (failure == null) {
+                db.setTransactionSuccessful();
+                success = true;
+            }
+        } finally {
+            db.endTransaction();
+            page = null;
+            if (!success) {
+                // Rows inserted during the transaction were rolled back
+                OidCache.forget();
+            }
+        }
+        if (success) {
+            for (UserMsg userMsg : pageLum.getUserMessages()) {
+                lum.onNewUserMsg(userMsg);
+            }
+        } else {
+            MyLog.i(this, "The page of " + items.size() + " items was rolled back, storing them one by one", failure);
+            insertOrUpdateTimelineItemsOneByOne(items, lum);
+        }
+        execContext.getContext().getContentResolver().notifyChange(MatchedUri.MSG_TABLE_URI, null);
+    }
+
+    /**
+     * Stores timeline items as they are parsed, so the whole response is not collected first.
+     * The items are stored in pages of up to {@link #BATCH_SIZE} items (see {@link #insertOrUpdateTimelineItems(List, LatestUserMessages)}),
+     * and no transaction is open, while the next items are being read from the network.
+     * {@link Batch#flush()} stores the rest
+     */
+    public Batch newBatch(LatestUserMessages lum) {
+        return new Batch(lum);
+    }
+
+    static final int BATCH_SIZE = 20;
+
+    public final class Batch implements TimelineItemConsumer {
+        private final LatestUserMessages lum;
+        private final List<MbTimelineItem> items = new ArrayList<>();
+
+        private Batch(LatestUserMessages lum) {
+            this.lum = lum;
+        }
+
+        @Override
+        public void onItem(MbTimelineItem item) {
+            items.add(item);
+            if (items.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (!items.isEmpty()) {
+                insertOrUpdateTimelineItems(new ArrayList<>(items), lum);
+                items.clear();
+            }
+        }
+    }
+
+    private void onItemFailed(Exception e) {
+        if (page != null && page.failure == null) {
+            page.failure = e;
+        }
+    }
+
+    private void insertOrUpdateTimelineItemsOneByOne(List<MbTimelineItem> items, LatestUserMessages lum) {
+        for (MbTimelineItem item : items) {
+            switch (item.getType()) {
+                case MESSAGE:
+                    insertOrUpdateMsg(item.mbMessage, lum);
+                    break;
+                case USER:
+                    insertOrUpdateUser(item.mbUser, lum);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private PageData prefetchPage(SQLiteDatabase db, List<MbTimelineItem> items) {
+        Set<String> msgOids = new HashSet<>();
+        Set<String> userOids = new HashSet<>();
+        for (MbTimelineItem item : items) {
+            switch (item.getType()) {
+                case MESSAGE:
+                    collectOids(item.mbMessage, msgOids, userOids);
+                    break;
+                case USER:
+                    collectOids(item.mbUser, msgOids, userOids);
+                    break;
+                default:
+                    break;
+            }
+        }
+        long originId = execContext.getMyAccount().getOriginId();
+        PageData pageData = new PageData();
+        // Oids, which are not found, are not in the database yet
+        for (String oid : userOids) {
+            pageData.userIds.put(oid, 0L);
+        }
+        pageData.userIds.putAll(MyQuery.oidsToIds(db, OidEnum.USER_OID, originId, userOids));
+        for (String oid : msgOids) {
+            pageData.messages.put(oid, new StoredMsg(0, DownloadStatus.UNKNOWN, 0));
+        }
+        Map<String, Long> msgIds = MyQuery.oidsToIds(db, OidEnum.MSG_OID, originId, msgOids);
+        if (!msgIds.isEmpty()) {
+            Map<Long, String> idToOid = new HashMap<>();
+            for (Map.Entry<String, Long> entry : msgIds.entrySet()) {
+                idToOid.put(entry.getValue(), entry.getKey());
+            }
+            String sql = "SELECT " + Msg._ID + ", " + Msg.MSG_STATUS + ", " + Msg.SENT_DATE
+                    + " FROM " + Msg.TABLE_NAME
+                    + " WHERE " + Msg._ID + " IN (" + TextUtils.join(",", idToOid.keySet()) + ")";
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery(sql, null);
+                while (cursor.moveToNext()) {
+                    long msgId = cursor.getLong(0);
+                    pageData.messages.put(idToOid.get(msgId), new StoredMsg(msgId,
+                            DownloadStatus.load(cursor.getLong(1)), cursor.getLong(2)));
+                }
+            } finally {
+                DbUtils.closeSilently(cursor);
+            }
+        }
+        MyLog.v(this, "prefetchPage; " + items.size() + " items, messages found:" + msgIds.size()
+                + " of " + msgOids.size() + ", users found:" + countNotZero(pageData.userIds) + " of " + userOids.size());
+        return pageData;
+    }
+
+    private void collectOids(MbMessage message, Set<String> msgOids, Set<String> userOids) {
+        if (message == null || message.isEmpty() || !isOfThisOrigin(message.originId)) {
+            return;
+        }
+        if (!TextUtils.isEmpty(message.oid)) {
+            msgOids.add(message.oid);
+        }
+        collectOids(message.sender, msgOids, userOids);
+        collectOids(message.actor, msgOids, userOids);
+        collectOids(message.recipient, msgOids, userOids);
+        collectOids(message.rebloggedMessage, msgOids, userOids);
+        collectOids(message.inReplyToMessage, msgOids, userOids);
+    }
+
+    private void collectOids(MbUser user, Set<String> msgOids, Set<String> userOids) {
+        if (user == null || user.isEmpty() || !isOfThisOrigin(user.originId)) {
+            return;
+        }
+        if (!TextUtils.isEmpty(user.oid)) {
+            userOids.add(user.oid);
+        }
+        collectOids(user.actor, msgOids, userOids);
+        collectOids(user.latestMessage, msgOids, userOids);
+    }
+
+    private boolean isOfThisOrigin(long originId) {
+        return originId == 0 || originId == execContext.getMyAccount().getOriginId();
+    }
+
+    private static int countNotZero(Map<String, Long> ids) {
+        int count = 0;
+        for (Long id : ids.values()) {
+            if (id != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
 }
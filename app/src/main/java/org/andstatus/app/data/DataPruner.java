@@ -16,10 +16,10 @@
 
 package org.andstatus.app.data;
 
-import android.content.ContentResolver;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
 
 import org.andstatus.app.context.MyContext;
 import org.andstatus.app.context.MyContextHolder;
@@ -28,9 +28,9 @@ import org.andstatus.app.data.MyDatabase.Download;
 import org.andstatus.app.data.MyDatabase.FollowingUser;
 import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.MsgOfUser;
+import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.util.MyLog;
-import org.andstatus.app.util.SelectionAndArgs;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -42,21 +42,45 @@ import org.andstatus.app.util.*;
 /**
  * Clean database from outdated information
  * old Messages, log files...
+ * <p>
+ * Messages are deleted in chunks, oldest first, each chunk together with its attachments
+ * in a separate short transaction, so the database is not locked for long.
+ * While the application is in the foreground, pruning pauses between chunks, so it doesn't compete
+ * with the UI for the database. Observers of messages are notified once, at the end.
+ * As the date of pruning is set only after all chunks were deleted, the next run continues
+ * where an interrupted one stopped
  */
 public class DataPruner {
     private MyContext mMyContext;
-    private ContentResolver mContentResolver;
     private int mDeleted = 0;
+    private int mDeletedDownloads = 0;
+    private long mBytesReclaimed = 0;
     static final long MAX_DAYS_LOGS_TO_KEEP = 10;
     static final long PRUNE_MIN_PERIOD_DAYS = 1;	
+    static final int CHUNK_SIZE = 200;
+    static final long FOREGROUND_PAUSE_MILLIS = 2000;
+
+    // Don't delete messages, which are favorited by any user
+    private static final String SQL_NOT_FAVORITED_MESSAGE = "NOT EXISTS ("
+            + "SELECT * FROM " + MsgOfUser.TABLE_NAME + " AS gnf WHERE "
+            + Msg.TABLE_NAME + "." + Msg._ID + "=gnf." + MyDatabase.MsgOfUser.MSG_ID
+            + " AND gnf." + MyDatabase.MsgOfUser.FAVORITED + "=1" 
+            + ")";
+    private static final String SQL_NOT_LATEST_MESSAGE_BY_FOLLOWED_USER = Msg.TABLE_NAME + "." + Msg._ID + " NOT IN("
+            + "SELECT " + User.USER_MSG_ID 
+            + " FROM " + User.TABLE_NAME + " AS userf"
+            + " INNER JOIN " + FollowingUser.TABLE_NAME 
+            + " ON" 
+            + " userf." + User._ID + "=" + FollowingUser.TABLE_NAME + "." + FollowingUser.FOLLOWING_USER_ID
+            + " AND " + FollowingUser.TABLE_NAME + "." + FollowingUser.USER_FOLLOWED + "=1"
+            + ")";
 
     public DataPruner(MyContext myContext) {
         mMyContext = myContext;
-        mContentResolver = myContext.context().getContentResolver();
     }
 
     /**
-     * @return true if done successfully, false if skipped or an error
+     * @return true if done successfully, false if skipped, interrupted or an error
      */
     public boolean prune() {
         final String method = "prune";
@@ -67,123 +91,225 @@ public class DataPruner {
         }
 
         mDeleted = 0;
-        int nDeletedTime = 0;
+        mDeletedDownloads = 0;
+        mBytesReclaimed = 0;
         // We're using global preferences here
         SharedPreferences sp = MyPreferences
                 .getDefaultSharedPreferences();
-
-        // Don't delete messages, which are favorited by any user
-        String sqlNotFavoritedMessage = "NOT EXISTS ("
-                + "SELECT * FROM " + MsgOfUser.TABLE_NAME + " AS gnf WHERE "
-                + Msg.TABLE_NAME + "." + Msg._ID + "=gnf." + MyDatabase.MsgOfUser.MSG_ID
-                + " AND gnf." + MyDatabase.MsgOfUser.FAVORITED + "=1" 
-                + ")";
-        String sqlNotLatestMessageByFollowedUser = Msg.TABLE_NAME + "." + Msg._ID + " NOT IN("
-                + "SELECT " + User.USER_MSG_ID 
-                + " FROM " + User.TABLE_NAME + " AS userf"
-                + " INNER JOIN " + FollowingUser.TABLE_NAME 
-                + " ON" 
-                + " userf." + User._ID + "=" + FollowingUser.TABLE_NAME + "." + FollowingUser.FOLLOWING_USER_ID
-                + " AND " + FollowingUser.TABLE_NAME + "." + FollowingUser.USER_FOLLOWED + "=1"
-                + ")";
-
         int maxDays = Integer.parseInt(sp.getString(MyPreferences.KEY_HISTORY_TIME, "3"));
-        long latestTimestamp = 0;
-
-        int nTweets = 0;
-        int nToDeleteSize = 0;
-        int nDeletedSize = 0;
         int maxSize = Integer.parseInt(sp.getString(MyPreferences.KEY_HISTORY_SIZE, "2000"));
+        long latestTimestamp = 0;
         long latestTimestampSize = 0;
-        Cursor cursor = null;
         try {
+            SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
             if (maxDays > 0) {
                 latestTimestamp = System.currentTimeMillis() - java.util.concurrent.TimeUnit.DAYS.toMillis(maxDays);
-                SelectionAndArgs sa = new SelectionAndArgs();
-                sa.addSelection(Msg.TABLE_NAME + "." + MyDatabase.Msg.INS_DATE + " <  ?", 
-                        new String[] {String.valueOf(latestTimestamp)});
-                sa.addSelection(sqlNotFavoritedMessage);
-                sa.addSelection(sqlNotLatestMessageByFollowedUser);
-                nDeletedTime = mContentResolver.delete(MatchedUri.MSG_CONTENT_URI, sa.selection, sa.selectionArgs);
             }
-
             if (maxSize > 0) {
-                nDeletedSize = 0;
-                cursor = mContentResolver.query(MatchedUri.MSG_CONTENT_COUNT_URI, null, null, null, null);
-                if (cursor.moveToFirst()) {
-                    // Count is in the first column
-                    nTweets = cursor.getInt(0);
-                    nToDeleteSize = nTweets - maxSize;
-                }
-                cursor.close();
-                if (nToDeleteSize > 0) {
-                    // Find INS_DATE of the most recent tweet to delete
-                    cursor = mContentResolver.query(MatchedUri.MSG_CONTENT_URI, new String[] {
-                            MyDatabase.Msg.INS_DATE
-                    }, null, null, MyDatabase.Msg.INS_DATE + " ASC LIMIT 0," + nToDeleteSize);
-                    if (cursor.moveToLast()) {
-                        latestTimestampSize = cursor.getLong(0);
-                    }
-                    cursor.close();
-                    if (latestTimestampSize > 0) {
-                        SelectionAndArgs sa = new SelectionAndArgs();
-                        sa.addSelection(Msg.TABLE_NAME + "." + MyDatabase.Msg.INS_DATE + " <=  ?", 
-                                new String[] {String.valueOf(latestTimestampSize)});
-                        sa.addSelection(sqlNotFavoritedMessage);
-                        sa.addSelection(sqlNotLatestMessageByFollowedUser);
-                        nDeletedSize = mContentResolver.delete(MatchedUri.MSG_CONTENT_URI, sa.selection,
-                                sa.selectionArgs);
-                    }
-                }
+                latestTimestampSize = insDateOfTheNewestToDelete(db, maxSize);
+            }
+            // Both limits are applied at once: we delete messages, which were inserted before this moment
+            long insDateBefore = Math.max(latestTimestamp, latestTimestampSize + 1);
+            if (insDateBefore > 1) {
+                pruned = pruneMessages(db, insDateBefore);
+            } else {
+                pruned = true;
             }
-            pruned = true;
         } catch (Exception e) {
             MyLog.i(this, method + " failed", e);
-        } finally {
-            DbUtils.closeSilently(cursor);
         }
-        mDeleted = nDeletedTime + nDeletedSize;
-        if (mDeleted > 0) {
-            pruneAttachments();
+        mDeletedDownloads += pruneAttachments();
+        mBytesReclaimed += ImageCache.trimThumbnails(ImageCache.MAX_THUMBNAILS_BYTES);
+        mBytesReclaimed += pruneLogs(MAX_DAYS_LOGS_TO_KEEP);
+        if (pruned) {
+            setDataPrunedNow();
+        }
+        if (mDeleted > 0 && mMyContext.context() != null) {
+            mMyContext.context().getContentResolver().notifyChange(MatchedUri.MSG_TABLE_URI, null);
         }
-        pruneLogs(MAX_DAYS_LOGS_TO_KEEP);
-        setDataPrunedNow();
+        MyLog.i(this, method + " " + (pruned ? "succeeded" : "stopped") + "; deleted " + mDeleted + " messages, "
+                + mDeletedDownloads + " downloads, reclaimed " + mBytesReclaimed + " bytes");
         if (MyLog.isVerboseEnabled()) {
-            MyLog.v(this,
-                    method + " " + (pruned ? "succeded" : "failed") + "; History time=" + maxDays + " days; deleted " + nDeletedTime
-                    + " , before " + new Date(latestTimestamp).toString());
-            MyLog.v(this, method + "; History size=" + maxSize + " messages; deleted "
-                    + nDeletedSize + " of " + nTweets + " messages, before " + new Date(latestTimestampSize).toString());
+            MyLog.v(this, method + "; History time=" + maxDays + " days, before " + new Date(latestTimestamp).toString()
+                    + "; History size=" + maxSize + " messages, before " + new Date(latestTimestampSize).toString());
+            MyLog.v(this, method + "; " + OidCache.statsToString());
         }
         return pruned;
     }
 
+    /**
+     * The scan by the index on {@link Msg#INS_DATE} stops after maxSize rows, so the messages are not counted
+     * @return 0 if there are not more than maxSize messages
+     */
+    private long insDateOfTheNewestToDelete(SQLiteDatabase db, int maxSize) {
+        String sql = "SELECT " + Msg.INS_DATE + " FROM " + Msg.TABLE_NAME
+                + " ORDER BY " + Msg.INS_DATE + " DESC LIMIT 1 OFFSET " + maxSize;
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private boolean pruneMessages(SQLiteDatabase db, long insDateBefore) {
+        String sql = "SELECT " + Msg._ID + " FROM " + Msg.TABLE_NAME
+                + " WHERE " + Msg.INS_DATE + "<" + insDateBefore
+                + " AND " + SQL_NOT_FAVORITED_MESSAGE
+                + " AND " + SQL_NOT_LATEST_MESSAGE_BY_FOLLOWED_USER
+                + " ORDER BY " + Msg.INS_DATE + " ASC LIMIT " + CHUNK_SIZE;
+        while (true) {
+            if (!pauseIfInForeground()) {
+                MyLog.v(this, "pruneMessages interrupted after " + mDeleted + " messages");
+                return false;
+            }
+            List<Long> msgIds = selectIds(db, sql);
+            if (msgIds.isEmpty()) {
+                return true;
+            }
+            int deleted = deleteMessages(db, msgIds);
+            if (deleted == 0) {
+                MyLog.v(this, "pruneMessages couldn't delete " + msgIds.size() + " messages");
+                return false;
+            }
+            mDeleted += deleted;
+            if (msgIds.size() < CHUNK_SIZE) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private boolean pauseIfInForeground() {
+        if (mMyContext.isInForeground()) {
+            try {
+                Thread.sleep(FOREGROUND_PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    private static List<Long> selectIds(SQLiteDatabase db, String sql) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return ids;
+    }
+
+    /**
+     * Messages, their rows in {@link MsgOfUser} and their downloads are deleted in one transaction,
+     * files are deleted after it
+     * @return number of messages deleted
+     */
+    private int deleteMessages(SQLiteDatabase db, List<Long> msgIds) {
+        String inMsgIds = " IN (" + DownloadData.toSqlList(msgIds) + ")";
+        List<String> filenames = new ArrayList<String>();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            mDeletedDownloads += deleteDownloads(db, Download.MSG_ID + inMsgIds, filenames);
+            db.delete(MsgOfUser.TABLE_NAME, MsgOfUser.MSG_ID + inMsgIds, null);
+            count = db.delete(Msg.TABLE_NAME, Msg._ID + inMsgIds, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        OidCache oidCache = OidCache.of(OidEnum.MSG_OID);
+        for (long msgId : msgIds) {
+            oidCache.removeId(msgId);
+        }
+        deleteFiles(filenames);
+        return count;
+    }
+
+    /**
+     * @param filenames names of files of the deleted rows are added here
+     * @return number of rows deleted
+     */
+    private static int deleteDownloads(SQLiteDatabase db, String where, List<String> filenames) {
+        Cursor cursor = null;
+        try {
+            cursor = db.query(Download.TABLE_NAME, new String[]{Download.FILE_NAME, Download._ID,
+                    Download.PARTIAL_VALIDATOR}, where, null, null, null, null);
+            while (cursor.moveToNext()) {
+                String filename = cursor.getString(0);
+                if (!TextUtils.isEmpty(filename)) {
+                    filenames.add(filename);
+                }
+                if (!TextUtils.isEmpty(cursor.getString(2))) {
+                    filenames.add(DownloadData.partialFilenameOf(cursor.getLong(1)));
+                }
+                filenames.add(UploadFile.filenameOf(cursor.getLong(1)));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return db.delete(Download.TABLE_NAME, where, null);
+    }
+
+    private void deleteFiles(List<String> filenames) {
+        for (String filename : filenames) {
+            DownloadFile file = new DownloadFile(filename);
+            long size = file.getSize();
+            if (file.delete()) {
+                mBytesReclaimed += size;
+            }
+        }
+    }
+
+    /**
+     * Delete downloads, which were left after their messages
+     * @return number of download rows deleted
+     */
     long pruneAttachments() {
         final String method = "pruneAttachments";
-        String sql = "SELECT DISTINCT " + Download.MSG_ID + " FROM " + Download.TABLE_NAME
+        String sql = "SELECT " + Download._ID + " FROM " + Download.TABLE_NAME
                 + " WHERE " + Download.MSG_ID + " NOT NULL"
                 + " AND NOT EXISTS (" 
                 + "SELECT * FROM " + Msg.TABLE_NAME 
                 + " WHERE " + Msg.TABLE_NAME + "." + Msg._ID + "=" + Download.MSG_ID 
-                + ")";
+                + ") LIMIT " + CHUNK_SIZE;
         SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
         long nDeleted = 0;
-        List<Long> list = new ArrayList<Long>();
-        Cursor cursor = null;
         try {
-            cursor = db.rawQuery(sql, null);
-            while (cursor.moveToNext()) {
-                list.add(cursor.getLong(0));
-            }
-        } finally {
-            DbUtils.closeSilently(cursor);
-        }
-        for (Long msgId : list) {
-            DownloadData.deleteAllOfThisMsg(msgId);
-            nDeleted++;
+            List<Long> downloadIds;
+            do {
+                if (!pauseIfInForeground()) {
+                    break;
+                }
+                downloadIds = selectIds(db, sql);
+                if (downloadIds.isEmpty()) {
+                    break;
+                }
+                List<String> filenames = new ArrayList<String>();
+                int deleted = deleteDownloads(db, Download._ID + " IN (" + DownloadData.toSqlList(downloadIds) + ")",
+                        filenames);
+                deleteFiles(filenames);
+                if (deleted == 0) {
+                    break;
+                }
+                nDeleted += deleted;
+            } while (downloadIds.size() == CHUNK_SIZE);
+        } catch (Exception e) {
+            MyLog.i(this, method + " failed", e);
         }
         if (nDeleted > 0) {
-            MyLog.v(this, method + "; Attachments deleted for " + nDeleted + " messages");
+            MyLog.v(this, method + "; Deleted " + nDeleted + " downloads");
         }
         return nDeleted;
     }
@@ -198,20 +324,26 @@ public class DataPruner {
                 PRUNE_MIN_PERIOD_DAYS * RelativeTime.SECONDS_IN_A_DAY);
     }
 
+    /**
+     * @return number of bytes in the deleted files
+     */
     long pruneLogs(long maxDaysToKeep) {
         final String method = "pruneLogs";
         long latestTimestamp = System.currentTimeMillis() 
                 - java.util.concurrent.TimeUnit.DAYS.toMillis(maxDaysToKeep);
         long count = 0;
+        long bytes = 0;
         File dir = MyLog.getLogDir(true);
         if (dir == null) {
-            return count;
+            return bytes;
         }
         for (String filename : dir.list()) {
             File file = new File(dir, filename);
             if (file.isFile() && (file.lastModified() < latestTimestamp)) {
+                long size = file.length();
                 if (file.delete()) {
                     count++;
+                    bytes += size;
                     MyLog.v(this, method + "; deleted " + file.getName());
                 } else {
                     MyLog.v(this, method + " couldn't delete: " + file.getAbsolutePath());
@@ -223,9 +355,9 @@ public class DataPruner {
         if (MyLog.isVerboseEnabled()) {
             MyLog.v(this,
                     method + "; deleted " + count
-                    + " files, before " + new Date(latestTimestamp).toString());
+                    + " files, " + bytes + " bytes, before " + new Date(latestTimestamp).toString());
         }
-        return count;
+        return bytes;
     }
 
     /**
@@ -234,4 +366,18 @@ public class DataPruner {
     public int getDeleted() {
         return mDeleted;
     }
+
+    /**
+     * @return number of rows of {@link Download} deleted, both with their messages and left without them
+     */
+    public int getDeletedDownloads() {
+        return mDeletedDownloads;
+    }
+
+    /**
+     * @return size of the deleted files of downloads and of logs
+     */
+    public long getBytesReclaimed() {
+        return mBytesReclaimed;
+    }
 }
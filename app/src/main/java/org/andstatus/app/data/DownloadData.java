@@ -37,6 +37,7 @@ public class DownloadData {
 
     private long loadTimeNew = 0;
     private DownloadFile fileNew = DownloadFile.EMPTY;
+    private String partialValidator = "";
 
     public static DownloadData fromId(long downloadId) {
         DownloadData dd = new DownloadData();
@@ -90,7 +91,8 @@ public class DownloadData {
     private void loadOtherFields() {
         if (checkHardErrorBeforeLoad()) return;
         String sql = "SELECT " + Download.DOWNLOAD_STATUS + ", "
-                + Download.FILE_NAME
+                + Download.FILE_NAME + ", "
+                + Download.PARTIAL_VALIDATOR
                 + (downloadType == DownloadType.UNKNOWN ? ", " + Download.DOWNLOAD_TYPE : "")
                 + (userId == 0 ? ", " + Download.USER_ID : "")
                 + (msgId == 0 ? ", " + Download.MSG_ID : "")
@@ -108,6 +110,10 @@ public class DownloadData {
             if (cursor.moveToNext()) {
                 status = DownloadStatus.load(cursor.getLong(cursor.getColumnIndex(Download.DOWNLOAD_STATUS)));
                 fileStored = new DownloadFile(cursor.getString(cursor.getColumnIndex(Download.FILE_NAME)));
+                partialValidator = cursor.getString(cursor.getColumnIndex(Download.PARTIAL_VALIDATOR));
+                if (partialValidator == null) {
+                    partialValidator = "";
+                }
                 if (downloadType == DownloadType.UNKNOWN) {
                     downloadType = DownloadType.load(cursor.getLong(cursor.getColumnIndex(Download.DOWNLOAD_TYPE)));
                 }
@@ -230,6 +236,7 @@ public class DownloadData {
        values.put(Download.URI, uri.toString());
        values.put(Download.DOWNLOAD_STATUS, status.save());
        values.put(Download.FILE_NAME, fileNew.getFilename());
+       values.put(Download.PARTIAL_VALIDATOR, partialValidator);
 
        downloadId = DbUtils.addRowWithRetry(Download.TABLE_NAME, values, 3);
        if (downloadId == -1) {
@@ -254,6 +261,7 @@ public class DownloadData {
     private void update() {
         ContentValues values = new ContentValues();
         values.put(Download.DOWNLOAD_STATUS, status.save());
+        values.put(Download.PARTIAL_VALIDATOR, partialValidator);
         boolean changeFile = !isError() && fileNew.exists() && fileStored != fileNew;
         if (changeFile) {
             values.put(Download.FILE_NAME, fileNew.getFilename());
@@ -314,7 +322,8 @@ public class DownloadData {
 
     private static void deleteSelected(final String method, String where) {
         String sql = "SELECT " + Download._ID + ", "
-                + Download.FILE_NAME
+                + Download.FILE_NAME + ", "
+                + Download.PARTIAL_VALIDATOR
                 + " FROM " + Download.TABLE_NAME 
                 + " WHERE " + where;
         int rowsDeleted = 0;
@@ -327,6 +336,10 @@ public class DownloadData {
                 while (cursor.moveToNext()) {
                     long rowIdOld = cursor.getLong(0);
                     new DownloadFile(cursor.getString(1)).delete();
+                    if (!TextUtils.isEmpty(cursor.getString(2))) {
+                        new DownloadFile(partialFilenameOf(rowIdOld)).delete();
+                    }
+                    new DownloadFile(UploadFile.filenameOf(rowIdOld)).delete();
                     rowsDeleted += db.delete(Download.TABLE_NAME, Download._ID + "=" + Long.toString(rowIdOld), null);
                 }
                 done = true;
@@ -397,6 +410,29 @@ public class DownloadData {
         return fileNew.getFilename();
     }
 
+    /**
+     * Temporary file of the download. It is named after the row, so a failed download may be resumed
+     */
+    public String getPartialFilename() {
+        return downloadId == 0 ? "temp_" + fileNew.getFilename() : partialFilenameOf(downloadId);
+    }
+
+    static String partialFilenameOf(long downloadId) {
+        return "temp_" + Long.toString(downloadId);
+    }
+
+    /**
+     * @return Validator of the content of the partial file, empty if the download cannot be resumed
+     */
+    public String getPartialValidator() {
+        return partialValidator;
+    }
+
+    /** It is saved with other fields, see {@link #saveToDatabase()} */
+    public void setPartialValidator(String partialValidator) {
+        this.partialValidator = partialValidator == null ? "" : partialValidator;
+    }
+
     public Uri getUri() {
         return uri;
     }
@@ -67,6 +67,7 @@ public class DownloadFile {
             deleted = file.delete();
             if (deleted) {
                 MyLog.v(this, "Deleted file " + file.toString());
+                ImageCache.onFileDeleted(filename);
             } else {
                 MyLog.e(this, "Couldn't delete file " + file.toString());
             }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.util.LruCache;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.util.MyLog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two tier cache of decoded images of downloaded files: bitmaps in memory, sized by bytes,
+ * and pre-scaled thumbnails on disk, so a large image is decoded from its original file only once.
+ * Each download row has its own file name, so bitmaps are keyed by the file name and the bounds.
+ * Thumbnails are deleted together with their original file, and the least recently used of them
+ * are trimmed, when they take more than {@link #MAX_THUMBNAILS_BYTES}
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class ImageCache {
+    private static final String TAG = ImageCache.class.getSimpleName();
+    static final String THUMBNAILS_DIRECTORY = "thumbnails";
+    static final int JPEG_QUALITY = 85;
+    static final long MAX_THUMBNAILS_BYTES = 32L * 1024 * 1024;
+
+    private static final Object THUMBNAILS_LOCK = new Object();
+    /** Approximate size of the thumbnails on disk, negative if not counted yet */
+    private static final AtomicLong thumbnailsBytes = new AtomicLong(-1);
+
+    private static final LruCache<String, Bitmap> MEMORY = new LruCache<String, Bitmap>(maxMemoryBytes()) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+
+    private ImageCache() {
+        // Empty
+    }
+
+    private static int maxMemoryBytes() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+    }
+
+    public static void forget() {
+        MEMORY.evictAll();
+    }
+
+    static String toKey(DownloadFile downloadFile, Point bounds) {
+        return downloadFile.getFilename() + ":" + bounds.x + "x" + bounds.y;
+    }
+
+    static Bitmap getFromMemory(String key) {
+        return MEMORY.get(key);
+    }
+
+    /**
+     * Load the bitmap from memory, from the thumbnail or from the original file. Don't call this on the UI thread.
+     * @param bounds the bitmap should fit into. The original is scaled down to exactly these bounds
+     *               if exact is true, otherwise it is only subsampled by a power of two
+     * @return null if the file couldn't be decoded
+     */
+    static Bitmap load(Object objTag, DownloadFile downloadFile, Point bounds, boolean exact) {
+        String key = toKey(downloadFile, bounds);
+        Bitmap bitmap = MEMORY.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        File original = downloadFile.getFile();
+        File thumbnail = getThumbnailFile(key);
+        if (thumbnail != null && thumbnail.exists() && thumbnail.lastModified() >= original.lastModified()) {
+            bitmap = BitmapFactory.decodeFile(thumbnail.getAbsolutePath());
+            if (bitmap != null) {
+                // The modification time is the time of the last use for trimming
+                thumbnail.setLastModified(System.currentTimeMillis());
+            }
+        }
+        if (bitmap == null) {
+            bitmap = decodeOriginal(objTag, original, bounds, exact, thumbnail);
+        }
+        if (bitmap != null) {
+            MEMORY.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decodeOriginal(Object objTag, File original, Point bounds, boolean exact, File thumbnail) {
+        String path = original.getAbsolutePath();
+        Point imageSize = getImageSize(path);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = exact ? calculateInSampleSize(imageSize, bounds) : fitInSampleSize(imageSize, bounds);
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (MyLog.isVerboseEnabled()) {
+            MyLog.v(objTag, (bitmap == null ? "Failed to load bitmap" : "Loaded bitmap " + bitmap.getWidth()
+                    + "x" + bitmap.getHeight() + " sampled by " + options.inSampleSize) + " '" + path + "'");
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        if (exact && (bitmap.getWidth() > bounds.x || bitmap.getHeight() > bounds.y)) {
+            double scale = Math.min((double) bounds.x / bitmap.getWidth(), (double) bounds.y / bitmap.getHeight());
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, (int) Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, (int) Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        if (thumbnail != null && (bitmap.getWidth() < imageSize.x || bitmap.getHeight() < imageSize.y)) {
+            saveThumbnail(bitmap, thumbnail);
+        }
+        return bitmap;
+    }
+
+    static Point getImageSize(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        return new Point(options.outWidth, options.outHeight);
+    }
+
+    /** Smallest power of two, which makes the decoded image fit into the bounds */
+    static int fitInSampleSize(Point imageSize, Point bounds) {
+        int inSampleSize = 1;
+        if (bounds.x > 0 && bounds.y > 0) {
+            while (imageSize.x / inSampleSize > bounds.x || imageSize.y / inSampleSize > bounds.y) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    /** Largest power of two, which keeps the decoded image not smaller than the bounds */
+    static int calculateInSampleSize(Point imageSize, Point bounds) {
+        int inSampleSize = 1;
+        if (bounds.x > 0 && bounds.y > 0) {
+            while (imageSize.x / (inSampleSize * 2) >= bounds.x && imageSize.y / (inSampleSize * 2) >= bounds.y) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    private static File getThumbnailFile(String key) {
+        File dir = getThumbnailsDir();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, thumbnailFilenameOf(key));
+    }
+
+    private static String thumbnailFilenameOf(String key) {
+        return key.replace(':', '_');
+    }
+
+    private static File getThumbnailsDir() {
+        Context context = MyContextHolder.get().context();
+        if (context == null) {
+            return null;
+        }
+        File dir = new File(context.getCacheDir(), THUMBNAILS_DIRECTORY);
+        if (!dir.exists() && !dir.mkdirs()) {
+            return null;
+        }
+        return dir;
+    }
+
+    /** Forget the images of the downloaded file, which was deleted */
+    static void onFileDeleted(String filename) {
+        String keyPrefix = filename + ":";
+        for (String key : MEMORY.snapshot().keySet()) {
+            if (key.startsWith(keyPrefix)) {
+                MEMORY.remove(key);
+            }
+        }
+        File dir = getThumbnailsDir();
+        if (dir == null) {
+            return;
+        }
+        String thumbnailPrefix = thumbnailFilenameOf(keyPrefix);
+        synchronized (THUMBNAILS_LOCK) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.getName().startsWith(thumbnailPrefix)) {
+                    long size = file.length();
+                    if (file.delete() && thumbnailsBytes.get() >= 0) {
+                        thumbnailsBytes.addAndGet(-size);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails, if they take more than maxBytes,
+     * leaving a quarter of maxBytes free for new ones
+     * @return bytes deleted
+     */
+    static long trimThumbnails(long maxBytes) {
+        File dir = getThumbnailsDir();
+        if (dir == null) {
+            return 0;
+        }
+        synchronized (THUMBNAILS_LOCK) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return 0;
+            }
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+            long deleted = 0;
+            if (total > maxBytes) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        long diff = lhs.lastModified() - rhs.lastModified();
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+                for (File file : files) {
+                    if (total - deleted <= maxBytes * 3 / 4) {
+                        break;
+                    }
+                    long size = file.length();
+                    if (file.delete()) {
+                        deleted += size;
+                    }
+                }
+                MyLog.v(TAG, "Trimmed thumbnails by " + deleted + " of " + total + " bytes");
+            }
+            thumbnailsBytes.set(total - deleted);
+            return deleted;
+        }
+    }
+
+    /** BitmapFactory detects the format by the content, so the file has no extension */
+    private static void saveThumbnail(Bitmap bitmap, File thumbnail) {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(thumbnail));
+            if (bitmap.hasAlpha()) {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        } catch (IOException e) {
+            MyLog.d(TAG, "Failed to save thumbnail " + thumbnail, e);
+            if (!thumbnail.delete()) {
+                MyLog.v(TAG, "Couldn't delete " + thumbnail);
+            }
+        } finally {
+            DbUtils.closeSilently(out);
+        }
+        if (thumbnailsBytes.get() < 0 || thumbnailsBytes.addAndGet(thumbnail.length()) > MAX_THUMBNAILS_BYTES) {
+            trimThumbnails(MAX_THUMBNAILS_BYTES);
+        }
+    }
+
+    public static String statsToString() {
+        return MyLog.formatKeyValue(TAG, "size:" + MEMORY.size() + ",max:" + MEMORY.maxSize()
+                + ",hits:" + MEMORY.hitCount() + ",misses:" + MEMORY.missCount()
+                + ",evictions:" + MEMORY.evictionCount());
+    }
+}
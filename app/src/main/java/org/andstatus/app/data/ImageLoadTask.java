@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.view.View;
+import android.widget.ImageView;
+
+import org.andstatus.app.R;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads an image for the {@link ImageView} off the UI thread through the {@link ImageCache}.
+ * The task is kept in the tag of the view, so the task is cancelled when the view
+ * is reused for another image, and a late result is not shown in the reused view
+ * @author yvolk@yurivolkov.com
+ */
+class ImageLoadTask extends AsyncTask<Void, Void, Bitmap> {
+    private static final int THREADS = 2;
+    private static final Executor EXECUTOR = Executors.newFixedThreadPool(THREADS);
+
+    private final WeakReference<ImageView> viewReference;
+    private final DownloadFile downloadFile;
+    private final Point bounds;
+    private final boolean exact;
+    private final String key;
+
+    private ImageLoadTask(ImageView view, DownloadFile downloadFile, Point bounds, boolean exact) {
+        viewReference = new WeakReference<>(view);
+        this.downloadFile = downloadFile;
+        this.bounds = bounds;
+        this.exact = exact;
+        key = ImageCache.toKey(downloadFile, bounds);
+    }
+
+    /**
+     * Should be called from the UI thread
+     * @param placeholder is shown while the image is loading, if null, the view is hidden
+     *                    until the image is loaded
+     */
+    static void load(ImageView view, DownloadFile downloadFile, Point bounds, boolean exact, Drawable placeholder) {
+        String key = ImageCache.toKey(downloadFile, bounds);
+        Bitmap bitmap = ImageCache.getFromMemory(key);
+        if (bitmap != null) {
+            cancel(view);
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        Object tag = view.getTag(R.id.image_load_task);
+        if (tag instanceof ImageLoadTask && ((ImageLoadTask) tag).key.equals(key)) {
+            return;
+        }
+        cancel(view);
+        if (placeholder == null) {
+            view.setImageDrawable(null);
+        } else {
+            view.setImageDrawable(placeholder);
+        }
+        ImageLoadTask task = new ImageLoadTask(view, downloadFile, bounds, exact);
+        view.setTag(R.id.image_load_task, task);
+        task.executeOnExecutor(EXECUTOR);
+    }
+
+    static void cancel(ImageView view) {
+        Object tag = view.getTag(R.id.image_load_task);
+        if (tag instanceof ImageLoadTask) {
+            ((ImageLoadTask) tag).cancel(false);
+        }
+        view.setTag(R.id.image_load_task, null);
+    }
+
+    @Override
+    protected Bitmap doInBackground(Void... params) {
+        if (isCancelled() || viewReference.get() == null) {
+            return null;
+        }
+        return ImageCache.load(this, downloadFile, bounds, exact);
+    }
+
+    @Override
+    protected void onPostExecute(Bitmap bitmap) {
+        ImageView view = viewReference.get();
+        if (view == null || view.getTag(R.id.image_load_task) != this) {
+            return;
+        }
+        view.setTag(R.id.image_load_task, null);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+        } else if (view.getDrawable() == null) {
+            view.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ImageLoadTask [" + key + "]";
+    }
+}
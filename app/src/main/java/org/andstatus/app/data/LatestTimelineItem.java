@@ -21,7 +21,6 @@ import android.provider.BaseColumns;
 import android.text.TextUtils;
 
 import org.andstatus.app.context.MyContextHolder;
-import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.net.social.TimelinePosition;
 import org.andstatus.app.util.MyLog;
@@ -88,6 +87,14 @@ public class LatestTimelineItem {
         }
     }
     
+    public TimelineType getTimelineType() {
+        return timelineType;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
     /**
      * @return Id of the last downloaded message from this timeline
      */
@@ -186,22 +193,4 @@ public class LatestTimelineItem {
             MyLog.e(this, "save: sql='" + sql + "'", e);
         }
     }
-    
-    /**
-     * @return true if it's time to auto update this timeline
-     */
-    public boolean isTimeToAutoUpdate() {
-        long frequencyMs = MyPreferences.getSyncFrequencyMs();
-        long passedMs = System.currentTimeMillis() - getTimelineDownloadedDate(); 
-        boolean blnOut = passedMs > frequencyMs;
-        
-        if (blnOut && MyLog.isVerboseEnabled()) {
-            MyLog.v(this, "It's time to auto update " 
-                    + timelineType 
-                    + forTheUser() + ". " 
-                    + java.util.concurrent.TimeUnit.MILLISECONDS.toMinutes(passedMs) 
-                    + " minutes passed.");
-        }
-        return blnOut;
     }
-}
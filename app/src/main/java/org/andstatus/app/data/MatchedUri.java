@@ -78,6 +78,8 @@ public enum MatchedUri {
     private static final String USER_SEGMENT = "user";
 
     private static final String CONTENT_URI_PREFIX = "content://" + AUTHORITY + "/";
+    /** Ancestor of Uris of all timelines and messages, for notifications of their changes */
+    public static final Uri MSG_TABLE_URI = Uri.parse(CONTENT_URI_PREFIX + Msg.TABLE_NAME);
     public static final Uri MSG_CONTENT_URI = Uri.parse(CONTENT_URI_PREFIX + Msg.TABLE_NAME + "/" + CONTENT_SEGMENT);
     public static final Uri MSG_CONTENT_COUNT_URI = Uri.parse(CONTENT_URI_PREFIX + Msg.TABLE_NAME + "/" + COUNT_SEGMENT);
 
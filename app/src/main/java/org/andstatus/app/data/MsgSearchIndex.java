@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.MsgSearch;
+import org.andstatus.app.data.MyDatabase.User;
+import org.andstatus.app.util.MyHtml;
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maintains the {@link MsgSearch} full text index and builds queries to it.
+ * The index is updated by {@link MyProvider} when a message is inserted or its body or users change,
+ * or when a user is renamed. Rows of deleted messages are removed by a trigger.
+ * <p>
+ * The "simple" tokenizer of SQLite folds ASCII letters only and doesn't break text of scripts
+ * without spaces (e.g. CJK) into words. So query terms with non-ASCII characters are searched
+ * as substrings of the indexed text, like the search did before the index, see {@link #toSelection(String)}
+ * @author yvolk@yurivolkov.com
+ */
+final class MsgSearchIndex {
+    private static final String TAG = MsgSearchIndex.class.getSimpleName();
+
+    private static final String MATCH_CONDITION = MsgSearch.TABLE_NAME + " MATCH ?";
+    private static final String SUBSTRING_CONDITION = "(" + MsgSearch.BODY + " LIKE ? OR "
+            + MsgSearch.USER_NAMES + " LIKE ?)";
+
+    private static final String SELECT_MESSAGES = "SELECT msg." + BaseColumns._ID
+            + ", msg." + Msg.BODY
+            + ", author." + User.USERNAME
+            + ", author." + User.WEBFINGER_ID
+            + ", sender." + User.USERNAME
+            + ", sender." + User.WEBFINGER_ID
+            + " FROM " + Msg.TABLE_NAME + " AS msg"
+            + " LEFT JOIN " + User.TABLE_NAME + " AS author ON author." + BaseColumns._ID + "=msg." + Msg.AUTHOR_ID
+            + " LEFT JOIN " + User.TABLE_NAME + " AS sender ON sender." + BaseColumns._ID + "=msg." + Msg.SENDER_ID;
+
+    private MsgSearchIndex() {
+        // Empty
+    }
+
+    static void onMsgChanged(SQLiteDatabase db, long msgId) {
+        if (msgId == 0) {
+            return;
+        }
+        db.delete(MsgSearch.TABLE_NAME, MsgSearch.DOCID + "=" + msgId, null);
+        reindex(db, "msg." + BaseColumns._ID + "=" + msgId);
+    }
+
+    /**
+     * Call this before the user is updated
+     * @return true if the values change the username or the WebFinger ID of the user, which are indexed
+     */
+    static boolean isUserRenamed(SQLiteDatabase db, long userId, ContentValues values) {
+        if (userId == 0 || !(values.containsKey(User.USERNAME) || values.containsKey(User.WEBFINGER_ID))) {
+            return false;
+        }
+        Cursor cursor = db.rawQuery("SELECT " + User.USERNAME + ", " + User.WEBFINGER_ID
+                + " FROM " + User.TABLE_NAME + " WHERE " + BaseColumns._ID + "=" + userId, null);
+        try {
+            return cursor.moveToFirst()
+                    && (isChanged(values, User.USERNAME, cursor.getString(0))
+                    || isChanged(values, User.WEBFINGER_ID, cursor.getString(1)));
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+    }
+
+    private static boolean isChanged(ContentValues values, String key, String oldValue) {
+        return values.containsKey(key) && !TextUtils.equals(values.getAsString(key), oldValue);
+    }
+
+    /** Index messages, which the user authored or sent, again */
+    static void onUserRenamed(SQLiteDatabase db, long userId) {
+        String where = "msg." + Msg.AUTHOR_ID + "=" + userId + " OR msg." + Msg.SENDER_ID + "=" + userId;
+        db.delete(MsgSearch.TABLE_NAME, MsgSearch.DOCID + " IN (SELECT msg." + BaseColumns._ID
+                + " FROM " + Msg.TABLE_NAME + " AS msg WHERE " + where + ")", null);
+        long count = reindex(db, where);
+        MyLog.v(TAG, "User " + userId + " renamed, indexed " + count + " messages");
+    }
+
+    private static long reindex(SQLiteDatabase db, String where) {
+        long count = 0;
+        Cursor cursor = db.rawQuery(SELECT_MESSAGES + " WHERE " + where, null);
+        try {
+            if (cursor.moveToFirst()) {
+                SQLiteStatement insert = compileInsert(db);
+                try {
+                    do {
+                        insertRow(insert, cursor);
+                        count++;
+                    } while (cursor.moveToNext());
+                } finally {
+                    insert.close();
+                }
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return count;
+    }
+
+    /**
+     * Index all messages again, e.g. after the table was created by a database upgrade
+     * @return number of messages indexed
+     */
+    static long rebuild(SQLiteDatabase db) {
+        db.delete(MsgSearch.TABLE_NAME, null, null);
+        long count = 0;
+        SQLiteStatement insert = compileInsert(db);
+        Cursor cursor = db.rawQuery(SELECT_MESSAGES, null);
+        try {
+            while (cursor.moveToNext()) {
+                insertRow(insert, cursor);
+                count++;
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+            insert.close();
+        }
+        MyLog.i(TAG, "Indexed " + count + " messages");
+        return count;
+    }
+
+    private static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + MsgSearch.TABLE_NAME + " ("
+                + MsgSearch.DOCID + ", " + MsgSearch.BODY + ", " + MsgSearch.USER_NAMES
+                + ") VALUES (?, ?, ?)");
+    }
+
+    private static void insertRow(SQLiteStatement insert, Cursor cursor) {
+        insert.clearBindings();
+        insert.bindLong(1, cursor.getLong(0));
+        insert.bindString(2, MyHtml.fromHtml(cursor.getString(1)));
+        insert.bindString(3, userNames(cursor));
+        insert.executeInsert();
+    }
+
+    private static String userNames(Cursor cursor) {
+        StringBuilder builder = new StringBuilder();
+        for (int index = 2; index < 6; index++) {
+            String name = cursor.getString(index);
+            if (!TextUtils.isEmpty(name) && builder.indexOf(name) < 0) {
+                if (builder.length() > 0) {
+                    builder.append(" ");
+                }
+                builder.append(name);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Selection of messages of the timeline, which contain all words of the search query.
+     * Its arguments are {@link #toSelectionArgs(String)}
+     * @return empty string if the query has no words, so there is nothing to search for
+     */
+    static String toSelection(String searchQuery) {
+        List<String> terms = splitToTerms(searchQuery);
+        if (terms.isEmpty()) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        if (!TextUtils.isEmpty(toMatchQuery(terms))) {
+            builder.append(MATCH_CONDITION);
+        }
+        for (String term : terms) {
+            if (!isAscii(term)) {
+                builder.append(builder.length() > 0 ? " AND " : "").append(SUBSTRING_CONDITION);
+            }
+        }
+        return ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID
+                + " IN (SELECT " + MsgSearch.DOCID + " FROM " + MsgSearch.TABLE_NAME
+                + " WHERE " + builder + ")";
+    }
+
+    static String[] toSelectionArgs(String searchQuery) {
+        List<String> terms = splitToTerms(searchQuery);
+        List<String> args = new ArrayList<>();
+        String matchQuery = toMatchQuery(terms);
+        if (!TextUtils.isEmpty(matchQuery)) {
+            args.add(matchQuery);
+        }
+        for (String term : terms) {
+            if (!isAscii(term)) {
+                args.add("%" + term + "%");
+                args.add("%" + term + "%");
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Each ASCII word of the search query becomes a prefix term, the terms are ANDed
+     * @return empty string if the query has no such words
+     */
+    static String toMatchQuery(String searchQuery) {
+        return toMatchQuery(splitToTerms(searchQuery));
+    }
+
+    private static String toMatchQuery(List<String> terms) {
+        StringBuilder builder = new StringBuilder();
+        for (String term : terms) {
+            if (isAscii(term)) {
+                if (builder.length() > 0) {
+                    builder.append(" ");
+                }
+                builder.append(term).append("*");
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Split the same way the "simple" tokenizer of SQLite does: at ASCII characters,
+     * which are not letters or digits. Only ASCII letters are folded to lower case, as the tokenizer does,
+     * so non-ASCII letters are searched as they are typed, like SQLite's LIKE does
+     */
+    private static List<String> splitToTerms(String searchQuery) {
+        List<String> terms = new ArrayList<>();
+        if (!TextUtils.isEmpty(searchQuery)) {
+            for (String term : foldAscii(searchQuery).split("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+")) {
+                if (!TextUtils.isEmpty(term)) {
+                    terms.add(term);
+                }
+            }
+        }
+        return terms;
+    }
+
+    private static String foldAscii(String text) {
+        char[] chars = text.toCharArray();
+        for (int index = 0; index < chars.length; index++) {
+            if (chars[index] >= 'A' && chars[index] <= 'Z') {
+                chars[index] = (char) (chars[index] + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean isAscii(String term) {
+        for (int index = 0; index < term.length(); index++) {
+            if (term.charAt(index) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Usernames of Authors of indexed messages, which start with the prefix
+     */
+    static List<String> suggestUserNames(SQLiteDatabase db, String prefix, int limit) {
+        List<String> names = new ArrayList<>();
+        List<String> terms = splitToTerms(prefix);
+        if (terms.size() != 1) {
+            return names;
+        }
+        String sql = "SELECT DISTINCT " + User.USERNAME + " FROM " + User.TABLE_NAME
+                + " WHERE " + BaseColumns._ID + " IN ("
+                + "SELECT msg." + Msg.AUTHOR_ID + " FROM " + Msg.TABLE_NAME + " AS msg"
+                + " INNER JOIN " + MsgSearch.TABLE_NAME + " ON " + MsgSearch.TABLE_NAME + "." + MsgSearch.DOCID
+                + "=msg." + BaseColumns._ID
+                + " WHERE " + MsgSearch.TABLE_NAME + "." + MsgSearch.USER_NAMES + " MATCH ?)"
+                + " AND " + User.USERNAME + " LIKE ?"
+                + " LIMIT " + limit;
+        Cursor cursor = db.rawQuery(sql, new String[] {terms.get(0) + "*", terms.get(0) + "%"});
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return names;
+    }
+}
@@ -19,6 +19,7 @@ package org.andstatus.app.data;
 import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.context.MyContextState;
 import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.net.http.HttpValidators;
 import org.andstatus.app.net.http.SslModeEnum;
 import org.andstatus.app.net.social.Connection;
 import org.andstatus.app.origin.OriginType;
@@ -28,7 +29,10 @@ import org.andstatus.app.util.TriState;
 import java.util.Locale;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
@@ -43,6 +47,13 @@ public final class MyDatabase extends SQLiteOpenHelper  {
      * This is used to check (and upgrade if necessary) 
      * existing database after application update.
      *
+     * v.30 2015-10-18 app.v.20 {@link Origin#UPLOAD_LIMIT} added to downscale images before upload
+     * v.29 2015-10-18 app.v.20 {@link Download#PARTIAL_VALIDATOR} added to resume failed downloads
+     * v.28 2015-10-18 app.v.20 Index on {@link Msg#INS_DATE} for the incremental {@link DataPruner}
+     * v.27 2015-10-18 app.v.20 {@link Command} table added for the queues of commands
+     * v.26 2015-10-18 app.v.20 {@link HttpValidator} table added for conditional GET
+     * v.25 2015-10-18 app.v.20 full text search table {@link MsgSearch} added
+     * v.24 2015-10-18 app.v.20 index on {@link Msg#ORIGIN_ID} and {@link Msg#SENT_DATE} added
      * v.23 2015-09-02 app.v.19 msg_status added for Unsent messages
      * v.22 2015-04-04 app.v.17 use_legacy_http added to Origin
      * v.21 2015-03-14 app.v.16 mention_as_webfinger_id added to Origin, 
@@ -64,7 +75,7 @@ public final class MyDatabase extends SQLiteOpenHelper  {
      *      All messages are in the same table. 
      *      Allows to have multiple User Accounts in different Originating systems (twitter.com etc. ) 
      */
-    public static final int DATABASE_VERSION = 23;
+    public static final int DATABASE_VERSION = 30;
     public static final String DATABASE_NAME = "andstatus.sqlite";
 
     /**
@@ -413,6 +424,11 @@ public final class MyDatabase extends SQLiteOpenHelper  {
          */
         public static final String DOWNLOAD_STATUS = "download_status";
         public static final String FILE_NAME = "file_name";
+        /**
+         * ETag or Last-Modified of the response, from which the temporary file of the download
+         * was partially downloaded, so the download may be resumed. Empty if there is no partial file
+         */
+        public static final String PARTIAL_VALIDATOR = "partial_validator";
         
         /*
          * Derived columns (they are not stored in this table but are result of joins)
@@ -426,6 +442,74 @@ public final class MyDatabase extends SQLiteOpenHelper  {
         public static final String IMAGE_URL = "image_url";
     }
 
+    /**
+     * Full text search (FTS4) table of messages, its "docid" is {@link Msg#_ID}.
+     * Rows are written by {@link MsgSearchIndex} and deleted by a trigger on the {@link Msg} table
+     */
+    public static final class MsgSearch {
+        public static final String TABLE_NAME = MsgSearch.class.getSimpleName().toLowerCase(Locale.US);
+        private MsgSearch() {
+        }
+
+        /** Alias for {@link Msg#_ID} of the virtual table */
+        public static final String DOCID = "docid";
+        /** {@link Msg#BODY} without HTML markup */
+        public static final String BODY = "search_body";
+        /** Usernames and WebFinger IDs of the Author and the Sender */
+        public static final String USER_NAMES = "search_user_names";
+    }
+
+    /**
+     * HTTP validators (ETag and Last-Modified) of the latest response of an endpoint for an account,
+     * see {@link HttpValidators}
+     */
+    public static final class HttpValidator {
+        public static final String TABLE_NAME = HttpValidator.class.getSimpleName().toLowerCase(Locale.US);
+        private HttpValidator() {
+        }
+
+        public static final String ORIGIN_ID = Msg.ORIGIN_ID;
+        /** Username of the account, empty for unauthenticated requests */
+        public static final String ACCOUNT_NAME = "account_name";
+        /** URL of the request without the query, so we keep one row per timeline of the account */
+        public static final String ENDPOINT = "endpoint";
+        /** Full URL of the request. The validators are used only when it is the same */
+        public static final String URL = "url";
+        public static final String ETAG = "etag";
+        public static final String LAST_MODIFIED = "last_modified";
+    }
+
+    /**
+     * Commands in the queues of MyService. A row is written, when a command is added to a queue,
+     * and it is deleted, when the command is taken from the queue, so the queues survive a crash
+     */
+    public static final class Command implements BaseColumns {
+        public static final String TABLE_NAME = Command.class.getSimpleName().toLowerCase(Locale.US);
+        private Command() {
+        }
+
+        /** Acronym of the QueueType. The same command may be in several queues */
+        public static final String QUEUE_TYPE = "queue_type";
+        public static final String COMMAND_CODE = "command_code";
+        public static final String ACCOUNT_NAME = "account_name";
+        public static final String TIMELINE_TYPE = "timeline_type";
+        public static final String ITEM_ID = "item_id";
+        public static final String IN_FOREGROUND = "in_foreground";
+        public static final String MANUALLY_LAUNCHED = "manually_launched";
+        public static final String IS_STEP = "is_step";
+        /** Message text or search query */
+        public static final String BODY = "body";
+
+        public static final String LAST_EXECUTED_DATE = "last_executed_date";
+        public static final String EXECUTION_COUNT = "execution_count";
+        public static final String RETRIES_LEFT = "retries_left";
+        public static final String NUM_AUTH_EXCEPTIONS = "num_auth_exceptions";
+        public static final String NUM_IO_EXCEPTIONS = "num_io_exceptions";
+        public static final String NUM_PARSE_EXCEPTIONS = "num_parse_exceptions";
+        public static final String ERROR_MESSAGE = "error_message";
+        public static final String DOWNLOADED_COUNT = "downloaded_count";
+    }
+
     public static final class Origin implements BaseColumns {
         public static final String TABLE_NAME = Origin.class.getSimpleName().toLowerCase(Locale.US);
         private Origin() {
@@ -441,6 +525,8 @@ public final class MyDatabase extends SQLiteOpenHelper  {
         public static final String ALLOW_HTML = "allow_html";
         public static final String TEXT_LIMIT = "text_limit";
         public static final String SHORT_URL_LENGTH = "short_url_length";
+        /** Maximum size of an uploaded file in bytes, 0 if unknown */
+        public static final String UPLOAD_LIMIT = "upload_limit";
         public static final String MENTION_AS_WEBFINGER_ID = "mention_as_webfinger_id";
         public static final String USE_LEGACY_HTTP = "use_legacy_http";
         /** Include this system in Global Search while in Combined Timeline */
@@ -465,8 +551,72 @@ public final class MyDatabase extends SQLiteOpenHelper  {
     }
     
     
+    /**
+     * The writer checkpoints the write-ahead log itself, when the log grows larger than this, in pages.
+     * Usually we checkpoint it earlier, when the service becomes idle, see {@link #checkpoint()}
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /**
+     * The database is in the write-ahead log mode, so readers, e.g. timelines and widgets,
+     * don't wait for a long transaction of a sync. Android keeps one connection for writes,
+     * so all writes are serialized, and a small pool of connections for reads
+     */
     public MyDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+    }
+
+    /**
+     * Copies changes from the write-ahead log to the database file, not waiting for readers
+     * @return true if the database file has all committed changes
+     */
+    public boolean checkpoint() {
+        return checkpoint(getWritableDatabase());
+    }
+
+    /**
+     * The same as {@link #checkpoint()}, but through a separate connection, so it may be done,
+     * while this thread holds a transaction, which doesn't let others write, e.g. during a backup
+     */
+    public boolean checkpointBySeparateConnection() {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(MyPreferences.getDatabasePath(DATABASE_NAME, null).getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS
+                            | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+            return checkpoint(db);
+        } catch (SQLiteException e) {
+            MyLog.d(this, "checkpointBySeparateConnection", e);
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private boolean checkpoint(SQLiteDatabase db) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            if (cursor.moveToFirst()) {
+                int logFrames = cursor.getInt(1);
+                int checkpointedFrames = cursor.getInt(2);
+                MyLog.v(this, "Checkpointed " + checkpointedFrames + " of " + logFrames + " frames");
+                return cursor.getInt(0) == 0 && logFrames == checkpointedFrames;
+            }
+        } catch (SQLiteException e) {
+            MyLog.d(this, "checkpoint", e);
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return false;
     }
 
     private ThreadLocal<Boolean> onUpgradeTriggered = new ThreadLocal<Boolean>();
@@ -535,9 +685,18 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Msg.SENT_DATE
                 + ")");
 
+        execSQL(db, "CREATE INDEX idx_msg_origin_sent_date ON " + Msg.TABLE_NAME + " ("
+                + Msg.ORIGIN_ID + ", "
+                + Msg.SENT_DATE
+                + ")");
+
         execSQL(db, "CREATE INDEX idx_msg_in_reply_to_msg_id ON " + Msg.TABLE_NAME + " (" 
                 + Msg.IN_REPLY_TO_MSG_ID
                 + ")");
+
+        execSQL(db, "CREATE INDEX idx_msg_ins_date ON " + Msg.TABLE_NAME + " ("
+                + Msg.INS_DATE
+                + ")");
         
         execSQL(db, "CREATE TABLE " + MsgOfUser.TABLE_NAME + " (" 
                 + MsgOfUser.USER_ID + " INTEGER NOT NULL," 
@@ -607,7 +766,8 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Download.URI + " TEXT NOT NULL,"
                 + Download.LOADED_DATE + " INTEGER,"
                 + Download.DOWNLOAD_STATUS + " INTEGER NOT NULL DEFAULT 0," 
-                + Download.FILE_NAME + " TEXT" 
+                + Download.FILE_NAME + " TEXT," 
+                + Download.PARTIAL_VALIDATOR + " TEXT" 
                 + ")");
 
         execSQL(db, "CREATE INDEX idx_download_user ON " + Download.TABLE_NAME + " (" 
@@ -621,6 +781,50 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Download.DOWNLOAD_STATUS
                 + ")");
         
+        execSQL(db, "CREATE VIRTUAL TABLE " + MsgSearch.TABLE_NAME + " USING fts4("
+                + MsgSearch.BODY + ", "
+                + MsgSearch.USER_NAMES + ", "
+                + "prefix=\"2,3\""
+                + ")");
+
+        execSQL(db, "CREATE TRIGGER trg_msg_search_delete AFTER DELETE ON " + Msg.TABLE_NAME
+                + " BEGIN DELETE FROM " + MsgSearch.TABLE_NAME
+                + " WHERE " + MsgSearch.DOCID + "=old." + BaseColumns._ID + "; END");
+
+        execSQL(db, "CREATE TABLE " + HttpValidator.TABLE_NAME + " ("
+                + HttpValidator.ORIGIN_ID + " INTEGER NOT NULL,"
+                + HttpValidator.ACCOUNT_NAME + " TEXT NOT NULL,"
+                + HttpValidator.ENDPOINT + " TEXT NOT NULL,"
+                + HttpValidator.URL + " TEXT NOT NULL,"
+                + HttpValidator.ETAG + " TEXT,"
+                + HttpValidator.LAST_MODIFIED + " TEXT,"
+                + " CONSTRAINT pk_httpvalidator PRIMARY KEY (" + HttpValidator.ORIGIN_ID + " ASC, "
+                + HttpValidator.ACCOUNT_NAME + " ASC, " + HttpValidator.ENDPOINT + " ASC)"
+                + ")");
+
+        execSQL(db, "CREATE TABLE " + Command.TABLE_NAME + " ("
+                + BaseColumns._ID + " INTEGER NOT NULL,"
+                + Command.QUEUE_TYPE + " TEXT NOT NULL,"
+                + Command.COMMAND_CODE + " TEXT NOT NULL,"
+                + Command.ACCOUNT_NAME + " TEXT,"
+                + Command.TIMELINE_TYPE + " TEXT,"
+                + Command.ITEM_ID + " INTEGER,"
+                + Command.IN_FOREGROUND + " BOOLEAN,"
+                + Command.MANUALLY_LAUNCHED + " BOOLEAN,"
+                + Command.IS_STEP + " BOOLEAN,"
+                + Command.BODY + " TEXT,"
+                + Command.LAST_EXECUTED_DATE + " INTEGER,"
+                + Command.EXECUTION_COUNT + " INTEGER,"
+                + Command.RETRIES_LEFT + " INTEGER,"
+                + Command.NUM_AUTH_EXCEPTIONS + " INTEGER,"
+                + Command.NUM_IO_EXCEPTIONS + " INTEGER,"
+                + Command.NUM_PARSE_EXCEPTIONS + " INTEGER,"
+                + Command.ERROR_MESSAGE + " TEXT,"
+                + Command.DOWNLOADED_COUNT + " INTEGER,"
+                + " CONSTRAINT pk_command PRIMARY KEY (" + Command.QUEUE_TYPE + " ASC, "
+                + BaseColumns._ID + " ASC)"
+                + ")");
+
         execSQL(db, "CREATE TABLE " + Origin.TABLE_NAME + " (" 
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," 
                 + Origin.ORIGIN_TYPE_ID + " INTEGER NOT NULL," 
@@ -631,6 +835,7 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Origin.ALLOW_HTML + " BOOLEAN DEFAULT 1 NOT NULL," 
                 + Origin.TEXT_LIMIT + " INTEGER NOT NULL,"
                 + Origin.SHORT_URL_LENGTH + " INTEGER NOT NULL DEFAULT 0," 
+                + Origin.UPLOAD_LIMIT + " INTEGER NOT NULL DEFAULT 0," 
                 + Origin.MENTION_AS_WEBFINGER_ID + " INTEGER DEFAULT " + TriState.UNKNOWN.getId() + " NOT NULL," 
                 + Origin.USE_LEGACY_HTTP + " INTEGER DEFAULT " + TriState.UNKNOWN.getId() + " NOT NULL," 
                 + Origin.IN_COMBINED_GLOBAL_SEARCH + " BOOLEAN DEFAULT 1 NOT NULL," 
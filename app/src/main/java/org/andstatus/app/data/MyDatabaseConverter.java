@@ -18,6 +18,8 @@ package org.andstatus.app.data;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 
 import org.andstatus.app.R;
@@ -28,6 +30,7 @@ import org.andstatus.app.data.MyDatabaseConverterController.UpgradeParams;
 import org.andstatus.app.util.DialogFactory;
 import org.andstatus.app.util.FileUtils;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.SharedPreferencesUtil;
 
 import java.io.File;
 
@@ -341,4 +344,136 @@ class MyDatabaseConverter {
 
         }
     }
+
+    static class Convert23 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 24;
+
+            sql = "CREATE INDEX idx_msg_origin_sent_date ON msg (origin_id, msg_sent_date)";
+            MyDatabase.execSQL(db, sql);
+        }
+    }
+
+    static class Convert24 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 25;
+
+            sql = "CREATE VIRTUAL TABLE msgsearch USING fts4(search_body, search_user_names, prefix=\"2,3\")";
+            MyDatabase.execSQL(db, sql);
+
+            sql = "CREATE TRIGGER trg_msg_search_delete AFTER DELETE ON msg"
+                    + " BEGIN DELETE FROM msgsearch WHERE docid=old._id; END";
+            MyDatabase.execSQL(db, sql);
+
+            MsgSearchIndex.rebuild(db);
+        }
+    }
+
+    static class Convert25 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 26;
+
+            sql = "CREATE TABLE httpvalidator (origin_id INTEGER NOT NULL, account_name TEXT NOT NULL,"
+                    + " endpoint TEXT NOT NULL, url TEXT NOT NULL, etag TEXT, last_modified TEXT,"
+                    + " CONSTRAINT pk_httpvalidator PRIMARY KEY (origin_id ASC, account_name ASC, endpoint ASC))";
+            MyDatabase.execSQL(db, sql);
+        }
+    }
+
+    static class Convert26 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 27;
+
+            sql = "CREATE TABLE command (_id INTEGER NOT NULL, queue_type TEXT NOT NULL, command_code TEXT NOT NULL,"
+                    + " account_name TEXT, timeline_type TEXT, item_id INTEGER, in_foreground BOOLEAN,"
+                    + " manually_launched BOOLEAN, is_step BOOLEAN, body TEXT, last_executed_date INTEGER,"
+                    + " execution_count INTEGER, retries_left INTEGER, num_auth_exceptions INTEGER,"
+                    + " num_io_exceptions INTEGER, num_parse_exceptions INTEGER, error_message TEXT,"
+                    + " downloaded_count INTEGER,"
+                    + " CONSTRAINT pk_command PRIMARY KEY (queue_type ASC, _id ASC))";
+            MyDatabase.execSQL(db, sql);
+
+            String[] queueNames = {"commands-queue", "retry-queue", "error-queue", "test-queue"};
+            String[] queueTypes = {"C", "R", "E", "T"};
+            for (int ind = 0; ind < queueNames.length; ind++) {
+                String filename = "MyService-" + queueNames[ind];
+                migrateQueue(filename, queueTypes[ind]);
+                SharedPreferencesUtil.delete(MyContextHolder.get().context(), filename);
+            }
+        }
+
+        /** Commands of the queue, which were stored in SharedPreferences, are moved to the new table */
+        private void migrateQueue(String filename, String queueType) {
+            SharedPreferences sp = MyPreferences.getSharedPreferences(filename);
+            if (sp == null) {
+                return;
+            }
+            int count = 0;
+            for (int index = 0; index < 100000; index++) {
+                String si = Integer.toString(index);
+                String commandCode = sp.getString("COMMAND_ENUM" + si, "empty");
+                if ("empty".equals(commandCode)) {
+                    break;
+                }
+                ContentValues values = new ContentValues();
+                long id = sp.getLong("COMMAND_ID" + si, 0);
+                values.put("_id", id == 0 ? MyLog.uniqueCurrentTimeMS() : id);
+                values.put("queue_type", queueType);
+                values.put("command_code", commandCode);
+                values.put("account_name", sp.getString("ACCOUNT_NAME" + si, ""));
+                values.put("timeline_type", sp.getString("TIMELINE_TYPE" + si, ""));
+                values.put("item_id", sp.getLong("ITEMID" + si, 0));
+                values.put("in_foreground", sp.getBoolean("IN_FOREGROUND" + si, false));
+                values.put("manually_launched", sp.getBoolean("MANUALLY_LAUNCHED" + si, false));
+                values.put("is_step", sp.getBoolean("IS_STEP" + si, false));
+                values.put("body", sp.getString("MESSAGE_TEXT" + si, sp.getString("SEARCH_QUERY" + si, null)));
+                values.put("last_executed_date", sp.getLong("LAST_EXECUTED_DATE" + si, 0));
+                values.put("execution_count", sp.getInt("EXECUTION_COUNT" + si, 0));
+                values.put("retries_left", sp.getInt("RETRIES_LEFT" + si, 0));
+                values.put("num_auth_exceptions", sp.getLong("NUM_AUTH_EXCEPTIONS" + si, 0));
+                values.put("num_io_exceptions", sp.getLong("NUM_IO_EXCEPTIONS" + si, 0));
+                values.put("num_parse_exceptions", sp.getLong("NUM_PARSE_EXCEPTIONS" + si, 0));
+                values.put("error_message", sp.getString("ERROR_MESSAGE" + si, ""));
+                values.put("downloaded_count", sp.getInt("DOWNLOADED_COUNT" + si, 0));
+                if (db.insertWithOnConflict("command", null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    count++;
+                }
+            }
+            MyLog.i(this, "Moved " + count + " commands from " + filename);
+        }
+    }
+
+    static class Convert27 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 28;
+
+            sql = "CREATE INDEX idx_msg_ins_date ON msg (msg_ins_date)";
+            MyDatabase.execSQL(db, sql);
+        }
+    }
+
+    static class Convert28 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 29;
+
+            sql = "ALTER TABLE download ADD COLUMN partial_validator TEXT";
+            MyDatabase.execSQL(db, sql);
+        }
+    }
+
+    static class Convert29 extends OneStep {
+        @Override
+        protected void execute2() {
+            versionTo = 30;
+
+            sql = "ALTER TABLE origin ADD COLUMN upload_limit INTEGER NOT NULL DEFAULT 0";
+            MyDatabase.execSQL(db, sql);
+        }
+    }
 }
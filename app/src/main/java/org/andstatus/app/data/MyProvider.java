@@ -32,6 +32,7 @@ import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.MsgOfUser;
+import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyDatabase.Origin;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.util.MyLog;
@@ -79,18 +80,23 @@ public class MyProvider extends ContentProvider {
         switch (uriParser.matched()) {
             case MSG:
                 count = deleteMessages(db, selection, selectionArgs);
+                // We don't know, which messages were deleted
+                OidCache.of(OidEnum.MSG_OID).clear();
                 break;
 
             case MSG_ITEM:
                 count = deleteMessages(db, BaseColumns._ID + "=" + uriParser.getMessageId(), null);
+                OidCache.of(OidEnum.MSG_OID).removeId(uriParser.getMessageId());
                 break;
                 
             case USER:
                 count = deleteUsers(db, selection, selectionArgs);
+                OidCache.of(OidEnum.USER_OID).clear();
                 break;
 
             case USER_ITEM:
                 count = deleteUsers(db, BaseColumns._ID + "=" + uriParser.getUserId(), null);
+                OidCache.of(OidEnum.USER_OID).removeId(uriParser.getUserId());
                 break;
 
             default:
@@ -99,9 +105,14 @@ public class MyProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Inside a transaction of the caller (e.g. of {@link DataInserter}) a failure is thrown to the caller,
+     * because a failed nested transaction silently rolls back the outer one
+     */
     private int deleteMessages(SQLiteDatabase db, String selection, String[] selectionArgs) {
         int count = 0;
         String sqlDesc = "";
+        boolean nested = db.inTransaction();
         db.beginTransaction();
         try {
             // Delete all related records from MyDatabase.MsgOfUser for these messages
@@ -118,8 +129,11 @@ public class MyProvider extends ContentProvider {
             sqlDesc = selection + descSuffix;
             count = db.delete(Msg.TABLE_NAME, selection, selectionArgs);
             db.setTransactionSuccessful();
-        } catch(Exception e) {
+        } catch(RuntimeException e) {
             MyLog.d(TAG, "; SQL='" + sqlDesc + "'", e);
+            if (nested) {
+                throw e;
+            }
         } finally {
             db.endTransaction();
         }
@@ -206,6 +220,10 @@ public class MyProvider extends ContentProvider {
                 optionallyLoadAvatar(rowId, values);
             }
             
+            putToOidCache(uriParser.matched(), rowId, values);
+            if (uriParser.matched() == MatchedUri.MSG_ITEM) {
+                MsgSearchIndex.onMsgChanged(db, rowId);
+            }
             msgOfUserValues.setMsgId(rowId);
             msgOfUserValues.insert(db);
 
@@ -233,6 +251,30 @@ public class MyProvider extends ContentProvider {
         return newUri;
     }
 
+    /**
+     * A row id may be reused after deletion of the row, so we replace the cached oid of this id
+     */
+    private void putToOidCache(MatchedUri matchedUri, long rowId, ContentValues values) {
+        switch (matchedUri) {
+            case MSG_ITEM:
+                OidCache.of(OidEnum.MSG_OID).removeId(rowId);
+                if (values.containsKey(Msg.ORIGIN_ID)) {
+                    OidCache.of(OidEnum.MSG_OID).put(values.getAsLong(Msg.ORIGIN_ID),
+                            values.getAsString(Msg.MSG_OID), rowId);
+                }
+                break;
+            case USER_ITEM:
+                OidCache.of(OidEnum.USER_OID).removeId(rowId);
+                if (values.containsKey(User.ORIGIN_ID)) {
+                    OidCache.of(OidEnum.USER_OID).put(values.getAsLong(User.ORIGIN_ID),
+                            values.getAsString(User.USER_OID), rowId);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
     private void optionallyLoadAvatar(long userId, ContentValues values) {
         if (MyPreferences.showAvatars() && values.containsKey(User.AVATAR_URL)) {
             AvatarData.getForUser(userId).requestDownload();
@@ -259,32 +301,29 @@ public class MyProvider extends ContentProvider {
         switch (uriParser.matched()) {
             case TIMELINE:
                 qb.setDistinct(true);
-                qb.setTables(TimelineSql.tablesForTimeline(uri, projection));
-                qb.setProjectionMap(ProjectionMap.MSG);
+                setTimelineTables(qb, uri, projection, selection, "");
                 break;
 
             case TIMELINE_ITEM:
-                qb.setTables(TimelineSql.tablesForTimeline(uri, projection));
-                qb.setProjectionMap(ProjectionMap.MSG);
-                qb.appendWhere(ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID + "=" + uriParser.getMessageId());
+                setTimelineTables(qb, uri, projection, selection,
+                        ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID + "=" + uriParser.getMessageId());
                 break;
 
             case TIMELINE_SEARCH:
-                qb.setTables(TimelineSql.tablesForTimeline(uri, projection));
-                qb.setProjectionMap(ProjectionMap.MSG);
+                setTimelineTables(qb, uri, projection, selection, "");
                 String searchQuery = uriParser.getSearchQuery();
-                if (!TextUtils.isEmpty(searchQuery)) {
+                String searchSelection = MsgSearchIndex.toSelection(searchQuery);
+                if (!TextUtils.isEmpty(searchSelection)) {
                     if (!TextUtils.isEmpty(selection)) {
                         selection = " AND (" + selection + ")";
                     } else {
                         selection = "";
                     }
-                    // TODO: Search in MyDatabase.User.USERNAME also
-                    selection = "(" + User.AUTHOR_NAME + " LIKE ?  OR " + Msg.BODY
-                            + " LIKE ?)" + selection;
-
-                    selectionArgs = addBeforeArray(selectionArgs, "%" + searchQuery + "%");
-                    selectionArgs = addBeforeArray(selectionArgs, "%" + searchQuery + "%");
+                    selection = searchSelection + selection;
+                    String[] searchArgs = MsgSearchIndex.toSelectionArgs(searchQuery);
+                    for (int index = searchArgs.length - 1; index >= 0; index--) {
+                        selectionArgs = addBeforeArray(selectionArgs, searchArgs[index]);
+                    }
                 }
                 break;
 
@@ -398,6 +437,24 @@ public class MyProvider extends ContentProvider {
         return ans;
     }
 
+    static void setTimelineTables(SQLiteQueryBuilder qb, Uri uri, String[] projection, String selection,
+                                  String where) {
+        TimelineSql.Tables tables = TimelineSql.tablesForTimeline(uri, projection, selection);
+        qb.setTables(tables.tables);
+        qb.setProjectionMap(tables.projectionMap);
+        if (!TextUtils.isEmpty(tables.where)) {
+            qb.appendWhere(tables.where);
+        }
+        if (!TextUtils.isEmpty(where)) {
+            qb.appendWhere((TextUtils.isEmpty(tables.where) ? "" : " AND ") + where);
+        }
+    }
+
+    private static boolean isSearchIndexChanged(ContentValues values) {
+        return values.containsKey(Msg.BODY) || values.containsKey(Msg.AUTHOR_ID)
+                || values.containsKey(Msg.SENDER_ID);
+    }
+
     /**
      * Update objects (one or several records) in the database
      */
@@ -410,6 +467,9 @@ public class MyProvider extends ContentProvider {
         switch (uriParser.matched()) {
             case MSG:
                 count = db.update(Msg.TABLE_NAME, values, selection, selectionArgs);
+                if (values.containsKey(Msg.MSG_OID)) {
+                    OidCache.of(OidEnum.MSG_OID).clear();
+                }
                 break;
 
             case MSG_ITEM:
@@ -423,20 +483,36 @@ public class MyProvider extends ContentProvider {
                             selectionArgs);
                 }
                 count += msgOfUserValues.update(db);
+                if (values.containsKey(Msg.MSG_OID)) {
+                    OidCache.of(OidEnum.MSG_OID).removeId(rowId);
+                }
+                if (isSearchIndexChanged(values)) {
+                    MsgSearchIndex.onMsgChanged(db, rowId);
+                }
                 break;
 
             case USER:
                 count = db.update(User.TABLE_NAME, values, selection, selectionArgs);
+                if (values.containsKey(User.USER_OID)) {
+                    OidCache.of(OidEnum.USER_OID).clear();
+                }
                 break;
 
             case USER_ITEM:
                 accountUserId = uriParser.getAccountUserId();
                 long selectedUserId = uriParser.getUserId();
                 FollowingUserValues followingUserValues = FollowingUserValues.valueOf(accountUserId, selectedUserId, values);
+                boolean isRenamed = MsgSearchIndex.isUserRenamed(db, selectedUserId, values);
                 count = db.update(User.TABLE_NAME, values, BaseColumns._ID + "=" + selectedUserId
                         + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""),
                         selectionArgs);
                 followingUserValues.update(db);
+                if (values.containsKey(User.USER_OID)) {
+                    OidCache.of(OidEnum.USER_OID).removeId(selectedUserId);
+                }
+                if (isRenamed) {
+                    MsgSearchIndex.onUserRenamed(db, selectedUserId);
+                }
                 optionallyLoadAvatar(selectedUserId, values);
                 break;
 
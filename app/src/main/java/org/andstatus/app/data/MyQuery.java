@@ -35,8 +35,12 @@ import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.SharedPreferencesUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MyQuery {
@@ -84,17 +88,25 @@ public class MyQuery {
     }
 
     static String userNameField(UserInTimeline userInTimeline) {
+        return userNameField(userInTimeline, "");
+    }
+
+    /**
+     * @param tableAlias alias of the {@link User} table or empty string
+     */
+    static String userNameField(UserInTimeline userInTimeline, String tableAlias) {
+        String prefix = TextUtils.isEmpty(tableAlias) ? "" : tableAlias + ".";
         switch (userInTimeline) {
             case AT_USERNAME:
-                return "('@' || " + MyDatabase.User.USERNAME + ")";
+                return "('@' || " + prefix + MyDatabase.User.USERNAME + ")";
             case WEBFINGER_ID:
-                return MyDatabase.User.WEBFINGER_ID;
+                return prefix + MyDatabase.User.WEBFINGER_ID;
             case REAL_NAME:
-                return MyDatabase.User.REAL_NAME;
+                return prefix + MyDatabase.User.REAL_NAME;
             case REAL_NAME_AT_USERNAME:
-                return "(" + MyDatabase.User.REAL_NAME + " || ' @' || " + MyDatabase.User.USERNAME + ")";
+                return "(" + prefix + MyDatabase.User.REAL_NAME + " || ' @' || " + prefix + MyDatabase.User.USERNAME + ")";
             default:
-                return MyDatabase.User.USERNAME;
+                return prefix + MyDatabase.User.USERNAME;
         }
     }
 
@@ -114,6 +126,13 @@ public class MyQuery {
         if (TextUtils.isEmpty(oid)) {
             return 0;
         }
+        OidCache cache = OidCache.of(oidEnum);
+        if (cache != null) {
+            long id = cache.getId(originId, oid);
+            if (id != 0) {
+                return id;
+            }
+        }
         String msgLog = "oidToId; " + originId + "+" + oid + ", oidEnum=" + oidEnum;
         String sql;
         switch (oidEnum) {
@@ -132,7 +151,81 @@ public class MyQuery {
             default:
                 throw new IllegalArgumentException(msgLog + "; Unknown oidEnum");
         }
-        return sqlToLong(myDatabase, msgLog, sql);
+        long id = sqlToLong(myDatabase, msgLog, sql);
+        if (cache != null) {
+            cache.put(originId, oid, id);
+        }
+        return id;
+    }
+
+    /** Number of oids in one "IN (...)" clause */
+    private static final int OIDS_IN_ONE_QUERY = 200;
+
+    /**
+     * Lookup the System's (AndStatus) ids for many oids at once, one query per
+     * {@link #OIDS_IN_ONE_QUERY} oids instead of one query per oid
+     * @return map of found oids to ids. Oids that are not found are absent in the map
+     */
+    static Map<String, Long> oidsToIds(SQLiteDatabase db, OidEnum oidEnum, long originId, Collection<String> oids) {
+        Map<String, Long> ids = new HashMap<>();
+        OidCache cache = OidCache.of(oidEnum);
+        String table;
+        String oidColumn;
+        switch (oidEnum) {
+            case MSG_OID:
+                table = Msg.TABLE_NAME;
+                oidColumn = Msg.MSG_OID;
+                break;
+            case USER_OID:
+                table = User.TABLE_NAME;
+                oidColumn = User.USER_OID;
+                break;
+            default:
+                throw new IllegalArgumentException("oidsToIds; Unknown oidEnum=" + oidEnum);
+        }
+        Iterator<String> iterator = oids.iterator();
+        while (iterator.hasNext()) {
+            StringBuilder inClause = new StringBuilder();
+            for (int count = 0; count < OIDS_IN_ONE_QUERY && iterator.hasNext(); ) {
+                String oid = iterator.next();
+                if (TextUtils.isEmpty(oid)) {
+                    continue;
+                }
+                long id = cache == null ? 0 : cache.getId(originId, oid);
+                if (id != 0) {
+                    ids.put(oid, id);
+                } else {
+                    if (inClause.length() > 0) {
+                        inClause.append(",");
+                    }
+                    inClause.append(quoteIfNotQuoted(oid));
+                    count++;
+                }
+            }
+            if (inClause.length() == 0) {
+                break;
+            }
+            String sql = "SELECT " + BaseColumns._ID + ", " + oidColumn + " FROM " + table
+                    + " WHERE " + (oidEnum == OidEnum.MSG_OID ? Msg.ORIGIN_ID : User.ORIGIN_ID) + "=" + originId
+                    + " AND " + oidColumn + " IN (" + inClause + ")";
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery(sql, null);
+                while (cursor.moveToNext()) {
+                    ids.put(cursor.getString(1), cursor.getLong(0));
+                    if (cache != null) {
+                        cache.put(originId, cursor.getString(1), cursor.getLong(0));
+                    }
+                }
+            } finally {
+                DbUtils.closeSilently(cursor);
+            }
+        }
+        if (MyLog.isVerboseEnabled()) {
+            MyLog.v(MyProvider.TAG, "oidsToIds; " + oidEnum + ", originId=" + originId + ", "
+                    + oids.size() + " oids -> " + ids.size() + " ids");
+        }
+        return ids;
     }
 
     private static long sqlToLong(MyDatabase myDatabaseIn, String msgLog, String sql) {
@@ -225,18 +318,20 @@ public class MyQuery {
         String sql = "";
     
         if (entityId > 0) {
+            OidCache cache = OidCache.of(oe);
+            if (cache != null) {
+                String cachedOid = cache.getOid(entityId);
+                if (cachedOid != null) {
+                    return cachedOid;
+                }
+            }
             try {
                 switch (oe) {
                     case MSG_OID:
-                        sql = "SELECT " + MyDatabase.Msg.MSG_OID + " FROM "
-                                + Msg.TABLE_NAME + " WHERE " + BaseColumns._ID + "=" + entityId;
-                        break;
+                        return idToOidCached(db, cache, Msg.TABLE_NAME, Msg.MSG_OID, Msg.ORIGIN_ID, entityId);
     
                     case USER_OID:
-                        sql = "SELECT " + MyDatabase.User.USER_OID + " FROM "
-                                + User.TABLE_NAME + " WHERE " + BaseColumns._ID + "="
-                                + entityId;
-                        break;
+                        return idToOidCached(db, cache, User.TABLE_NAME, User.USER_OID, User.ORIGIN_ID, entityId);
     
                     case REBLOG_OID:
                         if (rebloggerUserId == 0) {
@@ -275,6 +370,33 @@ public class MyQuery {
         return oid;
     }
 
+    private static String idToOidCached(SQLiteDatabase db, OidCache cache, String tableName, String oidColumn,
+                                        String originIdColumn, long entityId) {
+        String oid = "";
+        String sql = "SELECT " + oidColumn + ", " + originIdColumn + " FROM " + tableName
+                + " WHERE " + BaseColumns._ID + "=" + entityId;
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, null);
+            if (cursor.moveToNext()) {
+                oid = cursor.getString(0);
+                cache.put(cursor.getLong(1), oid, entityId);
+            }
+        } catch (Exception e) {
+            MyLog.e(MyProvider.TAG, "idToOid; sql='" + sql + "'", e);
+            oid = "";
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        if (oid == null) {
+            oid = "";
+        }
+        if (MyLog.isVerboseEnabled()) {
+            MyLog.v(MyProvider.TAG, "idToOid: " + tableName + " + " + entityId + " -> " + oid);
+        }
+        return oid;
+    }
+
     public static String msgIdToUsername(String userIdColumnName, long messageId, UserInTimeline userInTimeline) {
         String userName = "";
         if (messageId != 0) {
@@ -500,28 +622,4 @@ public class MyQuery {
         }
         return friends;
     }
-
-    /**
-     * Newest replies are the first
-     */
-    public static List<Long> getReplyIds(long msgId) {
-        List<Long> replies = new ArrayList<Long>();
-        String sql = "SELECT " + MyDatabase.Msg._ID 
-                + " FROM " + Msg.TABLE_NAME 
-                + " WHERE " + MyDatabase.Msg.IN_REPLY_TO_MSG_ID + "=" + msgId
-                + " ORDER BY " + Msg.CREATED_DATE + " DESC";
-        
-        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
-        Cursor c = null;
-        try {
-            c = db.rawQuery(sql, null);
-            while (c.moveToNext()) {
-                replies.add(c.getLong(0));
-            }
-        } finally {
-            DbUtils.closeSilently(c);
-        }
-        return replies;
-    }
-    
 }
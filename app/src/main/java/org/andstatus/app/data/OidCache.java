@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.data.MyDatabase.OidEnum;
+import org.andstatus.app.util.MyLog;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of oid &lt;-&gt; id pairs of Messages or Users,
+ * used by {@link MyQuery#oidToId(OidEnum, long, String)} and {@link MyQuery#idToOid(OidEnum, long, long)}.
+ * Each Origin has its own LRU partition, so a long following list of one account
+ * doesn't push out the entries of other Origins.
+ * The cache is invalidated by {@link MyProvider} when rows are deleted or their oids are changed
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class OidCache {
+    static final int MAX_USERS_PER_ORIGIN = 5000;
+    static final int MAX_MESSAGES_PER_ORIGIN = 2000;
+
+    private static final OidCache USERS = new OidCache(OidEnum.USER_OID, MAX_USERS_PER_ORIGIN);
+    private static final OidCache MESSAGES = new OidCache(OidEnum.MSG_OID, MAX_MESSAGES_PER_ORIGIN);
+
+    private final OidEnum oidEnum;
+    private final int maxSizePerOrigin;
+    @GuardedBy("this")
+    private final Map<Long, Partition> partitions = new HashMap<>();
+    @GuardedBy("this")
+    private final LongSparseArray<Entry> byId = new LongSparseArray<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Entry {
+        final long originId;
+        final String oid;
+        final long id;
+
+        Entry(long originId, String oid, long id) {
+            this.originId = originId;
+            this.oid = oid;
+            this.id = id;
+        }
+    }
+
+    /** Access ordered map of oids of one Origin */
+    private final class Partition extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        Partition() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSizePerOrigin) {
+                byId.remove(eldest.getValue().id);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    OidCache(OidEnum oidEnum, int maxSizePerOrigin) {
+        this.oidEnum = oidEnum;
+        this.maxSizePerOrigin = maxSizePerOrigin;
+    }
+
+    /**
+     * @return null if oids of this type are not cached
+     */
+    static OidCache of(OidEnum oidEnum) {
+        switch (oidEnum) {
+            case MSG_OID:
+                return MESSAGES;
+            case USER_OID:
+                return USERS;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Forget everything, e.g. when the database is being replaced
+     */
+    public static void forget() {
+        USERS.clear();
+        MESSAGES.clear();
+    }
+
+    /**
+     * @return 0 if not cached
+     */
+    synchronized long getId(long originId, String oid) {
+        Partition partition = partitions.get(originId);
+        Entry entry = partition == null ? null : partition.get(oid);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return 0;
+        }
+        hits.incrementAndGet();
+        return entry.id;
+    }
+
+    /**
+     * @return null if not cached
+     */
+    synchronized String getOid(long id) {
+        Entry entry = byId.get(id);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        partitions.get(entry.originId).get(entry.oid);  // Mark as recently used
+        return entry.oid;
+    }
+
+    synchronized void put(long originId, String oid, long id) {
+        if (originId == 0 || id == 0 || TextUtils.isEmpty(oid)) {
+            return;
+        }
+        removeId(id);
+        Partition partition = partitions.get(originId);
+        if (partition == null) {
+            partition = new Partition();
+            partitions.put(originId, partition);
+        }
+        Entry entry = new Entry(originId, oid, id);
+        Entry replaced = partition.put(oid, entry);
+        if (replaced != null) {
+            byId.remove(replaced.id);
+        }
+        byId.put(id, entry);
+    }
+
+    synchronized void removeId(long id) {
+        Entry entry = byId.get(id);
+        if (entry != null) {
+            byId.remove(id);
+            Partition partition = partitions.get(entry.originId);
+            if (partition != null) {
+                partition.remove(entry.oid);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        partitions.clear();
+        byId.clear();
+    }
+
+    synchronized int size() {
+        return byId.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public static String statsToString() {
+        return USERS.toString() + ", " + MESSAGES.toString();
+    }
+
+    @Override
+    public String toString() {
+        return MyLog.formatKeyValue("OidCache", oidEnum + ","
+                + "size:" + size() + ","
+                + "hits:" + getHits() + ","
+                + "misses:" + getMisses());
+    }
+}
@@ -16,21 +16,82 @@
 
 package org.andstatus.app.data;
 
+import android.app.SearchManager;
 import android.content.SearchRecentSuggestionsProvider;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
 
 import org.andstatus.app.ClassInApplicationPackage;
+import org.andstatus.app.context.MyContextHolder;
+
+import java.util.List;
 
 /**
- * TODO: Extend as in http://www.grokkingandroid.com/android-tutorial-adding-suggestions-to-search/
+ * Recent queries, followed by names of Authors, which start with the typed text,
+ * found with a prefix query to the {@link MyDatabase.MsgSearch} index
  */
 public class TimelineSearchSuggestionsProvider extends SearchRecentSuggestionsProvider {
     /** Note: This is historical constant, remained to preserve compatibility without reinstallation */
     public static final String AUTHORITY = ClassInApplicationPackage.PACKAGE_NAME + ".data.TimelineSuggestionProvider";
     public static final String DATABASE_NAME = "suggestions.db";
     public static final int MODE = DATABASE_MODE_QUERIES;
+    private static final int MAX_USER_NAMES = 5;
     
     public TimelineSearchSuggestionsProvider() {
         super();
         setupSuggestions(AUTHORITY, MODE);
     }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        Cursor recent = super.query(uri, projection, selection, selectionArgs, sortOrder);
+        if (recent == null || selectionArgs == null || selectionArgs.length == 0
+                || !uri.getPath().endsWith(SearchManager.SUGGEST_URI_PATH_QUERY)
+                || !MyContextHolder.get().isReady()) {
+            return recent;
+        }
+        List<String> names = MsgSearchIndex.suggestUserNames(
+                MyContextHolder.get().getDatabase().getReadableDatabase(), selectionArgs[0], MAX_USER_NAMES);
+        if (names.isEmpty()) {
+            return recent;
+        }
+        MatrixCursor cursor = new MatrixCursor(recent.getColumnNames());
+        try {
+            long id = 0;
+            while (recent.moveToNext()) {
+                id = Math.max(id, recent.getLong(recent.getColumnIndex(BaseColumns._ID)));
+                addRow(cursor, recent);
+            }
+            for (String name : names) {
+                addName(cursor, ++id, name);
+            }
+        } finally {
+            DbUtils.closeSilently(recent);
+        }
+        return cursor;
+    }
+
+    private static void addRow(MatrixCursor cursor, Cursor recent) {
+        Object[] row = new Object[recent.getColumnCount()];
+        for (int index = 0; index < row.length; index++) {
+            row[index] = recent.getString(index);
+        }
+        cursor.addRow(row);
+    }
+
+    private static void addName(MatrixCursor cursor, long id, String name) {
+        MatrixCursor.RowBuilder row = cursor.newRow();
+        for (String column : cursor.getColumnNames()) {
+            if (BaseColumns._ID.equals(column)) {
+                row.add(id);
+            } else if (SearchManager.SUGGEST_COLUMN_TEXT_1.equals(column)
+                    || SearchManager.SUGGEST_COLUMN_QUERY.equals(column)) {
+                row.add(name);
+            } else {
+                row.add(null);
+            }
+        }
+    }
 }
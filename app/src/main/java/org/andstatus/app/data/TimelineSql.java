@@ -38,213 +38,229 @@ import org.andstatus.app.origin.OriginType;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TimelineSql {
     private TimelineSql() {
         // Empty
     }
 
+    /**
+     * Tables, additional WHERE clause and projection map of a timeline query.
+     * All tables are joined directly (without nested SELECTs),
+     * so SQLite can use indexes of the base tables for all joins
+     */
+    static final class Tables {
+        /** For {@link SQLiteQueryBuilder#setTables(String)} */
+        final String tables;
+        /** Empty if not needed */
+        final String where;
+        /** For {@link SQLiteQueryBuilder#setProjectionMap(Map)} */
+        final Map<String, String> projectionMap;
+
+        private Tables(String tables, String where, Map<String, String> projectionMap) {
+            this.tables = tables;
+            this.where = where;
+            this.projectionMap = projectionMap;
+        }
+    }
+
     /**
      * @param uri the same as uri for
      *            {@link MyProvider#query(Uri, String[], String, String[], String)}
      * @param projection
-     * @return String for {@link SQLiteQueryBuilder#setTables(String)}
+     * @param selection WHERE clause of the query. Columns, which are present in several joined tables,
+     *                  should be qualified, see {@link #msgColumn(String)} and {@link #msgOfUserColumn(String)}
      */
-    static String tablesForTimeline(Uri uri, String[] projection) {
+    static Tables tablesForTimeline(Uri uri, String[] projection, String selection) {
         ParsedUri uriParser = ParsedUri.fromUri(uri);
         TimelineType tt = uriParser.getTimelineType();
         SelectedUserIds selectedAccounts = new SelectedUserIds(uriParser.isCombined(), uriParser.getAccountUserId());
     
         Collection<String> columns = new java.util.HashSet<String>(Arrays.asList(projection));
-    
-        String msgTable = Msg.TABLE_NAME;
-        String where = "";
+        Map<String, String> projectionMap = new HashMap<String, String>(ProjectionMap.MSG);
+        qualifyColumns(projectionMap, ProjectionMap.MSG_TABLE_ALIAS, MSG_COLUMNS);
+        qualifyColumns(projectionMap, MSG_OF_USER_ALIAS, MSG_OF_USER_COLUMNS);
 
-        boolean linkedUserDefined = false;
-        boolean authorNameDefined = false;
+        String msg = ProjectionMap.MSG_TABLE_ALIAS;
+        String tables = Msg.TABLE_NAME + " AS " + msg;
+        List<String> where = new ArrayList<String>();
+        // Expression for the User.LINKED_USER_ID or empty if not defined yet
+        String linkedUser = "";
         String authorTableName = "";
         switch (tt) {
             case FOLLOWING_USER:
-                msgTable = "(SELECT " + FollowingUser.FOLLOWING_USER_ID + ", "
-                        + FollowingUser.USER_ID + " AS " + User.LINKED_USER_ID
-                        + " FROM " + FollowingUser.TABLE_NAME
-                        + " WHERE (" + MyDatabase.User.LINKED_USER_ID + selectedAccounts.getSql()
-                        + " AND " + MyDatabase.FollowingUser.USER_FOLLOWED + "=1 )"
-                        + ") as fuser";
-                linkedUserDefined = true;
-                boolean defineAuthorName = !authorNameDefined && columns.contains(MyDatabase.User.AUTHOR_NAME);
-                if (defineAuthorName) {
-                    authorNameDefined = true;
-                    authorTableName = "u1";
-                }
-                String userTable = "(SELECT "
-                        + BaseColumns._ID
-                        + (defineAuthorName ? ", " + MyDatabase.User.USERNAME + " AS " + MyDatabase.User.AUTHOR_NAME : "")
-                        + ", " + MyDatabase.User.USER_MSG_ID
-                        + " FROM " + User.TABLE_NAME + ")";
-                msgTable += " INNER JOIN " + userTable + " as u1"
-                        + " ON (" + FollowingUser.FOLLOWING_USER_ID + "=u1." + BaseColumns._ID + ")";
-                /**
-                 * Select only the latest message from each following User's
-                 * timeline
-                 */
-                msgTable  += " LEFT JOIN " + Msg.TABLE_NAME + " AS " + ProjectionMap.MSG_TABLE_ALIAS
-                        + " ON ("
-                        + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.SENDER_ID
-                        + "=fuser." + MyDatabase.FollowingUser.FOLLOWING_USER_ID
-                        + " AND " + ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID
-                        + "=u1." + MyDatabase.User.USER_MSG_ID
+                tables = FollowingUser.TABLE_NAME + " AS fuser"
+                        + " INNER JOIN " + User.TABLE_NAME + " AS u1"
+                        + " ON fuser." + FollowingUser.FOLLOWING_USER_ID + "=u1." + BaseColumns._ID
+                        // Select only the latest message from each following User's timeline
+                        + " LEFT JOIN " + Msg.TABLE_NAME + " AS " + msg
+                        + " ON (" + msg + "." + Msg.SENDER_ID + "=fuser." + FollowingUser.FOLLOWING_USER_ID
+                        + " AND " + msg + "." + BaseColumns._ID + "=u1." + User.USER_MSG_ID
                         + ")";
+                where.add("fuser." + FollowingUser.USER_ID + selectedAccounts.getSql());
+                where.add("fuser." + FollowingUser.USER_FOLLOWED + "=1");
+                linkedUser = "fuser." + FollowingUser.USER_ID;
+                authorTableName = "u1";
+                projectionMap.put(User.AUTHOR_NAME, "u1." + User.USERNAME + " AS " + User.AUTHOR_NAME);
                 break;
             case MESSAGES_TO_ACT:
                 if (selectedAccounts.size() == 1) {
-                    msgTable = "SELECT " + selectedAccounts.getList() + " AS " + MyDatabase.User.LINKED_USER_ID
-                            + ", * FROM " + Msg.TABLE_NAME;
-                    linkedUserDefined = true;
+                    linkedUser = selectedAccounts.getList();
                 }
                 break;
             case PUBLIC:
-                where = Msg.PUBLIC + "=1";
+                where.add(msg + "." + Msg.PUBLIC + "=1");
                 break;
             case DRAFTS:
-                where = Msg.MSG_STATUS + "=" + DownloadStatus.DRAFT.save();
+                where.add(msg + "." + Msg.MSG_STATUS + "=" + DownloadStatus.DRAFT.save());
                 break;
             case OUTBOX:
-                where = Msg.MSG_STATUS + "=" + DownloadStatus.SENDING.save();
+                where.add(msg + "." + Msg.MSG_STATUS + "=" + DownloadStatus.SENDING.save());
                 break;
             case EVERYTHING:
             default:
                 break;
         }
 
-        String tables = msgTable;
-        if (!tables.contains(" AS " + ProjectionMap.MSG_TABLE_ALIAS)) {
-            if (tt.atOrigin() && !uriParser.isCombined()) {
-                MyAccount ma = MyContextHolder.get().persistentAccounts().fromUserId(uriParser.getAccountUserId());
-                if (ma.isValid()) {
-                    if (!TextUtils.isEmpty(where)) {
-                        where += " AND ";
-                    }
-                    where += Msg.ORIGIN_ID + "=" + ma.getOriginId();
-                }
+        if (tt != TimelineType.FOLLOWING_USER && tt.atOrigin() && !uriParser.isCombined()) {
+            MyAccount ma = MyContextHolder.get().persistentAccounts().fromUserId(uriParser.getAccountUserId());
+            if (ma.isValid()) {
+                where.add(msg + "." + Msg.ORIGIN_ID + "=" + ma.getOriginId());
             }
-            tables = "(SELECT * FROM (" + msgTable + ")"
-                            + (TextUtils.isEmpty(where) ? "" : " WHERE (" + where + ")")
-                            + ") AS " + ProjectionMap.MSG_TABLE_ALIAS;
         }
 
-        if (columns.contains(MyDatabase.MsgOfUser.FAVORITED)
-                || (columns.contains(MyDatabase.User.LINKED_USER_ID) && !linkedUserDefined)
-                ) {
-            String tbl = "(SELECT *" 
-                    + (linkedUserDefined ? "" : ", " + MyDatabase.MsgOfUser.USER_ID + " AS " 
-                    + MyDatabase.User.LINKED_USER_ID)   
-                    + " FROM " +  MsgOfUser.TABLE_NAME + ") AS mou ON "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID + "="
-                    + "mou." + MyDatabase.MsgOfUser.MSG_ID;
+        if (isMsgOfUserNeeded(columns, selection, !TextUtils.isEmpty(linkedUser))) {
+            String mou = MSG_OF_USER_ALIAS;
+            String on = " ON " + msg + "." + BaseColumns._ID + "=" + mou + "." + MsgOfUser.MSG_ID;
+            if (TextUtils.isEmpty(linkedUser)) {
+                linkedUser = mou + "." + MsgOfUser.USER_ID;
+            }
             switch (tt) {
                 case FOLLOWING_USER:
                 case MESSAGES_TO_ACT:
-                    tbl += " AND mou." + MyDatabase.MsgOfUser.USER_ID 
-                    + "=" + MyDatabase.User.LINKED_USER_ID;
-                    tables += " LEFT JOIN " + tbl;
+                    tables += " LEFT JOIN " + MsgOfUser.TABLE_NAME + " AS " + mou + on
+                            + " AND " + mou + "." + MsgOfUser.USER_ID + "=" + linkedUser;
                     break;
                 default:
-                    tbl += " AND " + MyDatabase.User.LINKED_USER_ID + selectedAccounts.getSql();
+                    on += " AND " + mou + "." + MsgOfUser.USER_ID + selectedAccounts.getSql();
                     if (tt.atOrigin()) {
-                        tables += " LEFT OUTER JOIN " + tbl;
+                        tables += " LEFT OUTER JOIN " + MsgOfUser.TABLE_NAME + " AS " + mou + on;
                     } else {
-                        tables += " INNER JOIN " + tbl;
+                        tables += " INNER JOIN " + MsgOfUser.TABLE_NAME + " AS " + mou + on;
                     }
                     break;
             }
         }
-    
-        if (!authorNameDefined && columns.contains(MyDatabase.User.AUTHOR_NAME)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT "
-                    + BaseColumns._ID + ", " 
-                    + TimelineSql.userNameField() + " AS " + MyDatabase.User.AUTHOR_NAME
-                    + " FROM " + User.TABLE_NAME + ") AS author ON "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.AUTHOR_ID + "=author."
-                    + BaseColumns._ID;
-            authorNameDefined = true;
+        if (!TextUtils.isEmpty(linkedUser)) {
+            projectionMap.put(User.LINKED_USER_ID, linkedUser + " AS " + User.LINKED_USER_ID);
+        }
+
+        if (TextUtils.isEmpty(authorTableName) && columns.contains(User.AUTHOR_NAME)) {
             authorTableName = "author";
+            tables += joinUserName(projectionMap, authorTableName, Msg.AUTHOR_ID, User.AUTHOR_NAME);
+        }
+        if (!TextUtils.isEmpty(authorTableName) && columns.contains(Download.AVATAR_FILE_NAME)) {
+            String av = ProjectionMap.AVATAR_IMAGE_TABLE_ALIAS;
+            tables += " LEFT OUTER JOIN " + Download.TABLE_NAME + " AS " + av
+                    + " ON " + av + "." + Download.DOWNLOAD_STATUS + "=" + DownloadStatus.LOADED.save()
+                    + " AND " + av + "." + Download.USER_ID + "=" + authorTableName + "." + BaseColumns._ID;
         }
-        if (authorNameDefined && columns.contains(MyDatabase.Download.AVATAR_FILE_NAME)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT "
-                    + MyDatabase.Download.USER_ID + ", "
-                    + MyDatabase.Download.DOWNLOAD_STATUS + ", "
-                    + MyDatabase.Download.FILE_NAME
-                    + " FROM " + MyDatabase.Download.TABLE_NAME + ") AS " + ProjectionMap.AVATAR_IMAGE_TABLE_ALIAS 
-                    + " ON "
-                    + "av." + Download.DOWNLOAD_STATUS 
-                    + "=" + DownloadStatus.LOADED.save() + " AND " 
-                    + "av." + MyDatabase.Download.USER_ID 
-                    + "=" + authorTableName + "." + BaseColumns._ID;
+        if (columns.contains(Download.IMAGE_FILE_NAME)) {
+            String img = ProjectionMap.ATTACHMENT_IMAGE_TABLE_ALIAS;
+            tables += " LEFT OUTER JOIN " + Download.TABLE_NAME + " AS " + img
+                    + " ON " + img + "." + Download.CONTENT_TYPE + "=" + MyContentType.IMAGE.save()
+                    + " AND " + img + "." + Download.MSG_ID + "=" + msg + "." + BaseColumns._ID;
         }
-        if (columns.contains(MyDatabase.Download.IMAGE_FILE_NAME)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT "
-                    + MyDatabase.Download._ID + ", "
-                    + MyDatabase.Download.MSG_ID + ", "
-                    + MyDatabase.Download.CONTENT_TYPE + ", "
-                    + (columns.contains(MyDatabase.Download.IMAGE_URL) ? MyDatabase.Download.URI + ", " : "")
-                    + MyDatabase.Download.FILE_NAME
-                    + " FROM " + MyDatabase.Download.TABLE_NAME + ") AS " + ProjectionMap.ATTACHMENT_IMAGE_TABLE_ALIAS 
-                    +  " ON "
-                    + ProjectionMap.ATTACHMENT_IMAGE_TABLE_ALIAS + "." + Download.CONTENT_TYPE 
-                    + "=" + MyContentType.IMAGE.save() + " AND " 
-                    + ProjectionMap.ATTACHMENT_IMAGE_TABLE_ALIAS + "." + MyDatabase.Download.MSG_ID 
-                    + "=" + ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID;
+        if (columns.contains(User.SENDER_NAME)) {
+            tables += joinUserName(projectionMap, "sender", Msg.SENDER_ID, User.SENDER_NAME);
         }
-        if (columns.contains(MyDatabase.User.SENDER_NAME)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT " + BaseColumns._ID + ", "
-                    + TimelineSql.userNameField() + " AS " + MyDatabase.User.SENDER_NAME
-                    + " FROM " + User.TABLE_NAME + ") AS sender ON "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.SENDER_ID + "=sender."
-                    + BaseColumns._ID;
+        if (columns.contains(User.IN_REPLY_TO_NAME)) {
+            tables += joinUserName(projectionMap, "prevauthor", Msg.IN_REPLY_TO_USER_ID, User.IN_REPLY_TO_NAME);
         }
-        if (columns.contains(MyDatabase.User.IN_REPLY_TO_NAME)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT " + BaseColumns._ID + ", "
-                    + TimelineSql.userNameField() + " AS " + MyDatabase.User.IN_REPLY_TO_NAME
-                    + " FROM " + User.TABLE_NAME + ") AS prevauthor ON "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.IN_REPLY_TO_USER_ID
-                    + "=prevauthor." + BaseColumns._ID;
+        if (columns.contains(User.RECIPIENT_NAME)) {
+            tables += joinUserName(projectionMap, "recipient", Msg.RECIPIENT_ID, User.RECIPIENT_NAME);
+        }
+        if (columns.contains(FollowingUser.AUTHOR_FOLLOWED)) {
+            tables += joinFollowing(projectionMap, "followingauthor", linkedUser, Msg.AUTHOR_ID,
+                    FollowingUser.AUTHOR_FOLLOWED);
+        }
+        if (columns.contains(FollowingUser.SENDER_FOLLOWED)) {
+            tables += joinFollowing(projectionMap, "followingsender", linkedUser, Msg.SENDER_ID,
+                    FollowingUser.SENDER_FOLLOWED);
+        }
+        return new Tables(tables, TextUtils.join(" AND ", where), projectionMap);
+    }
+
+    private static final String MSG_OF_USER_ALIAS = "mou";
+    private static final String[] MSG_COLUMNS = {Msg.ORIGIN_ID, Msg.MSG_OID, Msg.AUTHOR_ID,
+            Msg.SENDER_ID, Msg.BODY, Msg.VIA, Msg.URL, Msg.IN_REPLY_TO_MSG_ID, Msg.IN_REPLY_TO_USER_ID,
+            Msg.RECIPIENT_ID, Msg.CREATED_DATE, Msg.MSG_STATUS, Msg.SENT_DATE, Msg.INS_DATE};
+    private static final String[] MSG_OF_USER_COLUMNS = {MsgOfUser.USER_ID, MsgOfUser.DIRECTED,
+            MsgOfUser.FAVORITED, MsgOfUser.REBLOGGED, MsgOfUser.REBLOG_OID, MsgOfUser.SUBSCRIBED,
+            MsgOfUser.MENTIONED};
+
+    /** Column of the {@link Msg} table, qualified to be used in a selection of a timeline query */
+    public static String msgColumn(String columnName) {
+        return ProjectionMap.MSG_TABLE_ALIAS + "." + columnName;
+    }
+
+    /**
+     * Column of the {@link MsgOfUser} table, qualified to be used in a selection of a timeline query.
+     * The table is joined, if the selection refers to it
+     */
+    public static String msgOfUserColumn(String columnName) {
+        return MSG_OF_USER_ALIAS + "." + columnName;
+    }
+
+    /**
+     * Columns with the same names are present in several joined tables,
+     * so we qualify them with a table alias
+     */
+    private static void qualifyColumns(Map<String, String> projectionMap, String tableAlias, String[] columnNames) {
+        for (String columnName : columnNames) {
+            projectionMap.put(columnName, tableAlias + "." + columnName + " AS " + columnName);
         }
-        if (columns.contains(MyDatabase.User.RECIPIENT_NAME)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT " + BaseColumns._ID + ", "
-                    + TimelineSql.userNameField() + " AS " + MyDatabase.User.RECIPIENT_NAME
-                    + " FROM " + User.TABLE_NAME + ") AS recipient ON "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.RECIPIENT_ID + "=recipient."
-                    + BaseColumns._ID;
+    }
+
+    private static boolean isMsgOfUserNeeded(Collection<String> columns, String selection,
+                                             boolean linkedUserDefined) {
+        if (!TextUtils.isEmpty(selection) && selection.contains(msgOfUserColumn(""))) {
+            return true;
         }
-        if (columns.contains(MyDatabase.FollowingUser.AUTHOR_FOLLOWED)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT "
-                    + MyDatabase.FollowingUser.USER_ID + ", "
-                    + MyDatabase.FollowingUser.FOLLOWING_USER_ID + ", "
-                    + MyDatabase.FollowingUser.USER_FOLLOWED + " AS "
-                    + MyDatabase.FollowingUser.AUTHOR_FOLLOWED
-                    + " FROM " + FollowingUser.TABLE_NAME + ") AS followingauthor ON ("
-                    + "followingauthor." + MyDatabase.FollowingUser.USER_ID + "=" + MyDatabase.User.LINKED_USER_ID
-                    + " AND "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.AUTHOR_ID
-                    + "=followingauthor." + MyDatabase.FollowingUser.FOLLOWING_USER_ID
-                    + ")";
+        if (!linkedUserDefined && (columns.contains(User.LINKED_USER_ID)
+                || columns.contains(FollowingUser.AUTHOR_FOLLOWED)
+                || columns.contains(FollowingUser.SENDER_FOLLOWED))) {
+            return true;
         }
-        if (columns.contains(MyDatabase.FollowingUser.SENDER_FOLLOWED)) {
-            tables = "(" + tables + ") LEFT OUTER JOIN (SELECT "
-                    + MyDatabase.FollowingUser.USER_ID + ", "
-                    + MyDatabase.FollowingUser.FOLLOWING_USER_ID + ", "
-                    + MyDatabase.FollowingUser.USER_FOLLOWED + " AS "
-                    + MyDatabase.FollowingUser.SENDER_FOLLOWED
-                    + " FROM " + FollowingUser.TABLE_NAME + ") AS followingsender ON ("
-                    + "followingsender." + MyDatabase.FollowingUser.USER_ID + "=" + MyDatabase.User.LINKED_USER_ID
-                    + " AND "
-                    + ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.SENDER_ID
-                    + "=followingsender." + MyDatabase.FollowingUser.FOLLOWING_USER_ID
-                    + ")";
+        for (String columnName : MSG_OF_USER_COLUMNS) {
+            if (columns.contains(columnName)) {
+                return true;
+            }
         }
-        return tables;
+        return false;
+    }
+
+    private static String joinUserName(Map<String, String> projectionMap, String userTableAlias,
+                                       String msgUserIdColumn, String userNameColumn) {
+        projectionMap.put(userNameColumn, userNameField(userTableAlias) + " AS " + userNameColumn);
+        return " LEFT OUTER JOIN " + User.TABLE_NAME + " AS " + userTableAlias
+                + " ON " + ProjectionMap.MSG_TABLE_ALIAS + "." + msgUserIdColumn
+                + "=" + userTableAlias + "." + BaseColumns._ID;
+    }
+
+    private static String joinFollowing(Map<String, String> projectionMap, String followingTableAlias,
+                                        String linkedUser, String msgUserIdColumn, String followedColumn) {
+        projectionMap.put(followedColumn, followingTableAlias + "." + FollowingUser.USER_FOLLOWED
+                + " AS " + followedColumn);
+        return " LEFT OUTER JOIN " + FollowingUser.TABLE_NAME + " AS " + followingTableAlias + " ON ("
+                + followingTableAlias + "." + FollowingUser.USER_ID + "=" + linkedUser
+                + " AND "
+                + ProjectionMap.MSG_TABLE_ALIAS + "." + msgUserIdColumn
+                + "=" + followingTableAlias + "." + FollowingUser.FOLLOWING_USER_ID
+                + ")";
     }
 
     /** 
@@ -330,5 +346,9 @@ public class TimelineSql {
         UserInTimeline userInTimeline = MyPreferences.userInTimeline();
         return MyQuery.userNameField(userInTimeline);
     }
+
+    static String userNameField(String userTableAlias) {
+        return MyQuery.userNameField(MyPreferences.userInTimeline(), userTableAlias);
+    }
     
 }
@@ -18,7 +18,6 @@
 package org.andstatus.app.data;
 
 import android.database.Cursor;
-import android.graphics.drawable.Drawable;
 import android.text.Html;
 import android.text.TextUtils;
 import android.view.View;
@@ -159,16 +158,15 @@ public class TimelineViewBinder implements ViewBinder {
         if (columnIndex >= 0) {
             filename = cursor.getString(columnIndex);
         }
-        AvatarDrawable avatarDrawable = new AvatarDrawable(authorId, filename);
-        view.setImageDrawable(avatarDrawable.getDrawable());
+        new AvatarDrawable(authorId, filename).showIn(view);
     }
 
     private void setAttachedImage(Cursor cursor, ImageView view) {
-        Drawable drawable = AttachedImageDrawable.drawableFromCursor(cursor);
+        AttachedImageDrawable drawable = AttachedImageDrawable.fromCursor(cursor);
         if (drawable != null) {
-            view.setVisibility(View.VISIBLE);
-            view.setImageDrawable(drawable);
+            drawable.showIn(view);
         } else {
+            ImageLoadTask.cancel(view);
             view.setVisibility(View.GONE);
         }
     }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.andstatus.app.util.MyLog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The file of an image, attached to a message, which is uploaded when the message is sent.
+ * A JPEG photo, which is larger than {@link #MAX_IMAGE_SIZE} pixels or than the upload limit of the origin,
+ * is downscaled and recompressed to a separate file first, keeping the EXIF orientation of the photo.
+ * Other images are uploaded as they are,
+ * so e.g. transparency and animation are not lost.
+ * The downscaled file is kept till the message is sent, so a retry of the command uploads the same file.
+ * It is deleted also, when the command is dropped from the queues or when the message is deleted
+ * @author yvolk@yurivolkov.com
+ */
+public class UploadFile {
+    private static final String TAG = UploadFile.class.getSimpleName();
+    /** Larger side of a downscaled image, which is enough to view it on any screen */
+    static final int MAX_IMAGE_SIZE = 2048;
+    static final int MIN_JPEG_QUALITY = 55;
+    private static final int JPEG_QUALITY_STEP = 10;
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    private final DownloadFile original;
+    private final DownloadFile scaled;
+
+    public UploadFile(DownloadData attachment) {
+        this(attachment.getFile(), new DownloadFile(filenameOf(attachment.getDownloadId())));
+    }
+
+    UploadFile(DownloadFile original, DownloadFile scaled) {
+        this.original = original;
+        this.scaled = scaled;
+    }
+
+    static String filenameOf(long downloadId) {
+        return "upload_" + Long.toString(downloadId) + ".jpg";
+    }
+
+    /**
+     * @param uploadLimit Maximum size of the file in bytes, 0 if unknown
+     * @return Uri of the file to upload
+     */
+    public Uri prepare(long uploadLimit) {
+        if (!original.exists()) {
+            return FileProvider.downloadFilenameToUri(original.getFilename());
+        }
+        if (scaled.exists() && scaled.getFile().lastModified() >= original.getFile().lastModified()) {
+            return FileProvider.downloadFilenameToUri(scaled.getFilename());
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(original.getFile().getAbsolutePath(), bounds);
+        Point imageSize = new Point(bounds.outWidth, bounds.outHeight);
+        if (JPEG_MIME_TYPE.equals(bounds.outMimeType)
+                && (Math.max(imageSize.x, imageSize.y) > MAX_IMAGE_SIZE
+                    || (uploadLimit > 0 && original.getSize() > uploadLimit))
+                && downscale(imageSize, uploadLimit)) {
+            return FileProvider.downloadFilenameToUri(scaled.getFilename());
+        }
+        return FileProvider.downloadFilenameToUri(original.getFilename());
+    }
+
+    /**
+     * Lowers the quality first and then the size of the image, until the file fits into the limit
+     * @return true if the downscaled file was written
+     */
+    private boolean downscale(Point imageSize, long uploadLimit) {
+        File temp = new File(scaled.getFile().getAbsolutePath() + ".tmp");
+        int inSampleSize = ImageCache.fitInSampleSize(imageSize, new Point(MAX_IMAGE_SIZE, MAX_IMAGE_SIZE));
+        while (imageSize.x / inSampleSize > 0 && imageSize.y / inSampleSize > 0) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = inSampleSize;
+            Bitmap bitmap = BitmapFactory.decodeFile(original.getFile().getAbsolutePath(), options);
+            if (bitmap == null) {
+                MyLog.d(TAG, "Failed to decode " + original);
+                return false;
+            }
+            try {
+                for (int quality = ImageCache.JPEG_QUALITY; quality >= MIN_JPEG_QUALITY;
+                     quality -= JPEG_QUALITY_STEP) {
+                    if (!compress(bitmap, quality, temp)) {
+                        deleteFile(temp);
+                        return false;
+                    }
+                    copyOrientation(original.getFile(), temp);
+                    if (uploadLimit <= 0 || temp.length() <= uploadLimit) {
+                        MyLog.v(TAG, "Downscaled " + original + " " + imageSize.x + "x" + imageSize.y
+                                + " to " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", quality:" + quality
+                                + ", " + original.getSize() / 1024 + "K to " + temp.length() / 1024 + "K");
+                        scaled.delete();
+                        return temp.renameTo(scaled.getFile());
+                    }
+                }
+            } finally {
+                bitmap.recycle();
+            }
+            inSampleSize *= 2;
+        }
+        deleteFile(temp);
+        return false;
+    }
+
+    private static boolean compress(Bitmap bitmap, int quality, File file) {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            return bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        } catch (IOException e) {
+            MyLog.d(TAG, "Failed to write " + file, e);
+            return false;
+        } finally {
+            DbUtils.closeSilently(out);
+        }
+    }
+
+    /**
+     * The compressed bitmap has no EXIF, so without the tag a photo, taken e.g. in portrait, would be shown rotated
+     */
+    private static void copyOrientation(File from, File to) {
+        try {
+            String orientation = new ExifInterface(from.getAbsolutePath()).getAttribute(ExifInterface.TAG_ORIENTATION);
+            if (!TextUtils.isEmpty(orientation)
+                    && !String.valueOf(ExifInterface.ORIENTATION_NORMAL).equals(orientation)) {
+                ExifInterface exif = new ExifInterface(to.getAbsolutePath());
+                exif.setAttribute(ExifInterface.TAG_ORIENTATION, orientation);
+                exif.saveAttributes();
+            }
+        } catch (IOException e) {
+            MyLog.d(TAG, "Failed to copy orientation to " + to, e);
+        }
+    }
+
+    /**
+     * The downscaled file is not needed, after the message was sent
+     */
+    public void deleteScaled() {
+        scaled.delete();
+    }
+
+    /**
+     * The message won't be sent, unless it is sent again, and then its image will be downscaled again
+     */
+    public static void deleteScaledOfMessage(long msgId) {
+        DownloadData dd = DownloadData.getSingleForMessage(msgId, MyContentType.IMAGE, Uri.EMPTY);
+        if (dd.getDownloadId() != 0) {
+            new DownloadFile(filenameOf(dd.getDownloadId())).delete();
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            MyLog.v(TAG, "Couldn't delete " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MyLog.objTagToString(this) + " [original=" + original + ", scaled=" + scaled + "]";
+    }
+}
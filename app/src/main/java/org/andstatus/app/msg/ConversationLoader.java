@@ -19,6 +19,7 @@ package org.andstatus.app.msg;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.BaseColumns;
 
 import org.andstatus.app.LoadableListActivity;
 import org.andstatus.app.LoadableListActivity.ProgressPublisher;
@@ -27,7 +28,9 @@ import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.MatchedUri;
+import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyQuery;
+import org.andstatus.app.data.ProjectionMap;
 import org.andstatus.app.data.TimelineType;
 import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.CommandEnum;
@@ -36,10 +39,16 @@ import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.TFactory;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ConversationLoader<T extends ConversationItem> implements SyncLoader {
     private static final int MAX_INDENT_LEVEL = 19;
@@ -58,8 +67,6 @@ public class ConversationLoader<T extends ConversationItem> implements SyncLoade
         return mMsgs;
     }
 
-    List<Long> idsOfTheMessagesToFind = new ArrayList<Long>();
-
     public ConversationLoader(Class<T> tClass, Context context, MyAccount ma, long selectedMessageId) {
         tFactory = new TFactory<T>(tClass);
         this.context = context;
@@ -67,13 +74,16 @@ public class ConversationLoader<T extends ConversationItem> implements SyncLoade
         this.selectedMessageId = selectedMessageId;
     }
     
+    /**
+     * Finds the root of the conversation and then loads the whole reply tree
+     * level by level, with one query per level
+     */
     @Override
     public void load(ProgressPublisher publisher) {
         mProgress = publisher;
-        idsOfTheMessagesToFind.clear();
         mMsgs.clear();
-        findPreviousMessagesRecursively(newOMsg(selectedMessageId, 0));
-        Collections.sort(mMsgs, replyLevelComparator);
+        List<Long> ancestors = findAncestors(selectedMessageId);
+        loadReplyTree(ancestors.get(ancestors.size() - 1), 1 - ancestors.size());
         enumerateMessages();
         if (MyPreferences.getBoolean(
                 MyPreferences.KEY_OLD_MESSAGES_FIRST_IN_CONVERSATION, false)) {
@@ -82,49 +92,104 @@ public class ConversationLoader<T extends ConversationItem> implements SyncLoade
         Collections.sort(mMsgs);
     }
 
-    private void findPreviousMessagesRecursively(T oMsg) {
-        if (!addMessageIdToFind(oMsg.getMsgId())) {
-            return;
+    /**
+     * @return ids of the message and of the messages it replies to, the root of the conversation is the last.
+     * A message, which is referred to, but is absent in the database, is not an ancestor,
+     * so the root is the oldest message we have
+     */
+    private List<Long> findAncestors(long msgId) {
+        List<Long> ancestors = new ArrayList<Long>();
+        ancestors.add(msgId);
+        long ancestorId = MyQuery.msgIdToLongColumnValue(Msg.IN_REPLY_TO_MSG_ID, msgId);
+        while (ancestorId != 0) {
+            if (ancestors.contains(ancestorId)) {
+                MyLog.v(this, "findAncestors cycled on the id=" + ancestorId);
+                break;
+            }
+            if (MyQuery.msgIdToLongColumnValue(BaseColumns._ID, ancestorId) != ancestorId) {
+                MyLog.v(this, "findAncestors; no message with id=" + ancestorId);
+                break;
+            }
+            ancestors.add(ancestorId);
+            ancestorId = MyQuery.msgIdToLongColumnValue(Msg.IN_REPLY_TO_MSG_ID, ancestorId);
         }
-        findRepliesRecursively(oMsg);
-        MyLog.v(this, "findPreviousMessages id=" + oMsg.getMsgId());
-        loadMessageFromDatabase(oMsg);
-        if (oMsg.isLoaded()) {
-            if (addMessageToList(oMsg)) {
-                if (oMsg.mInReplyToMsgId != 0) {
-                    findPreviousMessagesRecursively(newOMsg(oMsg.mInReplyToMsgId,
-                            oMsg.mReplyLevel - 1));
-                } else {
-                    checkInReplyToNameOf(oMsg);                    
+        return ancestors;
+    }
+
+    /**
+     * Breadth-first: each level is loaded by one query for replies to all messages of the previous level
+     */
+    private void loadReplyTree(long rootId, int rootReplyLevel) {
+        Map<Long, T> found = new HashMap<Long, T>();
+        List<T> level = loadLevel(found, msgColumn(BaseColumns._ID) + "=" + rootId, rootReplyLevel);
+        if (level.isEmpty() && mAllowLoadingFromInternet) {
+            loadFromInternet(rootId);
+        }
+        for (T oMsg : level) {
+            if (oMsg.isLoaded() && oMsg.mInReplyToMsgId == 0) {
+                checkInReplyToNameOf(oMsg);
+            }
+        }
+        while (!level.isEmpty()) {
+            StringBuilder parentIds = new StringBuilder();
+            for (T oMsg : level) {
+                if (parentIds.length() > 0) {
+                    parentIds.append(",");
+                }
+                parentIds.append(oMsg.getMsgId());
+            }
+            level = loadLevel(found, msgColumn(Msg.IN_REPLY_TO_MSG_ID) + " IN (" + parentIds + ")",
+                    level.get(0).mReplyLevel + 1);
+            for (T reply : level) {
+                T parent = found.get(reply.mInReplyToMsgId);
+                if (parent != null) {
+                    parent.mNReplies++;
                 }
             }
-        } else if (mAllowLoadingFromInternet) {
-            loadFromInternet(oMsg.getMsgId());
         }
     }
-    
-    /** Returns true if message was added 
-     *          false in a case the message existed already 
-     * */
-    private boolean addMessageIdToFind(long msgId) {
-        if (msgId == 0) {
-            return false;
-        } else if (idsOfTheMessagesToFind.contains(msgId)) {
-            MyLog.v(this, "findMessages cycled on the id=" + msgId);
-            return false;
-        }
-        idsOfTheMessagesToFind.add(msgId);
-        return true;
+
+    private static String msgColumn(String columnName) {
+        return ProjectionMap.MSG_TABLE_ALIAS + "." + columnName;
     }
 
-    public void findRepliesRecursively(T oMsg) {
-        MyLog.v(this, "findReplies for id=" + oMsg.getMsgId());
-        List<Long> replies = MyQuery.getReplyIds(oMsg.getMsgId());
-        oMsg.mNReplies = replies.size();
-        for (long replyId : replies) {
-            T oMsgReply = newOMsg(replyId, oMsg.mReplyLevel + 1);
-            findPreviousMessagesRecursively(oMsgReply);
+    /**
+     * Rows of each message are adjacent, {@link ConversationItem#load(Cursor)} reads all of them
+     * @return Messages of the level, including not loaded ones, whose replies we still need to find
+     */
+    private List<T> loadLevel(Map<Long, T> found, String selection, int replyLevel) {
+        List<T> level = new ArrayList<T>();
+        Uri uri = MatchedUri.getTimelineUri(ma.getUserId(), TimelineType.EVERYTHING, true, 0);
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, tFactory.newT().getProjection(), selection, null,
+                    msgColumn(BaseColumns._ID));
+            if (cursor != null) {
+                int idColumnIndex = cursor.getColumnIndex(BaseColumns._ID);
+                while (cursor.moveToNext()) {
+                    long msgId = cursor.getLong(idColumnIndex);
+                    if (found.containsKey(msgId)) {
+                        continue;
+                    }
+                    T oMsg = newOMsg(msgId, replyLevel);
+                    oMsg.load(cursor);
+                    found.put(msgId, oMsg);
+                    level.add(oMsg);
+                    if (oMsg.isLoaded()) {
+                        mMsgs.add(oMsg);
+                    } else if (mAllowLoadingFromInternet) {
+                        loadFromInternet(msgId);
+                    }
+                }
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        MyLog.v(this, "Level " + replyLevel + ": " + level.size() + " messages");
+        if (mProgress != null && !level.isEmpty()) {
+            mProgress.publish(Integer.toString(mMsgs.size()));
         }
+        return level;
     }
     
     private T newOMsg(long msgId, int replyLevel) {
@@ -134,40 +199,13 @@ public class ConversationLoader<T extends ConversationItem> implements SyncLoade
         return oMsg;
     }
     
-    private void loadMessageFromDatabase(ConversationItem oMsg) {
-        Uri uri = MatchedUri.getTimelineItemUri(ma.getUserId(), TimelineType.EVERYTHING, true, 0, oMsg.getMsgId());
-        Cursor cursor = null;
-        try {
-            cursor = context.getContentResolver().query(uri, oMsg.getProjection(), null, null, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                oMsg.load(cursor);
-            }
-        } finally {
-            DbUtils.closeSilently(cursor);
-        }
-    }
-
-    private boolean addMessageToList(T oMsg) {
-        boolean added = false;
-        if (mMsgs.contains(oMsg)) {
-            MyLog.v(this, "Message id=" + oMsg.getMsgId() + " is in the list already");
-        } else {
-            mMsgs.add(oMsg);
-            if (mProgress != null) {
-                mProgress.publish(Integer.toString(mMsgs.size()));
-            }
-            added = true;
-        }
-        return added;
-    }
-    
     private void checkInReplyToNameOf(T oMsg) {
         if (oMsg.isWrongReply()) {
             // Don't try to retrieve this message again. 
             // It looks like such messages really exist.
             T oMsg2 = newOMsg(0, oMsg.mReplyLevel-1);
             oMsg2.copyFromWrongReply(oMsg);
-            addMessageToList(oMsg2);
+            mMsgs.add(oMsg2);
         }
     }
 
@@ -202,41 +240,72 @@ public class ConversationLoader<T extends ConversationItem> implements SyncLoade
         int list = -1;
         int history = 1;
     }
+
+    private static class Branch<T> {
+        final T oMsg;
+        final int indent;
+
+        Branch(T oMsg, int indent) {
+            this.oMsg = oMsg;
+            this.indent = indent;
+        }
+    }
     
+    /**
+     * Numbers messages depth-first, starting from the upper levels and the oldest messages,
+     * replies of each message are found in the parent to children index
+     */
     private void enumerateMessages() {
-        idsOfTheMessagesToFind.clear();
-        for (ConversationItem oMsg : mMsgs) {
+        Map<Long, List<T>> replies = new HashMap<Long, List<T>>();
+        for (T oMsg : mMsgs) {
             oMsg.mListOrder = 0;
             oMsg.mHistoryOrder = 0;
+            if (oMsg.mInReplyToMsgId != 0) {
+                List<T> list = replies.get(oMsg.mInReplyToMsgId);
+                if (list == null) {
+                    list = new ArrayList<T>();
+                    replies.put(oMsg.mInReplyToMsgId, list);
+                }
+                list.add(oMsg);
+            }
+        }
+        for (List<T> list : replies.values()) {
+            Collections.sort(list, replyLevelComparator);
         }
+        List<T> sorted = new ArrayList<T>(mMsgs);
+        Collections.sort(sorted, replyLevelComparator);
+        Set<Long> enumerated = new HashSet<Long>();
         OrderCounters order = new OrderCounters();
-        for (int ind = mMsgs.size()-1; ind >= 0; ind--) {
-            ConversationItem oMsg = mMsgs.get(ind);
-            if (oMsg.mListOrder < 0 ) {
-                continue;
-            }
-            enumerateBranch(oMsg, order, 0);
+        for (int ind = sorted.size() - 1; ind >= 0; ind--) {
+            enumerateBranch(sorted.get(ind), order, replies, enumerated);
         }
     }
 
-    private void enumerateBranch(ConversationItem oMsg, OrderCounters order, int indent) {
-        if (!addMessageIdToFind(oMsg.getMsgId())) {
-            return;
-        }
-        int indentNext = indent;
-        oMsg.mHistoryOrder = order.history++;
-        oMsg.mListOrder = order.list--;
-        oMsg.mIndentLevel = indent;
-        if ((oMsg.mNReplies > 1 || oMsg.mNParentReplies > 1)
-                && indentNext < MAX_INDENT_LEVEL) {
-            indentNext++;
-        }
-        for (int ind = mMsgs.size() - 1; ind >= 0; ind--) {
-           ConversationItem reply = mMsgs.get(ind);
-           if (reply.mInReplyToMsgId == oMsg.getMsgId()) {
-               reply.mNParentReplies = oMsg.mNReplies;
-               enumerateBranch(reply, order, indentNext);
-           }
+    private void enumerateBranch(T root, OrderCounters order, Map<Long, List<T>> replies, Set<Long> enumerated) {
+        Deque<Branch<T>> stack = new ArrayDeque<Branch<T>>();
+        stack.push(new Branch<T>(root, 0));
+        while (!stack.isEmpty()) {
+            Branch<T> branch = stack.pop();
+            T oMsg = branch.oMsg;
+            if (oMsg.getMsgId() == 0 || !enumerated.add(oMsg.getMsgId())) {
+                continue;
+            }
+            int indentNext = branch.indent;
+            oMsg.mHistoryOrder = order.history++;
+            oMsg.mListOrder = order.list--;
+            oMsg.mIndentLevel = branch.indent;
+            if ((oMsg.mNReplies > 1 || oMsg.mNParentReplies > 1)
+                    && indentNext < MAX_INDENT_LEVEL) {
+                indentNext++;
+            }
+            List<T> list = replies.get(oMsg.getMsgId());
+            if (list != null) {
+                // The list is sorted from the newest, so the oldest reply is on top of the stack
+                for (T reply : list) {
+                    reply.mNParentReplies = oMsg.mNReplies;
+                    stack.push(new Branch<T>(reply, indentNext));
+                }
+            }
         }
     }
 
@@ -116,7 +116,9 @@ public class ConversationViewItem extends ConversationItem {
             }
             
             ind++;
-        } while (cursor.moveToNext());
+        } while (cursor.moveToNext() && cursor.getLong(cursor.getColumnIndex(Msg._ID)) == getMsgId());
+        // Rows of the next message are left for the next item
+        cursor.moveToPrevious();
     
         for (long rebloggerId : rebloggers) {
             if (!TextUtils.isEmpty(mRebloggersString)) {
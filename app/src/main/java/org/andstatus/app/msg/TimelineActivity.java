@@ -68,11 +68,13 @@ import org.andstatus.app.data.TimelineType;
 import org.andstatus.app.data.TimelineViewBinder;
 import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.CommandEnum;
+import org.andstatus.app.service.DownloadManager;
 import org.andstatus.app.service.MyServiceEvent;
 import org.andstatus.app.service.MyServiceEventsListener;
 import org.andstatus.app.service.MyServiceManager;
 import org.andstatus.app.service.MyServiceEventsReceiver;
 import org.andstatus.app.service.QueueViewer;
+import org.andstatus.app.service.TimelineStreamer;
 import org.andstatus.app.util.I18n;
 import org.andstatus.app.util.InstanceId;
 import org.andstatus.app.util.MyLog;
@@ -108,6 +110,8 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
      * The is no more items in the query, so don't try to load more pages
      */
     private boolean mNoMoreItems = false;
+    private int mVisibleFrom = -1;
+    private int mVisibleCount = 0;
 
     /**
      * For testing purposes
@@ -307,7 +311,8 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
         }
         if (!mFinishing) {
             MyContextHolder.get().setInForeground(true);
-            mServiceConnector.registerReceiver(this);
+            TimelineStreamer.startAll(MyContextHolder.get());
+            mServiceConnector.register();
             mMessageEditor.loadCurrentDraft();
         }
     }
@@ -326,7 +331,8 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
         if (MyLog.isVerboseEnabled()) {
             MyLog.v(this, method + "; instanceId=" + mInstanceId);
         }
-        mServiceConnector.unregisterReceiver(this);
+        mServiceConnector.unregister();
+        TimelineStreamer.stopAllDelayed();
         setSyncIndicator(method, false);
         mMessageEditor.saveAsBeingEditedAndHide();
         saveActivityState();
@@ -355,7 +361,7 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
     public void onDestroy() {
         MyLog.v(this,"onDestroy, instanceId=" + mInstanceId);
         if (mServiceConnector != null) {
-            mServiceConnector.unregisterReceiver(this);
+            mServiceConnector.unregister();
         }
         super.onDestroy();
     }
@@ -591,6 +597,39 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
                 queryListData(true);
             }
         }
+        onVisibleItemsChanged(view, firstVisibleItem, visibleItemCount);
+    }
+
+    /**
+     * Avatars and attachments, which are visible now, are downloaded first
+     */
+    private void onVisibleItemsChanged(AbsListView view, int firstVisibleItem, int visibleItemCount) {
+        if (firstVisibleItem == mVisibleFrom && visibleItemCount == mVisibleCount) {
+            return;
+        }
+        mVisibleFrom = firstVisibleItem;
+        mVisibleCount = visibleItemCount;
+        List<Long> userIds = new ArrayList<Long>();
+        List<Long> downloadIds = new ArrayList<Long>();
+        try {
+            for (int position = firstVisibleItem; position < firstVisibleItem + visibleItemCount; position++) {
+                Object item = view.getItemAtPosition(position);
+                if (item instanceof Cursor) {
+                    addIdFromColumn(userIds, (Cursor) item, MyDatabase.Msg.AUTHOR_ID);
+                    addIdFromColumn(downloadIds, (Cursor) item, MyDatabase.Download.IMAGE_ID);
+                }
+            }
+        } catch (Exception e) {
+            MyLog.v(this, e);
+        }
+        DownloadManager.setVisible(userIds, downloadIds);
+    }
+
+    private static void addIdFromColumn(List<Long> ids, Cursor cursor, String columnName) {
+        int columnIndex = cursor.getColumnIndex(columnName);
+        if (columnIndex > -1 && cursor.getLong(columnIndex) != 0) {
+            ids.add(cursor.getLong(columnIndex));
+        }
     }
 
     private String timelineTypeButtonText() {
@@ -849,6 +888,14 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
             mNoMoreItems = false;
         }
         MyLog.v(this, method + (loadOneMorePage ? "loadOneMorePage" : ""));
+        if (loadOneMorePage) {
+            Loader<Cursor> loader = getLoaderManager().getLoader(LOADER_ID);
+            if (loader instanceof TimelineCursorLoader1
+                    && ((TimelineCursorLoader1) loader).loadOlderPage()) {
+                setLoading(method, true);
+                return;
+            }
+        }
         Bundle args = new Bundle();
         args.putBoolean(IntentExtra.LOAD_ONE_MORE_PAGE.key, loadOneMorePage);
         args.putInt(IntentExtra.ROWS_LIMIT.key, calcRowsLimit(loadOneMorePage));
@@ -1186,6 +1233,7 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
     public void onReceive(CommandData commandData, MyServiceEvent event) {
         switch (event) {
             case BEFORE_EXECUTING_COMMAND:
+            case PROGRESS_EXECUTING_COMMAND:
                 showSyncIndicator(commandData);
                 break;
             case AFTER_EXECUTING_COMMAND:
@@ -1200,7 +1248,7 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
         }
     }
     
-    private void showSyncIndicator(CommandData commandData) {
+    private void showSyncIndicator(final CommandData commandData) {
         if (!mShowSyncIndicatorOnTimeline
                 || !isCommandToShowInSyncIndicator(commandData.getCommand())
                 || mMessageEditor.isVisible()) {
@@ -1217,7 +1265,9 @@ public class TimelineActivity extends MyListActivity implements MyServiceEventsL
             @Override
             protected void onPostExecute(String result) {
                 String syncMessage = getText(R.string.title_preference_syncing) + ": "
-                        + result;
+                        + result
+                        + (TextUtils.isEmpty(commandData.getResult().getProgress()) ? ""
+                            : " " + commandData.getResult().getProgress());
                 ((TextView) findViewById(R.id.sync_text)).setText(syncMessage);
                 MyLog.v(this, syncMessage);
             }
@@ -36,15 +36,41 @@ import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.MyServiceEvent;
 import org.andstatus.app.service.MyServiceEventsListener;
 import org.andstatus.app.service.MyServiceEventsReceiver;
+import org.andstatus.app.service.SyncScheduler;
 import org.andstatus.app.util.InstanceId;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.SelectionAndArgs;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
+ * Loads the timeline page by page, the newest page first. Older pages are appended on scroll
+ * and rows, added after the previous load, are merged as a delta (see {@link TimelinePages})
+ * instead of re-querying the whole timeline.
  * @author yvolk@yurivolkov.com
  */
 public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEventsListener {
     private final TimelineListParameters mParams;
     private Cursor mCursor = null;
+    /** Accessed in the UI thread only */
+    private final TimelinePages pages = new TimelinePages();
+    /** Only new rows were added since the previous load, so we may load them only */
+    private volatile boolean onlyNewRowsAdded = true;
+
+    private enum LoadMode {
+        /** The first page or, if the list position is being restored, all rows down to that position */
+        FIRST,
+        /** Reload all rows that are loaded already: some of them might have changed */
+        WINDOW,
+        OLDER_PAGE,
+        /** Rows, which were added since the previous load. If some of them are older than the newest loaded row,
+         * the {@link #WINDOW} is loaded instead */
+        NEWER_ROWS
+    }
+
+    /** A burst of executed commands, e.g. of avatar downloads, causes one requery per this period */
+    private static final long SERVICE_EVENTS_COALESCING_MILLIS = 1000;
 
     private long instanceId = InstanceId.next();
     private MyServiceEventsReceiver serviceConnector;
@@ -56,19 +82,19 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
     public TimelineCursorLoader1(TimelineListParameters params) {
         super(MyContextHolder.get().context());
         this.mParams = params;
-        serviceConnector = new MyServiceEventsReceiver(this);
+        serviceConnector = new MyServiceEventsReceiver(this, SERVICE_EVENTS_COALESCING_MILLIS);
     }
 
     @Override
     protected void onStartLoading() {
         final String method = "onStartLoading";
         logV(method, getParams());
-        serviceConnector.registerReceiver(getContext());
+        serviceConnector.register();
         if (mayReuseResult()) {
             logV(method, "reusing result");
             deliverResultsAndClean(mCursor);
         } else if (getParams().mReQuery || taskIsNotRunning()) {
-            restartLoader();
+            restartLoader(pages.isEmpty() ? LoadMode.FIRST : modeForChangedContent());
         }
     }
 
@@ -101,7 +127,29 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
         return ok;
     }
     
-    private void restartLoader() {
+    private LoadMode modeForChangedContent() {
+        if (!getParams().isKeysetPagingSupported() || pages.getNewest() == null) {
+            return LoadMode.FIRST;
+        }
+        return onlyNewRowsAdded ? LoadMode.NEWER_ROWS : LoadMode.WINDOW;
+    }
+
+    /**
+     * Append one more (older) page to the loaded rows
+     * @return false if this loader cannot do this, so the caller should restart the loader
+     */
+    public boolean loadOlderPage() {
+        if (!isStarted() || !getParams().isKeysetPagingSupported() || pages.getOldest() == null
+                || !taskIsNotRunning()) {
+            return false;
+        }
+        getParams().mLoadOneMorePage = true;
+        getParams().mIncrementallyLoadingPages = true;
+        restartLoader(LoadMode.OLDER_PAGE);
+        return true;
+    }
+
+    private void restartLoader(LoadMode mode) {
         final String method = "restartLoader";
         boolean ended = false;
         synchronized (asyncLoaderLock) {
@@ -110,7 +158,13 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
             }
             if (cancelAsyncTask(method)) {
                 try {
-                    asyncLoader = new AsyncLoader();
+                    if (mode != LoadMode.OLDER_PAGE) {
+                        getParams().mLoadOneMorePage = false;
+                        getParams().mIncrementallyLoadingPages = false;
+                        onlyNewRowsAdded = true;
+                    }
+                    asyncLoader = new AsyncLoader(mode, pages.getNewest(), pages.getOldest(),
+                            pages.getMaxMsgId());
                     asyncLoader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 } catch (Exception e) {
                     logD(method, "", e);
@@ -203,7 +257,7 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
     
     @Override
     protected void onReset() {
-        serviceConnector.unregisterReceiver(getContext());
+        serviceConnector.unregister();
         disposeResult();
         cancelAsyncTask("onReset");
     }
@@ -211,19 +265,63 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
     private void disposeResult() {
         DbUtils.closeSilently(mCursor, "disposeResult");
         mCursor = null;
+        pages.closeAll();
+    }
+
+    /** Called in the UI thread */
+    private Cursor mergeIntoPages(LoadMode mode, Cursor cursor, List<Cursor> toClose) {
+        if (cursor == null) {
+            return null;
+        }
+        switch (mode) {
+            case OLDER_PAGE:
+                pages.addOlder(cursor);
+                break;
+            case NEWER_ROWS:
+                pages.addNewer(cursor);
+                break;
+            default:
+                toClose.addAll(pages.replaceAll(cursor));
+                break;
+        }
+        logV("mergeIntoPages", mode + "; " + pages);
+        return pages.toCursor();
     }
     
     /**
      * @author yvolk@yurivolkov.com
      */
     private class AsyncLoader extends AsyncTask<Void, Void, Cursor> {
-        
+        /** May change from {@link LoadMode#NEWER_ROWS} to the {@link LoadMode#WINDOW} in the background */
+        private LoadMode mode;
+        private final TimelinePages.Key newest;
+        private final TimelinePages.Key oldest;
+        private final long maxMsgId;
+        private SelectionAndArgs sa;
+        private String sortOrder;
+
+        AsyncLoader(LoadMode mode, TimelinePages.Key newest, TimelinePages.Key oldest, long maxMsgId) {
+            this.mode = newest == null || oldest == null ? LoadMode.FIRST : mode;
+            this.newest = newest;
+            this.oldest = oldest;
+            this.maxMsgId = maxMsgId;
+        }
+
         @Override
         protected Cursor doInBackground(Void... voidParams) {
             markStart();
             prepareQueryInBackground();
             Cursor cursor = queryDatabase();
-            checkIfReloadIsNeeded(cursor);
+            if (mode == LoadMode.NEWER_ROWS && cursor != null && !TimelinePages.areAllNewerThan(cursor, newest)) {
+                logV("doInBackground", "Older rows were added, loading the window");
+                DbUtils.closeSilently(cursor, "olderRowsAdded");
+                mode = LoadMode.WINDOW;
+                prepareQueryInBackground();
+                cursor = queryDatabase();
+            }
+            if (mode == LoadMode.FIRST) {
+                checkIfReloadIsNeeded(cursor);
+            }
             return cursor;
         }
 
@@ -233,7 +331,7 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
             getParams().timelineToReload = TimelineType.UNKNOWN;
             
             if (MyLog.isVerboseEnabled()) {
-                logV("markStart", (TextUtils.isEmpty(getParams().mSearchQuery) ? ""
+                logV("markStart", mode + "; " + (TextUtils.isEmpty(getParams().mSearchQuery) ? ""
                         : "queryString=\"" + getParams().mSearchQuery + "\"; ")
                         + getParams().mTimelineType
                         + "; isCombined=" + (getParams().mTimelineCombined ? "yes" : "no"));
@@ -241,12 +339,30 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
         }
         
         private void prepareQueryInBackground() {
-            if (getParams().mLastItemSentDate > 0) {
-                getParams().mSa.addSelection(ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.SENT_DATE
-                        + " >= ?",
-                        new String[] {
-                            String.valueOf(getParams().mLastItemSentDate)
-                        });
+            sa = new SelectionAndArgs();
+            sa.addSelection(getParams().mSa.selection, getParams().mSa.selectionArgs);
+            sortOrder = TimelinePages.SORT_ORDER;
+            switch (mode) {
+                case OLDER_PAGE:
+                    oldest.addOlderThanThis(sa);
+                    sortOrder += " LIMIT 0," + TimelineListParameters.PAGE_SIZE;
+                    break;
+                case NEWER_ROWS:
+                    newest.addNewerThanThisOrAddedAfter(sa, maxMsgId);
+                    break;
+                case WINDOW:
+                    oldest.addThisOrNewer(sa);
+                    break;
+                default:
+                    if (getParams().mLastItemSentDate > 0) {
+                        sa.addSelection(ProjectionMap.MSG_TABLE_ALIAS + "." + MyDatabase.Msg.SENT_DATE
+                                + " >= ?",
+                                new String[] {
+                                    String.valueOf(getParams().mLastItemSentDate)
+                                });
+                    }
+                    sortOrder = getParams().mSortOrder;
+                    break;
             }
         }
 
@@ -256,8 +372,8 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
             for (int attempt = 0; attempt < 3 && !isCancelled(); attempt++) {
                 try {
                     cursor = MyContextHolder.get().context().getContentResolver()
-                            .query(getParams().mContentUri, getParams().mProjection, getParams().mSa.selection,
-                                    getParams().mSa.selectionArgs, getParams().mSortOrder);
+                            .query(getParams().mContentUri, getParams().mProjection, sa.selection,
+                                    sa.selectionArgs, sortOrder);
                     break;
                 } catch (IllegalStateException e) {
                     logD(method, "Attempt " + attempt + " to prepare cursor", e);
@@ -282,14 +398,14 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
                     case USER:
                         // This timeline doesn't update automatically so let's do it now if necessary
                         LatestTimelineItem latestTimelineItem = new LatestTimelineItem(getParams().mTimelineType, getParams().mSelectedUserId);
-                        if (latestTimelineItem.isTimeToAutoUpdate()) {
+                        if (SyncScheduler.isTimeToAutoUpdate(latestTimelineItem)) {
                             getParams().timelineToReload = getParams().mTimelineType;
                         }
                         break;
                     case FOLLOWING_USER:
                         // This timeline doesn't update automatically so let's do it now if necessary
                         latestTimelineItem = new LatestTimelineItem(getParams().mTimelineType, getParams().myAccountUserId);
-                        if (latestTimelineItem.isTimeToAutoUpdate()) {
+                        if (SyncScheduler.isTimeToAutoUpdate(latestTimelineItem)) {
                             getParams().timelineToReload = getParams().mTimelineType;
                         }
                         break;
@@ -311,12 +427,17 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
         @Override
         protected void onCancelled(Cursor result) {
             getParams().cancelled = true;
+            DbUtils.closeSilently(result, "onCancelled");
             singleEnd(null);
         }
 
         private void singleEnd(Cursor result) {
             logExecutionStats(result);
-            TimelineCursorLoader1.this.deliverResultsAndClean(result);
+            List<Cursor> toClose = new ArrayList<>();
+            TimelineCursorLoader1.this.deliverResultsAndClean(mergeIntoPages(mode, result, toClose));
+            for (Cursor cursor : toClose) {
+                DbUtils.closeSilently(cursor, "replacedPage");
+            }
         }
         
         private void logExecutionStats(Cursor cursor) {
@@ -341,23 +462,30 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
 
     @Override
     public void onReceive(CommandData commandData, MyServiceEvent event) {
+        final String method = "onReceive";
+        if (event == MyServiceEvent.ON_ITEMS_STREAMED) {
+            if (mParams.mTimelineType == commandData.getTimelineType()) {
+                onContentChanged(method, commandData, true);
+            }
+            return;
+        }
         if (event != MyServiceEvent.AFTER_EXECUTING_COMMAND) {
             return;
         }
-        final String method = "onReceive";
         switch (commandData.getCommand()) {
             case AUTOMATIC_UPDATE:
             case FETCH_TIMELINE:
                 if (mParams.mTimelineType != commandData.getTimelineType()) {
                     break;
                 }
+                if (commandData.getResult().getDownloadedCount() > 0) {
+                    onContentChanged(method, commandData, true);
+                }
+                break;
             case GET_STATUS:
             case SEARCH_MESSAGE:
                 if (commandData.getResult().getDownloadedCount() > 0) {
-                    if (MyLog.isVerboseEnabled()) {
-                        logV(method, "Content changed, " + commandData.toString());
-                    }
-                    onContentChanged();
+                    onContentChanged(method, commandData, false);
                 }
                 break;
             case CREATE_FAVORITE:
@@ -369,10 +497,7 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
             case REBLOG:
             case UPDATE_STATUS:
                 if (!commandData.getResult().hasError()) {
-                    if (MyLog.isVerboseEnabled()) {
-                        logV(method, "Content changed, " + commandData.toString());
-                    }
-                    onContentChanged();
+                    onContentChanged(method, commandData, false);
                 }
                 break;
             default:
@@ -380,6 +505,20 @@ public class TimelineCursorLoader1 extends Loader<Cursor> implements MyServiceEv
         }
     }
     
+    /**
+     * @param onlyNewRows true if rows were added to the top of the timeline only,
+     *                    false if older rows might have been added or changed also
+     */
+    private void onContentChanged(String method, CommandData commandData, boolean onlyNewRows) {
+        if (!onlyNewRows) {
+            onlyNewRowsAdded = false;
+        }
+        if (MyLog.isVerboseEnabled()) {
+            logV(method, "Content changed, " + commandData.toString());
+        }
+        onContentChanged();
+    }
+
     @Override
     public void onContentChanged() {
         if (taskIsNotRunning()) {
@@ -76,7 +76,7 @@ public class TimelineListParameters {
     int mRowsLimit = 0;
     long mLastItemSentDate = 0;
     volatile SelectionAndArgs mSa = new SelectionAndArgs();
-    String mSortOrder = MyDatabase.Msg.DEFAULT_SORT_ORDER;
+    String mSortOrder = TimelinePages.SORT_ORDER;
     
     // Execution state / data:
     volatile long startTime = 0;
@@ -130,13 +130,13 @@ public class TimelineListParameters {
                     // messages, even those that we downloaded
                     // not as Home timeline of any Account
                     if (!isTimelineCombined()) {
-                        mSa.addSelection(MyDatabase.MsgOfUser.SUBSCRIBED + " = ?", new String[] {
+                        mSa.addSelection(TimelineSql.msgOfUserColumn(MyDatabase.MsgOfUser.SUBSCRIBED) + " = ?", new String[] {
                                 "1"
                         });
                     }
                     break;
                 case MENTIONS:
-                    mSa.addSelection(MyDatabase.MsgOfUser.MENTIONED + " = ?", new String[] {
+                    mSa.addSelection(TimelineSql.msgOfUserColumn(MyDatabase.MsgOfUser.MENTIONED) + " = ?", new String[] {
                             "1"
                     });
                     /*
@@ -145,26 +145,26 @@ public class TimelineListParameters {
                      */
                     break;
                 case FAVORITES:
-                    mSa.addSelection(MyDatabase.MsgOfUser.FAVORITED + " = ?", new String[] {
+                    mSa.addSelection(TimelineSql.msgOfUserColumn(MyDatabase.MsgOfUser.FAVORITED) + " = ?", new String[] {
                             "1"
                     });
                     break;
                 case DIRECT:
-                    mSa.addSelection(MyDatabase.MsgOfUser.DIRECTED + " = ?", new String[] {
+                    mSa.addSelection(TimelineSql.msgOfUserColumn(MyDatabase.MsgOfUser.DIRECTED) + " = ?", new String[] {
                             "1"
                     });
                     break;
                 case USER:
                     SelectedUserIds userIds = new SelectedUserIds(isTimelineCombined(), getSelectedUserId());
                     // Reblogs are included also
-                    mSa.addSelection(MyDatabase.Msg.AUTHOR_ID + " " + userIds.getSql()
+                    mSa.addSelection(TimelineSql.msgColumn(MyDatabase.Msg.AUTHOR_ID) + " " + userIds.getSql()
                             + " OR "
-                            + MyDatabase.Msg.SENDER_ID + " " + userIds.getSql()
+                            + TimelineSql.msgColumn(MyDatabase.Msg.SENDER_ID) + " " + userIds.getSql()
                             + " OR " 
                             + "("
                             + User.LINKED_USER_ID + " " + userIds.getSql()
                             + " AND "
-                            + MyDatabase.MsgOfUser.REBLOGGED + " = 1"
+                            + TimelineSql.msgOfUserColumn(MyDatabase.MsgOfUser.REBLOGGED) + " = 1"
                             + ")",
                             null);
                     break;
@@ -195,6 +195,14 @@ public class TimelineListParameters {
     public boolean isEmpty() {
         return mTimelineType == TimelineType.UNKNOWN;
     }
+
+    /**
+     * Rows of the {@link TimelineType#FOLLOWING_USER} timeline may have no message,
+     * so they cannot be paged by the message's sent date
+     */
+    boolean isKeysetPagingSupported() {
+        return mTimelineType != TimelineType.FOLLOWING_USER;
+    }
     
     @Override
     public String toString() {
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.msg;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.ProjectionMap;
+import org.andstatus.app.util.SelectionAndArgs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages of the timeline that were loaded by {@link TimelineCursorLoader1}, the newest page first.
+ * Pages are bounded by the (SENT_DATE, _ID) key of their first and last rows, so we may load
+ * older pages and newer rows without querying already loaded rows again.
+ * The pages are owned (and closed) by this object, the list sees them as one {@link PagesCursor}.
+ * All methods should be called from the UI thread only.
+ * @author yvolk@yurivolkov.com
+ */
+class TimelinePages {
+    static final String SORT_ORDER = Msg.DEFAULT_SORT_ORDER + ", " + BaseColumns._ID + " DESC";
+
+    private final List<Page> pages = new ArrayList<>();
+
+    /** Keys are read once, when the page is added, so we don't move cursors that the list is using */
+    private static class Page {
+        final Cursor cursor;
+        final Key newest;
+        final Key oldest;
+        final long maxMsgId;
+
+        Page(Cursor cursor) {
+            this.cursor = cursor;
+            newest = cursor.moveToFirst() ? Key.fromCursor(cursor) : null;
+            oldest = cursor.moveToLast() ? Key.fromCursor(cursor) : null;
+            long maxId = 0;
+            int idIndex = cursor.getColumnIndex(BaseColumns._ID);
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                maxId = Math.max(maxId, cursor.getLong(idIndex));
+            }
+            maxMsgId = maxId;
+        }
+    }
+
+    /** Position of a row in the timeline */
+    static class Key {
+        final long sentDate;
+        final long msgId;
+
+        Key(long sentDate, long msgId) {
+            this.sentDate = sentDate;
+            this.msgId = msgId;
+        }
+
+        private static Key fromCursor(Cursor cursor) {
+            return new Key(cursor.getLong(cursor.getColumnIndex(Msg.SENT_DATE)),
+                    cursor.getLong(cursor.getColumnIndex(BaseColumns._ID)));
+        }
+
+        void addOlderThanThis(SelectionAndArgs sa) {
+            sa.addSelection(sentDateColumn() + " < ? OR (" + sentDateColumn() + " = ? AND "
+                    + idColumn() + " < ?)",
+                    new String[] {String.valueOf(sentDate), String.valueOf(sentDate), String.valueOf(msgId)});
+        }
+
+        /**
+         * Rows, which were added after the row with the maxMsgId was loaded, are selected also,
+         * because a downloaded message may be older than the loaded ones, e.g. a message of a conversation
+         * (ids of new rows are larger than ids of existing rows)
+         */
+        void addNewerThanThisOrAddedAfter(SelectionAndArgs sa, long maxMsgId) {
+            sa.addSelection(sentDateColumn() + " > ? OR (" + sentDateColumn() + " = ? AND "
+                    + idColumn() + " > ?) OR " + idColumn() + " > ?",
+                    new String[] {String.valueOf(sentDate), String.valueOf(sentDate), String.valueOf(msgId),
+                            String.valueOf(maxMsgId)});
+        }
+
+        boolean isNewerThan(Key other) {
+            return sentDate > other.sentDate || (sentDate == other.sentDate && msgId > other.msgId);
+        }
+
+        void addThisOrNewer(SelectionAndArgs sa) {
+            sa.addSelection(sentDateColumn() + " >= ?", new String[] {String.valueOf(sentDate)});
+        }
+
+        private static String sentDateColumn() {
+            return ProjectionMap.MSG_TABLE_ALIAS + "." + Msg.SENT_DATE;
+        }
+
+        private static String idColumn() {
+            return ProjectionMap.MSG_TABLE_ALIAS + "." + BaseColumns._ID;
+        }
+
+        @Override
+        public String toString() {
+            return "sentDate:" + sentDate + ",msgId:" + msgId;
+        }
+    }
+
+    boolean isEmpty() {
+        return pages.isEmpty();
+    }
+
+    Key getNewest() {
+        return pages.isEmpty() ? null : pages.get(0).newest;
+    }
+
+    Key getOldest() {
+        return pages.isEmpty() ? null : pages.get(pages.size() - 1).oldest;
+    }
+
+    /** @return The largest id of loaded messages */
+    long getMaxMsgId() {
+        long maxMsgId = 0;
+        for (Page page : pages) {
+            maxMsgId = Math.max(maxMsgId, page.maxMsgId);
+        }
+        return maxMsgId;
+    }
+
+    /**
+     * @return true if all rows of the cursor are newer than the key, so they may be added as a newer page.
+     * Otherwise some of them belong between already loaded rows
+     */
+    static boolean areAllNewerThan(Cursor cursor, Key key) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (!Key.fromCursor(cursor).isNewerThan(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the pages that were replaced. They should be closed after the list
+     *  stops using them
+     */
+    List<Cursor> replaceAll(Cursor cursor) {
+        List<Cursor> replaced = new ArrayList<>();
+        for (Page page : pages) {
+            replaced.add(page.cursor);
+        }
+        pages.clear();
+        addPage(0, cursor);
+        return replaced;
+    }
+
+    void addNewer(Cursor cursor) {
+        addPage(0, cursor);
+    }
+
+    void addOlder(Cursor cursor) {
+        addPage(pages.size(), cursor);
+    }
+
+    private void addPage(int index, Cursor cursor) {
+        if (cursor == null || cursor.isClosed()) {
+            return;
+        }
+        if (cursor.getCount() == 0 && !pages.isEmpty()) {
+            DbUtils.closeSilently(cursor, "emptyPage");
+            return;
+        }
+        pages.add(index, new Page(cursor));
+    }
+
+    int getCount() {
+        int count = 0;
+        for (Page page : pages) {
+            count += page.cursor.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return null if nothing was loaded yet
+     */
+    Cursor toCursor() {
+        if (pages.isEmpty()) {
+            return null;
+        }
+        Cursor[] cursors = new Cursor[pages.size()];
+        for (int ind = 0; ind < pages.size(); ind++) {
+            cursors[ind] = pages.get(ind).cursor;
+        }
+        return new PagesCursor(cursors);
+    }
+
+    void closeAll() {
+        for (Page page : pages) {
+            DbUtils.closeSilently(page.cursor, "closeAll");
+        }
+        pages.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "pages:" + pages.size() + ",rows:" + getCount();
+    }
+
+    /**
+     * Read only view of several pages as one cursor. Unlike {@link android.database.MergeCursor}
+     * closing this cursor doesn't close the pages, because they are reused in the next view
+     */
+    static class PagesCursor extends AbstractCursor {
+        private final Cursor[] cursors;
+        private Cursor current;
+
+        PagesCursor(Cursor[] cursors) {
+            this.cursors = cursors;
+            current = cursors[0];
+        }
+
+        @Override
+        public int getCount() {
+            int count = 0;
+            for (Cursor cursor : cursors) {
+                count += cursor.getCount();
+            }
+            return count;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int offset = 0;
+            for (Cursor cursor : cursors) {
+                int count = cursor.getCount();
+                if (newPosition < offset + count) {
+                    current = cursor;
+                    return current.moveToPosition(newPosition - offset);
+                }
+                offset += count;
+            }
+            return false;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return current.getColumnNames();
+        }
+
+        @Override
+        public String getString(int column) {
+            return current.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return current.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return current.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return current.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return current.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return current.getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return current.getBlob(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return current.getType(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return current.isNull(column);
+        }
+    }
+}
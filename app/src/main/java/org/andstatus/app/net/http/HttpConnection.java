@@ -21,7 +21,9 @@ import android.text.TextUtils;
 
 import org.andstatus.app.account.AccountDataWriter;
 import org.andstatus.app.net.http.ConnectionException.StatusCode;
+import org.andstatus.app.net.social.MbRateLimitStatus;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.PhaseTimer;
 import org.andstatus.app.util.TriState;
 import org.andstatus.app.util.UrlUtils;
 import org.json.JSONArray;
@@ -31,9 +33,17 @@ import org.json.JSONObject;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class HttpConnection {
     public HttpConnectionData data;
+    /** Reported by the server in headers of the latest response, which had them */
+    private volatile MbRateLimitStatus rateLimitStatus = new MbRateLimitStatus();
+    private volatile ProgressListener uploadProgressListener = null;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong networkMillis = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
 
     public static final String USER_AGENT = "AndStatus";
     public static final String KEY_MEDIA_PART_NAME = "media_part_name";
@@ -82,10 +92,11 @@ public abstract class HttpConnection {
         }
         HttpReadResult result = new HttpReadResult(pathToUrlString(path)).setFormParams(formParams)
                 .setLegacyHttpProtocol(isLegacyHttpProtocol);
+        result.uploadProgressListener = uploadProgressListener;
         if( result.hasFormParams()) {
             MyLog.logNetworkLevelMessage(this, "postRequest_formParams", result.getFormParams());
         }
-        postRequest(result);
+        executeRequest(result, true);
         MyLog.logNetworkLevelMessage(this, "postRequest_response", result.strResponse);
         result.parseAndThrow();
         return result.getJsonObject();
@@ -107,7 +118,8 @@ public abstract class HttpConnection {
         }
         HttpReadResult result = new HttpReadResult(pathToUrlString(path));
         result.authenticate = authenticated;
-        getRequest(result);
+        executeRequest(result, false);
+        onRateLimitStatus(result);
         MyLog.logNetworkLevelMessage(this, "getRequest_response", result.strResponse);
         result.parseAndThrow();
         return result;
@@ -117,14 +129,125 @@ public abstract class HttpConnection {
         return getRequestCommon(path, true).getJsonArray();
     }
 
+    /**
+     * For requests, which return new items only (e.g. since some id), so "304 Not Modified"
+     * means that there are no new items, and we don't need to download and parse them again.
+     * Items of the response array are passed to the consumer as soon as they are read
+     */
+    public final void getConditionalRequest(String path, JsonItemConsumer consumer) throws ConnectionException {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("path is empty");
+        }
+        HttpReadResult result = new HttpReadResult(pathToUrlString(path));
+        HttpValidators validators = HttpValidators.load(data.originId, data.accountUsername, result.getUrl());
+        result.ifNoneMatch = validators.getETag();
+        result.ifModifiedSince = validators.getLastModified();
+        result.itemConsumer = consumer;
+        executeRequest(result, false);
+        onRateLimitStatus(result);
+        MyLog.logNetworkLevelMessage(this, "getRequest_response", result.strResponse);
+        result.parseAndThrow();
+        if (result.isNotModified()) {
+            return;
+        }
+        if (!result.isStreamed()) {
+            JSONArray jArr = result.getJsonArray();
+            for (int index = 0; index < jArr.length(); index++) {
+                JSONObject item = jArr.optJSONObject(index);
+                if (item != null) {
+                    consumer.onItem(item);
+                }
+            }
+        }
+        validators.save(result.eTag, result.lastModified);
+    }
+
+    /**
+     * For streaming endpoints, which keep the connection open and send each JSON object, when it appears.
+     * The objects are passed to the listener as soon as they are read,
+     * until the server or the listener closes the stream
+     */
+    public final void streamRequest(String path, JsonStreamListener listener) throws ConnectionException {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("path is empty");
+        }
+        HttpReadResult result = new HttpReadResult(pathToUrlString(path));
+        result.streamListener = listener;
+        executeRequest(result, false);
+        onRateLimitStatus(result);
+        result.parseAndThrow();
+    }
+
     public final void downloadFile(String url, File file) throws ConnectionException {
-        HttpReadResult result = new HttpReadResult(url, file);
-        getRequest(result);
+        downloadFile(url, new PartialFile(file, ""));
+    }
+
+    /**
+     * Resumes the download, if a part of the file was downloaded already
+     */
+    public final void downloadFile(String url, PartialFile partialFile) throws ConnectionException {
+        HttpReadResult result = new HttpReadResult(url, partialFile.getFile());
+        result.partialFile = partialFile;
+        executeRequest(result, false);
         result.parseAndThrow();
     }
     
     protected abstract void getRequest(HttpReadResult result) throws ConnectionException;
+
+    /**
+     * Counts bytes and time of the request, including streaming of the response,
+     * as the network phase of the command, which is being executed
+     */
+    private void executeRequest(HttpReadResult result, boolean isPost) throws ConnectionException {
+        long startedAt = System.currentTimeMillis();
+        PhaseTimer.start(PhaseTimer.Phase.NETWORK);
+        try {
+            if (isPost) {
+                postRequest(result);
+            } else {
+                getRequest(result);
+            }
+        } finally {
+            PhaseTimer.stop(PhaseTimer.Phase.NETWORK);
+            long received = result.getBytesReceived();
+            long sent = result.getBytesSent();
+            requestCount.incrementAndGet();
+            networkMillis.addAndGet(System.currentTimeMillis() - startedAt);
+            bytesReceived.addAndGet(received);
+            bytesSent.addAndGet(sent);
+            PhaseTimer.onBytesTransferred(received, sent);
+        }
+    }
+
+    /** Requests by this connection since it was created */
+    public String statsToString() {
+        return MyLog.formatKeyValue("HttpConnection", "requests:" + requestCount.get()
+                + ",networkMs:" + networkMillis.get()
+                + ",bytesReceived:" + bytesReceived.get()
+                + ",bytesSent:" + bytesSent.get());
+    }
+
+    private void onRateLimitStatus(HttpReadResult result) {
+        if (!result.rateLimitStatus.isEmpty()) {
+            rateLimitStatus = result.rateLimitStatus;
+        }
+    }
+
+    /**
+     * @return Empty if the server didn't report the rate limit in response headers.
+     * Each response creates a new object, so a caller may notice an update by comparing references
+     */
+    public MbRateLimitStatus getRateLimitStatus() {
+        return rateLimitStatus;
+    }
     
+    /**
+     * @param listener Receives the progress of uploads of media by this connection, null to stop receiving it
+     */
+    public void setUploadProgressListener(ProgressListener listener) {
+        uploadProgressListener = listener;
+    }
+
     public abstract void clearAuthInformation();
 
     public void clearClientKeys() {
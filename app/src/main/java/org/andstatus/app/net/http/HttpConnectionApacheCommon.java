@@ -19,7 +19,6 @@ package org.andstatus.app.net.http;
 import android.net.Uri;
 import android.text.TextUtils;
 
-import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.MyContentType;
 import org.andstatus.app.util.FileUtils;
@@ -64,7 +63,7 @@ public class HttpConnectionApacheCommon {
             if ( !result.hasFormParams()) {
                 // Nothing to do at this step
             } else if (result.getFormParams().has(HttpConnection.KEY_MEDIA_PART_URI)) {
-                fillMultiPartPost(httpPost, result.getFormParams());
+                fillMultiPartPost(httpPost, result);
             } else {
                 fillSinglePartPost(httpPost, result.getFormParams());
             }
@@ -74,7 +73,9 @@ public class HttpConnectionApacheCommon {
         }
     }
 
-    private void fillMultiPartPost(HttpPostHC4 httpPost, JSONObject formParams) throws ConnectionException {
+    private void fillMultiPartPost(HttpPostHC4 httpPost, HttpReadResult result)
+            throws ConnectionException {
+        JSONObject formParams = result.getFormParams();
         MultipartEntityBuilder builder = MultipartEntityBuilder.create(); 
         Uri mediaUri = null;
         String mediaPartName = "";
@@ -94,12 +95,15 @@ public class HttpConnectionApacheCommon {
         }
         if (!TextUtils.isEmpty(mediaPartName) && !UriUtils.isEmpty(mediaUri)) {
             try {
-                InputStream ins = MyContextHolder.get().context().getContentResolver().openInputStream(mediaUri);
                 ContentType contentType2 = ContentType.create(MyContentType.uri2MimeType(mediaUri, null));
                 if (httpPost.getProtocolVersion() == HttpVersion.HTTP_1_0 ) {
-                    builder.addBinaryBody(mediaPartName, FileUtils.getBytes(ins), contentType2, mediaUri.getPath());
+                    byte[] media = FileUtils.getBytes(MediaUploadStream.open(mediaUri, null));
+                    result.mediaLength = media.length;
+                    builder.addBinaryBody(mediaPartName, media, contentType2, mediaUri.getPath());
                 } else {
-                    builder.addBinaryBody(mediaPartName, ins, contentType2, mediaUri.getPath());
+                    MediaUploadStream in = MediaUploadStream.open(mediaUri, result.uploadProgressListener);
+                    result.mediaLength = Math.max(0, in.getLength());
+                    builder.addBinaryBody(mediaPartName, in, contentType2, mediaUri.getPath());
                 }
             } catch (SecurityException | IOException e) {
                 throw ConnectionException.hardConnectionException("mediaUri='" + mediaUri + "'", e);
@@ -133,10 +137,21 @@ public class HttpConnectionApacheCommon {
         return formParams;
     }
 
-    public static HttpClient getHttpClient(SslModeEnum sslMode) {
-        return sslMode == SslModeEnum.MISCONFIGURED ?
-                MisconfiguredSslHttpClientFactory.getHttpClient() :
-                    MyHttpClientFactory.getHttpClient(sslMode) ;
+    public static HttpClient getHttpClient(HttpConnectionData data) {
+        return getHttpClient(data, false);
+    }
+
+    /**
+     * @param isStream true for a streaming request, which holds its connection long,
+     *                 see {@link MyHttpClientFactory#getStreamingHttpClient(String, SslModeEnum)}
+     */
+    public static HttpClient getHttpClient(HttpConnectionData data, boolean isStream) {
+        if (data.sslMode == SslModeEnum.MISCONFIGURED) {
+            return MisconfiguredSslHttpClientFactory.getHttpClient();
+        }
+        String host = data.originUrl == null ? "" : data.originUrl.getHost();
+        return isStream ? MyHttpClientFactory.getStreamingHttpClient(host, data.sslMode)
+                : MyHttpClientFactory.getHttpClient(host, data.sslMode);
     }
 
     protected void getRequest(HttpReadResult result) {
@@ -147,10 +162,16 @@ public class HttpConnectionApacheCommon {
             boolean stop = false;
             do {
                 HttpGet httpGet = newHttpGet(result.getUrl());
+                if (result.fileResult == null) {
+                    setConditionalHeaders(httpGet, result);
+                } else if (result.getRangeFrom() > 0) {
+                    httpGet.setHeader("Range", result.getRangeHeader());
+                    httpGet.setHeader("If-Range", result.getIfRangeHeader());
+                }
                 if (result.authenticate) {
                     specific.httpApacheSetAuthorization(httpGet);
                 }
-                httpResponse = specific.httpApacheGetResponse(httpGet);
+                httpResponse = specific.httpApacheGetResponse(httpGet, result.streamListener != null);
                 StatusLine statusLine = httpResponse.getStatusLine();
                 result.statusLine = statusLine.toString();
                 result.setStatusCode(statusLine.getStatusCode());
@@ -160,11 +181,19 @@ public class HttpConnectionApacheCommon {
                         HttpEntity entity = httpResponse.getEntity();
                         if (entity != null) {
                             if (result.fileResult != null) {
-                                FileUtils.readStreamToFile(entity.getContent(), result.fileResult);
+                                result.readFile(entity.getContent(), getHeaderValue(httpResponse, "ETag"),
+                                        getHeaderValue(httpResponse, "Last-Modified"));
                             } else {
-                                result.strResponse = HttpConnectionUtils.readStreamToString(entity.getContent());
+                                result.readResponse(decodedContent(entity));
                             }
                         }
+                        if (result.fileResult == null) {
+                            result.eTag = getHeaderValue(httpResponse, "ETag");
+                            result.lastModified = getHeaderValue(httpResponse, "Last-Modified");
+                        }
+                        result.setRateLimitHeaders(getHeaderValue(httpResponse, "X-Rate-Limit-Limit"),
+                                getHeaderValue(httpResponse, "X-Rate-Limit-Remaining"),
+                                getHeaderValue(httpResponse, "X-Rate-Limit-Reset"));
                         stop = true;
                         break;
                     case MOVED:
@@ -180,12 +209,14 @@ public class HttpConnectionApacheCommon {
                             }
                             MyLog.v(this, message.toString());
                         }
+                        // Release the connection to the pool before the next request
+                        DbUtils.closeSilently(httpResponse);
                         break;
                     default:
                         result.appendToLog( "statusLine:'" + statusLine + "'");
                         entity = httpResponse.getEntity();
                         if (entity != null) {
-                            result.strResponse = HttpConnectionUtils.readStreamToString(entity.getContent());
+                            result.strResponse = readEntityToString(entity);
                         }
                         stop =  result.fileResult == null || !result.authenticate;
                         if (!stop) {
@@ -204,6 +235,38 @@ public class HttpConnectionApacheCommon {
         }
     }
     
+    /**
+     * Asks for a compressed response and, if we have validators of the previous response to the same URL,
+     * for a "304 Not Modified" response instead of the unchanged content
+     */
+    private void setConditionalHeaders(HttpGet httpGet, HttpReadResult result) {
+        httpGet.setHeader("Accept-Encoding", HttpConnectionUtils.ACCEPT_ENCODING);
+        if (!TextUtils.isEmpty(result.ifNoneMatch)) {
+            httpGet.setHeader("If-None-Match", result.ifNoneMatch);
+        }
+        if (!TextUtils.isEmpty(result.ifModifiedSince)) {
+            httpGet.setHeader("If-Modified-Since", result.ifModifiedSince);
+        }
+    }
+
+    private static String readEntityToString(HttpEntity entity) throws IOException {
+        return HttpConnectionUtils.readStreamToString(decodedContent(entity));
+    }
+
+    /**
+     * The client of {@link MyHttpClientFactory} decodes the content itself and removes "Content-Encoding",
+     * so here we decode for other clients only
+     */
+    private static InputStream decodedContent(HttpEntity entity) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        return HttpConnectionUtils.decodeContent(entity.getContent(), encoding == null ? null : encoding.getValue());
+    }
+
+    private static String getHeaderValue(HttpResponse httpResponse, String name) {
+        Header header = httpResponse.getFirstHeader(name);
+        return header == null ? "" : header.getValue();
+    }
+
     private HttpGet newHttpGet(String url) {
         HttpGet httpGet = new HttpGet(url);
         httpGet.setHeader("User-Agent", HttpConnection.USER_AGENT);
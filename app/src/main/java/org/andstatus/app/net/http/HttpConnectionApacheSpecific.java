@@ -29,7 +29,8 @@ import java.io.IOException;
 public interface HttpConnectionApacheSpecific {
     void httpApachePostRequest(HttpPostHC4 httpPost, HttpReadResult result) throws ConnectionException;
     String pathToUrlString(String path);
-    HttpResponse httpApacheGetResponse(HttpGet httpGet) throws IOException;
+    /** @param isStream true for a streaming request, see {@link HttpConnection#streamRequest(String, JsonStreamListener)} */
+    HttpResponse httpApacheGetResponse(HttpGet httpGet, boolean isStream) throws IOException;
     void httpApacheSetAuthorization(HttpGet httpGet) throws IOException;
     SslModeEnum getSslMode();
 }
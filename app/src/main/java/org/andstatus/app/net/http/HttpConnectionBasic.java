@@ -51,7 +51,7 @@ public class HttpConnectionBasic extends HttpConnection implements HttpConnectio
     @Override
     public void httpApachePostRequest(HttpPostHC4 postMethod, HttpReadResult result) throws ConnectionException {
         try {
-            HttpClient client = HttpConnectionApacheCommon.getHttpClient(data.sslMode);
+            HttpClient client = HttpConnectionApacheCommon.getHttpClient(data);
             postMethod.setHeader("User-Agent", HttpConnection.USER_AGENT);
             if (getCredentialsPresent()) {
                 postMethod.addHeader("Authorization", "Basic " + getCredentials());
@@ -69,8 +69,8 @@ public class HttpConnectionBasic extends HttpConnection implements HttpConnectio
     }
 
     @Override
-    public HttpResponse httpApacheGetResponse(HttpGet httpGet) throws IOException {
-        HttpClient client = HttpConnectionApacheCommon.getHttpClient(data.sslMode);
+    public HttpResponse httpApacheGetResponse(HttpGet httpGet, boolean isStream) throws IOException {
+        HttpClient client = HttpConnectionApacheCommon.getHttpClient(data, isStream);
         return client.execute(httpGet);
     }
 
@@ -45,7 +45,7 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
         provider = new CommonsHttpOAuthProvider(getApiUrl(ApiRoutineEnum.OAUTH_REQUEST_TOKEN),
                 getApiUrl(ApiRoutineEnum.OAUTH_ACCESS_TOKEN), getApiUrl(ApiRoutineEnum.OAUTH_AUTHORIZE));
 
-        provider.setHttpClient(HttpConnectionApacheCommon.getHttpClient(data.sslMode));
+        provider.setHttpClient(HttpConnectionApacheCommon.getHttpClient(data));
         provider.setOAuth10a(true);
         return provider;
     }
@@ -72,7 +72,7 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
             if (result.authenticate) {
                 signRequest(post);
             }
-            result.strResponse = HttpConnectionApacheCommon.getHttpClient(data.sslMode).execute(
+            result.strResponse = HttpConnectionApacheCommon.getHttpClient(data).execute(
                     post, new BasicResponseHandler());
         } catch (Exception e) {
             // We don't catch other exceptions because in fact it's vary difficult to tell
@@ -82,8 +82,8 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
     }
 
     @Override
-    public HttpResponse httpApacheGetResponse(HttpGet httpGet) throws IOException {
-        return HttpConnectionApacheCommon.getHttpClient(data.sslMode).execute(httpGet);
+    public HttpResponse httpApacheGetResponse(HttpGet httpGet, boolean isStream) throws IOException {
+        return HttpConnectionApacheCommon.getHttpClient(data, isStream).execute(httpGet);
     }
 
     private void signRequest(Object httpGetOrPost) throws IOException {
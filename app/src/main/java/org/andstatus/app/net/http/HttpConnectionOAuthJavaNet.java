@@ -17,6 +17,7 @@
 package org.andstatus.app.net.http;
 
 import android.net.Uri;
+import android.text.TextUtils;
 
 import oauth.signpost.OAuthConsumer;
 import oauth.signpost.OAuthProvider;
@@ -26,19 +27,15 @@ import oauth.signpost.exception.OAuthCommunicationException;
 import oauth.signpost.exception.OAuthExpectationFailedException;
 import oauth.signpost.exception.OAuthMessageSignerException;
 
-import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.MyContentType;
 import org.andstatus.app.net.social.Connection.ApiRoutineEnum;
 import org.andstatus.app.net.http.ConnectionException.StatusCode;
-import org.andstatus.app.util.FileUtils;
 import org.andstatus.app.util.MyLog;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
@@ -129,7 +126,7 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
             if (!result.hasFormParams()) {
                 // Nothing to do at this step
             } else if (result.getFormParams().has(HttpConnection.KEY_MEDIA_PART_URI)) {
-                writeMedia(conn, result.getFormParams());
+                writeMedia(conn, result);
             } else {
                 writeJson(conn, result.getFormParams());
             }
@@ -149,22 +146,23 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
     }
 
     /** This method is not legacy HTTP */
-    private void writeMedia(HttpURLConnection conn, JSONObject formParams)
+    private void writeMedia(HttpURLConnection conn, HttpReadResult result)
             throws IOException, JSONException {
-        Uri mediaUri = Uri.parse(formParams.getString(KEY_MEDIA_PART_URI));
-        conn.setChunkedStreamingMode(0);
-        conn.setRequestProperty("Content-Type", MyContentType.uri2MimeType(mediaUri, null));
-        setAuthorization(conn, getConsumer(), false);
-                
-        InputStream in = MyContextHolder.get().context().getContentResolver().openInputStream(mediaUri);
+        Uri mediaUri = Uri.parse(result.getFormParams().getString(KEY_MEDIA_PART_URI));
+        MediaUploadStream in = MediaUploadStream.open(mediaUri, result.uploadProgressListener);
+        result.mediaLength = Math.max(0, in.getLength());
         try {
-            byte[] buffer = new byte[1024];
-            int length;
-            OutputStream out = new BufferedOutputStream(conn.getOutputStream());
+            if (in.getLength() >= 0 && in.getLength() <= Integer.MAX_VALUE) {
+                conn.setFixedLengthStreamingMode((int) in.getLength());
+            } else {
+                conn.setChunkedStreamingMode(0);
+            }
+            conn.setRequestProperty("Content-Type", MyContentType.uri2MimeType(mediaUri, null));
+            setAuthorization(conn, getConsumer(), false);
+
+            OutputStream out = conn.getOutputStream();
             try {
-                while ((length = in.read(buffer)) > 0) {
-                    out.write(buffer, 0, length);
-                }
+                in.writeTo(out);
             } finally {
                 DbUtils.closeSilently(out);
             }
@@ -210,6 +208,12 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
             do {
                 conn = (HttpURLConnection) result.getUrlObj().openConnection();
                 conn.setInstanceFollowRedirects(false);
+                if (result.fileResult == null) {
+                    setConditionalHeaders(conn, result);
+                } else if (result.getRangeFrom() > 0) {
+                    conn.setRequestProperty("Range", result.getRangeHeader());
+                    conn.setRequestProperty("If-Range", result.getIfRangeHeader());
+                }
                 if (result.authenticate) {
                     setAuthorization(conn, consumer, redirected);
                 }
@@ -217,10 +221,19 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
                 result.setStatusCode(conn.getResponseCode());
                 switch(result.getStatusCode()) {
                     case OK:
+                        result.setRateLimitHeaders(conn.getHeaderField("X-Rate-Limit-Limit"),
+                                conn.getHeaderField("X-Rate-Limit-Remaining"),
+                                conn.getHeaderField("X-Rate-Limit-Reset"));
                         if (result.fileResult != null) {
-                            FileUtils.readStreamToFile(conn.getInputStream(), result.fileResult);
+                            result.readFile(conn.getInputStream(), conn.getHeaderField("ETag"),
+                                    conn.getHeaderField("Last-Modified"));
                         } else {
-                            result.strResponse = HttpConnectionUtils.readStreamToString(conn.getInputStream());
+                            result.eTag = nullToEmpty(conn.getHeaderField("ETag"));
+                            result.lastModified = nullToEmpty(conn.getHeaderField("Last-Modified"));
+                            if (!result.isNotModified()) {
+                                result.readResponse(HttpConnectionUtils.decodeContent(conn.getInputStream(),
+                                        conn.getContentEncoding()));
+                            }
                         }
                         stop = true;
                         break;
@@ -240,10 +253,11 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
                             }
                             MyLog.v(this, message.toString());
                         }
-                        conn.disconnect();
+                        releaseConnection(conn);
                         break;
                     default:
-                        result.strResponse = HttpConnectionUtils.readStreamToString(conn.getErrorStream());
+                        result.strResponse = HttpConnectionUtils.readStreamToString(
+                                HttpConnectionUtils.decodeContent(conn.getErrorStream(), conn.getContentEncoding()));
                         stop = result.fileResult == null || !result.authenticate;
                         if (!stop) {
                             result.authenticate = false;
@@ -261,6 +275,36 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
         }
     }
 
+    /**
+     * Setting "Accept-Encoding" turns off transparent gzip decoding of {@link HttpURLConnection},
+     * so we decode the content ourselves, and support "deflate" also
+     */
+    private void setConditionalHeaders(HttpURLConnection conn, HttpReadResult result) {
+        conn.setRequestProperty("Accept-Encoding", HttpConnectionUtils.ACCEPT_ENCODING);
+        if (!TextUtils.isEmpty(result.ifNoneMatch)) {
+            conn.setRequestProperty("If-None-Match", result.ifNoneMatch);
+        }
+        if (!TextUtils.isEmpty(result.ifModifiedSince)) {
+            conn.setRequestProperty("If-Modified-Since", result.ifModifiedSince);
+        }
+    }
+
+    /**
+     * Unlike {@link HttpURLConnection#disconnect()}, reading the body to the end returns
+     * the connection to the keep-alive pool of the platform, so the next request may reuse it
+     */
+    private static void releaseConnection(HttpURLConnection conn) {
+        try {
+            HttpConnectionUtils.readStreamToString(conn.getInputStream());
+        } catch (IOException e) {
+            conn.disconnect();
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
     private void setAuthorization(HttpURLConnection conn, OAuthConsumer consumer, boolean redirected)
             throws ConnectionException {
         if (!getCredentialsPresent()) {
@@ -16,6 +16,8 @@
 
 package org.andstatus.app.net.http;
 
+import android.text.TextUtils;
+
 import org.andstatus.app.data.DbUtils;
 
 import java.io.IOException;
@@ -24,10 +26,14 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class HttpConnectionUtils {
     public static final String UTF_8 = "UTF-8";
+    static final String ACCEPT_ENCODING = "gzip, deflate";
 
     private HttpConnectionUtils() {
     }
@@ -73,4 +79,21 @@ public class HttpConnectionUtils {
         return builder.toString();
     }
 
+    /**
+     * Decode gzip or deflate encoded content, which we asked for with {@link #ACCEPT_ENCODING}
+     */
+    static InputStream decodeContent(InputStream in, String contentEncoding) throws IOException {
+        if (in == null || TextUtils.isEmpty(contentEncoding)) {
+            return in;
+        }
+        switch (contentEncoding.trim().toLowerCase(Locale.US)) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in);
+            case "deflate":
+                return new InflaterInputStream(in);
+            default:
+                return in;
+        }
+    }
 }
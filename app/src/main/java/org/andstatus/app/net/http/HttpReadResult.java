@@ -19,17 +19,23 @@ package org.andstatus.app.net.http;
 import android.text.TextUtils;
 
 import org.andstatus.app.net.http.ConnectionException.StatusCode;
+import org.andstatus.app.net.social.MbRateLimitStatus;
+import org.andstatus.app.util.FileUtils;
 import org.andstatus.app.util.I18n;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.PhaseTimer;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 public class HttpReadResult {
     private final String urlInitial;
@@ -43,12 +49,37 @@ public class HttpReadResult {
     Exception e1 = null;
     String strResponse = "";
     final File fileResult;
+    /** If not null, the download may be resumed, see {@link PartialFile} */
+    PartialFile partialFile = null;
+    /** Receives the progress of an upload of media */
+    ProgressListener uploadProgressListener = null;
     String statusLine = "";
     private int intStatusCode = 0;
     private StatusCode statusCode = StatusCode.UNKNOWN;
 
     boolean redirected = false;
 
+    /** Validators of the previous response to send with a conditional GET, empty for unconditional requests */
+    String ifNoneMatch = "";
+    String ifModifiedSince = "";
+    /** Validators of this response */
+    String eTag = "";
+    String lastModified = "";
+
+    /** Rate limit, which the server reported in headers of this response */
+    final MbRateLimitStatus rateLimitStatus = new MbRateLimitStatus();
+
+    /** If set, items of the response are passed to it while reading, instead of keeping the response */
+    JsonItemConsumer itemConsumer = null;
+    /** If set, the response is an endless stream of objects, which are passed to it */
+    JsonStreamListener streamListener = null;
+    private boolean streamed = false;
+
+    /** Bytes of the response content, which were read as a stream */
+    private long bytesReceived = 0;
+    /** Length of the media, which was uploaded */
+    long mediaLength = 0;
+
     public HttpReadResult(String urlIn) throws ConnectionException {
         this (urlIn, (File) null);
     }
@@ -81,6 +112,116 @@ public class HttpReadResult {
     void setStatusCode(int intStatusCodeIn) {
         intStatusCode = intStatusCodeIn;
         statusCode = ConnectionException.StatusCode.fromResponseCode(intStatusCodeIn);
+        if (isRangeNotSatisfiable() && partialFile != null) {
+            // The partial file doesn't fit the content, so it will be downloaded from the beginning
+            partialFile.setValidator("");
+        }
+    }
+
+    private boolean isRangeNotSatisfiable() {
+        return intStatusCode == 416;
+    }
+
+    /**
+     * Read successful response: pass its items to the {@link #itemConsumer} or keep it as a String
+     */
+    void readResponse(InputStream in) throws IOException {
+        CountingInputStream counting = new CountingInputStream(in);
+        try {
+            if (streamListener != null) {
+                streamListener.onConnected(counting);
+                int count = JsonStreamReader.readObjects(counting, streamListener);
+                streamed = true;
+                appendToLog("stream ended after " + count + " objects");
+            } else if (itemConsumer == null) {
+                strResponse = HttpConnectionUtils.readStreamToString(counting);
+            } else {
+                int count = JsonStreamReader.readItems(counting, itemConsumer);
+                streamed = true;
+                appendToLog("streamed " + count + " items");
+            }
+        } finally {
+            bytesReceived += counting.getCount();
+        }
+    }
+
+    /**
+     * Headers, which e.g. Twitter sends with each response,
+     * see https://dev.twitter.com/rest/public/rate-limiting
+     */
+    void setRateLimitHeaders(String limit, String remaining, String reset) {
+        try {
+            if (!TextUtils.isEmpty(limit) && !TextUtils.isEmpty(remaining)) {
+                rateLimitStatus.limit = Integer.parseInt(limit.trim());
+                rateLimitStatus.remaining = Integer.parseInt(remaining.trim());
+                if (!TextUtils.isEmpty(reset)) {
+                    rateLimitStatus.resetTime = TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim()));
+                }
+            }
+        } catch (NumberFormatException e) {
+            appendToLog("Invalid rate limit headers: " + limit + ", " + remaining + ", " + reset);
+        }
+    }
+
+    /** The items were passed to the {@link #itemConsumer} already */
+    boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * @return Start of the requested range, 0 if the whole file is requested
+     */
+    long getRangeFrom() {
+        return partialFile == null ? 0 : partialFile.getResumeFrom();
+    }
+
+    /** "Range" header of the request */
+    String getRangeHeader() {
+        return "bytes=" + getRangeFrom() + "-";
+    }
+
+    /** "If-Range" header of the request: the rest of the file is sent only if its content didn't change */
+    String getIfRangeHeader() {
+        return partialFile == null ? "" : partialFile.getValidator();
+    }
+
+    /**
+     * Read the content of a successful response to the file. If the server sent the requested range only,
+     * it is appended to the file
+     * @param eTag Validators of this response, so its download may be resumed
+     */
+    void readFile(InputStream in, String eTag, String lastModified) throws IOException {
+        if (isRangeNotSatisfiable()) {
+            throw new IOException("Requested range not satisfiable: " + getRangeHeader());
+        }
+        boolean append = intStatusCode == 206;
+        if (partialFile != null) {
+            partialFile.setValidator(TextUtils.isEmpty(eTag) ? lastModified : eTag);
+            if (append) {
+                appendToLog("resumed from " + partialFile.getFile().length());
+            }
+        }
+        CountingInputStream counting = new CountingInputStream(in);
+        try {
+            FileUtils.readStreamToFile(counting, fileResult, append);
+        } finally {
+            bytesReceived += counting.getCount();
+        }
+    }
+
+    /** @return Bytes of the response, approximately for responses, which were not read as a stream */
+    long getBytesReceived() {
+        return bytesReceived > 0 ? bytesReceived : strResponse.length();
+    }
+
+    /** @return Bytes of the request, approximately */
+    long getBytesSent() {
+        return (hasFormParams() ? formParams.toString().length() : 0) + mediaLength;
+    }
+
+    /** "304 Not Modified" response to a conditional GET */
+    public boolean isNotModified() {
+        return intStatusCode == 304;
     }
 
     public StatusCode getStatusCode() {
@@ -115,6 +256,7 @@ public class HttpReadResult {
                 + ((statusCode == StatusCode.OK) || TextUtils.isEmpty(statusLine) 
                         ? "" : "; statusLine:'" + statusLine + "'")
                 + (intStatusCode == 0 ? "" : "; statusCode:" + statusCode + " (" + intStatusCode + ")") 
+                + (TextUtils.isEmpty(ifNoneMatch) && TextUtils.isEmpty(ifModifiedSince) ? "" : "; conditional")
                 + "; url:'" + urlString + "'"
                 + (isLegacyHttpProtocol() ? "; legacy HTTP" : "")
                 + (authenticate ? "; authenticated" : "")
@@ -125,7 +267,12 @@ public class HttpReadResult {
     }
     
     JSONObject getJsonObject() throws ConnectionException {
-        return innerGetJsonObject(strResponse);
+        PhaseTimer.start(PhaseTimer.Phase.PARSE);
+        try {
+            return innerGetJsonObject(strResponse);
+        } finally {
+            PhaseTimer.stop(PhaseTimer.Phase.PARSE);
+        }
     }
 
     private JSONObject innerGetJsonObject(String strJson) throws ConnectionException {
@@ -150,6 +297,15 @@ public class HttpReadResult {
     }
 
     JSONArray getJsonArray() throws ConnectionException {
+        PhaseTimer.start(PhaseTimer.Phase.PARSE);
+        try {
+            return innerGetJsonArray();
+        } finally {
+            PhaseTimer.stop(PhaseTimer.Phase.PARSE);
+        }
+    }
+
+    private JSONArray innerGetJsonArray() throws ConnectionException {
         String method = "getJsonArray; ";
         if (TextUtils.isEmpty(strResponse)) {
             MyLog.v(this, method + "; response is empty");
@@ -216,7 +372,9 @@ public class HttpReadResult {
         if ( isStatusOk()) {
             MyLog.v(this, toString());
         } else {
-            if (!TextUtils.isEmpty(strResponse)) {
+            if (ConnectionException.class.isInstance(e1)) {
+                throw (ConnectionException) e1;
+            } else if (!TextUtils.isEmpty(strResponse)) {
                 throw getExceptionFromJsonErrorResponse();
             } else {
                 throw ConnectionException.fromStatusCodeAndThrowable(statusCode, toString(), e1);
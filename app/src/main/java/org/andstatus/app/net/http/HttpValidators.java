@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.MyDatabase;
+import org.andstatus.app.data.MyDatabase.HttpValidator;
+import org.andstatus.app.util.MyLog;
+
+/**
+ * Validators of the latest response of a request, so the next identical request
+ * may be sent as a conditional GET and answered with "304 Not Modified".
+ * Like {@link org.andstatus.app.data.LatestTimelineItem}, they are persisted per account, one row per endpoint
+ * @author yvolk@yurivolkov.com
+ */
+public class HttpValidators {
+    private static final String TAG = HttpValidators.class.getSimpleName();
+
+    private final long originId;
+    private final String accountName;
+    private final String url;
+    private String eTag = "";
+    private String lastModified = "";
+
+    private HttpValidators(long originId, String accountName, String url) {
+        this.originId = originId;
+        this.accountName = accountName == null ? "" : accountName;
+        this.url = url;
+    }
+
+    /**
+     * @return empty validators if the previous request to the endpoint was for another URL
+     */
+    public static HttpValidators load(long originId, String accountName, String url) {
+        HttpValidators validators = new HttpValidators(originId, accountName, url);
+        SQLiteDatabase db = getDatabase();
+        if (db == null || TextUtils.isEmpty(url)) {
+            return validators;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = db.query(HttpValidator.TABLE_NAME,
+                    new String[]{HttpValidator.ETAG, HttpValidator.LAST_MODIFIED},
+                    validators.whereEndpoint() + " AND " + HttpValidator.URL + "=?",
+                    new String[]{validators.accountName, endpointOf(url), url}, null, null, null);
+            if (cursor.moveToFirst()) {
+                validators.eTag = emptyIfNull(cursor.getString(0));
+                validators.lastModified = emptyIfNull(cursor.getString(1));
+            }
+        } catch (Exception e) {
+            MyLog.i(TAG, "load " + url, e);
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return validators;
+    }
+
+    private String whereEndpoint() {
+        return HttpValidator.ORIGIN_ID + "=" + originId
+                + " AND " + HttpValidator.ACCOUNT_NAME + "=?"
+                + " AND " + HttpValidator.ENDPOINT + "=?";
+    }
+
+    static String endpointOf(String url) {
+        int index = url.indexOf('?');
+        return index < 0 ? url : url.substring(0, index);
+    }
+
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static SQLiteDatabase getDatabase() {
+        MyDatabase database = MyContextHolder.get().getDatabase();
+        return database == null ? null : database.getWritableDatabase();
+    }
+
+    public boolean isEmpty() {
+        return TextUtils.isEmpty(eTag) && TextUtils.isEmpty(lastModified);
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Validators of the new response. The row of the endpoint is deleted, if the response had none
+     */
+    public void save(String eTagIn, String lastModifiedIn) {
+        eTag = emptyIfNull(eTagIn);
+        lastModified = emptyIfNull(lastModifiedIn);
+        SQLiteDatabase db = getDatabase();
+        if (db == null || TextUtils.isEmpty(url)) {
+            return;
+        }
+        try {
+            if (isEmpty()) {
+                db.delete(HttpValidator.TABLE_NAME, whereEndpoint(), new String[]{accountName, endpointOf(url)});
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(HttpValidator.ORIGIN_ID, originId);
+                values.put(HttpValidator.ACCOUNT_NAME, accountName);
+                values.put(HttpValidator.ENDPOINT, endpointOf(url));
+                values.put(HttpValidator.URL, url);
+                values.put(HttpValidator.ETAG, eTag);
+                values.put(HttpValidator.LAST_MODIFIED, lastModified);
+                db.insertWithOnConflict(HttpValidator.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        } catch (Exception e) {
+            MyLog.i(TAG, "save " + this, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MyLog.formatKeyValue(TAG, "originId:" + originId + ",account:" + accountName
+                + ",url:'" + url + "'"
+                + (TextUtils.isEmpty(eTag) ? "" : ",ETag:" + eTag)
+                + (TextUtils.isEmpty(lastModified) ? "" : ",Last-Modified:" + lastModified));
+    }
+}
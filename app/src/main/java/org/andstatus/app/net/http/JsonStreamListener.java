@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import java.io.Closeable;
+
+/**
+ * Receives JSON objects of a stream, which doesn't end, until it is closed
+ * @author yvolk@yurivolkov.com
+ */
+public interface JsonStreamListener extends JsonItemConsumer {
+    /**
+     * @param stream The response is being read from it. Closing it from another thread stops the reading
+     */
+    void onConnected(Closeable stream);
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.util.MyLog;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads objects of a JSON array from a stream one at a time, so we don't hold
+ * the whole response neither as a String nor as a tree of JSON objects.
+ * The array is found the same way as in {@link HttpReadResult#getJsonArray()}
+ * @author yvolk@yurivolkov.com
+ */
+final class JsonStreamReader {
+    private static final String TAG = JsonStreamReader.class.getSimpleName();
+    private static final String ITEMS = "items";
+
+    private JsonStreamReader() {
+        // Empty
+    }
+
+    /**
+     * @return number of items read
+     */
+    static int readItems(InputStream in, JsonItemConsumer consumer) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, HttpConnectionUtils.UTF_8));
+        try {
+            JsonToken token;
+            try {
+                token = reader.peek();
+            } catch (EOFException e) {
+                MyLog.v(TAG, "response is empty");
+                return 0;
+            }
+            switch (token) {
+                case BEGIN_ARRAY:
+                    return readArray(reader, consumer);
+                case BEGIN_OBJECT:
+                    return readArrayInObject(reader, consumer);
+                default:
+                    throw new IOException("Not an array or an object: " + token);
+            }
+        } catch (IllegalStateException | NumberFormatException | JSONException e) {
+            throw new IOException(e);
+        } finally {
+            DbUtils.closeSilently(reader);
+        }
+    }
+
+    /**
+     * Reads a stream of JSON objects, which are separated by whitespace only,
+     * e.g. from a streaming endpoint, which sends empty lines to keep the connection alive
+     * @return number of objects read, when the stream ended
+     */
+    static int readObjects(InputStream in, JsonItemConsumer consumer) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, HttpConnectionUtils.UTF_8));
+        reader.setLenient(true);
+        int count = 0;
+        try {
+            while (true) {
+                JsonToken token;
+                try {
+                    token = reader.peek();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (token == JsonToken.END_DOCUMENT) {
+                    break;
+                } else if (token == JsonToken.BEGIN_OBJECT) {
+                    consumer.onItem(readObject(reader));
+                    count++;
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IllegalStateException | NumberFormatException | JSONException e) {
+            throw new IOException(e);
+        } finally {
+            DbUtils.closeSilently(reader);
+        }
+        return count;
+    }
+
+    private static int readArray(JsonReader reader, JsonItemConsumer consumer) throws IOException, JSONException {
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                consumer.onItem(readObject(reader));
+                count++;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return count;
+    }
+
+    /** The "items" array or, if there is none, the first array inside the object */
+    private static int readArrayInObject(JsonReader reader, JsonItemConsumer consumer) throws IOException, JSONException {
+        int count = 0;
+        boolean itemsFound = false;
+        JSONArray firstArray = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!itemsFound && ITEMS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                itemsFound = true;
+                count = readArray(reader, consumer);
+            } else if (!itemsFound && firstArray == null && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                MyLog.v(TAG, "found array inside '" + name + "' object");
+                firstArray = readArrayToJson(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!itemsFound && firstArray != null) {
+            for (int index = 0; index < firstArray.length(); index++) {
+                JSONObject item = firstArray.optJSONObject(index);
+                if (item != null) {
+                    consumer.onItem(item);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject jso = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            jso.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return jso;
+    }
+
+    private static JSONArray readArrayToJson(JsonReader reader) throws IOException, JSONException {
+        JSONArray jsa = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            jsa.put(readValue(reader));
+        }
+        reader.endArray();
+        return jsa;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArrayToJson(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                return toNumber(reader.nextString());
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    /** Like {@link org.json.JSONTokener}, keep long ids exact */
+    static Number toNumber(String literal) {
+        if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(literal);
+                if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                // Too large for a long
+            }
+        }
+        return Double.valueOf(literal);
+    }
+}
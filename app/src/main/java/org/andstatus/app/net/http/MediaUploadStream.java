@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.andstatus.app.context.MyContextHolder;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Media, which is uploaded from a content Uri. Its length is known before the upload,
+ * so a request may have a fixed length instead of chunks. Each upload opens the media again,
+ * so a retry starts from the beginning. Bytes, which were read, are reported
+ * to the {@link ProgressListener} not more often than each {@link #PROGRESS_PERIOD_MILLIS}
+ * @author yvolk@yurivolkov.com
+ */
+class MediaUploadStream extends FilterInputStream {
+    static final int BUFFER_LENGTH = 64 * 1024;
+    static final long PROGRESS_PERIOD_MILLIS = 500;
+
+    private final long length;
+    private final ProgressListener listener;
+    private long transferred = 0;
+    private long reportedAt = 0;
+
+    private MediaUploadStream(ParcelFileDescriptor fileDescriptor, ProgressListener listener) {
+        super(new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor));
+        length = fileDescriptor.getStatSize();
+        this.listener = listener;
+    }
+
+    /**
+     * @param listener null if the progress is not needed
+     */
+    static MediaUploadStream open(Uri mediaUri, ProgressListener listener) throws IOException {
+        ParcelFileDescriptor fileDescriptor = MyContextHolder.get().context().getContentResolver()
+                .openFileDescriptor(mediaUri, "r");
+        if (fileDescriptor == null) {
+            throw new FileNotFoundException("mediaUri='" + mediaUri + "'");
+        }
+        return new MediaUploadStream(fileDescriptor, listener);
+    }
+
+    /** @return -1 if unknown */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Copies the rest of the stream to the output stream
+     */
+    void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_LENGTH];
+        int count;
+        while ((count = read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        out.flush();
+        reportProgress(true);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1) {
+            onTransferred(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            onTransferred(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = super.skip(count);
+        if (skipped > 0) {
+            onTransferred(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void onTransferred(long count) {
+        transferred += count;
+        reportProgress(false);
+    }
+
+    private void reportProgress(boolean force) {
+        if (listener == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (force || now - reportedAt >= PROGRESS_PERIOD_MILLIS) {
+            reportedAt = now;
+            listener.onProgress(transferred, length);
+        }
+    }
+}
@@ -16,57 +16,213 @@
 
 package org.andstatus.app.net.http;
 
+import android.text.TextUtils;
+
+import net.jcip.annotations.GuardedBy;
+
 import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.util.MyLog;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of pooled HTTP clients, one client per origin host and {@link SslModeEnum},
+ * so keep-alive connections (and their TLS sessions) are reused by subsequent requests
+ */
 public class MyHttpClientFactory {
+    private static final String TAG = MyHttpClientFactory.class.getSimpleName();
+    /** Idle connections are closed after this time */
+    static final long IDLE_CONNECTION_SECONDS = 30;
+    /**
+     * Requests to one host, which may be executed at the same time. This is at least the number
+     * of concurrent requests of the commands of the service, so they don't wait for each other's connections
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 16;
+    /** Each account of the host may have its stream open */
+    static final int MAX_STREAMS_PER_HOST = 5;
+    private static final String STREAM_KEY_PREFIX = "stream:";
+
+    @GuardedBy("CLIENTS")
+    private static final Map<String, PooledClient> CLIENTS = new TreeMap<>();
+    @GuardedBy("CLIENTS")
+    private static final Map<String, PooledClient> STREAM_CLIENTS = new TreeMap<>();
 
     /** Based on: https://github.com/rfc2822/davdroid/blob/master/src/at/bitfire/davdroid/webdav/DavHttpClient.java */
 
     private MyHttpClientFactory() {
         // Empty
     }
-    
-    public static HttpClient getHttpClient(SslModeEnum sslMode) {
-        Registry<ConnectionSocketFactory> registry = 
-                RegistryBuilder.<ConnectionSocketFactory> create()
-                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
-                    .register("https", TlsSniSocketFactory.getInstance(sslMode))
+
+    public static HttpClient getHttpClient(String host, SslModeEnum sslMode) {
+        return getPooledClient(CLIENTS, "", host, sslMode, MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * The client for streaming requests, see {@link HttpConnection#streamRequest(String, JsonStreamListener)}.
+     * A stream holds its connection for hours, so streams have their own pool
+     * and don't take connections, which requests of commands wait for
+     */
+    public static HttpClient getStreamingHttpClient(String host, SslModeEnum sslMode) {
+        return getPooledClient(STREAM_CLIENTS, STREAM_KEY_PREFIX, host, sslMode, MAX_STREAMS_PER_HOST);
+    }
+
+    private static HttpClient getPooledClient(Map<String, PooledClient> clients, String keyPrefix, String host,
+                                              SslModeEnum sslMode, int maxConnections) {
+        String key = keyPrefix + (TextUtils.isEmpty(host) ? "" : host) + "/" + sslMode;
+        PooledClient pooledClient;
+        synchronized (CLIENTS) {
+            pooledClient = clients.get(key);
+            if (pooledClient == null) {
+                pooledClient = new PooledClient(key, sslMode, maxConnections);
+                clients.put(key, pooledClient);
+            }
+        }
+        return pooledClient.getClient();
+    }
+
+    /**
+     * Close all connections, e.g. when connection preferences changed
+     */
+    public static void forget() {
+        synchronized (CLIENTS) {
+            if (!CLIENTS.isEmpty() || !STREAM_CLIENTS.isEmpty()) {
+                MyLog.v(TAG, "forget; " + statsToString());
+            }
+            for (PooledClient pooledClient : CLIENTS.values()) {
+                pooledClient.connectionManager.shutdown();
+            }
+            CLIENTS.clear();
+            for (PooledClient pooledClient : STREAM_CLIENTS.values()) {
+                pooledClient.connectionManager.shutdown();
+            }
+            STREAM_CLIENTS.clear();
+        }
+    }
+
+    public static String statsToString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (CLIENTS) {
+            for (PooledClient pooledClient : CLIENTS.values()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(pooledClient.toString());
+            }
+            for (PooledClient pooledClient : STREAM_CLIENTS.values()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(pooledClient.toString());
+            }
+        }
+        return MyLog.formatKeyValue(TAG, builder.toString());
+    }
+
+    private static final class PooledClient {
+        final String key;
+        final CountingConnectionManager connectionManager;
+        final HttpClient client;
+        private final AtomicLong idleCheckedAt = new AtomicLong(System.currentTimeMillis());
+
+        PooledClient(String key, SslModeEnum sslMode, int maxConnections) {
+            this.key = key;
+            Registry<ConnectionSocketFactory> registry = 
+                    RegistryBuilder.<ConnectionSocketFactory> create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", TlsSniSocketFactory.getInstance(sslMode))
+                        .build();
+            connectionManager = new CountingConnectionManager(registry);
+            // A client serves one host, so its routes differ by the scheme only
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+            // use request defaults from AndroidHttpClient
+            RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
+                    // A request doesn't wait for a free connection of the pool forever
+                    .setConnectionRequestTimeout(MyPreferences.getConnectionTimeoutMs())
+                    .setConnectTimeout(MyPreferences.getConnectionTimeoutMs())
+                    .setSocketTimeout(2*MyPreferences.getConnectionTimeoutMs())
+                    .setStaleConnectionCheckEnabled(false)
                     .build();
-        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
-        // max.  3 connections in total
-        connectionManager.setMaxTotal(3);
-        // max.  2 connections per host
-        connectionManager.setDefaultMaxPerRoute(2);
-
-        // use request defaults from AndroidHttpClient
-        RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
-                .setConnectTimeout(MyPreferences.getConnectionTimeoutMs())
-                .setSocketTimeout(2*MyPreferences.getConnectionTimeoutMs())
-                .setStaleConnectionCheckEnabled(false)
-                .build();
-        
-        HttpClientBuilder builder = HttpClients.custom()
-                .useSystemProperties()
-                .setConnectionManager(connectionManager)
-                .setDefaultRequestConfig(requestConfig)
-                /* TODO maybe:  
-                .setRetryHandler(DavHttpRequestRetryHandler.INSTANCE)
-                .setRedirectStrategy(DavRedirectStrategy.INSTANCE)  
-                */
-                .disableRedirectHandling()
-                .setUserAgent(HttpConnection.USER_AGENT)
-                .disableCookieManagement();
-
-        return builder.build();
+            
+            HttpClientBuilder builder = HttpClients.custom()
+                    .useSystemProperties()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    /* TODO maybe:  
+                    .setRetryHandler(DavHttpRequestRetryHandler.INSTANCE)
+                    .setRedirectStrategy(DavRedirectStrategy.INSTANCE)  
+                    */
+                    .disableRedirectHandling()
+                    .setUserAgent(HttpConnection.USER_AGENT)
+                    .disableCookieManagement();
+            client = builder.build();
+        }
+
+        HttpClient getClient() {
+            long checkedAt = idleCheckedAt.get();
+            long now = System.currentTimeMillis();
+            if (now - checkedAt > TimeUnit.SECONDS.toMillis(IDLE_CONNECTION_SECONDS) / 2
+                    && idleCheckedAt.compareAndSet(checkedAt, now)) {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+            }
+            return client;
+        }
+
+        @Override
+        public String toString() {
+            long requested = connectionManager.requested.get();
+            long created = connectionManager.created.get();
+            return key + " {requested:" + requested + ", created:" + created
+                    + ", reused:" + Math.max(0, requested - created)
+                    + ", " + connectionManager.getTotalStats() + "}";
+        }
+    }
+
+    /** Counts connections requested from the pool and connections, actually created for them */
+    private static final class CountingConnectionManager extends PoolingHttpClientConnectionManager {
+        final AtomicLong requested;
+        final AtomicLong created;
+
+        CountingConnectionManager(Registry<ConnectionSocketFactory> registry) {
+            this(registry, new AtomicLong());
+        }
+
+        private CountingConnectionManager(Registry<ConnectionSocketFactory> registry, final AtomicLong created) {
+            super(registry, new HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection>() {
+                @Override
+                public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+                    created.incrementAndGet();
+                    return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+                }
+            });
+            this.requested = new AtomicLong();
+            this.created = created;
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            requested.incrementAndGet();
+            return super.requestConnection(route, state);
+        }
     }
-    
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net.http;
+
+import android.text.TextUtils;
+
+import java.io.File;
+
+/**
+ * The file, which is being downloaded, and the validator (ETag or Last-Modified) of the response,
+ * which it is downloaded from. If a download fails, the file keeps what was received,
+ * and the next download requests only the rest of it with "Range" and "If-Range" headers.
+ * The validator is updated as soon as headers of a response are received, so the caller
+ * may persist it even if the download fails
+ * @author yvolk@yurivolkov.com
+ */
+public class PartialFile {
+    private final File file;
+    private volatile String validator;
+
+    public PartialFile(File file, String validator) {
+        this.file = file;
+        this.validator = validator == null ? "" : validator;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getValidator() {
+        return validator;
+    }
+
+    void setValidator(String validator) {
+        this.validator = validator == null ? "" : validator;
+    }
+
+    /** @return Number of bytes, which we don't need to download again */
+    public long getResumeFrom() {
+        return !TextUtils.isEmpty(validator) && file.exists() ? file.length() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PartialFile{" + file.getName() + ", length:" + (file.exists() ? file.length() : -1)
+                + (TextUtils.isEmpty(validator) ? "" : ", validator:" + validator) + "}";
+    }
+}
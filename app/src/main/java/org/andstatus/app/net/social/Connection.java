@@ -27,6 +27,8 @@ import org.andstatus.app.net.http.ConnectionException.StatusCode;
 import org.andstatus.app.net.http.HttpConnection;
 import org.andstatus.app.net.http.HttpConnectionData;
 import org.andstatus.app.net.http.OAuthConsumerAndProvider;
+import org.andstatus.app.net.http.PartialFile;
+import org.andstatus.app.net.http.ProgressListener;
 import org.andstatus.app.net.social.MbTimelineItem.ItemType;
 import org.andstatus.app.origin.OriginConnectionData;
 import org.andstatus.app.util.MyLog;
@@ -113,6 +115,11 @@ public abstract class Connection {
         STATUSES_USER_TIMELINE(true),
         PUBLIC_TIMELINE(true),
         SEARCH_MESSAGES(true),
+        /**
+         * Streaming endpoint, which keeps the connection open and pushes new items of the Home timeline
+         * and Direct messages, as they appear
+         */
+        USER_STREAM,
 
         GET_MESSAGE,
         STOP_FOLLOWING_USER,
@@ -339,8 +346,35 @@ public abstract class Connection {
     public abstract List<MbTimelineItem> getTimeline(ApiRoutineEnum apiRoutine, TimelinePosition sinceId, int limit, String userId)
             throws ConnectionException;
 
+    /**
+     * The same as {@link #getTimeline(ApiRoutineEnum, TimelinePosition, int, String)}, but the items are passed
+     * to the consumer as soon as they are parsed, so the whole response is not kept in memory.
+     * The order of the items is the order of the response: newest first in the streaming implementations
+     */
+    public void getTimeline(ApiRoutineEnum apiRoutine, TimelinePosition sinceId, int limit, String userId,
+                            TimelineItemConsumer consumer) throws ConnectionException {
+        for (MbTimelineItem item : getTimeline(apiRoutine, sinceId, limit, userId)) {
+            consumer.onItem(item);
+        }
+    }
+
     public abstract List<MbTimelineItem> search(String searchQuery, int limit)
             throws ConnectionException;
+
+    /**
+     * @return true if new items may be pushed by the server, see {@link #streamTimeline(TimelineStreamListener)}
+     */
+    public boolean isStreamingSupported() {
+        return isApiSupported(ApiRoutineEnum.USER_STREAM);
+    }
+
+    /**
+     * Connects to the {@link ApiRoutineEnum#USER_STREAM} and passes items to the listener, as they arrive.
+     * Returns, when the server or the listener closes the stream
+     */
+    public void streamTimeline(TimelineStreamListener listener) throws ConnectionException {
+        throw ConnectionException.fromStatusCode(StatusCode.UNSUPPORTED_API, "streamTimeline " + MyLog.objTagToString(this));
+    }
     
     /**
      * Allows this User to follow the user specified in the userId parameter
@@ -481,9 +515,13 @@ public abstract class Connection {
 
     protected void setMessagesPublic(List<MbTimelineItem> timeline) {
         for (MbTimelineItem item : timeline) {
-            if (item.getType() == ItemType.MESSAGE) {
-                item.mbMessage.setPublic(true);
-            }
+            setMessagePublic(item);
+        }
+    }
+
+    protected void setMessagePublic(MbTimelineItem item) {
+        if (item.getType() == ItemType.MESSAGE) {
+            item.mbMessage.setPublic(true);
         }
     }
 
@@ -505,6 +543,20 @@ public abstract class Connection {
         http.downloadFile(url, file);
     }
 
+    /**
+     * Resumes the download, if a part of the file was downloaded already, see {@link PartialFile}
+     */
+    public void downloadFile(String url, PartialFile partialFile) throws ConnectionException {
+        http.downloadFile(url, partialFile);
+    }
+
+    /**
+     * @see HttpConnection#setUploadProgressListener(ProgressListener)
+     */
+    public void setUploadProgressListener(ProgressListener listener) {
+        http.setUploadProgressListener(listener);
+    }
+
     public HttpConnection getHttp() {
         return http;
     }
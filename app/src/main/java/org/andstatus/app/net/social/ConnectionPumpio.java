@@ -23,6 +23,7 @@ import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.DownloadStatus;
 import org.andstatus.app.data.MyContentType;
 import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.http.JsonItemConsumer;
 import org.andstatus.app.net.http.ConnectionException.StatusCode;
 import org.andstatus.app.net.http.HttpConnection;
 import org.andstatus.app.net.http.HttpConnectionData;
@@ -40,6 +41,7 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -315,6 +317,21 @@ public class ConnectionPumpio extends Connection {
     @Override
     public List<MbTimelineItem> getTimeline(ApiRoutineEnum apiRoutine, TimelinePosition sinceId, int limit, String userId)
             throws ConnectionException {
+        final List<MbTimelineItem> timeline = new ArrayList<MbTimelineItem>();
+        getTimeline(apiRoutine, sinceId, limit, userId, new TimelineItemConsumer() {
+            @Override
+            public void onItem(MbTimelineItem item) {
+                timeline.add(item);
+            }
+        });
+        // Read the activities in chronological order
+        Collections.reverse(timeline);
+        return timeline;
+    }
+
+    @Override
+    public void getTimeline(ApiRoutineEnum apiRoutine, TimelinePosition sinceId, int limit, String userId,
+                            final TimelineItemConsumer consumer) throws ConnectionException {
         ConnectionAndUrl conu = getConnectionAndUrl(apiRoutine, userId);
         Uri sUri = Uri.parse(conu.url);
         Uri.Builder builder = sUri.buildUpon();
@@ -327,22 +344,15 @@ public class ConnectionPumpio extends Connection {
             builder.appendQueryParameter("count",String.valueOf(fixedDownloadLimitForApiRoutine(limit, apiRoutine)));
         }
         String url = builder.build().toString();
-        JSONArray jArr = conu.httpConnection.getRequestAsArray(url);
-        List<MbTimelineItem> timeline = new ArrayList<MbTimelineItem>();
-        if (jArr != null) {
-            // Read the activities in chronological order
-            for (int index = jArr.length() - 1; index >= 0; index--) {
-                try {
-                    JSONObject jso = jArr.getJSONObject(index);
-                    MbTimelineItem item = timelineItemFromJson(jso);
-                    timeline.add(item);
-                } catch (JSONException e) {
-                    throw ConnectionException.loggedJsonException(this, "Parsing timeline", e, null);
-                }
+        final int[] counter = {0};
+        conu.httpConnection.getConditionalRequest(url, new JsonItemConsumer() {
+            @Override
+            public void onItem(JSONObject item) throws ConnectionException {
+                counter[0]++;
+                consumer.onItem(timelineItemFromJson(item));
             }
-        }
-        MyLog.d(TAG, "getTimeline '" + url + "' " + timeline.size() + " messages");
-        return timeline;
+        });
+        MyLog.d(TAG, "getTimeline '" + url + "' " + counter[0] + " messages");
     }
 
     @Override
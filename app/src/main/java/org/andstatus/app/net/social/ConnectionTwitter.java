@@ -21,6 +21,8 @@ import android.text.TextUtils;
 
 import org.andstatus.app.data.DownloadStatus;
 import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.http.JsonItemConsumer;
+import org.andstatus.app.net.http.JsonStreamListener;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.SharedPreferencesUtil;
 import org.andstatus.app.util.TriState;
@@ -28,8 +30,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Twitter API implementations
@@ -183,6 +188,21 @@ public abstract class ConnectionTwitter extends Connection {
     @Override
     public List<MbTimelineItem> getTimeline(ApiRoutineEnum apiRoutine, TimelinePosition sinceId, int limit, String userId)
             throws ConnectionException {
+        final List<MbTimelineItem> timeline = new ArrayList<MbTimelineItem>();
+        getTimeline(apiRoutine, sinceId, limit, userId, new TimelineItemConsumer() {
+            @Override
+            public void onItem(MbTimelineItem item) {
+                timeline.add(item);
+            }
+        });
+        // Read the activities in chronological order
+        Collections.reverse(timeline);
+        return timeline;
+    }
+
+    @Override
+    public void getTimeline(final ApiRoutineEnum apiRoutine, TimelinePosition sinceId, int limit, String userId,
+                            final TimelineItemConsumer consumer) throws ConnectionException {
         String url = this.getApiPath(apiRoutine);
         Uri sUri = Uri.parse(url);
         Uri.Builder builder = sUri.buildUpon();
@@ -195,8 +215,51 @@ public abstract class ConnectionTwitter extends Connection {
         if (!TextUtils.isEmpty(userId)) {
             builder.appendQueryParameter("user_id", userId);
         }
-        JSONArray jArr = http.getRequestAsArray(builder.build().toString());
-        return jArrToTimeline(jArr, apiRoutine, url);
+        final int[] counter = {0};
+        http.getConditionalRequest(builder.build().toString(), new JsonItemConsumer() {
+            @Override
+            public void onItem(JSONObject jso) throws ConnectionException {
+                MbTimelineItem item = timelineItemFromJson(jso);
+                if (apiRoutine.isMsgPublic()) {
+                    setMessagePublic(item);
+                }
+                counter[0]++;
+                consumer.onItem(item);
+            }
+        });
+        MyLog.d(this, apiRoutine + " '" + url + "' " + counter[0] + " items");
+    }
+
+    /**
+     * Tweets and Direct messages of the User stream, see https://dev.twitter.com/streaming/overview/messages-types
+     * Other messages (the list of friends, deletions, events...) are skipped
+     */
+    @Override
+    public void streamTimeline(final TimelineStreamListener listener) throws ConnectionException {
+        final String url = this.getApiPath(ApiRoutineEnum.USER_STREAM);
+        final int[] counter = {0};
+        http.streamRequest(url, new JsonStreamListener() {
+            @Override
+            public void onConnected(Closeable stream) {
+                MyLog.d(ConnectionTwitter.this, "Connected to '" + url + "'");
+                listener.onConnected(stream);
+            }
+
+            @Override
+            public void onItem(JSONObject item) throws ConnectionException {
+                JSONObject message = null;
+                if (item.has("direct_message")) {
+                    message = item.optJSONObject("direct_message");
+                } else if (item.has("text") && !item.has("event")) {
+                    message = item;
+                }
+                if (message != null) {
+                    counter[0]++;
+                    listener.onItem(timelineItemFromJson(message));
+                }
+            }
+        });
+        MyLog.d(this, ApiRoutineEnum.USER_STREAM + " '" + url + "' ended after " + counter[0] + " items");
     }
 
     private MbTimelineItem timelineItemFromJson(JSONObject jso) throws ConnectionException {
@@ -451,6 +514,8 @@ public abstract class ConnectionTwitter extends Connection {
                 case GNUSOCIAL_TWITTER:
                     status.remaining = result.optInt("remaining_hits");
                     status.limit = result.optInt("hourly_limit");
+                    status.resetTime = TimeUnit.SECONDS.toMillis(
+                            result.optLong("reset_time_in_seconds"));
                     break;
                 default:
                     JSONObject resources = null;
@@ -459,6 +524,8 @@ public abstract class ConnectionTwitter extends Connection {
                         JSONObject limitObject = resources.getJSONObject("statuses").getJSONObject("/statuses/home_timeline");
                         status.remaining = limitObject.optInt("remaining");
                         status.limit = limitObject.optInt("limit");
+                        status.resetTime = TimeUnit.SECONDS.toMillis(
+                                limitObject.optLong("reset"));
                     } catch (JSONException e) {
                         throw ConnectionException.loggedJsonException(this, "getting rate limits", e, resources);
                     }
@@ -94,6 +94,10 @@ public class ConnectionTwitter1p1 extends ConnectionTwitter {
                 // https://dev.twitter.com/docs/api/1.1/get/statuses/mentions_timeline
                 url = "statuses/mentions_timeline" + EXTENSION;
                 break;
+            case USER_STREAM:
+                // https://dev.twitter.com/streaming/userstreams
+                url = "https://userstream.twitter.com/1.1/user" + EXTENSION;
+                break;
             default:
                 url = "";
                 break;
@@ -117,9 +117,9 @@ public class ConnectionTwitterGnuSocial extends ConnectionTwitter1p0 {
             if (site != null) {
                 int textLimit = site.optInt("textlimit");
                 int uploadLimit = 0;
-                JSONObject attachments = site.optJSONObject("attachments");
-                if (attachments != null && site.optBoolean("uploads")) {
-                    uploadLimit = site.optInt("file_quota");
+                JSONObject attachments = result.optJSONObject("attachments");
+                if (attachments != null && attachments.optBoolean("uploads")) {
+                    uploadLimit = attachments.optInt("file_quota");
                 }
                 config = MbConfig.fromTextLimit(textLimit, uploadLimit);
                 // "shorturllength" is not used
@@ -24,6 +24,8 @@ package org.andstatus.app.net.social;
 public class MbRateLimitStatus {
     public int remaining = 0;
     public int limit = 0;
+    /** When the limit will be reset, 0 if unknown */
+    public long resetTime = 0;
     
     public boolean isEmpty() {
       return limit == 0 && remaining == 0;   
@@ -66,13 +66,13 @@ public class DiscoveredOriginList extends OriginList implements MyServiceEventsL
     protected void onResume() {
         super.onResume();
         MyServiceManager.setServiceAvailable();
-        mServiceConnector.registerReceiver(this);
+        mServiceConnector.register();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        mServiceConnector.unregisterReceiver(this);
+        mServiceConnector.unregister();
     }
     
     @Override
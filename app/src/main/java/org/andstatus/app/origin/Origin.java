@@ -73,6 +73,11 @@ public class Origin {
      */
     private int textLimit = OriginType.TEXT_LIMIT_MAXIMUM;
 
+    /**
+     * Maximum size of an uploaded file in bytes, 0 if unknown
+     */
+    private long uploadLimit = 0;
+
     
     /** Include this system in Global Search while in Combined Timeline */
     private boolean inCombinedGlobalSearch = true;
@@ -334,6 +339,13 @@ public class Origin {
         return textLimit;
     }
 
+    /**
+     * @return Maximum size of an uploaded file in bytes, 0 if unknown
+     */
+    public long getUploadLimit() {
+        return uploadLimit;
+    }
+
     public static final class Builder {
 
         private final Origin origin;
@@ -376,6 +388,7 @@ public class Origin {
             if (originType1.textLimitDefault == 0) {
                 setTextLimit(c.getInt(c.getColumnIndex(MyDatabase.Origin.TEXT_LIMIT)));
             }
+            origin.uploadLimit = c.getLong(c.getColumnIndex(MyDatabase.Origin.UPLOAD_LIMIT));
             origin.inCombinedGlobalSearch = (c.getInt(c
                     .getColumnIndex(MyDatabase.Origin.IN_COMBINED_GLOBAL_SEARCH)) != 0);
             origin.inCombinedPublicReload = (c.getInt(c
@@ -404,6 +417,7 @@ public class Origin {
             setHtmlContentAllowed(original.allowHtml);
             origin.shortUrlLength = original.shortUrlLength;
             setTextLimit(original.getTextLimit());
+            origin.uploadLimit = original.uploadLimit;
             setInCombinedGlobalSearch(original.inCombinedGlobalSearch);
             setInCombinedPublicReload(original.inCombinedPublicReload);
             setMentionAsWebFingerId(original.mMentionAsWebFingerId);
@@ -492,6 +506,7 @@ public class Origin {
         public Builder save(MbConfig config) {
             origin.shortUrlLength = config.shortUrlLength;
             setTextLimit(config.textLimit);
+            origin.uploadLimit = config.uploadLimit;
             save();
             return this;
         }
@@ -521,6 +536,7 @@ public class Origin {
             values.put(MyDatabase.Origin.ALLOW_HTML, origin.allowHtml);
             values.put(MyDatabase.Origin.SHORT_URL_LENGTH, origin.shortUrlLength);
             values.put(MyDatabase.Origin.TEXT_LIMIT, origin.getTextLimit());
+            values.put(MyDatabase.Origin.UPLOAD_LIMIT, origin.uploadLimit);
             values.put(MyDatabase.Origin.IN_COMBINED_GLOBAL_SEARCH, origin.inCombinedGlobalSearch);
             values.put(MyDatabase.Origin.IN_COMBINED_PUBLIC_RELOAD, origin.inCombinedPublicReload);
             values.put(MyDatabase.Origin.MENTION_AS_WEBFINGER_ID, origin.mMentionAsWebFingerId.getId());
@@ -18,9 +18,12 @@ package org.andstatus.app.service;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 
 import org.andstatus.app.IntentExtra;
@@ -28,10 +31,12 @@ import org.andstatus.app.R;
 import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.context.MyContext;
 import org.andstatus.app.context.MyContextHolder;
-import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.MyDatabase;
+import org.andstatus.app.data.MyDatabase.Command;
 import org.andstatus.app.data.MyQuery;
 import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.data.UploadFile;
 import org.andstatus.app.msg.TimelineActivity;
 import org.andstatus.app.util.I18n;
 import org.andstatus.app.util.MyHtml;
@@ -65,6 +70,8 @@ public class CommandData implements Comparable<CommandData> {
     private volatile boolean mInForeground = false;
     private volatile boolean mManuallyLaunched = false;
     private volatile boolean mIsStep = false;
+    /** When the command was put to the Main queue last time, 0 if unknown */
+    private volatile long mQueuedAt = 0;
 
     /**
      * This is: 1. Generally: Message ID ({@link MyDatabase.Msg#MSG_ID} of the
@@ -198,64 +205,83 @@ public class CommandData implements Comparable<CommandData> {
     }
 
     /**
+     * Replace the persisted queue with the commands of the queue
      * @return Number of items persisted
      */
     static int saveQueue(Context context, Queue<CommandData> queue, QueueType queueType) {
         final String method = "saveQueue";
-        int count = 0;
-        SharedPreferences sp = MyPreferences.getSharedPreferences(queueType.getFilename());
-        if (sp == null) {
-            MyLog.d(context, method + "; No shared preferences");
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            MyLog.d(context, method + "; No database");
             return 0;
         }
-        sp.edit().clear().apply();
-        if (!queue.isEmpty()) {
-            while (!queue.isEmpty()) {
-                CommandData cd = queue.poll();
-                cd.toSharedPreferences(sp, count);
-                MyLog.v(context, method + "; Command saved: " + cd.toString());
-                count += 1;
+        int count = 0;
+        db.beginTransaction();
+        try {
+            deleteQueue(db, queueType);
+            for (CommandData cd : queue) {
+                cd.saveToQueue(db, queueType);
+                count++;
             }
-            MyLog.d(context, method + " to '" + queueType + "', " + count + " msgs");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        // Adding Empty command to mark the end.
-        (new CommandData(CommandEnum.EMPTY, "")).toSharedPreferences(sp, count);
+        MyLog.d(context, method + " to '" + queueType + "', " + count + " msgs");
         return count;
     }
 
+    static SQLiteDatabase getDatabase() {
+        MyDatabase database = MyContextHolder.get().getDatabase();
+        return database == null ? null : database.getWritableDatabase();
+    }
+
+    static void deleteQueue(SQLiteDatabase db, QueueType queueType) {
+        db.delete(Command.TABLE_NAME, Command.QUEUE_TYPE + "=?", new String[]{queueType.getAcronym()});
+    }
+
     /**
-     * Persist the object to the SharedPreferences We're not storing all types of commands here
-     * because not all commands go to the queue. SharedPreferences should not contain any previous
-     * versions of the same entries (we don't store default values!)
-     *
-     * @param index Index of the preference's name to be used
+     * Persist the command as a member of the queue. We're not storing all types of commands here
+     * because not all commands go to the queue
      */
-    private void toSharedPreferences(SharedPreferences sp, int index) {
-        String si = Integer.toString(index);
-
-        android.content.SharedPreferences.Editor ed = sp.edit();
-        ed.putLong(IntentExtra.COMMAND_ID.key + si, id);
-        ed.putString(IntentExtra.COMMAND.key + si, command.save());
-        ed.putString(IntentExtra.ACCOUNT_NAME.key + si, getAccountName());
-        ed.putString(IntentExtra.TIMELINE_TYPE.key + si, timelineType.save());
-        ed.putLong(IntentExtra.ITEMID.key + si, itemId);
-        ed.putBoolean(IntentExtra.IN_FOREGROUND.key + si, mInForeground);
-        ed.putBoolean(IntentExtra.MANUALLY_LAUNCHED.key + si, mManuallyLaunched);
-        ed.putBoolean(IntentExtra.IS_STEP.key + si, mIsStep);
+    void saveToQueue(SQLiteDatabase db, QueueType queueType) {
+        saveToQueue(db, toQueueValues(queueType));
+    }
+
+    static void saveToQueue(SQLiteDatabase db, ContentValues queueValues) {
+        db.insertWithOnConflict(Command.TABLE_NAME, null, queueValues, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /** The row of the command as a member of the queue, see {@link #saveToQueue(SQLiteDatabase, QueueType)} */
+    ContentValues toQueueValues(QueueType queueType) {
+        ContentValues values = new ContentValues();
+        values.put(BaseColumns._ID, id);
+        values.put(Command.QUEUE_TYPE, queueType.getAcronym());
+        values.put(Command.COMMAND_CODE, command.save());
+        values.put(Command.ACCOUNT_NAME, getAccountName());
+        values.put(Command.TIMELINE_TYPE, timelineType.save());
+        values.put(Command.ITEM_ID, itemId);
+        values.put(Command.IN_FOREGROUND, mInForeground);
+        values.put(Command.MANUALLY_LAUNCHED, mManuallyLaunched);
+        values.put(Command.IS_STEP, mIsStep);
         switch (command) {
             case FETCH_ATTACHMENT:
             case UPDATE_STATUS:
-                ed.putString(IntentExtra.MESSAGE_TEXT.key + si,
-                        bundle.getString(IntentExtra.MESSAGE_TEXT.key));
+                values.put(Command.BODY, getMessageText());
                 break;
             case SEARCH_MESSAGE:
-                ed.putString(IntentExtra.SEARCH_QUERY.key + si, getSearchQuery());
+                values.put(Command.BODY, getSearchQuery());
                 break;
             default:
                 break;
         }
-        commandResult.saveToSharedPreferences(ed, index);
-        ed.apply();
+        commandResult.toContentValues(values);
+        return values;
+    }
+
+    static void deleteFromQueue(SQLiteDatabase db, QueueType queueType, long commandId) {
+        db.delete(Command.TABLE_NAME, Command.QUEUE_TYPE + "=? AND " + BaseColumns._ID + "=" + commandId,
+                new String[]{queueType.getAcronym()});
     }
 
     /**
@@ -263,63 +289,65 @@ public class CommandData implements Comparable<CommandData> {
      */
     static int loadQueue(Context context, Queue<CommandData> q, QueueType queueType) {
         final String method = "loadQueue";
+        CommandQueue.awaitPersisted();
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            MyLog.d(context, method + "; No database");
+            return 0;
+        }
         int count = 0;
-        SharedPreferences sp = MyPreferences.getSharedPreferences(queueType.getFilename());
-        for (int index = 0; index < 100000; index++) {
-            CommandData cd = fromSharedPreferences(sp, index);
-            if (CommandEnum.EMPTY.equals(cd.getCommand())) {
-                break;
-            } else if (q.contains(cd)) {
-                MyLog.e(context, method + "; " + index + " duplicate skipped " + cd);
-                break;
-            } else {
-                if (q.offer(cd)) {
-                    MyLog.v(context, method + index + " " + cd);
+        Cursor cursor = null;
+        try {
+            cursor = db.query(Command.TABLE_NAME, null, Command.QUEUE_TYPE + "=?",
+                    new String[]{queueType.getAcronym()}, null, null, BaseColumns._ID);
+            while (cursor.moveToNext()) {
+                CommandData cd = fromCursor(cursor);
+                if (CommandEnum.EMPTY.equals(cd.getCommand())) {
+                    MyLog.e(context, method + "; empty command skipped");
+                } else if (q.contains(cd)) {
+                    MyLog.e(context, method + "; duplicate skipped " + cd);
+                } else if (q.offer(cd)) {
+                    MyLog.v(context, method + " " + cd);
                     count++;
                 } else {
-                    MyLog.e(context, method + index + " " + cd);
+                    MyLog.e(context, method + " " + cd);
                 }
             }
+        } finally {
+            DbUtils.closeSilently(cursor);
         }
         MyLog.d(context, method + "; loaded " + count + " msgs from '" + queueType + "'");
         return count;
     }
 
-    /**
-     * Restore this from the SharedPreferences
-     * 
-     * @param index Index of the preference's name to be used
-     */
-    private static CommandData fromSharedPreferences(SharedPreferences sp, int index) {
-        String si = Integer.toString(index);
-        CommandEnum command = CommandEnum.load(sp.getString(IntentExtra.COMMAND.key + si,
-                CommandEnum.EMPTY.save()));
+    private static CommandData fromCursor(Cursor cursor) {
+        CommandEnum command = CommandEnum.load(cursor.getString(cursor.getColumnIndex(Command.COMMAND_CODE)));
         if (CommandEnum.EMPTY.equals(command)) {
             return CommandData.getEmpty();
         }
         CommandData commandData = new CommandData(
-                sp.getLong(IntentExtra.COMMAND_ID.key + si, 0),
+                cursor.getLong(cursor.getColumnIndex(BaseColumns._ID)),
                 command,
-                sp.getString(IntentExtra.ACCOUNT_NAME.key + si, ""),
-                TimelineType.load(sp.getString(IntentExtra.TIMELINE_TYPE.key + si, "")),
-                sp.getLong(IntentExtra.ITEMID.key + si, 0));
-        commandData.bundle.putBoolean(IntentExtra.IN_FOREGROUND.key,
-                sp.getBoolean(IntentExtra.IN_FOREGROUND.key + si, false));
-
+                cursor.getString(cursor.getColumnIndex(Command.ACCOUNT_NAME)),
+                TimelineType.load(cursor.getString(cursor.getColumnIndex(Command.TIMELINE_TYPE))),
+                cursor.getLong(cursor.getColumnIndex(Command.ITEM_ID)));
+        commandData.mInForeground = cursor.getInt(cursor.getColumnIndex(Command.IN_FOREGROUND)) != 0;
+        commandData.mManuallyLaunched = cursor.getInt(cursor.getColumnIndex(Command.MANUALLY_LAUNCHED)) != 0;
+        commandData.mIsStep = cursor.getInt(cursor.getColumnIndex(Command.IS_STEP)) != 0;
         switch (commandData.command) {
             case FETCH_ATTACHMENT:
             case UPDATE_STATUS:
                 commandData.bundle.putString(IntentExtra.MESSAGE_TEXT.key,
-                        sp.getString(IntentExtra.MESSAGE_TEXT.key + si, ""));
+                        cursor.getString(cursor.getColumnIndex(Command.BODY)));
                 break;
             case SEARCH_MESSAGE:
                 commandData.bundle.putString(IntentExtra.SEARCH_QUERY.key,
-                        sp.getString(IntentExtra.SEARCH_QUERY.key + si, ""));
+                        cursor.getString(cursor.getColumnIndex(Command.BODY)));
                 break;
             default:
                 break;
         }
-        commandData.getResult().loadFromSharedPreferences(sp, index);
+        commandData.getResult().loadFromCursor(cursor);
         return commandData;
     }
 
@@ -672,18 +700,27 @@ public class CommandData implements Comparable<CommandData> {
         return builder.toString();
     }
 
-    void deleteCommandInTheQueue(Queue<CommandData> queue) {
+    void deleteCommandInTheQueue(CommandQueue queue) {
         String method = "deleteCommandInTheQueue: ";
-        for (CommandData cd : queue) {
-            if (cd.getId() == itemId) {
-                queue.remove(cd);
-                getResult().incrementDownloadedCount();
-                MyLog.v(this, method + "deleted: " + cd);
-            }
+        CommandData cd = queue.removeById(itemId);
+        if (cd != null) {
+            cd.onDropped();
+            getResult().incrementDownloadedCount();
+            MyLog.v(this, method + "deleted: " + cd);
         }
         MyLog.v(this, method + "id=" + itemId + ", processed queue: " + queue.size());
     }
 
+    /**
+     * The command won't be executed, unless it is sent again,
+     * so the files, which were prepared for it, are not needed
+     */
+    void onDropped() {
+        if (command == CommandEnum.UPDATE_STATUS && itemId != 0) {
+            UploadFile.deleteScaledOfMessage(itemId);
+        }
+    }
+
     public boolean isInForeground() {
         return mInForeground;
     }
@@ -709,4 +746,12 @@ public class CommandData implements Comparable<CommandData> {
     public long getCreatedDate() {
         return createdDate;
     }
+
+    long getQueuedAt() {
+        return mQueuedAt;
+    }
+
+    void setQueuedNow() {
+        mQueuedAt = System.currentTimeMillis();
+    }
 }
@@ -30,6 +30,18 @@ class CommandExecutorLoadAllTimelines extends CommandExecutorStrategy {
             if (isStopping()) {
                 break;
             }
+            if (execContext.getCommandData().getCommand() == CommandEnum.AUTOMATIC_UPDATE) {
+                if (TimelineStreamer.isStreamed(execContext.getMyAccount(), timelineType)) {
+                    MyLog.v(this, timelineType + " is streamed for "
+                            + execContext.getMyAccount().getAccountName());
+                    continue;
+                }
+                if (!SyncScheduler.isTimeToFetch(execContext.getMyAccount(), timelineType)) {
+                    MyLog.v(this, "Not time to update " + timelineType + " for "
+                            + execContext.getMyAccount().getAccountName());
+                    continue;
+                }
+            }
             execContext.setTimelineType(timelineType);
             CommandExecutorStrategy.executeStep(execContext, this);
         }
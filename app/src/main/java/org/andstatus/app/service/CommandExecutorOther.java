@@ -22,17 +22,20 @@ import android.net.Uri;
 import android.text.TextUtils;
 
 import org.andstatus.app.appwidget.AppWidgets;
+import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.DataInserter;
 import org.andstatus.app.data.DownloadData;
 import org.andstatus.app.data.DownloadStatus;
-import org.andstatus.app.data.FileProvider;
 import org.andstatus.app.data.MatchedUri;
 import org.andstatus.app.data.MyContentType;
 import org.andstatus.app.data.MyDatabase;
 import org.andstatus.app.data.MyQuery;
 import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.data.UploadFile;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.http.ProgressListener;
+import org.andstatus.app.net.social.Connection;
 import org.andstatus.app.net.social.MbMessage;
 import org.andstatus.app.net.social.MbRateLimitStatus;
 import org.andstatus.app.net.social.MbUser;
@@ -321,7 +324,10 @@ class CommandExecutorOther extends CommandExecutorStrategy{
         String status = MyQuery.msgIdToStringColumnValue(MyDatabase.Msg.BODY, msgId);
         long recipientUserId = MyQuery.msgIdToLongColumnValue(MyDatabase.Msg.RECIPIENT_ID, msgId);
         DownloadData dd = DownloadData.getSingleForMessage(msgId, MyContentType.IMAGE, Uri.EMPTY);
-        Uri mediaUri = dd.getUri().equals(Uri.EMPTY) ? Uri.EMPTY : FileProvider.downloadFilenameToUri(dd.getFile().getFilename());
+        UploadFile uploadFile = new UploadFile(dd);
+        Uri mediaUri = dd.getUri().equals(Uri.EMPTY) ? Uri.EMPTY
+                : uploadFile.prepare(execContext.getMyAccount().getOrigin().getUploadLimit());
+        Connection connection = execContext.getMyAccount().getConnection();
         String msgLog = "text:'" + MyLog.trimmedString(status, 40) + "'"
                 + (mediaUri.equals(Uri.EMPTY) ? "" : "; uri:'" + mediaUri + "'");
         try {
@@ -332,24 +338,28 @@ class CommandExecutorOther extends CommandExecutorStrategy{
             if (!statusStored.mayBeSent()) {
                 throw ConnectionException.hardConnectionException("Wrong message status: " + statusStored, null);
             }
+            if (!mediaUri.equals(Uri.EMPTY)) {
+                connection.setUploadProgressListener(newUploadProgressListener());
+            }
             if (recipientUserId == 0) {
                 long replyToMsgId = MyQuery.msgIdToLongColumnValue(
                         MyDatabase.Msg.IN_REPLY_TO_MSG_ID, msgId);
                 String replyToMsgOid = MyQuery.idToOid(OidEnum.MSG_OID, replyToMsgId, 0);
-                message = execContext.getMyAccount().getConnection()
-                        .updateStatus(status.trim(), replyToMsgOid, mediaUri);
+                message = connection.updateStatus(status.trim(), replyToMsgOid, mediaUri);
             } else {
                 String recipientOid = MyQuery.idToOid(OidEnum.USER_OID, recipientUserId, 0);
                 // Currently we don't use Screen Name, I guess id is enough.
-                message = execContext.getMyAccount().getConnection()
-                        .postDirectMessage(status.trim(), recipientOid, mediaUri);
+                message = connection.postDirectMessage(status.trim(), recipientOid, mediaUri);
             }
             ok = (!message.isEmpty());
             logOk(ok);
         } catch (ConnectionException e) {
             logConnectionException(e, method + "; " + msgLog);
+        } finally {
+            connection.setUploadProgressListener(null);
         }
         if (ok) {
+            uploadFile.deleteScaled();
             // The message was sent successfully, so now update unsent message
             // New User's message should be put into the user's Home timeline.
             message.msgId = msgId;
@@ -360,6 +370,19 @@ class CommandExecutorOther extends CommandExecutorStrategy{
         }
     }
 
+    private ProgressListener newUploadProgressListener() {
+        final CommandData commandData = execContext.getCommandData();
+        return new ProgressListener() {
+            @Override
+            public void onProgress(long transferred, long total) {
+                commandData.getResult().setProgress(total > 0 ? Long.toString(transferred * 100 / total) + "%"
+                        : Long.toString(transferred / 1024) + "K");
+                MyServiceEventsBroadcaster.newInstance(MyContextHolder.get(), MyServiceState.RUNNING)
+                        .setCommandData(commandData).setEvent(MyServiceEvent.PROGRESS_EXECUTING_COMMAND).broadcast();
+            }
+        };
+    }
+
     private void reblog(long rebloggedId) {
         String oid = MyQuery.idToOid(OidEnum.MSG_OID, rebloggedId, 0);
         boolean ok = false;
@@ -3,6 +3,7 @@ package org.andstatus.app.service;
 import android.text.TextUtils;
 
 import org.andstatus.app.data.DataInserter;
+import org.andstatus.app.data.LatestUserMessages;
 import org.andstatus.app.net.http.ConnectionException;
 import org.andstatus.app.net.social.MbTimelineItem;
 import org.andstatus.app.util.MyLog;
@@ -23,18 +24,9 @@ public class CommandExecutorSearch extends CommandExecutorStrategy {
             List<MbTimelineItem> messages;
             try {
                 messages = execContext.getMyAccount().getConnection().search(searchQuery, limit);
-                for (MbTimelineItem item : messages) {
-                    switch (item.getType()) {
-                        case MESSAGE:
-                            di.insertOrUpdateMsg(item.mbMessage);
-                            break;
-                        case USER:
-                            di.insertOrUpdateUser(item.mbUser);
-                            break;
-                        default:
-                            break;
-                    }
-                }
+                LatestUserMessages lum = new LatestUserMessages();
+                di.insertOrUpdateTimelineItems(messages, lum);
+                lum.save();
             } catch (ConnectionException e) {
                 logConnectionException(e, "Search '" + searchQuery + "'");
             }
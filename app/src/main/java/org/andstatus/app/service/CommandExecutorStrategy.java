@@ -23,6 +23,7 @@ import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.TimelineType;
 import org.andstatus.app.net.http.ConnectionException;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.PhaseTimer;
 
 class CommandExecutorStrategy implements CommandExecutorParent {
     protected CommandExecutionContext execContext = null;
@@ -33,8 +34,16 @@ class CommandExecutorStrategy implements CommandExecutorParent {
                 .setParent(parent);
         commandData.getResult().prepareForLaunch();
         logLaunch(strategy);
-        // This may cause recursive calls to executors...
-        strategy.execute();
+        long startedAt = System.currentTimeMillis();
+        PhaseTimer timer = PhaseTimer.begin();
+        try {
+            // This may cause recursive calls to executors...
+            strategy.execute();
+        } finally {
+            timer.end();
+        }
+        CommandMetrics.onExecuted(strategy.execContext, false, commandData.getQueuedAt(), startedAt, timer);
+        SyncScheduler.onExecuted(commandData.getAccount(), commandData.getResult());
         commandData.getResult().afterExecutionEnded();
         logEnd(strategy);
     }
@@ -60,7 +69,14 @@ class CommandExecutorStrategy implements CommandExecutorParent {
         MyServiceEventsBroadcaster.newInstance(MyContextHolder.get(), MyServiceState.RUNNING)
                 .setCommandData(execContext.getCommandData())
                 .setEvent(MyServiceEvent.BEFORE_EXECUTING_COMMAND).broadcast();
-        strategy.execute();
+        PhaseTimer timer = PhaseTimer.begin();
+        try {
+            strategy.execute();
+        } finally {
+            timer.end();
+        }
+        CommandMetrics.onExecuted(strategy.execContext, true, 0, 0, timer);
+        SyncScheduler.onExecuted(execContext.getMyAccount(), execContext.getResult());
         MyServiceEventsBroadcaster.newInstance(MyContextHolder.get(), MyServiceState.RUNNING)
                 .setCommandData(execContext.getCommandData())
                 .setEvent(MyServiceEvent.AFTER_EXECUTING_COMMAND).broadcast();
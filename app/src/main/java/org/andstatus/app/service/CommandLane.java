@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.text.TextUtils;
+
+/**
+ * Commands of one lane are executed sequentially by one {@link MyService} executor,
+ * while different lanes are executed in parallel.
+ * Each Account (which is bound to its Origin) has its own lane,
+ * downloads of avatars and attachments go to a separate lane,
+ * and commands that are not Account specific go to the common lane.
+ * @author yvolk@yurivolkov.com
+ */
+final class CommandLane {
+    static final CommandLane COMMON = new CommandLane("common");
+    static final CommandLane DOWNLOADS = new CommandLane("downloads");
+    private static final String ACCOUNT_LANE_PREFIX = "account:";
+
+    private final String key;
+
+    private CommandLane(String key) {
+        this.key = key;
+    }
+
+    static CommandLane forCommand(CommandData commandData) {
+        switch (commandData.getCommand()) {
+            case FETCH_ATTACHMENT:
+            case FETCH_AVATAR:
+                return DOWNLOADS;
+            default:
+                if (TextUtils.isEmpty(commandData.getAccountName())) {
+                    return COMMON;
+                }
+                return new CommandLane(ACCOUNT_LANE_PREFIX + commandData.getAccountName());
+        }
+    }
+
+    boolean isFor(CommandData commandData) {
+        return equals(forCommand(commandData));
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CommandLane)) {
+            return false;
+        }
+        return key.equals(((CommandLane) o).key);
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
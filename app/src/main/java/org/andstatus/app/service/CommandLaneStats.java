@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import org.andstatus.app.util.MyLog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue wait time and execution time of the commands of one {@link CommandLane}.
+ * Commands of the {@link CommandLane#DOWNLOADS} lane are executed concurrently,
+ * so the values are updated without locks
+ * @author yvolk@yurivolkov.com
+ */
+final class CommandLaneStats {
+    private final CommandLane lane;
+    private final AtomicLong executedCount = new AtomicLong();
+    /** Commands with unknown queue wait time are not counted here */
+    private final AtomicLong queueWaitCount = new AtomicLong();
+    private final AtomicLong queueWaitMillis = new AtomicLong();
+    private final AtomicLong maxQueueWaitMillis = new AtomicLong();
+    private final AtomicLong executionCount = new AtomicLong();
+    private final AtomicLong executionMillis = new AtomicLong();
+    private final AtomicLong maxExecutionMillis = new AtomicLong();
+
+    CommandLaneStats(CommandLane lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * @param queuedAt 0 if the time when the command was put to the queue is unknown
+     */
+    void onCommandExecuted(long queuedAt, long startedAt, long endedAt) {
+        executedCount.incrementAndGet();
+        if (queuedAt > 0 && startedAt > queuedAt) {
+            addAndUpdateMax(queueWaitCount, queueWaitMillis, maxQueueWaitMillis, startedAt - queuedAt);
+        }
+        if (endedAt > startedAt) {
+            addAndUpdateMax(executionCount, executionMillis, maxExecutionMillis, endedAt - startedAt);
+        }
+    }
+
+    private static void addAndUpdateMax(AtomicLong count, AtomicLong total, AtomicLong max, long value) {
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    long getAverageQueueWaitMillis() {
+        return average(queueWaitCount, queueWaitMillis);
+    }
+
+    long getAverageExecutionMillis() {
+        return average(executionCount, executionMillis);
+    }
+
+    /** The count and the total may be updated in between, which is good enough for statistics */
+    private static long average(AtomicLong count, AtomicLong total) {
+        long countValue = count.get();
+        return countValue == 0 ? 0 : total.get() / countValue;
+    }
+
+    @Override
+    public String toString() {
+        return MyLog.formatKeyValue("LaneStats", "lane:" + lane + ","
+                + "executed:" + getExecutedCount() + ","
+                + "waitAvgMs:" + getAverageQueueWaitMillis() + ","
+                + "waitMaxMs:" + maxQueueWaitMillis.get() + ","
+                + "execAvgMs:" + getAverageExecutionMillis() + ","
+                + "execMaxMs:" + maxExecutionMillis.get());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.util.LatencyHistogram;
+import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.PhaseTimer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of executed commands and of their steps, split into the queue wait and phases
+ * of the execution (see {@link PhaseTimer}), for each {@link CommandEnum}, origin and {@link TimelineType}.
+ * Origins and timelines are measured by steps and by commands without steps,
+ * so a command for all accounts is not counted twice.
+ * Phases of tasks, which a command executes in a pool of threads, are measured separately,
+ * because they overlap in time.
+ * Shown in the {@link QueueViewer}, so we may see whether a slow sync is the server, the parser or SQLite
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class CommandMetrics {
+    private static final String TAG = CommandMetrics.class.getSimpleName();
+    static final String COMMAND_PREFIX = "command:";
+    static final String STEP_PREFIX = "step:";
+    static final String ORIGIN_PREFIX = "origin:";
+    static final String TIMELINE_PREFIX = "timeline:";
+
+    enum Measure {
+        QUEUE_WAIT,
+        TOTAL,
+        NETWORK,
+        PARSE,
+        DB_WRITE,
+        OTHER,
+        TASKS_NETWORK,
+        TASKS_PARSE,
+        TASKS_DB_WRITE
+    }
+
+    /** Sorted by the key, so commands, origins etc. are shown together */
+    private static final ConcurrentMap<String, Metrics> metrics = new ConcurrentSkipListMap<String, Metrics>();
+
+    static final class Metrics {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[Measure.values().length];
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+
+        Metrics() {
+            for (int ind = 0; ind < histograms.length; ind++) {
+                histograms[ind] = new LatencyHistogram();
+            }
+        }
+
+        LatencyHistogram get(Measure measure) {
+            return histograms[measure.ordinal()];
+        }
+
+        private void record(long queueWaitMillis, PhaseTimer timer) {
+            if (queueWaitMillis >= 0) {
+                get(Measure.QUEUE_WAIT).record(queueWaitMillis);
+            }
+            get(Measure.TOTAL).record(timer.getMillis());
+            get(Measure.NETWORK).record(timer.getMillis(PhaseTimer.Phase.NETWORK));
+            get(Measure.PARSE).record(timer.getMillis(PhaseTimer.Phase.PARSE));
+            get(Measure.DB_WRITE).record(timer.getMillis(PhaseTimer.Phase.DB_WRITE));
+            get(Measure.OTHER).record(timer.getOtherMillis());
+            get(Measure.TASKS_NETWORK).record(timer.getTasksMillis(PhaseTimer.Phase.NETWORK));
+            get(Measure.TASKS_PARSE).record(timer.getTasksMillis(PhaseTimer.Phase.PARSE));
+            get(Measure.TASKS_DB_WRITE).record(timer.getTasksMillis(PhaseTimer.Phase.DB_WRITE));
+            bytesReceived.addAndGet(timer.getBytesReceived());
+            bytesSent.addAndGet(timer.getBytesSent());
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Measure measure : Measure.values()) {
+                LatencyHistogram histogram = get(measure);
+                if (histogram.getCount() > 0 && (measure == Measure.TOTAL || histogram.getMaxMillis() > 0)) {
+                    builder.append("\n  " + measure.name().toLowerCase() + " {" + histogram + "}");
+                }
+            }
+            if (bytesReceived.get() > 0 || bytesSent.get() > 0) {
+                builder.append("\n  bytes {received:" + bytesReceived.get() + ",sent:" + bytesSent.get() + "}");
+            }
+            return builder.toString();
+        }
+    }
+
+    private CommandMetrics() {
+        // Empty
+    }
+
+    public static void forget() {
+        metrics.clear();
+    }
+
+    /**
+     * @param queuedAt When the command was put to the queue, 0 for steps and when unknown
+     */
+    static void onExecuted(CommandExecutionContext execContext, boolean isStep, long queuedAt,
+                           long startedAt, PhaseTimer timer) {
+        long queueWaitMillis = queuedAt > 0 && startedAt >= queuedAt ? startedAt - queuedAt : -1;
+        CommandEnum command = execContext.getCommandData().getCommand();
+        getMetrics((isStep ? STEP_PREFIX : COMMAND_PREFIX) + command.save()).record(queueWaitMillis, timer);
+        if (!isStep && timer.getChildrenCount() > 0) {
+            return;
+        }
+        MyAccount ma = execContext.getMyAccount();
+        if (ma != null && ma.isValid()) {
+            getMetrics(ORIGIN_PREFIX + ma.getOrigin().getName()).record(queueWaitMillis, timer);
+        }
+        TimelineType timelineType = execContext.getTimelineType();
+        if (timelineType != TimelineType.UNKNOWN) {
+            getMetrics(TIMELINE_PREFIX + timelineType.save()).record(queueWaitMillis, timer);
+        }
+    }
+
+    private static Metrics getMetrics(String key) {
+        Metrics item = metrics.get(key);
+        if (item == null) {
+            metrics.putIfAbsent(key, new Metrics());
+            item = metrics.get(key);
+        }
+        return item;
+    }
+
+    /** @return null if nothing was measured by this key */
+    static Metrics get(String key) {
+        return metrics.get(key);
+    }
+
+    /** Metrics of commands and of network connections of accounts as a human readable text */
+    public static String toText() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(MyLog.currentDateTimeFormatted() + "\n");
+        for (Map.Entry<String, Metrics> entry : metrics.entrySet()) {
+            builder.append(entry.getKey() + entry.getValue() + "\n");
+        }
+        for (MyAccount ma : MyContextHolder.get().persistentAccounts().collection()) {
+            if (ma.isValid() && ma.getConnection() != null) {
+                builder.append("connection:" + ma.getAccountName() + "\n  "
+                        + ma.getConnection().getHttp().statsToString() + "\n");
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes the metrics to a new file in the logs folder
+     * @return Path of the file, empty if it was not written
+     */
+    public static String export() {
+        String filename = MyLog.currentDateTimeFormatted() + "_command_metrics.txt";
+        if (MyLog.writeStringToFile(toText(), filename)) {
+            MyLog.v(TAG, "Exported to " + filename);
+            return MyLog.getFileInLogDir(filename, true).getAbsolutePath();
+        }
+        return "";
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.data.MyDatabase.Command;
+import org.andstatus.app.util.MyLog;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Queue of commands, each change of which is immediately persisted in the {@link Command} table:
+ * a row is written when a command is offered and deleted when the command is removed.
+ * A command, which is taken for execution by {@link #poll(CommandLane, boolean)}, keeps its row
+ * until {@link #onExecuted(CommandData)}, that is after it was moved to another queue, if needed.
+ * So the queue doesn't need to be saved when MyService stops, and a crash doesn't lose commands,
+ * even those being executed: they are loaded and executed again.
+ * The rows are written by one thread for all queues in the order of the changes, so callers,
+ * e.g. executors, which poll the queue, don't wait for database I/O behind the lock of the queue.
+ * <p>
+ * Commands are indexed by their identity ({@link CommandData#equals(Object)}) and by their ids,
+ * so an equal command is added only once, and lookups and removals don't scan the queue.
+ * Each {@link CommandLane} has its own foreground and background ordered sets,
+ * so an executor takes its next command without filtering the whole queue.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+class CommandQueue extends AbstractQueue<CommandData> {
+    private static final String TAG = CommandQueue.class.getSimpleName();
+    private static final ExecutorService persister = Executors.newSingleThreadExecutor();
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+            // Empty
+        }
+    };
+
+    private final QueueType queueType;
+    private final int capacity;
+    private final Comparator<Entry> comparator;
+
+    @GuardedBy("this")
+    private long sequence = 0;
+    @GuardedBy("this")
+    private final Map<CommandData, Entry> byIdentity = new HashMap<>();
+    @GuardedBy("this")
+    private final Map<Long, Entry> byId = new HashMap<>();
+    @GuardedBy("this")
+    private final TreeSet<Entry> all;
+    @GuardedBy("this")
+    private final Map<CommandLane, TreeSet<Entry>> foreground = new HashMap<>();
+    @GuardedBy("this")
+    private final Map<CommandLane, TreeSet<Entry>> background = new HashMap<>();
+    @GuardedBy("this")
+    private int foregroundCount = 0;
+
+    private static class Entry {
+        final CommandData commandData;
+        final long sequence;
+        final boolean inForeground;
+        final CommandLane lane;
+
+        Entry(CommandData commandData, long sequence) {
+            this.commandData = commandData;
+            this.sequence = sequence;
+            inForeground = commandData.isInForeground();
+            lane = CommandLane.forCommand(commandData);
+        }
+    }
+
+    /** Commands of the same priority are taken in the order they were added */
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int result = lhs.commandData.compareTo(rhs.commandData);
+            return result != 0 ? result : BY_SEQUENCE.compare(lhs, rhs);
+        }
+    };
+
+    private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param byPriority if false, commands are taken in the order they were added
+     * @param capacity {@link #offer(CommandData)} fails, when the queue is full
+     */
+    CommandQueue(QueueType queueType, boolean byPriority, int capacity) {
+        this.queueType = queueType;
+        this.capacity = capacity;
+        comparator = byPriority ? BY_PRIORITY : BY_SEQUENCE;
+        all = new TreeSet<>(comparator);
+    }
+
+    /**
+     * Replace the commands in memory with the persisted ones
+     * @return Number of commands loaded
+     */
+    synchronized int load(Context context) {
+        clearInMemory();
+        Queue<CommandData> loaded = new LinkedList<>();
+        int count = CommandData.loadQueue(context, loaded, queueType);
+        for (CommandData commandData : loaded) {
+            addEntry(commandData);
+        }
+        return count;
+    }
+
+    /**
+     * An equal command is added only once. It is replaced, if the new command is in foreground
+     * and the queued one is not, because foreground commands are executed first
+     * @return false if the queue is full
+     */
+    @Override
+    public synchronized boolean offer(CommandData commandData) {
+        Entry existing = byIdentity.get(commandData);
+        if (existing != null) {
+            if (existing.commandData == commandData
+                    || existing.inForeground || !commandData.isInForeground()) {
+                return true;
+            }
+            removeEntry(existing);
+        } else if (byIdentity.size() >= capacity) {
+            return false;
+        }
+        addEntry(commandData);
+        persist(commandData);
+        return true;
+    }
+
+    @Override
+    public synchronized CommandData poll() {
+        if (all.isEmpty()) {
+            return null;
+        }
+        return removeEntry(all.first());
+    }
+
+    /**
+     * Takes the first command of the lane, which may be executed now.
+     * Its persisted row is kept until {@link #onExecuted(CommandData)}
+     * @param foregroundOnly if true, background commands are left in the queue
+     * @return null if there are no such commands
+     */
+    synchronized CommandData poll(CommandLane lane, boolean foregroundOnly) {
+        Entry found = first(foreground.get(lane));
+        if (!foregroundOnly) {
+            Entry found2 = first(background.get(lane));
+            if (found == null || (found2 != null && comparator.compare(found2, found) < 0)) {
+                found = found2;
+            }
+        }
+        return found == null ? null : removeEntry(found, false);
+    }
+
+    /**
+     * The command, which was taken by {@link #poll(CommandLane, boolean)}, is executed
+     * and, if needed, it was added to another queue already, so its row is deleted now
+     */
+    synchronized void onExecuted(CommandData commandData) {
+        if (byId.containsKey(commandData.getId())) {
+            // The command was offered again and its row was rewritten
+            return;
+        }
+        deletePersisted(commandData);
+    }
+
+    /**
+     * An equal command from another queue is executed instead of the one, taken by {@link #poll(CommandLane, boolean)},
+     * so it takes the row of the taken command till {@link #onExecuted(CommandData)}
+     * @param replacement null if nothing is executed instead
+     */
+    synchronized void onReplaced(CommandData taken, CommandData replacement) {
+        onExecuted(taken);
+        if (replacement != null && !byId.containsKey(replacement.getId())) {
+            persist(replacement);
+        }
+    }
+
+    /** The values are taken now, and they are written later by the persister thread */
+    @GuardedBy("this")
+    private void persist(CommandData commandData) {
+        final ContentValues values = commandData.toQueueValues(queueType);
+        final String description = commandData.toString();
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = CommandData.getDatabase();
+                if (db != null) {
+                    try {
+                        CommandData.saveToQueue(db, values);
+                    } catch (Exception e) {
+                        MyLog.w(TAG, "Failed to persist " + description, e);
+                    }
+                }
+            }
+        });
+    }
+
+    @GuardedBy("this")
+    private void deletePersisted(CommandData commandData) {
+        final long commandId = commandData.getId();
+        final String description = commandData.toString();
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = CommandData.getDatabase();
+                if (db != null) {
+                    try {
+                        CommandData.deleteFromQueue(db, queueType, commandId);
+                    } catch (Exception e) {
+                        MyLog.w(TAG, "Failed to delete " + description, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait till the changes of all queues, which were made before this call, are written to the database
+     */
+    static void awaitPersisted() {
+        Future<?> future = persister.submit(NO_OP);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            MyLog.d(TAG, "Waiting for the persister was interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            MyLog.w(TAG, "Waiting for the persister", e);
+        }
+    }
+
+    private static Entry first(TreeSet<Entry> set) {
+        return set == null || set.isEmpty() ? null : set.first();
+    }
+
+    @Override
+    public synchronized CommandData peek() {
+        return all.isEmpty() ? null : all.first().commandData;
+    }
+
+    /**
+     * @return the queued command, which is equal to the argument, or null
+     */
+    synchronized CommandData get(CommandData commandData) {
+        Entry entry = byIdentity.get(commandData);
+        return entry == null ? null : entry.commandData;
+    }
+
+    /**
+     * @return the removed command or null, if there was no command with this id
+     */
+    synchronized CommandData removeById(long commandId) {
+        Entry entry = byId.get(commandId);
+        return entry == null ? null : removeEntry(entry);
+    }
+
+    /** Commands are equal regardless of their ids, so any equal command is removed */
+    @Override
+    public synchronized boolean remove(Object o) {
+        Entry entry = byIdentity.get(o);
+        if (entry == null) {
+            return false;
+        }
+        removeEntry(entry);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        return byIdentity.containsKey(o);
+    }
+
+    synchronized boolean hasForeground() {
+        return foregroundCount > 0;
+    }
+
+    /** Lanes, which have commands */
+    synchronized Set<CommandLane> getLanes(boolean foregroundOnly) {
+        Set<CommandLane> lanes = new HashSet<>();
+        addNotEmpty(lanes, foreground);
+        if (!foregroundOnly) {
+            addNotEmpty(lanes, background);
+        }
+        return lanes;
+    }
+
+    private static void addNotEmpty(Set<CommandLane> lanes, Map<CommandLane, TreeSet<Entry>> sets) {
+        for (Map.Entry<CommandLane, TreeSet<Entry>> mapEntry : sets.entrySet()) {
+            if (!mapEntry.getValue().isEmpty()) {
+                lanes.add(mapEntry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        clearInMemory();
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = CommandData.getDatabase();
+                if (db != null) {
+                    CommandData.deleteQueue(db, queueType);
+                }
+            }
+        });
+    }
+
+    @GuardedBy("this")
+    private void clearInMemory() {
+        byIdentity.clear();
+        byId.clear();
+        all.clear();
+        foreground.clear();
+        background.clear();
+        foregroundCount = 0;
+    }
+
+    @GuardedBy("this")
+    private void addEntry(CommandData commandData) {
+        Entry entry = new Entry(commandData, ++sequence);
+        byIdentity.put(commandData, entry);
+        byId.put(commandData.getId(), entry);
+        all.add(entry);
+        Map<CommandLane, TreeSet<Entry>> sets = entry.inForeground ? foreground : background;
+        TreeSet<Entry> set = sets.get(entry.lane);
+        if (set == null) {
+            set = new TreeSet<>(comparator);
+            sets.put(entry.lane, set);
+        }
+        set.add(entry);
+        if (entry.inForeground) {
+            foregroundCount++;
+        }
+    }
+
+    @GuardedBy("this")
+    private CommandData removeEntry(Entry entry) {
+        return removeEntry(entry, true);
+    }
+
+    @GuardedBy("this")
+    private CommandData removeEntry(Entry entry, boolean deletePersisted) {
+        byIdentity.remove(entry.commandData);
+        if (byId.get(entry.commandData.getId()) == entry) {
+            byId.remove(entry.commandData.getId());
+        }
+        all.remove(entry);
+        (entry.inForeground ? foreground : background).get(entry.lane).remove(entry);
+        if (entry.inForeground) {
+            foregroundCount--;
+        }
+        if (deletePersisted) {
+            deletePersisted(entry.commandData);
+        }
+        return entry.commandData;
+    }
+
+    /**
+     * Iterates over a snapshot of the queue in its order, so the queue may be changed meanwhile
+     */
+    @Override
+    public Iterator<CommandData> iterator() {
+        final List<CommandData> snapshot = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : all) {
+                snapshot.add(entry.commandData);
+            }
+        }
+        final Iterator<CommandData> iterator = snapshot.iterator();
+        return new Iterator<CommandData>() {
+            private CommandData current = null;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public CommandData next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                synchronized (CommandQueue.this) {
+                    Entry entry = byIdentity.get(current);
+                    if (entry != null && entry.commandData == current) {
+                        removeEntry(entry);
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized int size() {
+        return all.size();
+    }
+
+    @Override
+    public String toString() {
+        return MyLog.formatKeyValue(queueType.toString(), "size:" + size());
+    }
+}
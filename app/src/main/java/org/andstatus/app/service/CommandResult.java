@@ -16,13 +16,14 @@
 
 package org.andstatus.app.service;
 
-import android.content.SharedPreferences;
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
-import org.andstatus.app.IntentExtra;
 import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.MyDatabase.Command;
 import org.andstatus.app.data.TimelineType;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.RelativeTime;
@@ -43,6 +44,8 @@ public final class CommandResult implements Parcelable {
     private long numAuthExceptions = 0;
     private long numIoExceptions = 0;
     private long numParseExceptions = 0;
+    /** Part of {@link #numIoExceptions}, accumulated from the execution steps. It is not persisted */
+    private long numIoExceptionsOfSteps = 0;
     private String mMessage = "";
 
     private long itemId = 0;
@@ -56,6 +59,8 @@ public final class CommandResult implements Parcelable {
     private int mentionsAdded = 0;
     private int directedAdded = 0;
     private int downloadedCount = 0;
+    /** Progress of the command, which is being executed, e.g. of an upload. It is not persisted */
+    private String progress = "";
 
     public CommandResult() {
     }
@@ -73,6 +78,7 @@ public final class CommandResult implements Parcelable {
         numAuthExceptions += oneStepResult.numAuthExceptions;
         numIoExceptions += oneStepResult.numIoExceptions;
         numParseExceptions += oneStepResult.numParseExceptions;
+        numIoExceptionsOfSteps += oneStepResult.numIoExceptions;
         if (!TextUtils.isEmpty(oneStepResult.mMessage)) {
             if (TextUtils.isEmpty(mMessage)) {
                 mMessage = oneStepResult.mMessage;
@@ -116,6 +122,7 @@ public final class CommandResult implements Parcelable {
         dest.writeInt(hourlyLimit);
         dest.writeInt(remainingHits);
         dest.writeInt(downloadedCount);
+        dest.writeString(progress);
     }
     
     public CommandResult(Parcel parcel) {
@@ -130,30 +137,29 @@ public final class CommandResult implements Parcelable {
         hourlyLimit = parcel.readInt();
         remainingHits = parcel.readInt();
         downloadedCount = parcel.readInt();
+        progress = parcel.readString();
     }
     
-    void saveToSharedPreferences(android.content.SharedPreferences.Editor ed, int index) {
-        String si = Integer.toString(index);
-        ed.putLong(IntentExtra.LAST_EXECUTED_DATE.key + si, lastExecutedDate);
-        ed.putInt(IntentExtra.EXECUTION_COUNT.key + si, executionCount);
-        ed.putInt(IntentExtra.RETRIES_LEFT.key + si, retriesLeft);
-        ed.putLong(IntentExtra.NUM_AUTH_EXCEPTIONS.key + si, numAuthExceptions);
-        ed.putLong(IntentExtra.NUM_IO_EXCEPTIONS.key + si, numIoExceptions);
-        ed.putLong(IntentExtra.NUM_PARSE_EXCEPTIONS.key + si, numParseExceptions);
-        ed.putString(IntentExtra.ERROR_MESSAGE.key + si, mMessage);
-        ed.putInt(IntentExtra.DOWNLOADED_COUNT.key + si, downloadedCount);
-    }
-
-    void loadFromSharedPreferences(SharedPreferences sp, int index) {
-        String si = Integer.toString(index);
-        lastExecutedDate = sp.getLong(IntentExtra.LAST_EXECUTED_DATE.key + si, lastExecutedDate);
-        executionCount = sp.getInt(IntentExtra.EXECUTION_COUNT.key + si, executionCount);
-        retriesLeft = sp.getInt(IntentExtra.RETRIES_LEFT.key + si, retriesLeft);
-        numAuthExceptions = sp.getLong(IntentExtra.NUM_AUTH_EXCEPTIONS.key + si, numAuthExceptions);
-        numIoExceptions = sp.getLong(IntentExtra.NUM_IO_EXCEPTIONS.key + si, numIoExceptions);
-        numParseExceptions = sp.getLong(IntentExtra.NUM_PARSE_EXCEPTIONS.key + si, numParseExceptions);
-        mMessage = sp.getString(IntentExtra.ERROR_MESSAGE.key + si, mMessage);
-        downloadedCount = sp.getInt(IntentExtra.DOWNLOADED_COUNT.key + si, downloadedCount);
+    void toContentValues(ContentValues values) {
+        values.put(Command.LAST_EXECUTED_DATE, lastExecutedDate);
+        values.put(Command.EXECUTION_COUNT, executionCount);
+        values.put(Command.RETRIES_LEFT, retriesLeft);
+        values.put(Command.NUM_AUTH_EXCEPTIONS, numAuthExceptions);
+        values.put(Command.NUM_IO_EXCEPTIONS, numIoExceptions);
+        values.put(Command.NUM_PARSE_EXCEPTIONS, numParseExceptions);
+        values.put(Command.ERROR_MESSAGE, mMessage);
+        values.put(Command.DOWNLOADED_COUNT, downloadedCount);
+    }
+
+    void loadFromCursor(Cursor cursor) {
+        lastExecutedDate = cursor.getLong(cursor.getColumnIndex(Command.LAST_EXECUTED_DATE));
+        executionCount = cursor.getInt(cursor.getColumnIndex(Command.EXECUTION_COUNT));
+        retriesLeft = cursor.getInt(cursor.getColumnIndex(Command.RETRIES_LEFT));
+        numAuthExceptions = cursor.getLong(cursor.getColumnIndex(Command.NUM_AUTH_EXCEPTIONS));
+        numIoExceptions = cursor.getLong(cursor.getColumnIndex(Command.NUM_IO_EXCEPTIONS));
+        numParseExceptions = cursor.getLong(cursor.getColumnIndex(Command.NUM_PARSE_EXCEPTIONS));
+        mMessage = cursor.getString(cursor.getColumnIndex(Command.ERROR_MESSAGE));
+        downloadedCount = cursor.getInt(cursor.getColumnIndex(Command.DOWNLOADED_COUNT));
     }
 
     public int getExecutionCount() {
@@ -241,6 +247,11 @@ public final class CommandResult implements Parcelable {
         return numIoExceptions;
     }
 
+    /** @return I/O exceptions of this command or step itself, excluding the ones of its execution steps */
+    long getNumIoExceptionsOwn() {
+        return numIoExceptions - numIoExceptionsOfSteps;
+    }
+
     public void incrementNumIoExceptions() {
         numIoExceptions++;
     }
@@ -331,6 +342,7 @@ public final class CommandResult implements Parcelable {
         numAuthExceptions = 0;
         numIoExceptions = 0;
         numParseExceptions = 0;
+        numIoExceptionsOfSteps = 0;
         mMessage = "";
         
         itemId = 0;
@@ -342,6 +354,7 @@ public final class CommandResult implements Parcelable {
         mentionsAdded = 0;
         directedAdded = 0;
         downloadedCount = 0;
+        progress = "";
     }
     
     void afterExecutionEnded() {
@@ -376,4 +389,12 @@ public final class CommandResult implements Parcelable {
     public void setMessage(String message) {
         this.mMessage = message;
     }
+
+    public String getProgress() {
+        return progress;
+    }
+
+    public void setProgress(String progress) {
+        this.progress = progress == null ? "" : progress;
+    }
 }
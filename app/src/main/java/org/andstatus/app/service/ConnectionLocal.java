@@ -20,6 +20,7 @@ import android.net.Uri;
 
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.http.PartialFile;
 import org.andstatus.app.net.social.ConnectionEmpty;
 import org.andstatus.app.util.FileUtils;
 
@@ -42,4 +43,10 @@ public class ConnectionLocal extends ConnectionEmpty {
             throw ConnectionException.hardConnectionException("mediaUri='" + uri + "'", e);
         }
     }
+
+    /** Local files are copied from the beginning */
+    @Override
+    public void downloadFile(String uri, PartialFile partialFile) throws ConnectionException {
+        downloadFile(uri, partialFile.getFile());
+    }
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes downloads of avatars and attachments on a bounded pool of threads, separate from executors
+ * of API commands, so many small avatars don't wait behind a large attachment.
+ * The executor of the {@link CommandLane#DOWNLOADS} lane of {@link MyService} moves
+ * up to {@link #MAX_IN_FLIGHT} commands here. A free thread takes the download, which is visible
+ * in a timeline now (see {@link #setVisible(Collection, Collection)}), first, and then the oldest one.
+ * <p>
+ * Downloads of the same URI at the same time are done once: others wait for the first one
+ * and copy its file, see {@link FileDownloader}
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class DownloadManager {
+    private static final String TAG = DownloadManager.class.getSimpleName();
+    static final int MAX_THREADS = 3;
+    /** Downloads, which wait for a thread or are being executed */
+    static final int MAX_IN_FLIGHT = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    static final long MAX_TRANSFER_WAIT_SECONDS = 300;
+
+    private static final Object lock = new Object();
+    @GuardedBy("lock")
+    private static final List<Task> pending = new ArrayList<Task>();
+    @GuardedBy("lock")
+    private static int inFlight = 0;
+    @GuardedBy("lock")
+    private static long sequence = 0;
+    @GuardedBy("lock")
+    private static final Map<String, Transfer> transfers = new HashMap<String, Transfer>();
+
+    private static volatile Set<Long> visibleUserIds = Collections.emptySet();
+    private static volatile Set<Long> visibleDownloadIds = Collections.emptySet();
+
+    private static final AtomicLong downloadedCount = new AtomicLong();
+    private static final AtomicLong downloadedBytes = new AtomicLong();
+    private static final AtomicLong downloadMillis = new AtomicLong();
+    private static final AtomicLong resumedBytes = new AtomicLong();
+    private static final AtomicLong sharedCount = new AtomicLong();
+
+    private static final ThreadPoolExecutor executor = newExecutor();
+
+    static final class Task {
+        final CommandData commandData;
+        final Runnable runnable;
+        final long sequence;
+
+        Task(CommandData commandData, Runnable runnable, long sequence) {
+            this.commandData = commandData;
+            this.runnable = runnable;
+            this.sequence = sequence;
+        }
+
+        /** For avatars itemId is the Id of the User, for attachments it is the Id of the download row */
+        boolean isVisible() {
+            switch (commandData.getCommand()) {
+                case FETCH_AVATAR:
+                    return visibleUserIds.contains(commandData.itemId);
+                default:
+                    return visibleDownloadIds.contains(commandData.itemId);
+            }
+        }
+    }
+
+    /**
+     * Download of a URI, which other downloads of the same URI wait for
+     */
+    static final class Transfer {
+        /** The transfer of the download, which is executed. For its owner this is the object itself */
+        private final Transfer owning;
+        private final CountDownLatch done;
+        private volatile File file = null;
+
+        private Transfer(Transfer owning) {
+            this.owning = owning == null ? this : owning;
+            done = owning == null ? new CountDownLatch(1) : owning.done;
+        }
+
+        /** @return true if this caller downloads the URI, false if it should wait for another one */
+        boolean isOwner() {
+            return owning == this;
+        }
+
+        /**
+         * @return The file, downloaded by the owner, null if the download failed or we waited too long
+         */
+        File await() {
+            try {
+                if (done.await(MAX_TRANSFER_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    return owning.file;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    private DownloadManager() {
+        // Empty
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Which avatars and attachments are shown on the screen now
+     */
+    public static void setVisible(Collection<Long> userIds, Collection<Long> downloadIds) {
+        visibleUserIds = Collections.unmodifiableSet(new HashSet<Long>(userIds));
+        visibleDownloadIds = Collections.unmodifiableSet(new HashSet<Long>(downloadIds));
+    }
+
+    /**
+     * Blocks while {@link #MAX_IN_FLIGHT} downloads are in flight
+     * @param runnable executes the command in a thread of the pool
+     */
+    static void submit(CommandData commandData, Runnable runnable) throws InterruptedException {
+        synchronized (lock) {
+            while (inFlight >= MAX_IN_FLIGHT) {
+                lock.wait();
+            }
+            inFlight++;
+            pending.add(new Task(commandData, runnable, ++sequence));
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executeNext();
+            }
+        });
+    }
+
+    /** Each submitted command adds one call of this, so each pending task is executed once */
+    private static void executeNext() {
+        Task task;
+        synchronized (lock) {
+            task = pending.remove(indexOfNext(pending));
+        }
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            MyLog.e(TAG, "Failed " + task.commandData, e);
+        } finally {
+            synchronized (lock) {
+                inFlight--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** The oldest visible task or the oldest one. Tasks are in the order they were submitted */
+    static int indexOfNext(List<Task> tasks) {
+        for (int index = 0; index < tasks.size(); index++) {
+            if (tasks.get(index).isVisible()) {
+                return index;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Wait till any download in flight ends
+     * @return Number of downloads in flight
+     */
+    static int awaitCompletion(long timeoutMillis) throws InterruptedException {
+        synchronized (lock) {
+            if (inFlight > 0) {
+                lock.wait(timeoutMillis);
+            }
+            return inFlight;
+        }
+    }
+
+    static int getInFlightCount() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    static Transfer startTransfer(String uri) {
+        synchronized (lock) {
+            Transfer transfer = transfers.get(uri);
+            if (transfer != null) {
+                sharedCount.incrementAndGet();
+                return new Transfer(transfer);
+            }
+            transfer = new Transfer(null);
+            transfers.put(uri, transfer);
+            return transfer;
+        }
+    }
+
+    /**
+     * @param file Downloaded file, null if the download failed
+     */
+    static void endTransfer(String uri, Transfer transfer, File file) {
+        if (!transfer.isOwner()) {
+            return;
+        }
+        transfer.file = file;
+        synchronized (lock) {
+            transfers.remove(uri);
+        }
+        transfer.done.countDown();
+    }
+
+    static void onDownloaded(long bytes, long resumedFrom, long millis) {
+        downloadedCount.incrementAndGet();
+        downloadedBytes.addAndGet(bytes);
+        resumedBytes.addAndGet(resumedFrom);
+        downloadMillis.addAndGet(millis);
+    }
+
+    /** @return Bytes per second of the downloads, which were not shared */
+    static long getThroughput() {
+        long millis = downloadMillis.get();
+        return millis == 0 ? 0 : downloadedBytes.get() * 1000 / millis;
+    }
+
+    public static String statsToString() {
+        int pendingCount;
+        int inFlightCount;
+        synchronized (lock) {
+            pendingCount = pending.size();
+            inFlightCount = inFlight;
+        }
+        return MyLog.formatKeyValue(TAG, "pending:" + pendingCount + ",inFlight:" + inFlightCount
+                + ",downloaded:" + downloadedCount.get() + ",bytes:" + downloadedBytes.get()
+                + ",bytesPerSecond:" + getThroughput() + ",resumedBytes:" + resumedBytes.get()
+                + ",shared:" + sharedCount.get());
+    }
+}
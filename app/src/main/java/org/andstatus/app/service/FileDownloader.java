@@ -17,17 +17,22 @@
 package org.andstatus.app.service;
 
 import android.net.Uri;
+import android.text.TextUtils;
 
 import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.data.DownloadData;
 import org.andstatus.app.data.DownloadFile;
 import org.andstatus.app.data.DownloadStatus;
 import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.http.PartialFile;
 import org.andstatus.app.net.social.Connection;
+import org.andstatus.app.util.FileUtils;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.UriUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 
 public abstract class FileDownloader {
     protected final DownloadData data;
@@ -80,16 +85,38 @@ public abstract class FileDownloader {
 
     protected abstract void onSuccessfulLoad();
 
+    /**
+     * Downloads of the same URI at the same time are done once, see {@link DownloadManager}
+     */
     private void downloadFile() {
+        String uriString = data.getUri().toString();
+        DownloadFile fileNew = new DownloadFile(data.getFilenameNew());
+        DownloadManager.Transfer transfer = DownloadManager.startTransfer(uriString);
+        try {
+            if (transfer.isOwner() || !copyFromTransfer(transfer, fileNew)) {
+                downloadFile(uriString, fileNew);
+            }
+        } finally {
+            DownloadManager.endTransfer(uriString, transfer, data.isError() ? null : fileNew.getFile());
+        }
+    }
+
+    /**
+     * A failed download leaves its partial file and the validator of the response,
+     * so the next attempt downloads only the rest of the file
+     */
+    private void downloadFile(String uriString, DownloadFile fileNew) {
         final String method = "downloadFile";
-        DownloadFile fileTemp = new DownloadFile("temp_" + data.getFilenameNew());
+        DownloadFile fileTemp = new DownloadFile(data.getPartialFilename());
+        PartialFile partialFile = new PartialFile(fileTemp.getFile(), data.getPartialValidator());
+        long resumeFrom = partialFile.getResumeFrom();
+        long startedAt = System.currentTimeMillis();
         try {
-            String uriString = data.getUri().toString();
-            File file = fileTemp.getFile();
             MyAccount ma = findBestAccountForDownload();
-            MyLog.v(this, "About to download " + data.toString() + "; account:" + ma.getAccountName());
+            MyLog.v(this, "About to download " + data.toString() + "; account:" + ma.getAccountName()
+                    + (resumeFrom > 0 ? "; resuming " + partialFile : ""));
             if (ma.isValidAndSucceeded()) {
-                ((connectionMock != null) ? connectionMock : getConnection(ma, data.getUri())).downloadFile(uriString, file);
+                ((connectionMock != null) ? connectionMock : getConnection(ma, data.getUri())).downloadFile(uriString, partialFile);
             } else {
                 data.hardErrorLogged(method + ", No account to download the file", null);
             }
@@ -100,12 +127,47 @@ public abstract class FileDownloader {
                 data.softErrorLogged(method, e);
             }
         }
-        if (data.isError()) {
+        if (data.isHardError() || TextUtils.isEmpty(partialFile.getValidator())) {
+            data.setPartialValidator("");
+            if (data.isError()) {
+                fileTemp.delete();
+            }
+        } else {
+            data.setPartialValidator(partialFile.getValidator());
+        }
+        if (!data.isError()) {
+            DownloadManager.onDownloaded(fileTemp.getSize() - resumeFrom, resumeFrom,
+                    System.currentTimeMillis() - startedAt);
+        }
+        moveToNew(method, fileTemp, fileNew);
+    }
+
+    private boolean copyFromTransfer(DownloadManager.Transfer transfer, DownloadFile fileNew) {
+        final String method = "copyFromTransfer";
+        File file = transfer.await();
+        if (file == null || !file.exists()) {
+            return false;
+        }
+        DownloadFile fileTemp = new DownloadFile(data.getPartialFilename());
+        try {
+            FileUtils.readStreamToFile(new FileInputStream(file), fileTemp.getFile());
+        } catch (IOException e) {
+            MyLog.v(this, method + ", Couldn't copy " + file.getName() + " to " + fileTemp, e);
             fileTemp.delete();
+            return false;
         }
-        DownloadFile fileNew = new DownloadFile(data.getFilenameNew());
+        MyLog.v(this, "Copied " + data.toString() + " from " + file.getName());
+        moveToNew(method, fileTemp, fileNew);
+        return true;
+    }
+
+    private void moveToNew(String method, DownloadFile fileTemp, DownloadFile fileNew) {
         fileNew.delete();
-        if (!data.isError() && !fileTemp.getFile().renameTo(fileNew.getFile())) {
+        if (data.isError()) {
+            return;
+        }
+        data.setPartialValidator("");
+        if (!fileTemp.getFile().renameTo(fileNew.getFile())) {
             data.softErrorLogged(method + ", Couldn't rename file " + fileTemp + " to " + fileNew, null);
         }
     }
@@ -16,15 +16,19 @@
 
 package org.andstatus.app.service;
 
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.andstatus.app.MyAction;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.data.MyDatabase;
 import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.net.http.MyHttpClientFactory;
 import org.andstatus.app.notification.CommandsQueueNotifier;
 import org.andstatus.app.util.InstanceId;
 import org.andstatus.app.util.MyLog;
@@ -45,6 +49,7 @@ import android.os.PowerManager;
 import net.jcip.annotations.GuardedBy;
 
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service asynchronously executes commands, mostly related to communication
@@ -73,12 +78,20 @@ public class MyService extends Service {
     private int mLatestProcessedStartId = 0;
     
     private final Object executorLock = new Object();
+    /** One executor per {@link CommandLane}, so a slow command doesn't block other lanes */
     @GuardedBy("executorLock")
-    private QueueExecutor mExecutor = null;
-    @GuardedBy("executorLock")
-    private long mExecutorStartedAt = 0;
-    @GuardedBy("executorLock")
-    private long mExecutorEndedAt = 0;
+    private final Map<CommandLane, QueueExecutor> mExecutors = new HashMap<CommandLane, QueueExecutor>();
+    /** Lanes above this number wait for a free executor */
+    private static final int MAX_PARALLEL_EXECUTORS = 4;
+    /**
+     * HTTP requests, which commands may execute at the same time: each lane, except the downloads one,
+     * may fetch on the pool of {@link TimelineDownloaderFollowing},
+     * and the {@link CommandLane#DOWNLOADS} lane uses the threads of {@link DownloadManager}.
+     * The connection pool of a host has {@link MyHttpClientFactory#MAX_CONNECTIONS_PER_HOST} for them
+     */
+    public static final int MAX_CONCURRENT_REQUESTS = (MAX_PARALLEL_EXECUTORS - 1)
+            * TimelineDownloaderFollowing.MAX_FETCH_THREADS + DownloadManager.MAX_THREADS;
+    private final Map<CommandLane, CommandLaneStats> mLaneStats = new ConcurrentHashMap<CommandLane, CommandLaneStats>();
     
     private final Object heartBeatLock = new Object();
     @GuardedBy("heartBeatLock")
@@ -92,11 +105,12 @@ public class MyService extends Service {
     @GuardedBy("wakeLockLock")
     private PowerManager.WakeLock mWakeLock = null;
 
-    private final Queue<CommandData> mMainCommandQueue = new PriorityBlockingQueue<CommandData>(100);
-    private final Queue<CommandData> mRetryCommandQueue = new PriorityBlockingQueue<CommandData>(100);
-    private final Queue<CommandData> mErrorCommandQueue = new LinkedBlockingQueue<CommandData>(200);
+    private final CommandQueue mMainCommandQueue = new CommandQueue(QueueType.CURRENT, true, Integer.MAX_VALUE);
+    private final CommandQueue mRetryCommandQueue = new CommandQueue(QueueType.RETRY, true, Integer.MAX_VALUE);
+    private final CommandQueue mErrorCommandQueue = new CommandQueue(QueueType.ERROR, false, 200);
 
-    private static final long RETRY_QUEUE_PROCESSING_PERIOD_SECONDS = 900; 
+    /** Each command of the Retry queue has its own delay, see {@link SyncScheduler#isTimeToRetry(CommandData)} */
+    private static final long RETRY_QUEUE_PROCESSING_PERIOD_SECONDS = SyncScheduler.MIN_RETRY_DELAY_SECONDS;
     private final AtomicLong mRetryQueueProcessedAt = new AtomicLong();
     
     private static volatile boolean widgetsInitialized = false;
@@ -215,6 +229,7 @@ public class MyService extends Service {
 
         }
         commandData.getResult().prepareForLaunch();
+        commandData.setQueuedNow();
         MyLog.v(this, "Adding to Main queue " + commandData);
         if (!mMainCommandQueue.offer(commandData)) {
             MyLog.e(this, "Couldn't add to the main queue, size=" + mMainCommandQueue.size());
@@ -224,6 +239,12 @@ public class MyService extends Service {
     }
 
     private void clearQueues() {
+        for (CommandData cd : mMainCommandQueue) {
+            cd.onDropped();
+        }
+        for (CommandData cd : mRetryCommandQueue) {
+            cd.onDropped();
+        }
         mMainCommandQueue.clear();
         mRetryCommandQueue.clear();
         mErrorCommandQueue.clear();
@@ -282,11 +303,15 @@ public class MyService extends Service {
         }
     }
 
+    /**
+     * Each change of the queues is persisted immediately, so we only load them here,
+     * see {@link CommandQueue}
+     */
     private void restoreState() {
         int count = 0;
-        count += CommandData.loadQueue(this, mMainCommandQueue, QueueType.CURRENT);
-        count += CommandData.loadQueue(this, mRetryCommandQueue, QueueType.RETRY);
-        int countError = CommandData.loadQueue(this, mErrorCommandQueue, QueueType.ERROR);
+        count += mMainCommandQueue.load(this);
+        count += mRetryCommandQueue.load(this);
+        int countError = mErrorCommandQueue.load(this);
         MyLog.d(this, "State restored, " + (count > 0 ? Integer.toString(count) : "no ")
                 + " msg in the Queues, "
                 + (countError > 0 ? Integer.toString(countError) + " in Error queue" : "")
@@ -302,7 +327,7 @@ public class MyService extends Service {
                 startExecution();
                 break;
             default:
-                MyLog.v(this, "Didn't change execution " + mExecutor);
+                MyLog.v(this, "Didn't change execution " + executorsToString());
                 break;
         }
     }
@@ -397,46 +422,94 @@ public class MyService extends Service {
         final String method = "startExecutor";
         StringBuilder logMessageBuilder = new StringBuilder();
         synchronized(executorLock) {
-            if ( mExecutor != null && (mExecutor.getStatus() != Status.RUNNING)) {
-                removeExecutor(logMessageBuilder);
-            }
-            if ( mExecutor != null && !isExecutorReallyWorkingNow()) {
-                logMessageBuilder.append(" Killing stalled Executor " + mExecutor);
-                removeExecutor(logMessageBuilder);
-            }
-            if (mExecutor != null) {
-                logMessageBuilder.append(" There is an Executor already " + mExecutor);
-            } else {
-                // For now let's have only ONE working thread 
-                // (it seems there is some problem in parallel execution...)
-                mExecutor = new QueueExecutor();
-                logMessageBuilder.append(" Adding and starting new Executor " + mExecutor);
-                mExecutorStartedAt = System.currentTimeMillis();
-                mExecutorEndedAt = 0;
-                mExecutor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            removeStoppedExecutors(logMessageBuilder);
+            for (CommandLane lane : lanesToExecuteNow()) {
+                QueueExecutor executor = mExecutors.get(lane);
+                if (executor != null) {
+                    logMessageBuilder.append(" There is an Executor already " + executor);
+                } else if (mExecutors.size() >= MAX_PARALLEL_EXECUTORS) {
+                    logMessageBuilder.append(" Lane '" + lane + "' waits for a free Executor");
+                } else {
+                    executor = new QueueExecutor(lane);
+                    mExecutors.put(lane, executor);
+                    logMessageBuilder.append(" Adding and starting new Executor " + executor);
+                    executor.mStartedAt = System.currentTimeMillis();
+                    executor.mEndedAt = 0;
+                    executor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                }
             }
         }
         if (logMessageBuilder.length() > 0) {
             MyLog.v(this, method + "; " + logMessageBuilder);
         }
     }
-    
-    private void removeExecutor(StringBuilder logMessageBuilder) {
-        synchronized(executorLock) {
-            if (mExecutor == null) {
-                return;
+
+    @GuardedBy("executorLock")
+    private void removeStoppedExecutors(StringBuilder logMessageBuilder) {
+        Iterator<QueueExecutor> iterator = mExecutors.values().iterator();
+        while (iterator.hasNext()) {
+            QueueExecutor executor = iterator.next();
+            if (executor.getStatus() != Status.RUNNING) {
+                stopExecutor(executor, logMessageBuilder);
+                iterator.remove();
+            } else if (!executor.isReallyWorking()) {
+                logMessageBuilder.append(" Killing stalled Executor " + executor);
+                stopExecutor(executor, logMessageBuilder);
+                iterator.remove();
             }
-            if (mExecutor.getStatus() == Status.RUNNING) {
-                logMessageBuilder.append(" Cancelling and");
-                mExecutor.cancel(true);
+        }
+    }
+
+    /** Lanes, which have commands that may be executed now */
+    private Set<CommandLane> lanesToExecuteNow() {
+        boolean foregroundOnly = isForegroundOnly();
+        Set<CommandLane> lanes = mMainCommandQueue.getLanes(foregroundOnly);
+        if (isAnythingToRetryNow()) {
+            lanes.addAll(mRetryCommandQueue.getLanes(foregroundOnly));
+        }
+        return lanes;
+    }
+
+    private boolean isForegroundOnly() {
+        return !MyPreferences.isSyncWhileUsingApplicationEnabled()
+                && MyContextHolder.get().isInForeground();
+    }
+
+    @GuardedBy("executorLock")
+    private void stopExecutor(QueueExecutor executor, StringBuilder logMessageBuilder) {
+        if (executor.getStatus() == Status.RUNNING) {
+            logMessageBuilder.append(" Cancelling and");
+            executor.cancel(true);
+        }
+        logMessageBuilder.append(" Removing Executor " + executor);
+        executor.mStartedAt = 0;
+        executor.mEndedAt = 0;
+    }
+
+    private void removeExecutors(StringBuilder logMessageBuilder) {
+        synchronized(executorLock) {
+            for (QueueExecutor executor : mExecutors.values()) {
+                stopExecutor(executor, logMessageBuilder);
             }
-            logMessageBuilder.append(" Removing Executor " + mExecutor);
-            mExecutor = null;
-            mExecutorStartedAt = 0;
-            mExecutorEndedAt = 0;
+            mExecutors.clear();
+        }
+    }
+
+    private String executorsToString() {
+        synchronized(executorLock) {
+            return mExecutors.isEmpty() ? "(no executors)" : mExecutors.values().toString();
         }
     }
 
+    private CommandLaneStats getLaneStats(CommandLane lane) {
+        CommandLaneStats stats = mLaneStats.get(lane);
+        if (stats == null) {
+            stats = new CommandLaneStats(lane);
+            mLaneStats.put(lane, stats);
+        }
+        return stats;
+    }
+
     private void acquireWakeLock() {
         synchronized(wakeLockLock) {
             if (mWakeLock == null) {
@@ -457,9 +530,8 @@ public class MyService extends Service {
         if (mMainCommandQueue.isEmpty()) {
             return false;
         }
-        if (!MyPreferences.isSyncWhileUsingApplicationEnabled()
-                && MyContextHolder.get().isInForeground()) {
-            return hasQueueForegroundTasks(mMainCommandQueue);
+        if (isForegroundOnly()) {
+            return mMainCommandQueue.hasForeground();
         }
         return true;
     }
@@ -470,28 +542,21 @@ public class MyService extends Service {
                         RETRY_QUEUE_PROCESSING_PERIOD_SECONDS)) {
             return false;
         }
-        if (!MyPreferences.isSyncWhileUsingApplicationEnabled()
-                && MyContextHolder.get().isInForeground()) {
-            return hasQueueForegroundTasks(mRetryCommandQueue);
+        if (isForegroundOnly()) {
+            return mRetryCommandQueue.hasForeground();
         }
         return true;
     }
     
     private boolean isExecutorReallyWorkingNow() {
         synchronized(executorLock) {
-          return mExecutor != null && mExecutorStartedAt != 0 && mExecutor.isReallyWorking();
-        }        
-    }
-    
-    private boolean hasQueueForegroundTasks(Queue<CommandData> queue) {
-        boolean has = false;
-        for (CommandData commandData : queue) {
-            if (commandData.isInForeground()) {
-                has = true;
-                break;
+            for (QueueExecutor executor : mExecutors.values()) {
+                if (executor.mStartedAt != 0 && executor.isReallyWorking()) {
+                    return true;
+                }
             }
+            return false;
         }
-        return has;
     }
     
     private int totalQueuesSize() {
@@ -525,11 +590,30 @@ public class MyService extends Service {
         if (!couldStopExecutor(forceNow) && !forceNow) {
             return;
         }
+        checkpointDatabaseInBackground();
         unInitialize();
         MyServiceEventsBroadcaster.newInstance(MyContextHolder.get(), getServiceState())
                 .setEvent(MyServiceEvent.ON_STOP).broadcast();
     }
 
+    /** Nothing is being synced now, so the write-ahead log may be checkpointed without delaying writers */
+    private void checkpointDatabaseInBackground() {
+        final MyDatabase myDatabase = MyContextHolder.get().getDatabase();
+        if (myDatabase == null) {
+            return;
+        }
+        try {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    myDatabase.checkpoint();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            MyLog.d(this, "checkpointDatabaseInBackground", e);
+        }
+    }
+
     private void unInitialize() {
         int mainQueueSize = mMainCommandQueue.size();
         int retryQueueSize = mRetryCommandQueue.size();
@@ -542,7 +626,6 @@ public class MyService extends Service {
                     MyLog.d(this, "On unregisterReceiver", e);
                 }
                 latestProcessedStartId = mLatestProcessedStartId;
-                saveState();
                 mInitialized = false;
                 mIsStopping = false;
                 mForcedToStop = false;
@@ -567,18 +650,21 @@ public class MyService extends Service {
         StringBuilder logMessageBuilder = new StringBuilder();
         boolean could = true;
         synchronized(executorLock) {
-            if (mExecutor == null || mExecutorStartedAt == 0) {
-                // Ok
-            } else if ( mExecutor.isReallyWorking() ) {
-                if (forceNow) {
-                    logMessageBuilder.append(" Cancelling working Executor;");
-                } else {
-                    logMessageBuilder.append(" Cannot stop now Executor " + mExecutor);
-                    could = false;
+            for (QueueExecutor executor : mExecutors.values()) {
+                if (executor.mStartedAt == 0) {
+                    // Ok
+                } else if ( executor.isReallyWorking() ) {
+                    if (forceNow) {
+                        logMessageBuilder.append(" Cancelling working Executor " + executor + ";");
+                    } else {
+                        logMessageBuilder.append(" Cannot stop now Executor " + executor);
+                        could = false;
+                        break;
+                    }
                 }
             }
             if (could) {
-                removeExecutor(logMessageBuilder);
+                removeExecutors(logMessageBuilder);
             }
         }
         if (logMessageBuilder.length() > 0) {
@@ -587,17 +673,6 @@ public class MyService extends Service {
         return could;
     }
 
-    private void saveState() {
-        int count = 0;
-        count += CommandData.saveQueue(this, mMainCommandQueue, QueueType.CURRENT);
-        count += CommandData.saveQueue(this, mRetryCommandQueue, QueueType.RETRY);
-        int countError = CommandData.saveQueue(this, mErrorCommandQueue, QueueType.ERROR);
-        MyLog.d(this, "State saved, " + (count > 0 ? Integer.toString(count) : "no ")
-                + " msg in the Queues, "
-                + (countError > 0 ? Integer.toString(countError) + " in Error queue" : "")
-                );
-    }
-    
     private void releaseWakeLock() {
         synchronized(wakeLockLock) {
             if (mWakeLock != null) {
@@ -609,13 +684,25 @@ public class MyService extends Service {
     }
     
     private class QueueExecutor extends AsyncTask<Void, Void, Boolean> implements CommandExecutorParent {
+        private final CommandLane lane;
+        private final CommandLaneStats stats;
+        @GuardedBy("executorLock")
+        private long mStartedAt = 0;
+        @GuardedBy("executorLock")
+        private long mEndedAt = 0;
         private volatile CommandData currentlyExecuting = null;
         private volatile long currentlyExecutingSince = 0;
         private static final long DELAY_AFTER_EXECUTOR_ENDED_SECONDS = 1;
-        
+        private static final long DOWNLOADS_AWAIT_SECONDS = 5;
+
+        QueueExecutor(CommandLane lane) {
+            this.lane = lane;
+            this.stats = getLaneStats(lane);
+        }
+
         @Override
         protected Boolean doInBackground(Void... arg0) {
-            MyLog.d(this, "Started, " + mMainCommandQueue.size() + " commands to process");
+            MyLog.d(this, "Started, lane:" + lane + ", " + mMainCommandQueue.size() + " commands in the queue");
             String breakReason = "";
             do {
                 if (isStopping()) {
@@ -627,18 +714,69 @@ public class MyService extends Service {
                     break;
                 }
                 synchronized (executorLock) {
-                    if (mExecutor != this) {
+                    if (mExecutors.get(lane) != this) {
                         breakReason = "Other executor";
                         break;
                     }
                 }
                 CommandData commandData = pollQueue();
+                if (commandData == null && lane == CommandLane.DOWNLOADS && awaitDownloads()) {
+                    continue;
+                }
                 currentlyExecuting = commandData;
                 currentlyExecutingSince = System.currentTimeMillis();
                 if (commandData == null) {
                     breakReason = "No more commands";
                     break;
                 }
+                if (lane == CommandLane.DOWNLOADS) {
+                    try {
+                        DownloadManager.submit(commandData, newDownload(commandData));
+                    } catch (InterruptedException e) {
+                        addToMainQueue(commandData);
+                        breakReason = "Interrupted";
+                        break;
+                    }
+                } else {
+                    execute(commandData, currentlyExecutingSince);
+                }
+            } while (true);
+            MyLog.d(this, "Ended, " + breakReason + ", " + totalQueuesSize() + " commands left; " + stats
+                    + (lane == CommandLane.DOWNLOADS ? "; " + DownloadManager.statsToString() : ""));
+            return true;
+        }
+
+        /**
+         * Downloads are executed concurrently by {@link DownloadManager}.
+         * While some of them are in flight, the executor waits for them instead of ending
+         * @return true if some downloads are in flight
+         */
+        private boolean awaitDownloads() {
+            if (DownloadManager.getInFlightCount() == 0) {
+                return false;
+            }
+            currentlyExecutingSince = System.currentTimeMillis();
+            try {
+                DownloadManager.awaitCompletion(TimeUnit.SECONDS.toMillis(DOWNLOADS_AWAIT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+
+        private Runnable newDownload(final CommandData commandData) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    execute(commandData, System.currentTimeMillis());
+                }
+            };
+        }
+
+        private void execute(CommandData commandData, long startedAt) {
+            long queuedAt = commandData.getQueuedAt();
+            try {
                 if (MyContextHolder.get().isOnline(commandData.getCommand().getConnetionRequired())) {
                     MyServiceEventsBroadcaster.newInstance(MyContextHolder.get(), getServiceState())
                         .setCommandData(commandData).setEvent(MyServiceEvent.BEFORE_EXECUTING_COMMAND).broadcast();
@@ -647,49 +785,39 @@ public class MyService extends Service {
                     commandData.getResult().incrementNumIoExceptions();
                     commandData.getResult().setMessage("No '" + commandData.getCommand().getConnetionRequired() + "' connection");
                 }
+                stats.onCommandExecuted(queuedAt, startedAt, System.currentTimeMillis());
                 if (commandData.getResult().shouldWeRetry()) {
-                    addToRetryQueue(commandData);        
+                    addToRetryQueue(commandData);
                 } else if (commandData.getResult().hasError()) {
                     addToErrorQueue(commandData);
                 }
-                broadcastAfterExecutingCommand(commandData);
-                addSyncOfThisToQueue(commandData);
-            } while (true);
-            MyLog.d(this, "Ended, " + breakReason + ", " + totalQueuesSize() + " commands left");
-            return true;
+            } finally {
+                // The command is persisted in the Main queue till now
+                mMainCommandQueue.onExecuted(commandData);
+            }
+            broadcastAfterExecutingCommand(commandData);
+            addSyncOfThisToQueue(commandData);
         }
 
         private CommandData pollQueue() {
-            Queue<CommandData> tempQueue = new PriorityBlockingQueue<CommandData>(mMainCommandQueue.size()+1);
             CommandData commandData = null;
             do {
-                commandData = mMainCommandQueue.poll();
-                if (commandData == null && isAnythingToRetryNow()) {
+                CommandData taken = pollMainQueue();
+                if (taken == null && isAnythingToRetryNow()) {
                     moveCommandsFromRetryToMainQueue();
-                    commandData = mMainCommandQueue.poll();
+                    taken = pollMainQueue();
                 }
-                if (commandData == null) {
+                if (taken == null) {
                     break;
                 }
-                commandData = findInRetryQueue(commandData);
+                commandData = findInRetryQueue(taken);
                 if (commandData != null) {
                     commandData = findInErrorQueue(commandData);
                 }
-                if (commandData != null && !commandData.isInForeground()
-                        && MyContextHolder.get().isInForeground()
-                        && !MyPreferences.isSyncWhileUsingApplicationEnabled()) {
-                    tempQueue.add(commandData);
-                    commandData = null;
+                if (commandData != taken) {
+                    mMainCommandQueue.onReplaced(taken, commandData);
                 }
             } while (commandData == null);
-            while (!tempQueue.isEmpty()) {
-                CommandData cd = tempQueue.poll();
-                if (!mMainCommandQueue.add(cd)) {
-                    MyLog.e(this, "Couldn't return to main Queue, size=" + mMainCommandQueue.size()
-                            + " command=" + cd);
-                    break;
-                }
-            }
             MyLog.v(this, "Polled in "
                     + (MyContextHolder.get().isInForeground() ? "foreground"
                             + " "
@@ -703,34 +831,41 @@ public class MyService extends Service {
             return commandData;
         }
 
+        /**
+         * Takes the highest priority command of this lane, which may be executed now
+         */
+        private CommandData pollMainQueue() {
+            return mMainCommandQueue.poll(lane, isForegroundOnly());
+        }
+
         private static final long MIN_RETRY_PERIOD_SECONDS = 900; 
         private void moveCommandsFromRetryToMainQueue() {
+            long processedAt = mRetryQueueProcessedAt.get();
+            if (!mRetryQueueProcessedAt.compareAndSet(processedAt, System.currentTimeMillis())) {
+                // Other lane is doing this now
+                return;
+            }
             for (CommandData cd : mRetryCommandQueue) {
-                if (cd.executedMoreSecondsAgoThan(MIN_RETRY_PERIOD_SECONDS)) {
+                if (SyncScheduler.isTimeToRetry(cd)
+                        && mRetryCommandQueue.remove(cd)) {
                     addToMainQueue(cd);
-                    mRetryCommandQueue.remove(cd);
                     MyLog.v(this, "Moved from Retry to Main queue: " + cd);
                 }
             }
-            mRetryQueueProcessedAt.set(System.currentTimeMillis());
         }
         
         private CommandData findInRetryQueue(CommandData cdIn) {
             CommandData cdOut = cdIn;
-            if (mRetryCommandQueue.contains(cdIn)) {
-                for (CommandData cd : mRetryCommandQueue) {
-                    if (cd.equals(cdIn)) {
-                        cd.resetRetries();
-                        if (cdIn.isManuallyLaunched() || cd.executedMoreSecondsAgoThan(MIN_RETRY_PERIOD_SECONDS)) {
-                            cdOut = cd;
-                            mRetryCommandQueue.remove(cd);
-                            MyLog.v(this, "Returned from Retry queue: " + cd);
-                        } else {
-                            cdOut = null;
-                            MyLog.v(this, "Found in Retry queue: " + cd);
-                        }
-                        break;
-                    }
+            CommandData cd = mRetryCommandQueue.get(cdIn);
+            if (cd != null) {
+                cd.resetRetries();
+                if (cdIn.isManuallyLaunched() || SyncScheduler.isTimeToRetry(cd)) {
+                    cdOut = cd;
+                    mRetryCommandQueue.remove(cd);
+                    MyLog.v(this, "Returned from Retry queue: " + cd);
+                } else {
+                    cdOut = null;
+                    MyLog.v(this, "Found in Retry queue: " + cd);
                 }
             }
             return cdOut;
@@ -738,32 +873,34 @@ public class MyService extends Service {
         
         private static final long MAX_DAYS_IN_ERROR_QUEUE = 10; 
         private CommandData findInErrorQueue(CommandData cdIn) {
+            removeOldFromErrorQueue();
             CommandData cdOut = cdIn;
-            if (mErrorCommandQueue.contains(cdIn)) {
-                for (CommandData cd : mErrorCommandQueue) {
-                    if (cd.equals(cdIn)) {
-                        cd.resetRetries();
-                        if (cdIn.isManuallyLaunched() || cd.executedMoreSecondsAgoThan(MIN_RETRY_PERIOD_SECONDS)) {
-                            cdOut = cd;
-                            mErrorCommandQueue.remove(cd);
-                            MyLog.v(this, "Returned from Error queue: " + cd);
-                        } else {
-                            cdOut = null;
-                            MyLog.v(this, "Found in Error queue: " + cd);
-                        }
-                    } else {
-                        if (cd.executedMoreSecondsAgoThan(MAX_DAYS_IN_ERROR_QUEUE * RelativeTime.SECONDS_IN_A_DAY)) {
-                            if (mErrorCommandQueue.remove(cd)) {
-                                MyLog.i(this, "Removed old from Error queue: " + cd);
-                            } else {
-                                MyLog.i(this, "Failed to Remove old from Error queue: " + cd);
-                            }
-                        }
-                    }
+            CommandData cd = mErrorCommandQueue.get(cdIn);
+            if (cd != null) {
+                cd.resetRetries();
+                if (cdIn.isManuallyLaunched() || cd.executedMoreSecondsAgoThan(MIN_RETRY_PERIOD_SECONDS)) {
+                    cdOut = cd;
+                    mErrorCommandQueue.remove(cd);
+                    MyLog.v(this, "Returned from Error queue: " + cd);
+                } else {
+                    cdOut = null;
+                    MyLog.v(this, "Found in Error queue: " + cd);
                 }
             }
             return cdOut;
         }
+
+        /** The Error queue is in the order the commands were added, so the oldest are at its head */
+        private void removeOldFromErrorQueue() {
+            CommandData cd = mErrorCommandQueue.peek();
+            while (cd != null
+                    && cd.executedMoreSecondsAgoThan(MAX_DAYS_IN_ERROR_QUEUE * RelativeTime.SECONDS_IN_A_DAY)) {
+                if (mErrorCommandQueue.remove(cd)) {
+                    MyLog.i(this, "Removed old from Error queue: " + cd);
+                }
+                cd = mErrorCommandQueue.peek();
+            }
+        }
         
         private void addToRetryQueue(CommandData commandData) {
             if (!mRetryCommandQueue.contains(commandData) 
@@ -772,7 +909,9 @@ public class MyService extends Service {
             }
         }
 
+        /** A command is taken from the Error queue only when it is launched again, and then its image is prepared again */
         private void addToErrorQueue(CommandData commandData) {
+            commandData.onDropped();
             if (!mErrorCommandQueue.contains(commandData)
                     && !mErrorCommandQueue.offer(commandData)) {
                 CommandData commandData2 = mErrorCommandQueue.poll();
@@ -807,7 +946,7 @@ public class MyService extends Service {
 
         private void onEndedExecution(String method) {
             synchronized(executorLock) {
-                mExecutorEndedAt = System.currentTimeMillis();
+                mEndedAt = System.currentTimeMillis();
             }
             MyLog.v(this, method);
             currentlyExecuting = null;
@@ -827,9 +966,10 @@ public class MyService extends Service {
             long executorStartedAt2 = 0;
             long executorEndedAt2 = 0;
             synchronized(executorLock) {
-                executorStartedAt2 = mExecutorStartedAt;
-                executorEndedAt2 = mExecutorEndedAt;
+                executorStartedAt2 = mStartedAt;
+                executorEndedAt2 = mEndedAt;
             }
+            sb.append("lane:" + lane + ",");
             if (executorStartedAt2 > 0) {
                 sb.append("started:" + RelativeTime.getDifference(getBaseContext(), executorStartedAt2) + ",");
             } else {
@@ -854,8 +994,8 @@ public class MyService extends Service {
         
         boolean isReallyWorking() {
             synchronized (executorLock) {
-                if (mExecutorEndedAt > 0) {
-                    return !RelativeTime.moreSecondsAgoThan(mExecutorEndedAt,
+                if (mEndedAt > 0) {
+                    return !RelativeTime.moreSecondsAgoThan(mEndedAt,
                             DELAY_AFTER_EXECUTOR_ENDED_SECONDS);
                 }
             }
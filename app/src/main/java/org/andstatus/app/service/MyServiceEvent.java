@@ -24,7 +24,14 @@ import org.andstatus.app.util.MyLog;
 public enum MyServiceEvent {
     ON_COMMAND_RECEIVED,
     BEFORE_EXECUTING_COMMAND,
+    /** See {@link CommandResult#getProgress()} */
+    PROGRESS_EXECUTING_COMMAND,
     AFTER_EXECUTING_COMMAND,
+    /**
+     * Items of the timeline were received by {@link TimelineStreamer} and stored, not by a command.
+     * The command data only tells the account and the timeline
+     */
+    ON_ITEMS_STREAMED,
     ON_STOP,
     UNKNOWN;
 
@@ -48,14 +48,19 @@ public class MyServiceEventsBroadcaster {
         return this;
     }
     
+    /**
+     * Receivers of this process get the event from the {@link MyServiceEventsBus}.
+     * Only changes of the state of the service, which are not related to a command,
+     * are sent as system broadcasts also, e.g. for the {@link MyServiceManager}
+     */
     public void broadcast() {
-        Intent intent = MyAction.SERVICE_STATE.getIntent();
-        if (mCommandData != null) {
-            intent = mCommandData.toIntent(intent);
+        MyServiceEventsBus.post(mCommandData, mEvent);
+        if (mCommandData == null) {
+            Intent intent = MyAction.SERVICE_STATE.getIntent();
+            intent.putExtra(IntentExtra.SERVICE_STATE.key, mState.save());
+            intent.putExtra(IntentExtra.SERVICE_EVENT.key, mEvent.save());
+            mMyContext.context().sendBroadcast(intent);
         }
-        intent.putExtra(IntentExtra.SERVICE_STATE.key, mState.save());
-        intent.putExtra(IntentExtra.SERVICE_EVENT.key, mEvent.save());
-        mMyContext.context().sendBroadcast(intent);
         MyLog.v(this, "state: " + mState);
     }
 }
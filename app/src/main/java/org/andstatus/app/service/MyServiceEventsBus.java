@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers events of {@link MyService} to {@link MyServiceEventsReceiver}s of this process
+ * without system broadcasts. Like registered broadcast receivers, the receivers get events in the UI thread
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class MyServiceEventsBus {
+    private static final List<MyServiceEventsReceiver> receivers = new CopyOnWriteArrayList<MyServiceEventsReceiver>();
+    private static volatile Handler handler = null;
+
+    private MyServiceEventsBus() {
+        // Empty
+    }
+
+    static void register(MyServiceEventsReceiver receiver) {
+        if (!receivers.contains(receiver)) {
+            receivers.add(receiver);
+        }
+    }
+
+    static void unregister(MyServiceEventsReceiver receiver) {
+        receivers.remove(receiver);
+    }
+
+    /**
+     * The command data may be changed by the service after this call,
+     * so the receivers get a copy of it, taken in the caller's thread
+     */
+    static void post(CommandData commandData, MyServiceEvent event) {
+        if (receivers.isEmpty()) {
+            return;
+        }
+        CommandData snapshot = commandData == null ? CommandData.getEmpty()
+                : CommandData.fromIntent(commandData.toIntent(new Intent()));
+        for (MyServiceEventsReceiver receiver : receivers) {
+            receiver.offer(snapshot, event);
+        }
+    }
+
+    static Handler getHandler() {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * Events, which differ only in ids of items and in numbers, have the same key.
+     * So e.g. downloads of many avatars may be coalesced into one event
+     */
+    static String coalescingKey(CommandData commandData, MyServiceEvent event) {
+        CommandResult result = commandData.getResult();
+        return event + ";" + commandData.getCommand() + ";" + commandData.getTimelineType()
+                + ";" + commandData.getAccountName()
+                + ";" + (result.hasError() ? "error" : "ok")
+                + ";" + (result.getDownloadedCount() > 0 ? "downloaded" : "");
+    }
+}
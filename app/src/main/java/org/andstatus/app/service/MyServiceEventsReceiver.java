@@ -16,50 +16,129 @@
 
 package org.andstatus.app.service;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
+import android.os.SystemClock;
+
+import net.jcip.annotations.GuardedBy;
 
-import org.andstatus.app.IntentExtra;
-import org.andstatus.app.MyAction;
 import org.andstatus.app.util.InstanceId;
 import org.andstatus.app.util.MyLog;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
+ * Receives events of {@link MyService} from the {@link MyServiceEventsBus} and passes them to the listener
+ * in the UI thread.
+ * If the coalescing period is set, the listener gets at most one event with the same
+ * {@link MyServiceEventsBus#coalescingKey(CommandData, MyServiceEvent)} per the period:
+ * the first event is passed at once, and the latest of the following ones - at the end of the period
  * @author yvolk@yurivolkov.com
  */
-public final class MyServiceEventsReceiver extends BroadcastReceiver {
+public final class MyServiceEventsReceiver {
     private final long mInstanceId = InstanceId.next();
     private final MyServiceEventsListener listener;
+    private final long coalescingPeriodMillis;
+    private volatile boolean registered = false;
+
+    @GuardedBy("this")
+    private final Map<String, Long> deliveredAt = new HashMap<String, Long>();
+    @GuardedBy("this")
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    private static class Pending {
+        CommandData commandData;
+        MyServiceEvent event;
+
+        Pending(CommandData commandData, MyServiceEvent event) {
+            this.commandData = commandData;
+            this.event = event;
+        }
+    }
 
     public MyServiceEventsReceiver(MyServiceEventsListener listener) {
-        super();
+        this(listener, 0);
+    }
+
+    public MyServiceEventsReceiver(MyServiceEventsListener listener, long coalescingPeriodMillis) {
         this.listener = listener;
+        this.coalescingPeriodMillis = coalescingPeriodMillis;
         MyLog.v(this, "Created, instanceId=" + mInstanceId + (listener != null ? "; listener='"
                 + listener.toString() + "'" : ""));
     }
     
-    public void registerReceiver(Context context) {
-        context.registerReceiver(this, new IntentFilter(MyAction.SERVICE_STATE.getAction()));
+    public void register() {
+        registered = true;
+        MyServiceEventsBus.register(this);
     }
 
-    public void unregisterReceiver(Context context) {
-        try {
-            context.unregisterReceiver(this);
-        } catch (IllegalArgumentException e) {
-            // Thrown when the "Receiver not registered: org.andstatus.app.service.MyServiceReceiver@..."
-            MyLog.ignored(this, e);
+    public void unregister() {
+        registered = false;
+        MyServiceEventsBus.unregister(this);
+        synchronized (this) {
+            pending.clear();
+            deliveredAt.clear();
         }
     }
-    
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        MyServiceEvent event = MyServiceEvent.load(intent.getStringExtra(IntentExtra.SERVICE_EVENT.key));
+
+    /** Called by the bus in the thread, which posted the event */
+    void offer(final CommandData commandData, final MyServiceEvent event) {
         if (event == MyServiceEvent.UNKNOWN) {
             return;
         }
+        long delayMillis = 0;
+        if (coalescingPeriodMillis > 0) {
+            final String key = MyServiceEventsBus.coalescingKey(commandData, event);
+            synchronized (this) {
+                Pending pendingEvent = pending.get(key);
+                if (pendingEvent != null) {
+                    pendingEvent.commandData = commandData;
+                    pendingEvent.event = event;
+                    return;
+                }
+                long now = SystemClock.elapsedRealtime();
+                Long delivered = deliveredAt.get(key);
+                if (delivered == null || now - delivered >= coalescingPeriodMillis) {
+                    deliveredAt.put(key, now);
+                } else {
+                    pending.put(key, new Pending(commandData, event));
+                    delayMillis = delivered + coalescingPeriodMillis - now;
+                }
+            }
+            if (delayMillis > 0) {
+                MyServiceEventsBus.getHandler().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverPending(key);
+                    }
+                }, delayMillis);
+                return;
+            }
+        }
+        MyServiceEventsBus.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(commandData, event);
+            }
+        });
+    }
+
+    private void deliverPending(String key) {
+        Pending pendingEvent;
+        synchronized (this) {
+            pendingEvent = pending.remove(key);
+            if (pendingEvent == null) {
+                return;
+            }
+            deliveredAt.put(key, SystemClock.elapsedRealtime());
+        }
+        deliver(pendingEvent.commandData, pendingEvent.event);
+    }
+
+    private void deliver(CommandData commandData, MyServiceEvent event) {
+        if (!registered) {
+            return;
+        }
         MyLog.v(this, "onReceive " + event + " for " + MyLog.objTagToString(listener) + ", instanceId:" + mInstanceId);
-        listener.onReceive(CommandData.fromIntent(intent), event);
+        listener.onReceive(commandData, event);
     }
-}
\ No newline at end of file
+}
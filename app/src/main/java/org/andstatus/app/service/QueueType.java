@@ -1,23 +1,18 @@
 package org.andstatus.app.service;
 
 public enum QueueType {
-    CURRENT("commands-queue", "C"),
-    RETRY("retry-queue", "R"),
-    ERROR("error-queue", "E"),
-    TEST("test-queue", "T");
+    CURRENT("C"),
+    RETRY("R"),
+    ERROR("E"),
+    TEST("T");
     
-    private String filenameSuffix;
     private String acronym;
     
-    private QueueType(String filenameSuffix, String acronym) {
-        this.filenameSuffix = filenameSuffix;
+    private QueueType(String acronym) {
         this.acronym = acronym;
     }
     
-    public String getFilename() {
-        return "MyService" + "-" + filenameSuffix;
-    }
-    
+    /** Persistent code of the queue, see {@link org.andstatus.app.data.MyDatabase.Command#QUEUE_TYPE} */
     public String getAcronym() {
         return acronym;
     }
@@ -16,16 +16,20 @@
 
 package org.andstatus.app.service;
 
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListAdapter;
+import android.widget.Toast;
 
 import org.andstatus.app.MyListActivity;
 import org.andstatus.app.R;
@@ -88,23 +92,52 @@ public class QueueViewer extends MyListActivity implements MyServiceEventsListen
     protected void onResume() {
         super.onResume();
         MyServiceManager.setServiceAvailable();
-        mServiceConnector.registerReceiver(this);
+        mServiceConnector.register();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        mServiceConnector.unregisterReceiver(this);
+        mServiceConnector.unregister();
     }
     
     @Override
     protected void onDestroy() {
         if (mServiceConnector != null) {
-            mServiceConnector.unregisterReceiver(this);
+            mServiceConnector.unregister();
         }
         super.onDestroy();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.queue_viewer, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menuItemStatistics:
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.menu_item_statistics)
+                        .setMessage(CommandMetrics.toText())
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+                return true;
+            case R.id.menuItemExportStatistics:
+                String path = CommandMetrics.export();
+                if (!TextUtils.isEmpty(path)) {
+                    Toast.makeText(this, getString(R.string.statistics_exported, path), Toast.LENGTH_LONG).show();
+                }
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
     @Override
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
         super.onCreateContextMenu(menu, v, menuInfo);
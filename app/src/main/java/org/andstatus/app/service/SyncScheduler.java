@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.data.LatestTimelineItem;
+import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.net.social.MbRateLimitStatus;
+import org.andstatus.app.util.MyLog;
+
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides, when to fetch a timeline automatically and when to retry a failed command:
+ * <ul>
+ * <li>The arrival rate of each timeline is learned from the numbers of new items in its downloads.
+ * Until the timeline is downloaded in this process, the rate is estimated by the age
+ * of its latest item, see {@link LatestTimelineItem}.
+ * A busy timeline is fetched at each sync, a quiet one less often, up to a limit, which depends
+ * on the timeline type, so e.g. dormant User timelines wait longer than Mentions.</li>
+ * <li>When the remaining API budget of an account is low, its timelines wait until the limit is reset.
+ * The budget comes from {@link MbRateLimitStatus} and from headers of responses.</li>
+ * <li>After a failure of a request to an origin host, requests to the host back off exponentially
+ * with jitter, and failed commands are retried after a delay, which grows with each attempt,
+ * instead of at a fixed period.</li>
+ * </ul>
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class SyncScheduler {
+    private static final String TAG = SyncScheduler.class.getSimpleName();
+    /** Weight of the arrival rate, measured by the latest download */
+    static final double RATE_SMOOTHING = 0.3;
+    /** A timeline is due, when we expect at least this number of new items in it */
+    static final double EXPECTED_NEW_ITEMS = 1.0;
+    /** Syncs are not strictly periodic, so a timeline is due a bit earlier */
+    static final double DUE_TOLERANCE = 0.25;
+    /** Requests, which we leave for commands, launched by a User */
+    static final int RATE_LIMIT_RESERVE = 10;
+    static final long MIN_RETRY_DELAY_SECONDS = 60;
+    static final long MAX_RETRY_DELAY_SECONDS = 6 * 3600;
+
+    private static final ConcurrentMap<String, Double> itemsPerMs = new ConcurrentHashMap<String, Double>();
+    private static final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<String, Budget>();
+    private static final ConcurrentMap<String, Backoff> backoffs = new ConcurrentHashMap<String, Backoff>();
+    private static final Random random = new Random();
+
+    /** Remaining requests of an account */
+    private static class Budget {
+        final MbRateLimitStatus status;
+        final long observedAt;
+
+        Budget(MbRateLimitStatus status) {
+            this.status = status;
+            observedAt = System.currentTimeMillis();
+        }
+    }
+
+    /** Failures of requests to a host */
+    private static class Backoff {
+        final int failures;
+        final long nextAttemptAt;
+
+        Backoff(int failures, long nextAttemptAt) {
+            this.failures = failures;
+            this.nextAttemptAt = nextAttemptAt;
+        }
+    }
+
+    private SyncScheduler() {
+        // Empty
+    }
+
+    public static void forget() {
+        itemsPerMs.clear();
+        budgets.clear();
+        backoffs.clear();
+    }
+
+    /**
+     * @return true if it's time to auto update the timeline
+     */
+    public static boolean isTimeToAutoUpdate(LatestTimelineItem latestTimelineItem) {
+        boolean isTime = isTimeToAutoUpdate(latestTimelineItem.getTimelineType(), latestTimelineItem.getUserId(),
+                latestTimelineItem.getTimelineItemDate(), latestTimelineItem.getTimelineDownloadedDate());
+        if (isTime && MyLog.isVerboseEnabled()) {
+            long passedMs = System.currentTimeMillis() - latestTimelineItem.getTimelineDownloadedDate();
+            MyLog.v(TAG, "It's time to auto update " + latestTimelineItem + ". "
+                    + TimeUnit.MILLISECONDS.toMinutes(passedMs) + " minutes passed.");
+        }
+        return isTime;
+    }
+
+    /**
+     * @param latestItemDate Date of the latest item of the timeline, 0 if unknown
+     * @param downloadedDate When the timeline was successfully downloaded last time, 0 if never
+     */
+    public static boolean isTimeToAutoUpdate(TimelineType timelineType, long userId,
+                                             long latestItemDate, long downloadedDate) {
+        long baseMs = MyPreferences.getSyncFrequencyMs();
+        long passedMs = System.currentTimeMillis() - downloadedDate;
+        return passedMs > getUpdatePeriodMs(timelineType, userId, latestItemDate) - (long) (baseMs * DUE_TOLERANCE);
+    }
+
+    /**
+     * @return Period between automatic downloads of the timeline: from the sync frequency for busy timelines
+     * to {@link #maxPeriodFactor(TimelineType)} times longer for the dormant ones
+     */
+    static long getUpdatePeriodMs(TimelineType timelineType, long userId, long latestItemDate) {
+        long baseMs = MyPreferences.getSyncFrequencyMs();
+        long maxMs = baseMs * maxPeriodFactor(timelineType);
+        double rate = getItemsPerMs(timelineType, userId, latestItemDate, baseMs);
+        if (rate <= 0) {
+            return maxMs;
+        }
+        return Math.max(baseMs, Math.min(maxMs, (long) (EXPECTED_NEW_ITEMS / rate)));
+    }
+
+    private static double getItemsPerMs(TimelineType timelineType, long userId, long latestItemDate, long baseMs) {
+        Double rate = itemsPerMs.get(toKey(timelineType, userId));
+        if (rate != null) {
+            return rate;
+        }
+        if (latestItemDate > 0) {
+            return 1.0 / Math.max(baseMs, System.currentTimeMillis() - latestItemDate);
+        }
+        return 0;
+    }
+
+    static int maxPeriodFactor(TimelineType timelineType) {
+        switch (timelineType) {
+            case MENTIONS:
+            case DIRECT:
+                return 2;
+            case USER:
+            case FOLLOWING_USER:
+                return 16;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * @param newItems Number of new items, which were downloaded
+     * @param previousDownloadedDate When the timeline was downloaded before this time, 0 if never
+     */
+    static void onTimelineDownloaded(TimelineType timelineType, long userId, int newItems,
+                                     long previousDownloadedDate) {
+        long elapsedMs = System.currentTimeMillis() - previousDownloadedDate;
+        if (previousDownloadedDate == 0 || elapsedMs <= 0) {
+            return;
+        }
+        String key = toKey(timelineType, userId);
+        double measured = ((double) newItems) / elapsedMs;
+        Double rate = itemsPerMs.get(key);
+        itemsPerMs.put(key, rate == null ? measured : rate * (1 - RATE_SMOOTHING) + measured * RATE_SMOOTHING);
+    }
+
+    private static String toKey(TimelineType timelineType, long userId) {
+        return timelineType.save() + ":" + userId;
+    }
+
+    /**
+     * Automatic download of the timeline of the account is allowed now
+     */
+    static boolean isTimeToFetch(MyAccount ma, TimelineType timelineType) {
+        if (!isHostAvailable(hostOf(ma))) {
+            MyLog.v(TAG, "Host " + hostOf(ma) + " backs off, skipping " + timelineType);
+            return false;
+        }
+        if (!isBudgetAvailable(ma.getAccountName())) {
+            MyLog.v(TAG, "No requests left for " + ma.getAccountName() + ", skipping " + timelineType);
+            return false;
+        }
+        return isTimeToAutoUpdate(new LatestTimelineItem(timelineType, ma.getUserId()));
+    }
+
+    static boolean isBudgetAvailable(String accountName) {
+        Budget budget = budgets.get(accountName);
+        if (budget == null || budget.status.limit == 0 || budget.status.remaining > RATE_LIMIT_RESERVE) {
+            return true;
+        }
+        long resetTime = budget.status.resetTime > 0 ? budget.status.resetTime
+                : budget.observedAt + MyPreferences.getSyncFrequencyMs();
+        return System.currentTimeMillis() >= resetTime;
+    }
+
+    static boolean isHostAvailable(String host) {
+        Backoff backoff = backoffs.get(host);
+        return backoff == null || System.currentTimeMillis() >= backoff.nextAttemptAt;
+    }
+
+    /**
+     * A command from the Retry queue may be executed now
+     */
+    static boolean isTimeToRetry(CommandData commandData) {
+        CommandResult result = commandData.getResult();
+        long delayMs = retryDelayMs(Math.max(1, result.getExecutionCount()), commandData.getId());
+        return System.currentTimeMillis() >= result.getLastExecutedDate() + delayMs
+                && isHostAvailable(hostOf(commandData.getAccount()));
+    }
+
+    /**
+     * Exponential backoff with jitter: the delay is between a half and the whole of the exponential one.
+     * The same seed gives the same delay, so repeated checks of one command agree
+     */
+    static long retryDelayMs(int attempt, long seed) {
+        return jitteredDelayMs(attempt, new Random(seed * 31 + attempt).nextDouble());
+    }
+
+    private static long jitteredDelayMs(int attempt, double jitter) {
+        long delaySeconds = MAX_RETRY_DELAY_SECONDS;
+        if (attempt <= 30) {
+            delaySeconds = Math.min(MAX_RETRY_DELAY_SECONDS, MIN_RETRY_DELAY_SECONDS << (attempt - 1));
+        }
+        return (long) (TimeUnit.SECONDS.toMillis(delaySeconds) * (0.5 + jitter / 2));
+    }
+
+    /**
+     * Learn from the result of one command or of one step of it.
+     * Failures of its execution steps were learned from already, each for the account of its step,
+     * so only the command's (step's) own failures make its host back off
+     * @param ma The account, which executed the command. Commands for all accounts are learned from by steps
+     */
+    static void onExecuted(MyAccount ma, CommandResult result) {
+        if (ma == null || !ma.isValid()) {
+            return;
+        }
+        onRateLimitStatus(ma.getAccountName(), ma.getConnection().getHttp().getRateLimitStatus());
+        if (result.getHourlyLimit() > 0) {
+            MbRateLimitStatus status = new MbRateLimitStatus();
+            status.remaining = result.getRemainingHits();
+            status.limit = result.getHourlyLimit();
+            onRateLimitStatus(ma.getAccountName(), status);
+        }
+        String host = hostOf(ma);
+        if (result.getNumIoExceptionsOwn() > 0) {
+            onHostFailed(host);
+        } else if (!result.hasError()) {
+            backoffs.remove(host);
+        }
+    }
+
+    /** The same status object is ignored, so it doesn't defer the reset time, when it is unknown */
+    static void onRateLimitStatus(String accountName, MbRateLimitStatus status) {
+        if (status.isEmpty()) {
+            return;
+        }
+        Budget budget = budgets.get(accountName);
+        if (budget == null || budget.status != status) {
+            budgets.put(accountName, new Budget(status));
+        }
+    }
+
+    /**
+     * Failures of requests, which were sent before the host started to back off, don't prolong the backoff
+     */
+    static void onHostFailed(String host) {
+        Backoff backoff = backoffs.get(host);
+        if (backoff != null && System.currentTimeMillis() < backoff.nextAttemptAt) {
+            return;
+        }
+        int failures = backoff == null ? 1 : backoff.failures + 1;
+        long nextAttemptAt = System.currentTimeMillis() + jitteredDelayMs(failures, random.nextDouble());
+        backoffs.put(host, new Backoff(failures, nextAttemptAt));
+        MyLog.d(TAG, "Host " + host + " failed " + failures + " times, next attempt in "
+                + TimeUnit.MILLISECONDS.toSeconds(nextAttemptAt - System.currentTimeMillis()) + " seconds");
+    }
+
+    static String hostOf(MyAccount ma) {
+        if (ma == null || !ma.isValid()) {
+            return "";
+        }
+        URL url = ma.getOrigin().getUrl();
+        return url == null ? "" : url.getHost();
+    }
+}
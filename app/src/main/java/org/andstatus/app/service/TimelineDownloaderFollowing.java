@@ -25,11 +25,13 @@ import org.andstatus.app.data.FollowingUserValues;
 import org.andstatus.app.data.LatestTimelineItem;
 import org.andstatus.app.data.LatestUserMessages;
 import org.andstatus.app.data.MyDatabase;
+import org.andstatus.app.data.MyDatabase.FollowingUser;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.data.MyQuery;
 import org.andstatus.app.data.TimelineType;
 import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.social.MbRateLimitStatus;
 import org.andstatus.app.net.social.MbTimelineItem;
 import org.andstatus.app.net.social.MbTimelineItem.ItemType;
 import org.andstatus.app.net.social.MbUser;
@@ -37,13 +39,48 @@ import org.andstatus.app.net.social.Connection.ApiRoutineEnum;
 import org.andstatus.app.net.http.ConnectionException.StatusCode;
 import org.andstatus.app.net.social.TimelinePosition;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.PhaseTimer;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Downloads the list of users, followed by the user, and then users and their latest messages,
+ * which we don't have yet. These are fetched in parallel by a bounded pool of threads,
+ * while the results are stored to the database in this thread only
+ */
 class TimelineDownloaderFollowing extends TimelineDownloader {
+    /** Connections of these threads are counted in {@link MyService#MAX_CONCURRENT_REQUESTS}, so they don't wait for each other */
+    static final int MAX_FETCH_THREADS = 4;
+    /** Number of {@link FollowingUser} rows, updated in one transaction */
+    static final int BATCH_SIZE = 100;
+    /** Requests, which we leave for other commands, when the rate limit is known */
+    static final int RATE_LIMIT_RESERVE = 10;
+
+    /** What we need to fetch for one followed user */
+    static class Fetch {
+        final String userOid;
+        final boolean userNeeded;
+        MbUser user = null;
+        List<MbTimelineItem> messages = null;
+        boolean skipped = false;
+
+        Fetch(String userOid, boolean userNeeded) {
+            this.userOid = userOid;
+            this.userNeeded = userNeeded;
+        }
+    }
 
     @Override
     public void download() throws ConnectionException {
@@ -57,7 +94,8 @@ class TimelineDownloaderFollowing extends TimelineDownloader {
     }
 
     private void downloadFollowingFor(String userOid) throws ConnectionException {
-        LatestTimelineItem latestTimelineItem = new LatestTimelineItem(execContext.getTimelineType(), execContext.getTimelineUserId());
+        TimelineType timelineType = execContext.getTimelineType();
+        LatestTimelineItem latestTimelineItem = new LatestTimelineItem(timelineType, execContext.getTimelineUserId());
         
         if (MyLog.isLoggable(this, MyLog.DEBUG)) {
             String strLog = "Loading " + execContext.getTimelineType() + "; account=" + execContext.getMyAccount().getAccountName();
@@ -68,6 +106,7 @@ class TimelineDownloaderFollowing extends TimelineDownloader {
             MyLog.d(this, strLog);
         }
         
+        long previousDownloadedDate = latestTimelineItem.getTimelineDownloadedDate();
         latestTimelineItem.onTimelineDownloaded();
         List<String> followedUsersOids = null;
         List<MbUser> followedUsers = null;
@@ -89,58 +128,207 @@ class TimelineDownloaderFollowing extends TimelineDownloader {
         }
         // Old list of followed users
         Set<Long> followedIdsOld = MyQuery.getIdsOfUsersFollowedBy(execContext.getTimelineUserId());
-        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+        List<Long> followedIds = new ArrayList<Long>();
+        List<Fetch> fetches = new ArrayList<Fetch>();
+        int newlyFollowed = 0;
         for (String followedUserOid : followedUsersOids) {
             long friendId = MyQuery.oidToId(MyDatabase.OidEnum.USER_OID, execContext.getMyAccount().getOriginId(), followedUserOid);
             long msgId = 0;
+            if (friendId == 0 || !followedIdsOld.remove(friendId)) {
+                newlyFollowed++;
+            }
             if (friendId != 0) {
-                followedIdsOld.remove(friendId);
                 msgId = MyQuery.userIdToLongColumnValue(User.USER_MSG_ID, friendId);
             }
-            // The Friend doesn't have any messages sent, so let's download the latest
-            if (msgId == 0) {
-                try {
-                    // Download the Users's info + optionally his latest message
-                    if (friendId == 0 || execContext.getMyAccount().getConnection().userObjectHasMessage()) {
-                        MbUser mbUser = execContext.getMyAccount().getConnection().getUser(followedUserOid);
-                        friendId = di.insertOrUpdateUser(mbUser, lum);
-                        msgId = MyQuery.userIdToLongColumnValue(User.USER_MSG_ID, friendId);
-                    } 
-                    if (friendId != 0 && msgId == 0) {
-                        downloadOneMessageBy(followedUserOid, lum);
-                    }
-                } catch (ConnectionException e) {
-                    MyLog.i(this, "Failed to download the User object or his message for oid=" + followedUserOid, e);
-                }
-            }
-            if (friendId != 0) {
-                FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), friendId);
-                fu.setFollowed(true);
-                fu.update(db);
+            if (msgId != 0) {
+                followedIds.add(friendId);
+            } else {
+                // The Friend doesn't have any messages sent, so let's download the latest
+                // Download the Users's info + optionally his latest message
+                fetches.add(new Fetch(followedUserOid,
+                        friendId == 0 || execContext.getMyAccount().getConnection().userObjectHasMessage()));
             }
         }
+        saveFollowed(followedIds, true);
+        followedIds.clear();
+        fetchAndInsert(fetches, followedIds, lum);
+        saveFollowed(followedIds, true);
         
         lum.save();
         
         // Now let's remove "following" information for all users left in the Set:
-        for (long notFollowingId : followedIdsOld) {
-            FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), notFollowingId);
-            fu.setFollowed(false);
-            fu.update(db);
-        }
+        saveFollowed(followedIdsOld, false);
         latestTimelineItem.save();
+        SyncScheduler.onTimelineDownloaded(timelineType, execContext.getTimelineUserId(),
+                newlyFollowed, previousDownloadedDate);
     }
 
-    private void downloadOneMessageBy(String userOid, LatestUserMessages lum) throws ConnectionException {
-        execContext.setTimelineType(TimelineType.USER);
-        List<MbTimelineItem> messages = execContext.getMyAccount().getConnection().getTimeline(
-                execContext.getTimelineType().getConnectionApiRoutine(), TimelinePosition.getEmpty(), 1, userOid);
-        DataInserter di = new DataInserter(execContext);
-        for (MbTimelineItem item : messages) {
-            if (item.getType() == ItemType.MESSAGE) {
-                di.insertOrUpdateMsg(item.mbMessage, lum);
-                break;
+    /**
+     * Results of the parallel fetches are inserted in the order they are ready.
+     * A failure of one fetch doesn't prevent inserting results of the others
+     * @param followedIds ids of the inserted users are added here
+     */
+    void fetchAndInsert(List<Fetch> fetches, List<Long> followedIds, LatestUserMessages lum) {
+        if (fetches.isEmpty()) {
+            return;
+        }
+        final AtomicInteger requestsLeft = new AtomicInteger(getRequestsLimit());
+        MyLog.d(this, "Fetching " + fetches.size() + " users, requests limit: " + requestsLeft.get());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_FETCH_THREADS, fetches.size()));
+        CompletionService<Fetch> completionService = new ExecutorCompletionService<Fetch>(executor);
+        final PhaseTimer commandTimer = PhaseTimer.current();
+        try {
+            for (final Fetch fetch : fetches) {
+                completionService.submit(new Callable<Fetch>() {
+                    @Override
+                    public Fetch call() {
+                        PhaseTimer timer = PhaseTimer.beginTask(commandTimer);
+                        try {
+                            return doFetch(fetch, requestsLeft);
+                        } finally {
+                            timer.end();
+                        }
+                    }
+                });
+            }
+            DataInserter di = new DataInserter(execContext);
+            int skipped = 0;
+            int failed = 0;
+            for (int ind = 0; ind < fetches.size(); ind++) {
+                Fetch fetch = getFetched(completionService.take());
+                if (fetch == null) {
+                    failed++;
+                    continue;
+                }
+                if (fetch.skipped) {
+                    skipped++;
+                }
+                long friendId = insertFetched(di, fetch, lum);
+                if (friendId != 0) {
+                    followedIds.add(friendId);
+                    if (followedIds.size() >= BATCH_SIZE) {
+                        saveFollowed(followedIds, true);
+                        followedIds.clear();
+                    }
+                }
+            }
+            if (skipped + failed > 0) {
+                MyLog.d(this, "Skipped " + skipped + ", failed " + failed + " users, they will be fetched next time");
+            }
+        } catch (InterruptedException e) {
+            MyLog.d(this, "Fetching interrupted", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return null if the fetch failed
+     */
+    private Fetch getFetched(Future<Fetch> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            MyLog.i(this, "Fetching failed", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * @return Integer.MAX_VALUE if the rate limit is not known
+     */
+    int getRequestsLimit() {
+        if (execContext.getMyAccount().getConnection().isApiSupported(ApiRoutineEnum.ACCOUNT_RATE_LIMIT_STATUS)) {
+            try {
+                MbRateLimitStatus rateLimitStatus = execContext.getMyAccount().getConnection().rateLimitStatus();
+                if (!rateLimitStatus.isEmpty()) {
+                    execContext.getResult().setRemainingHits(rateLimitStatus.remaining);
+                    execContext.getResult().setHourlyLimit(rateLimitStatus.limit);
+                    return Math.max(0, rateLimitStatus.remaining - RATE_LIMIT_RESERVE);
+                }
+            } catch (ConnectionException e) {
+                MyLog.i(this, "Failed to get rate limit status", e);
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /** Runs in a thread of the pool, doesn't touch the database */
+    Fetch doFetch(Fetch fetch, AtomicInteger requestsLeft) {
+        try {
+            if (fetch.userNeeded) {
+                if (requestsLeft.getAndDecrement() <= 0) {
+                    fetch.skipped = true;
+                    return fetch;
+                }
+                fetch.user = execContext.getMyAccount().getConnection().getUser(fetch.userOid);
+                if (fetch.user.latestMessage != null) {
+                    return fetch;
+                }
+            }
+            if (requestsLeft.getAndDecrement() <= 0) {
+                fetch.skipped = true;
+                return fetch;
+            }
+            fetch.messages = execContext.getMyAccount().getConnection().getTimeline(
+                    TimelineType.USER.getConnectionApiRoutine(), TimelinePosition.getEmpty(), 1, fetch.userOid);
+        } catch (ConnectionException e) {
+            MyLog.i(this, "Failed to download the User object or his message for oid=" + fetch.userOid, e);
+            if (e.isHardError()) {
+                requestsLeft.set(0);
+            }
+        }
+        return fetch;
+    }
+
+    /**
+     * @return id of the followed user or 0 if we don't have the user
+     */
+    private long insertFetched(DataInserter di, Fetch fetch, LatestUserMessages lum) {
+        long friendId = 0;
+        if (fetch.user != null) {
+            friendId = di.insertOrUpdateUser(fetch.user, lum);
+        } else {
+            friendId = MyQuery.oidToId(MyDatabase.OidEnum.USER_OID, execContext.getMyAccount().getOriginId(),
+                    fetch.userOid);
+        }
+        if (friendId != 0 && fetch.messages != null) {
+            // The message is of the User timeline, but the command goes on downloading its own timeline
+            TimelineType timelineType = execContext.getTimelineType();
+            execContext.setTimelineType(TimelineType.USER);
+            try {
+                for (MbTimelineItem item : fetch.messages) {
+                    if (item.getType() == ItemType.MESSAGE) {
+                        di.insertOrUpdateMsg(item.mbMessage, lum);
+                        break;
+                    }
+                }
+            } finally {
+                execContext.setTimelineType(timelineType);
+            }
+        }
+        return friendId;
+    }
+
+    /**
+     * Set or clear the "followed" flag for the users in one transaction
+     */
+    private void saveFollowed(Collection<Long> friendIds, boolean followed) {
+        if (friendIds.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (long friendId : friendIds) {
+                FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), friendId);
+                fu.setFollowed(followed);
+                fu.update(db);
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
 }
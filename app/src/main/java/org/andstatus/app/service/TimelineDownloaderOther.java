@@ -25,12 +25,12 @@ import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyQuery;
 import org.andstatus.app.net.http.ConnectionException;
 import org.andstatus.app.net.social.MbTimelineItem;
+import org.andstatus.app.net.social.TimelineItemConsumer;
 import org.andstatus.app.net.social.TimelinePosition;
 import org.andstatus.app.net.http.ConnectionException.StatusCode;
 import org.andstatus.app.util.MyLog;
 
 import java.util.Date;
-import java.util.List;
 
 class TimelineDownloaderOther extends TimelineDownloader {
     private static final int MAXIMUM_NUMBER_OF_MESSAGES_TO_DOWNLOAD = 200;
@@ -56,27 +56,22 @@ class TimelineDownloaderOther extends TimelineDownloader {
         int toDownload = MAXIMUM_NUMBER_OF_MESSAGES_TO_DOWNLOAD;
         TimelinePosition lastPosition = latestTimelineItem.getPosition();
         LatestUserMessages latestUserMessages = new LatestUserMessages();
+        long previousDownloadedDate = latestTimelineItem.getTimelineDownloadedDate();
         latestTimelineItem.onTimelineDownloaded();
         DataInserter di = new DataInserter(execContext);
         for (int loopCounter=0; loopCounter < 100; loopCounter++ ) {
             try {
                 int limit = execContext.getMyAccount().getConnection().fixedDownloadLimitForApiRoutine(toDownload, 
                         execContext.getTimelineType().getConnectionApiRoutine()); 
-                List<MbTimelineItem> messages = execContext.getMyAccount().getConnection().getTimeline(
-                        execContext.getTimelineType().getConnectionApiRoutine(), lastPosition, limit, userOid);
-                for (MbTimelineItem item : messages) {
-                    toDownload--;
-                    latestTimelineItem.onNewMsg(item.timelineItemPosition, item.timelineItemDate);
-                    switch (item.getType()) {
-                        case MESSAGE:
-                            di.insertOrUpdateMsg(item.mbMessage, latestUserMessages);
-                            break;
-                        case USER:
-                            di.insertOrUpdateUser(item.mbUser);
-                            break;
-                        default:
-                            break;
-                    }
+                ItemsConsumer consumer = new ItemsConsumer(latestTimelineItem, di.newBatch(latestUserMessages));
+                try {
+                    execContext.getMyAccount().getConnection().getTimeline(
+                            execContext.getTimelineType().getConnectionApiRoutine(), lastPosition, limit, userOid,
+                            consumer);
+                } finally {
+                    // Items, which were parsed before a failure, are stored also
+                    consumer.batch.flush();
+                    toDownload -= consumer.count;
                 }
                 if (toDownload <= 0
                         || lastPosition == latestTimelineItem.getPosition()) {
@@ -97,6 +92,27 @@ class TimelineDownloaderOther extends TimelineDownloader {
         }
         latestUserMessages.save();
         latestTimelineItem.save();
+        SyncScheduler.onTimelineDownloaded(execContext.getTimelineType(), execContext.getTimelineUserId(),
+                MAXIMUM_NUMBER_OF_MESSAGES_TO_DOWNLOAD - toDownload, previousDownloadedDate);
+    }
+
+    /** Passes items of a response to the database, as they are parsed */
+    private static class ItemsConsumer implements TimelineItemConsumer {
+        private final LatestTimelineItem latestTimelineItem;
+        final DataInserter.Batch batch;
+        int count = 0;
+
+        ItemsConsumer(LatestTimelineItem latestTimelineItem, DataInserter.Batch batch) {
+            this.latestTimelineItem = latestTimelineItem;
+            this.batch = batch;
+        }
+
+        @Override
+        public void onItem(MbTimelineItem item) {
+            count++;
+            latestTimelineItem.onNewMsg(item.timelineItemPosition, item.timelineItemDate);
+            batch.onItem(item);
+        }
     }
 
 }
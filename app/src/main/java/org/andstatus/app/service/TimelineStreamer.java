@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContext;
+import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.data.DataInserter;
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.LatestUserMessages;
+import org.andstatus.app.data.TimelineType;
+import org.andstatus.app.net.http.ConnectionException;
+import org.andstatus.app.net.social.Connection;
+import org.andstatus.app.net.social.MbTimelineItem;
+import org.andstatus.app.net.social.TimelineStreamListener;
+import org.andstatus.app.util.MyLog;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores new messages of an account as they are pushed by its server,
+ * see {@link Connection#streamTimeline(TimelineStreamListener)}.
+ * <ul>
+ * <li>Streams are open while the application is in use, if {@link MyPreferences#isStreamingWhileUsingApplicationEnabled()}.
+ * Accounts, which don't support streaming, are synced by polling only.</li>
+ * <li>While a stream is connected, automatic updates skip the timelines, which it delivers,
+ * see {@link #isStreamed(MyAccount, TimelineType)}.</li>
+ * <li>Streamed messages don't move the position of their timeline, and each connection is followed
+ * by a download of the timelines, so messages, which were sent while we were disconnected, are not lost.</li>
+ * <li>A broken stream reconnects with exponential backoff, see {@link SyncScheduler#retryDelayMs(int, long)}</li>
+ * </ul>
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class TimelineStreamer implements TimelineStreamListener, Runnable {
+    private static final String TAG = TimelineStreamer.class.getSimpleName();
+    /** Switching between activities of the application doesn't reconnect */
+    static final long STOP_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    /** A stream, which was connected this long, is not a failure, so the backoff starts anew */
+    static final long STABLE_CONNECTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ConcurrentMap<String, TimelineStreamer> streamers = new ConcurrentHashMap<String, TimelineStreamer>();
+    private static volatile Handler handler = null;
+    private static final Runnable stopAllRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopAll();
+        }
+    };
+
+    private final MyAccount ma;
+    private final Connection connection;
+    private volatile boolean stopped = false;
+    private volatile Closeable stream = null;
+    private volatile long connectedAt = 0;
+    private volatile long itemsReceived = 0;
+
+    private TimelineStreamer(MyAccount ma, Connection connection) {
+        this.ma = ma;
+        this.connection = connection;
+    }
+
+    /** Opens streams of all accounts, which support streaming, unless they are open already */
+    public static void startAll(MyContext myContext) {
+        getHandler().removeCallbacks(stopAllRunnable);
+        if (!MyPreferences.isStreamingWhileUsingApplicationEnabled()) {
+            stopAll();
+            return;
+        }
+        for (MyAccount ma : myContext.persistentAccounts().collection()) {
+            TimelineStreamer existing = streamers.get(ma.getAccountName());
+            if ((existing == null || existing.stopped) && ma.isValidAndSucceeded()
+                    && ma.getConnection() != null && ma.getConnection().isStreamingSupported()) {
+                start(ma, existing);
+            }
+        }
+    }
+
+    /** @param existing The stopped streamer of the account, which may still be finishing, or null */
+    private static void start(MyAccount ma, TimelineStreamer existing) {
+        Connection connection = ma.newConnection();
+        if (connection == null) {
+            return;
+        }
+        TimelineStreamer streamer = new TimelineStreamer(ma, connection);
+        if (existing == null ? streamers.putIfAbsent(ma.getAccountName(), streamer) == null
+                : streamers.replace(ma.getAccountName(), existing, streamer)) {
+            new Thread(streamer, TAG + "-" + ma.getAccountName()).start();
+        }
+    }
+
+    /** The streams are closed after a delay, unless {@link #startAll(MyContext)} is called again */
+    public static void stopAllDelayed() {
+        if (!streamers.isEmpty()) {
+            getHandler().postDelayed(stopAllRunnable, STOP_DELAY_MILLIS);
+        }
+    }
+
+    public static void stopAll() {
+        for (TimelineStreamer streamer : streamers.values()) {
+            streamer.stop();
+        }
+    }
+
+    public static void forget() {
+        if (handler != null) {
+            handler.removeCallbacks(stopAllRunnable);
+        }
+        stopAll();
+    }
+
+    private static Handler getHandler() {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * @return true if new items of the timeline of the account are being pushed by its server now,
+     * so there is no need to download them periodically
+     */
+    static boolean isStreamed(MyAccount ma, TimelineType timelineType) {
+        if (ma == null || (timelineType != TimelineType.HOME && timelineType != TimelineType.DIRECT)) {
+            return false;
+        }
+        TimelineStreamer streamer = streamers.get(ma.getAccountName());
+        return streamer != null && streamer.isConnected();
+    }
+
+    boolean isConnected() {
+        return stream != null && !stopped;
+    }
+
+    @Override
+    public void run() {
+        try {
+            streamWhileNotStopped();
+        } finally {
+            // Even if the thread dies, automatic updates shouldn't skip the timelines of the account
+            stream = null;
+            streamers.remove(ma.getAccountName(), this);
+            MyLog.v(this, "Stopped " + this);
+        }
+    }
+
+    private void streamWhileNotStopped() {
+        int attempt = 0;
+        while (!stopped) {
+            try {
+                connection.streamTimeline(this);
+                MyLog.v(this, ma.getAccountName() + " disconnected by the server");
+            } catch (ConnectionException e) {
+                if (!stopped) {
+                    MyLog.i(this, ma.getAccountName() + " disconnected", e);
+                }
+                if (isFatal(e)) {
+                    MyLog.d(this, ma.getAccountName() + " falls back to polling");
+                    break;
+                }
+            } catch (RuntimeException e) {
+                // E.g. a database error while storing an item: the stream is reconnected as after a failure
+                MyLog.e(this, ma.getAccountName() + " stream failed", e);
+                DbUtils.closeSilently(stream);
+            }
+            boolean wasStable = connectedAt > 0 && System.currentTimeMillis() - connectedAt > STABLE_CONNECTION_MILLIS;
+            stream = null;
+            connectedAt = 0;
+            attempt = wasStable ? 1 : attempt + 1;
+            long delayMillis = SyncScheduler.retryDelayMs(attempt, System.currentTimeMillis());
+            MyLog.v(this, ma.getAccountName() + " reconnects in " + TimeUnit.MILLISECONDS.toSeconds(delayMillis) + " seconds");
+            pause(delayMillis);
+        }
+    }
+
+    private static boolean isFatal(ConnectionException e) {
+        switch (e.getStatusCode()) {
+            case UNSUPPORTED_API:
+            case NOT_FOUND:
+            case AUTHENTICATION_ERROR:
+            case UNAUTHORIZED:
+            case FORBIDDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private synchronized void pause(long millis) {
+        if (!stopped) {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                stopped = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        final Closeable toClose = stream;
+        if (toClose != null) {
+            // Closing a network stream may block
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DbUtils.closeSilently(toClose);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onConnected(Closeable stream) {
+        this.stream = stream;
+        connectedAt = System.currentTimeMillis();
+        if (stopped) {
+            DbUtils.closeSilently(stream);
+            return;
+        }
+        MyLog.v(this, "Connected " + ma.getAccountName());
+        MyServiceManager.sendCommand(new CommandData(CommandEnum.FETCH_TIMELINE, ma.getAccountName(),
+                TimelineType.ALL));
+    }
+
+    @Override
+    public void onItem(MbTimelineItem item) throws ConnectionException {
+        if (stopped) {
+            return;
+        }
+        TimelineType timelineType = item.mbMessage != null && item.mbMessage.recipient != null
+                ? TimelineType.DIRECT : TimelineType.HOME;
+        CommandExecutionContext execContext = new CommandExecutionContext(
+                new CommandData(CommandEnum.FETCH_TIMELINE, ma.getAccountName(), timelineType), ma);
+        LatestUserMessages latestUserMessages = new LatestUserMessages();
+        new DataInserter(execContext).insertOrUpdateTimelineItems(Collections.singletonList(item), latestUserMessages);
+        latestUserMessages.save();
+        itemsReceived++;
+        MyServiceEventsBus.post(execContext.getCommandData(), MyServiceEvent.ON_ITEMS_STREAMED);
+    }
+
+    @Override
+    public String toString() {
+        return MyLog.formatKeyValue(this, "account:" + ma.getAccountName()
+                + (isConnected() ? ",connected" : "") + ",items:" + itemsReceived);
+    }
+}
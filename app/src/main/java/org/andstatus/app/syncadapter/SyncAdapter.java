@@ -97,7 +97,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements MyServic
             MyLog.v(this, method + "; Started, account:" + account.name);
             mCommandData = new CommandData(CommandEnum.AUTOMATIC_UPDATE, account.name,
                     TimelineType.ALL, 0);
-            intentReceiver.registerReceiver(mContext);	
+            intentReceiver.register();	
             MyServiceManager.sendCommand(mCommandData);
             final long numIterations = 10;
             synchronized(syncLock) {
@@ -121,7 +121,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements MyServic
                 syncResult.stats.numIoExceptions += mNumIoExceptions;
                 syncResult.stats.numParseExceptions += mNumParseExceptions;
             }
-            intentReceiver.unregisterReceiver(mContext);            
+            intentReceiver.unregister();            
         }
         MyLog.v(this, method + "; Ended, " 
                 + (syncResult.hasError() ? "has error" : "ok"));
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes records of {@link MyLog} to the log file in a background thread, so logging to a file
+ * doesn't add disk I/O to the threads, which log.
+ * Callers only add a record to a bounded lock-free queue. When the queue is full, new records are dropped,
+ * and the number of dropped records is written to the file instead of them.
+ * The single writer thread formats the records in batches and appends them to a file channel,
+ * which is kept open. When the file grows larger than {@link #MAX_FILE_BYTES}, the next log file is started.
+ * Only when the application is about to crash on an uncaught exception, the queued records are written
+ * in the crashing thread, so the records, which explain the failure, are not lost with the process.
+ * If writing fails unexpectedly, the failure is reported to the system log once, and the writer goes on
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class AsyncLogWriter {
+    private static final String TAG = AsyncLogWriter.class.getSimpleName();
+    static final int CAPACITY = 4096;
+    static final long MAX_FILE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static final AtomicBoolean failureReported = new AtomicBoolean();
+    private static final AtomicBoolean handlerInstalled = new AtomicBoolean();
+    private static volatile Thread writerThread = null;
+
+    private static final Object channelLock = new Object();
+    @GuardedBy("channelLock")
+    private static FileChannel channel = null;
+    @GuardedBy("channelLock")
+    private static String channelFileName = null;
+    @GuardedBy("channelLock")
+    private static long fileSize = 0;
+
+    private static class Record {
+        final long time;
+        final int logLevel;
+        final String tag;
+        final String msg;
+        final Throwable tr;
+
+        Record(int logLevel, String tag, String msg, Throwable tr) {
+            time = System.currentTimeMillis();
+            this.logLevel = logLevel;
+            this.tag = tag;
+            this.msg = msg;
+            this.tr = tr;
+        }
+    }
+
+    private AsyncLogWriter() {
+        // Empty
+    }
+
+    /**
+     * Doesn't block and doesn't do I/O
+     * @return false if the record was dropped, because the queue is full
+     */
+    static boolean add(int logLevel, String tag, String msg, Throwable tr) {
+        if (queued.incrementAndGet() > CAPACITY) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue.add(new Record(logLevel, tag, msg, tr));
+        Thread thread = writerThread;
+        if (thread == null) {
+            startWriter();
+        } else {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    private static void startWriter() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        writerThread = thread;
+        thread.start();
+        if (handlerInstalled.compareAndSet(false, true)) {
+            flushOnUncaughtException();
+        }
+    }
+
+    /** The previous default handler, e.g. the crash reporter, is called after the flush */
+    private static void flushOnUncaughtException() {
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                try {
+                    add(MyLog.ERROR, TAG, "Uncaught exception in " + thread.getName(), ex);
+                    flush();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to flush the log", e);
+                } finally {
+                    if (previous != null) {
+                        previous.uncaughtException(thread, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    /** If the thread dies anyway, e.g. of an Error, the next record starts a new writer */
+    private static void writeLoop() {
+        try {
+            while (true) {
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    onWriteFailed(e);
+                }
+            }
+        } finally {
+            writerThread = null;
+            started.set(false);
+        }
+    }
+
+    /** Records of the failed batch are lost, the file is reopened for the next ones */
+    private static void onWriteFailed(RuntimeException e) {
+        if (failureReported.compareAndSet(false, true)) {
+            Log.e(TAG, "Failed to write the log file", e);
+        }
+        synchronized (channelLock) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Write all queued records in the caller's thread.
+     * Only the writer thread and a crashing thread do this, so callers of {@link #add} don't wait for disk I/O
+     */
+    static void flush() {
+        synchronized (channelLock) {
+            writeQueued();
+        }
+    }
+
+    /**
+     * Write all queued records and close the file, e.g. when logging to a file is turned off.
+     * This is done in the caller's thread
+     */
+    static void flushAndClose() {
+        synchronized (channelLock) {
+            writeQueued();
+            closeChannel();
+        }
+    }
+
+    @GuardedBy("channelLock")
+    private static void writeQueued() {
+        StringBuilder builder = new StringBuilder();
+        int count = 0;
+        Record record;
+        while ((record = queue.poll()) != null) {
+            queued.decrementAndGet();
+            format(builder, record);
+            count++;
+            if (count >= MAX_BATCH_SIZE) {
+                write(builder);
+                builder.setLength(0);
+                count = 0;
+            }
+        }
+        long droppedCount = dropped.getAndSet(0);
+        if (droppedCount > 0) {
+            builder.append(MyLog.currentDateTimeFormatted()).append(" W/").append(TAG).append(": ")
+                    .append(droppedCount).append(" log records dropped, the queue was full\n");
+        }
+        if (builder.length() > 0) {
+            write(builder);
+        }
+    }
+
+    private static void format(StringBuilder builder, Record record) {
+        builder.append(MyLog.dateTimeFormatted(record.time));
+        builder.append(" ");
+        builder.append(MyLog.logLevelToString(record.logLevel));
+        builder.append("/");
+        builder.append(record.tag);
+        builder.append(":");
+        if (!TextUtils.isEmpty(record.msg)) {
+            builder.append(" ");
+            builder.append(record.msg);
+        }
+        if (record.tr != null) {
+            builder.append(" ");
+            builder.append(record.tr.toString());
+            builder.append("\n");
+            builder.append(MyLog.getStackTrace(record.tr));
+        }
+        builder.append("\n");
+    }
+
+    /**
+     * Records, which were queued before logging to a file was turned off, go to the file, which is still open
+     */
+    @GuardedBy("channelLock")
+    private static void write(StringBuilder builder) {
+        String filename = MyLog.getLogFilename();
+        if (filename != null && !filename.equals(channelFileName)) {
+            closeChannel();
+            openChannel(filename);
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(UTF_8));
+            while (buffer.hasRemaining()) {
+                fileSize += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write to " + channelFileName, e);
+            closeChannel();
+            return;
+        }
+        if (fileSize > MAX_FILE_BYTES) {
+            MyLog.setNextLogFileName();
+        }
+    }
+
+    @GuardedBy("channelLock")
+    private static void openChannel(String filename) {
+        File file = MyLog.getFileInLogDir(filename, false);
+        if (file == null) {
+            return;
+        }
+        try {
+            channel = new FileOutputStream(file, true).getChannel();
+            channelFileName = filename;
+            fileSize = channel.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open " + file.getAbsolutePath(), e);
+            closeChannel();
+        }
+    }
+
+    @GuardedBy("channelLock")
+    private static void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.v(TAG, "Failed to close " + channelFileName, e);
+            }
+        }
+        channel = null;
+        channelFileName = null;
+        fileSize = 0;
+    }
+}
@@ -187,13 +187,20 @@ public class FileUtils {
     }
 
     public static void readStreamToFile(InputStream in, File file) throws IOException {
+        readStreamToFile(in, file, false);
+    }
+
+    /**
+     * @param append if true, the stream is appended to the file, e.g. to resume a download
+     */
+    public static void readStreamToFile(InputStream in, File file, boolean append) throws IOException {
         if (in == null || file == null) {
             return;
         }
         byte[] buffer = new byte[BUFFER_LENGTH];
         int count;
         try {
-            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file, append));
             try {
                 while ((count = in.read(buffer)) != -1) {
                     out.write(buffer, 0, count);
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of durations in buckets, which are twice as wide as the previous one:
+ * under 1 ms, 1 ms, 2-3 ms, 4-7 ms... The last bucket holds everything longer.
+ * So percentiles are approximate, but recording is cheap and doesn't need locks
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class LatencyHistogram {
+    /** The last bucket starts at 2^(BUCKETS-2) ms, more than 4 minutes */
+    static final int BUCKETS = 20;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        counts.incrementAndGet(bucketOf(millis));
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        long max = maxMillis.get();
+        while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+            max = maxMillis.get();
+        }
+    }
+
+    static int bucketOf(long millis) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalMillis() {
+        return totalMillis.get();
+    }
+
+    public long getAverageMillis() {
+        long countNow = count.get();
+        return countNow == 0 ? 0 : totalMillis.get() / countNow;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * @param percent e.g. 90 for the 90th percentile
+     * @return The upper bound of the bucket, where the percentile is, but not more than the maximum
+     */
+    public long getPercentileMillis(int percent) {
+        long countNow = count.get();
+        if (countNow == 0) {
+            return 0;
+        }
+        long rank = (countNow * percent + 99) / 100;
+        long cumulative = 0;
+        for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+            cumulative += counts.get(bucket);
+            if (cumulative >= rank) {
+                return Math.min(maxMillis.get(), bucket == 0 ? 0 : (1L << bucket) - 1);
+            }
+        }
+        return maxMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "n:" + getCount() + ",avgMs:" + getAverageMillis() + ",p50Ms:" + getPercentileMillis(50)
+                + ",p90Ms:" + getPercentileMillis(90) + ",maxMs:" + getMaxMillis();
+    }
+}
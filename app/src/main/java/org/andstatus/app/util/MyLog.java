@@ -28,6 +28,7 @@ import org.json.JSONTokener;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -451,13 +452,30 @@ public class MyLog {
         setNextLogFileName(true);
     }
     
+    /**
+     * When turned on, the log file is created at once.
+     * When turned off, records queued before are written, and the file is closed
+     */
     public static void setLogToFile(boolean logEnabled) {
         if (logEnabled) {
             setNextLogFileName(false);
+            createLogFile();
         } else { 
             synchronized (logFileLock) {
                 logFileName = null;
             }
+            AsyncLogWriter.flushAndClose();
+        }
+    }
+
+    private static void createLogFile() {
+        File file = getFileInLogDir(getLogFilename(), false);
+        try {
+            if (file != null && !file.exists() && !file.createNewFile()) {
+                Log.v(TAG, "Couldn't create " + file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't create log file", e);
         }
     }
 
@@ -476,48 +494,14 @@ public class MyLog {
         }
     }
     
-    private static Object logFileWriterLock = new Object();
+    /**
+     * The record is written to the file asynchronously by {@link AsyncLogWriter}
+     */
     static void logToFile(int logLevel, String tag, String msg, Throwable tr) {
         if(!isLogToFileEnabled()) {
             return;
         }
-        StringBuilder builder = new StringBuilder();
-        builder.append(currentDateTimeFormatted());
-        builder.append(" ");
-        builder.append(logLevelToString(logLevel));
-        builder.append("/");
-        builder.append(tag);
-        builder.append(":");
-        if (!TextUtils.isEmpty(msg)) {
-            builder.append(" ");
-            builder.append(msg);
-        }
-        if (tr != null) {
-            builder.append(" ");
-            builder.append(tr.toString());
-            builder.append("\n");
-            builder.append(getStackTrace(tr));
-        }
-        builder.append("\n");
-        witeRawStringToLogFile(builder);
-    }
-
-    private static void witeRawStringToLogFile(StringBuilder builder)
-    {
-        synchronized (logFileWriterLock)
-        {
-            writeStringToFile(builder.toString(), getMostRecentLogFileName(),
-                              true, false);
-        }
-    }
-    
-    private static String getMostRecentLogFileName() {
-        String filename = getLogFilename();
-        if (FileUtils.exists(getFileInLogDir(filename, false))) {
-            setNextLogFileName(true);
-            filename = getLogFilename();
-        }
-        return filename;
+        AsyncLogWriter.add(logLevel, tag, msg, tr);
     }
     
     public static String getLogFilename() {
@@ -542,10 +526,14 @@ public class MyLog {
     }
     
     public static String currentDateTimeFormatted() {
-        String strTime = DateFormat.format("yyyy-MM-dd-HH-mm-ss", new Date(System.currentTimeMillis())).toString();
+        return dateTimeFormatted(System.currentTimeMillis());
+    }
+
+    static String dateTimeFormatted(long time) {
+        String strTime = DateFormat.format("yyyy-MM-dd-HH-mm-ss", new Date(time)).toString();
         if (strTime.contains("HH")) {
             // see http://stackoverflow.com/questions/16763968/android-text-format-dateformat-hh-is-not-recognized-like-with-java-text-simple
-            strTime = DateFormat.format("yyyy-MM-dd-kk-mm-ss", new Date(System.currentTimeMillis())).toString();
+            strTime = DateFormat.format("yyyy-MM-dd-kk-mm-ss", new Date(time)).toString();
         }
         return strTime;
     }
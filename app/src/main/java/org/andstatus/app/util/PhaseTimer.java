@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the execution time of a command into phases: network, JSON parsing and database writes.
+ * The timer belongs to the thread, which executes the command, so code of the phases
+ * (e.g. {@link org.andstatus.app.net.http.HttpConnection}) doesn't need to know the command.
+ * <p>
+ * Phases may be nested, e.g. items of a timeline are parsed and stored, while the response
+ * is being streamed from the network. The time of a nested phase is excluded from the outer phase.
+ * A timer of a step of the command is nested in the timer of the command, and the command's time
+ * includes the time of its steps.
+ * <p>
+ * Tasks, which are executed for the command in other threads (e.g. in a pool of threads),
+ * have their own timers, see {@link #beginTask(PhaseTimer)}. Their phases overlap in time with each other
+ * and with the phases of the command, so they are recorded separately, see {@link #getTasksMillis(Phase)}
+ * @author yvolk@yurivolkov.com
+ */
+public final class PhaseTimer {
+    public enum Phase {
+        NETWORK,
+        PARSE,
+        DB_WRITE
+    }
+
+    private static final ThreadLocal<PhaseTimer> current = new ThreadLocal<PhaseTimer>();
+
+    private final PhaseTimer parent;
+    /** The timer, for which this timer measures a task in another thread, or null */
+    private final PhaseTimer taskOf;
+    private final long startedAt = System.nanoTime();
+    private long endedAt = 0;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final Deque<Phase> phases = new ArrayDeque<Phase>();
+    private long phaseStartedAt = 0;
+    private int children = 0;
+    private long bytesReceived = 0;
+    private long bytesSent = 0;
+    private final long[] tasksNanos = new long[Phase.values().length];
+    /** Ended in other threads, they are added to this timer in its own thread */
+    private final Queue<PhaseTimer> endedTasks = new ConcurrentLinkedQueue<PhaseTimer>();
+
+    private PhaseTimer(PhaseTimer parent, PhaseTimer taskOf) {
+        this.parent = parent;
+        this.taskOf = taskOf;
+    }
+
+    /** Starts a timer of the current thread. It is nested in the timer, which was started before */
+    public static PhaseTimer begin() {
+        PhaseTimer timer = new PhaseTimer(current.get(), null);
+        current.set(timer);
+        return timer;
+    }
+
+    /** @return The timer of the current thread or null */
+    public static PhaseTimer current() {
+        return current.get();
+    }
+
+    /**
+     * Starts a timer of the current thread, which measures a task of the command in another thread
+     * @param timer The timer of the command (see {@link #current()} in its thread), null if none
+     */
+    public static PhaseTimer beginTask(PhaseTimer timer) {
+        PhaseTimer task = new PhaseTimer(current.get(), timer);
+        current.set(task);
+        return task;
+    }
+
+    /** Ends this timer, so the timer, which was started before it, becomes current again */
+    public PhaseTimer end() {
+        if (endedAt == 0) {
+            endedAt = System.nanoTime();
+            if (!phases.isEmpty()) {
+                phaseNanos[phases.peek().ordinal()] += endedAt - phaseStartedAt;
+                phases.clear();
+            }
+            addEndedTasks();
+            if (parent == null) {
+                current.remove();
+            } else {
+                parent.onChildEnded(this);
+                current.set(parent);
+            }
+            if (taskOf != null) {
+                taskOf.endedTasks.add(this);
+            }
+        }
+        return this;
+    }
+
+    private void onChildEnded(PhaseTimer child) {
+        children++;
+        for (int ind = 0; ind < phaseNanos.length; ind++) {
+            phaseNanos[ind] += child.phaseNanos[ind];
+            tasksNanos[ind] += child.tasksNanos[ind];
+        }
+        bytesReceived += child.bytesReceived;
+        bytesSent += child.bytesSent;
+    }
+
+    /** Tasks, which didn't end before this timer, are not counted */
+    private void addEndedTasks() {
+        PhaseTimer task;
+        while ((task = endedTasks.poll()) != null) {
+            for (int ind = 0; ind < tasksNanos.length; ind++) {
+                tasksNanos[ind] += task.phaseNanos[ind] + task.tasksNanos[ind];
+            }
+            bytesReceived += task.bytesReceived;
+            bytesSent += task.bytesSent;
+        }
+    }
+
+    /** Does nothing, if no timer is started in this thread */
+    public static void start(Phase phase) {
+        PhaseTimer timer = current.get();
+        if (timer != null) {
+            long now = System.nanoTime();
+            if (!timer.phases.isEmpty()) {
+                timer.phaseNanos[timer.phases.peek().ordinal()] += now - timer.phaseStartedAt;
+            }
+            timer.phases.push(phase);
+            timer.phaseStartedAt = now;
+        }
+    }
+
+    /** Ends the phase, which was started last, and resumes the outer one */
+    public static void stop(Phase phase) {
+        PhaseTimer timer = current.get();
+        if (timer != null && timer.phases.peek() == phase) {
+            long now = System.nanoTime();
+            timer.phaseNanos[timer.phases.pop().ordinal()] += now - timer.phaseStartedAt;
+            timer.phaseStartedAt = now;
+        }
+    }
+
+    public static void onBytesTransferred(long received, long sent) {
+        PhaseTimer timer = current.get();
+        if (timer != null) {
+            timer.bytesReceived += received;
+            timer.bytesSent += sent;
+        }
+    }
+
+    public long getMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((endedAt == 0 ? System.nanoTime() : endedAt) - startedAt);
+    }
+
+    public long getMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()]);
+    }
+
+    /** @return Sum of the phase times of the tasks in other threads, which ended before this timer */
+    public long getTasksMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(tasksNanos[phase.ordinal()]);
+    }
+
+    /** @return Time, which is not in any phase */
+    public long getOtherMillis() {
+        long millis = getMillis();
+        for (Phase phase : Phase.values()) {
+            millis -= getMillis(phase);
+        }
+        return Math.max(0, millis);
+    }
+
+    /** @return Number of nested timers, e.g. of steps of the command */
+    public int getChildrenCount() {
+        return children;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+}